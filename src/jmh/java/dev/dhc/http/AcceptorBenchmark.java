@@ -0,0 +1,69 @@
+package dev.dhc.http;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+import static java.nio.charset.StandardCharsets.US_ASCII;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Opens connections to a server on localhost as fast as 32 client threads
+// can, each sending one request with Connection: close and reading the
+// response, for 1 to 8 acceptor sockets and both engines. The score is new
+// connections per second. The server keeps running until the fork exits.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(32)
+@Fork(1)
+public class AcceptorBenchmark {
+
+    private static final byte[] REQUEST
+            = "GET / HTTP/1.1\r\nConnection: close\r\n\r\n".getBytes(US_ASCII);
+
+    @Param({"1", "2", "4", "8"})
+    public int acceptors;
+
+    @Param({"THREAD_PER_CONNECTION", "EVENT_LOOP"})
+    public ServerOptions.Engine engine;
+
+    private InetSocketAddress addr;
+
+    @Setup
+    public void setUp() throws IOException, InterruptedException {
+        var options = ServerOptions.builder()
+                .engine(engine)
+                .acceptors(acceptors)
+                .maxConnections(Integer.MAX_VALUE)
+                .build();
+        addr = Benchmarks.serve(req -> new Response(StatusCode.OK), options);
+    }
+
+    @Benchmark
+    public int connect() throws IOException {
+        try (var ch = SocketChannel.open(addr)) {
+            ch.write(ByteBuffer.wrap(REQUEST));
+            var buf = ByteBuffer.allocate(256);
+            int total = 0;
+            for (int n; (n = ch.read(buf)) >= 0; buf.clear()) {
+                total += n;
+            }
+            return total;
+        }
+    }
+}
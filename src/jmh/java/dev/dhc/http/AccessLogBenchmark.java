@@ -0,0 +1,89 @@
+package dev.dhc.http;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+import static java.nio.charset.StandardCharsets.US_ASCII;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Logs a request from 8 threads at once, either by adding a record to an
+// AccessLog's ring or by formatting a line and writing it to a shared
+// BufferedWriter under its lock, as a naive access log would. The score is
+// the time each thread spends logging; records the ring drops are counted
+// by http_access_log_dropped_total rather than written.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(8)
+@Fork(1)
+public class AccessLogBenchmark {
+
+    @Param({"RING", "LOCKED_WRITER"})
+    public String log;
+
+    private Path dir;
+    private Request req;
+    private AccessLog.Remote remote;
+    private AccessLog ring;
+    private BufferedWriter writer;
+
+    @Setup
+    public void setUp() throws IOException, BadRequestException {
+        dir = Files.createTempDirectory(Benchmarks.tmpfs(), "jmh");
+        req = Request.parseFrom(new ByteArrayInputStream(
+                "GET /echo/hello HTTP/1.1\r\n\r\n".getBytes(US_ASCII)));
+        remote = AccessLog.remote(new InetSocketAddress("127.0.0.1", 4321));
+        var path = dir.resolve("access.log");
+        if (log.equals("RING")) {
+            ring = new AccessLog(path, 64L << 20, new Metrics());
+        } else {
+            writer = Files.newBufferedWriter(path);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        if (ring != null) {
+            ring.close();
+        } else {
+            writer.close();
+        }
+        Benchmarks.deleteRecursively(dir);
+    }
+
+    @Benchmark
+    public void record() throws IOException {
+        if (ring != null) {
+            ring.record(req, StatusCode.OK, 5, 1000, remote);
+            return;
+        }
+        var line = ("{\"time\":\"%s\",\"remote\":\"127.0.0.1:4321\","
+                + "\"method\":\"%s\",\"path\":\"%s\",\"status\":%d,"
+                + "\"bytes\":%d,\"latency_us\":%d}\n").formatted(
+                Instant.now(), req.getMethod(), req.getPath(),
+                200, 5, 1);
+        synchronized (writer) {
+            writer.write(line);
+        }
+    }
+}
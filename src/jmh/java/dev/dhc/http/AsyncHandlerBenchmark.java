@@ -0,0 +1,107 @@
+package dev.dhc.http;
+
+import java.io.InputStream;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Serves a burst of |concurrency| requests to a handler that waits 1ms on
+// simulated I/O, through a TreeRouter, and waits for every response. The
+// "async" handler completes its stage from a timer without holding a
+// thread; "virtual" sleeps on a virtual thread per request, and "pool"
+// sleeps on a fixed pool of 64 platform threads, like a classic worker pool.
+// Each operation is one burst, so the time per operation is the latency of
+// its slowest request.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AsyncHandlerBenchmark {
+
+    private static final long IO_MILLIS = 1;
+    private static final Response RESPONSE = new Response(StatusCode.OK);
+
+    @Param({"100", "1000", "10000"})
+    public int concurrency;
+
+    @Param({"async", "virtual", "pool"})
+    public String handler;
+
+    private ScheduledExecutorService timer;
+    private ExecutorService executor;
+    private TreeRouter router;
+    private Request req;
+
+    @Setup
+    public void setUp() throws BadRequestException {
+        timer = Executors.newSingleThreadScheduledExecutor();
+        router = new TreeRouter();
+        switch (handler) {
+            case "async" ->
+                router.addAsyncRoute(Set.of(Method.GET), "/io", req -> {
+                    var stage = new CompletableFuture<Response>();
+                    timer.schedule(() -> stage.complete(RESPONSE),
+                            IO_MILLIS, TimeUnit.MILLISECONDS);
+                    return stage;
+                });
+            case "virtual", "pool" -> {
+                executor = handler.equals("virtual")
+                        ? Executors.newVirtualThreadPerTaskExecutor()
+                        : Executors.newFixedThreadPool(64);
+                Handler blocking = req -> {
+                    try {
+                        Thread.sleep(IO_MILLIS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    return RESPONSE;
+                };
+                // the way the server runs a synchronous handler: on a
+                // thread of its own.
+                router.addAsyncRoute(Set.of(Method.GET), "/io", req ->
+                        CompletableFuture.supplyAsync(
+                                () -> blocking.handle(req), executor));
+            }
+            default ->
+                throw new IllegalArgumentException(handler);
+        }
+        req = Request.create(Method.GET, "/io", Headers.EMPTY,
+                InputStream.nullInputStream());
+    }
+
+    @TearDown
+    public void tearDown() {
+        timer.shutdownNow();
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    @Benchmark
+    public int burst() {
+        var stages = new CompletableFuture<?>[concurrency];
+        for (int i = 0; i < concurrency; i++) {
+            stages[i] = router.handleAsync(req).toCompletableFuture();
+        }
+        CompletableFuture.allOf(stages).join();
+        return stages.length;
+    }
+}
@@ -0,0 +1,89 @@
+package dev.dhc.http;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+
+// helpers shared by the benchmarks.
+final class Benchmarks {
+
+    private Benchmarks() {
+    }
+
+    // a memory-backed directory for benchmark files, if there is one.
+    static Path tmpfs() {
+        var shm = Path.of("/dev/shm");
+        return Files.isDirectory(shm) && Files.isWritable(shm)
+                ? shm
+                : Path.of(System.getProperty("java.io.tmpdir"));
+    }
+
+    static void deleteRecursively(Path dir) throws IOException {
+        try (var paths = Files.walk(dir)) {
+            for (var path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    // starts a server for |handler| on a free port, which keeps running
+    // until the fork exits, and returns its address once it's listening.
+    static InetSocketAddress serve(Handler handler, ServerOptions options)
+            throws IOException, InterruptedException {
+        int port;
+        try (var probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        var server = new Server(port, handler, options);
+        var thread = new Thread(() -> {
+            try {
+                server.run();
+            } catch (IOException e) {
+                e.printStackTrace(System.err);
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+        var addr = new InetSocketAddress("localhost", port);
+        for (int attempt = 0;; attempt++) {
+            try (var ch = SocketChannel.open(addr)) {
+                return addr;
+            } catch (IOException e) {
+                if (attempt == 100) {
+                    throw e;
+                }
+                Thread.sleep(10);
+            }
+        }
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        var b = new StringBuilder();
+        for (int c; (c = in.read()) >= 0 && c != '\n';) {
+            if (c != '\r') {
+                b.append((char) c);
+            }
+        }
+        return b.toString();
+    }
+
+    // reads one response with a Content-Length, which must be a 200.
+    static void readResponse(InputStream in) throws IOException {
+        var status = readLine(in);
+        if (!status.startsWith("HTTP/1.1 200")) {
+            throw new IOException("unexpected status: " + status);
+        }
+        long contentLength = 0;
+        for (String s; !(s = readLine(in)).isEmpty();) {
+            if (s.startsWith("Content-Length: ")) {
+                contentLength = Long.parseLong(s.substring(16));
+            }
+        }
+        in.skipNBytes(contentLength);
+    }
+}
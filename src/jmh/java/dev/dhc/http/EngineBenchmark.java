@@ -0,0 +1,118 @@
+package dev.dhc.http;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import static java.nio.charset.StandardCharsets.US_ASCII;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import dev.dhc.codecrafters_http.Router;
+
+// Compares the engines with a crowd of |idle| keep-alive connections next
+// to 64 busy ones, each busy thread sending a request for /echo on its own
+// connection and reading the response. The score is requests per second.
+// Client and server share the fork, so the open file limit must allow two
+// descriptors per connection.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(64)
+@Fork(1)
+public class EngineBenchmark {
+
+    private static final byte[] REQUEST
+            = "GET /echo/bench HTTP/1.1\r\nUser-Agent: bench\r\n\r\n"
+                    .getBytes(US_ASCII);
+
+    @State(Scope.Thread)
+    public static class Client {
+
+        private Socket socket;
+        private InputStream in;
+        private OutputStream out;
+
+        @Setup
+        public void setUp(EngineBenchmark bench) throws IOException {
+            socket = connect(bench.addr);
+            in = new BufferedInputStream(socket.getInputStream());
+            out = socket.getOutputStream();
+        }
+
+        @TearDown
+        public void tearDown() throws IOException {
+            socket.close();
+        }
+    }
+
+    @Param({"THREAD_PER_CONNECTION", "EVENT_LOOP"})
+    public ServerOptions.Engine engine;
+
+    @Param({"0", "1000", "10000"})
+    public int idle;
+
+    private Path root;
+    private InetSocketAddress addr;
+    private final List<Socket> idleSockets = new ArrayList<>();
+
+    // opens a connection and sends one request on it, so the server has
+    // really accepted and set it up.
+    private static Socket connect(InetSocketAddress addr) throws IOException {
+        var s = new Socket(addr.getHostString(), addr.getPort());
+        s.getOutputStream().write(REQUEST);
+        Benchmarks.readResponse(new BufferedInputStream(s.getInputStream()));
+        return s;
+    }
+
+    @Setup
+    public void setUp() throws IOException, InterruptedException {
+        root = Files.createTempDirectory(Benchmarks.tmpfs(), "engine");
+        var options = ServerOptions.builder()
+                .engine(engine)
+                .idleTimeout(Duration.ofMinutes(5))
+                .maxRequestsPerConnection(Integer.MAX_VALUE)
+                .maxConnections(Integer.MAX_VALUE)
+                .build();
+        addr = Benchmarks.serve(Router.make(root), options);
+        for (int i = 0; i < idle; i++) {
+            idleSockets.add(connect(addr));
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        for (var s : idleSockets) {
+            s.close();
+        }
+        Benchmarks.deleteRecursively(root);
+    }
+
+    @Benchmark
+    public void request(Client client) throws IOException {
+        client.out.write(REQUEST);
+        Benchmarks.readResponse(client.in);
+    }
+}
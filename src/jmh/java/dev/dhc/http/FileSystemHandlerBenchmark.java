@@ -0,0 +1,89 @@
+package dev.dhc.http;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import static java.nio.charset.StandardCharsets.US_ASCII;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Handles GETs and POSTs of files of various sizes on tmpfs (/dev/shm when
+// it exists), so that disk latency doesn't dominate, with and without a
+// FileCache. GET bodies are written to a stream that discards them.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FileSystemHandlerBenchmark {
+
+    @Param({"1024", "65536", "1048576"})
+    public int size;
+
+    @Param({"false", "true"})
+    public boolean cached;
+
+    private final OutputStream sink = OutputStream.nullOutputStream();
+    private Path dir;
+    private FileSystemHandler handler;
+    private Request get;
+    private byte[] post;
+
+    @Setup
+    public void setUp() throws IOException, BadRequestException {
+        dir = Files.createTempDirectory(Benchmarks.tmpfs(), "jmh");
+        var payload = new byte[size];
+        Arrays.fill(payload, (byte) 'x');
+        Files.write(dir.resolve("get.bin"), payload);
+        var cache = cached
+                ? new FileCache(64 << 20, 2 << 20, Duration.ofSeconds(1))
+                : null;
+        handler = new FileSystemHandler(dir, cache);
+        get = Request.parseFrom(new ByteArrayInputStream(
+                "GET /files/get.bin HTTP/1.1\r\n\r\n".getBytes(US_ASCII)))
+                .withParams(Map.of("filename", "get.bin"));
+        var out = new ByteArrayOutputStream();
+        out.write("POST /files/post.bin HTTP/1.1\r\nContent-Length: %d\r\n\r\n"
+                .formatted(size).getBytes(US_ASCII));
+        out.write(payload);
+        post = out.toByteArray();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Benchmarks.deleteRecursively(dir);
+    }
+
+    @Benchmark
+    public Response get() throws IOException {
+        var resp = handler.handle(get);
+        resp.getBody().write(sink);
+        return resp;
+    }
+
+    @Benchmark
+    public Response post() throws IOException, BadRequestException {
+        var req = Request.parseFrom(new ByteArrayInputStream(post))
+                .withParams(Map.of("filename", "post.bin"));
+        return handler.handle(req);
+    }
+}
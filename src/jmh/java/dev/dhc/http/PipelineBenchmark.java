@@ -0,0 +1,95 @@
+package dev.dhc.http;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import static java.nio.charset.StandardCharsets.US_ASCII;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import dev.dhc.codecrafters_http.Router;
+
+// Sends |depth| requests for /echo at a time on a single keep-alive
+// connection, then reads their responses. The primary score counts those
+// batches; the "requests" counter is requests per second.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PipelineBenchmark {
+
+    private static final String REQUEST
+            = "GET /echo/pipelined HTTP/1.1\r\nUser-Agent: bench\r\n\r\n";
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Counters {
+
+        public long requests;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            requests = 0;
+        }
+    }
+
+    @Param({"1", "8", "32"})
+    public int depth;
+
+    private Path root;
+    private Socket socket;
+    private InputStream in;
+    private OutputStream out;
+    private byte[] batch;
+
+    @Setup
+    public void setUp() throws IOException, InterruptedException {
+        root = Files.createTempDirectory(Benchmarks.tmpfs(), "pipeline");
+        // no request limit, so every batch goes on the same connection.
+        var options = ServerOptions.builder()
+                .maxRequestsPerConnection(Integer.MAX_VALUE)
+                .maxPipelineDepth(64)
+                .build();
+        var addr = Benchmarks.serve(Router.make(root), options);
+        socket = new Socket(addr.getHostString(), addr.getPort());
+        socket.setTcpNoDelay(true);
+        in = new BufferedInputStream(socket.getInputStream());
+        out = socket.getOutputStream();
+        batch = REQUEST.repeat(depth).getBytes(US_ASCII);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        socket.close();
+        Benchmarks.deleteRecursively(root);
+    }
+
+    @Benchmark
+    public void pipeline(Counters counters) throws IOException {
+        out.write(batch);
+        for (int i = 0; i < depth; i++) {
+            Benchmarks.readResponse(in);
+        }
+        counters.requests += depth;
+    }
+}
@@ -0,0 +1,105 @@
+package dev.dhc.http;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Takes tokens for a client address from 64 threads at once, either from
+// the striped, lock-free TokenBuckets that RateLimiter and Admission use or
+// from a HashMap of classic token buckets under one lock, as a naive
+// limiter would. With one client, every thread hits the same bucket; with
+// more, each thread takes from a random one of them. The limit is high
+// enough that requests are rarely refused, so the score is the cost of a
+// decision under contention.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(64)
+@Fork(1)
+public class RateLimiterBenchmark {
+
+    // a bucket holding up to |burst| tokens, refilled on each take.
+    private static final class Bucket {
+
+        private double tokens;
+        private long refilledAt = System.nanoTime();
+
+        Bucket(double tokens) {
+            this.tokens = tokens;
+        }
+    }
+
+    private static final class LockedBuckets {
+
+        private final Map<Object, Bucket> buckets = new HashMap<>();
+        private final double perNano;
+        private final int burst;
+
+        LockedBuckets(RateLimiter.Limit limit) {
+            this.perNano = limit.perSecond() / 1e9;
+            this.burst = limit.burst();
+        }
+
+        synchronized boolean take(Object key) {
+            var bucket = buckets.computeIfAbsent(key, k -> new Bucket(burst));
+            long now = System.nanoTime();
+            bucket.tokens = Math.min(burst,
+                    bucket.tokens + (now - bucket.refilledAt) * perNano);
+            bucket.refilledAt = now;
+            if (bucket.tokens < 1) {
+                return false;
+            }
+            bucket.tokens--;
+            return true;
+        }
+    }
+
+    @Param({"STRIPED", "LOCKED"})
+    public String table;
+
+    @Param({"1", "1024"})
+    public int clients;
+
+    private InetAddress[] addresses;
+    private TokenBuckets striped;
+    private LockedBuckets locked;
+
+    @Setup
+    public void setUp() throws UnknownHostException {
+        addresses = new InetAddress[clients];
+        for (int i = 0; i < clients; i++) {
+            addresses[i] = InetAddress.getByAddress(
+                    new byte[]{10, 0, (byte) (i >> 8), (byte) i});
+        }
+        var limit = new RateLimiter.Limit(1e9, 1_000_000);
+        striped = new TokenBuckets(limit);
+        locked = new LockedBuckets(limit);
+    }
+
+    @Benchmark
+    public boolean take() {
+        var key = addresses[clients == 1
+                ? 0 : ThreadLocalRandom.current().nextInt(clients)];
+        return table.equals("STRIPED")
+                ? striped.take(key) == 0
+                : locked.take(key);
+    }
+}
@@ -0,0 +1,85 @@
+package dev.dhc.http;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import static java.nio.charset.StandardCharsets.US_ASCII;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Routes GET /echo/{text} and GET /user-agent requests, as Router.make
+// does, from 8 threads sharing one router, and encodes each response into
+// a stream that discards the bytes, with and without a ResponseCache in
+// front of the handlers. Requests are parsed once up front, so the score is
+// routing, handling and encoding.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(8)
+@Fork(1)
+public class ResponseCacheBenchmark {
+
+    @State(Scope.Thread)
+    public static class Connection {
+
+        private final ResponseEncoder enc = new ResponseEncoder();
+        private final OutputStream sink = OutputStream.nullOutputStream();
+    }
+
+    @Param({"true", "false"})
+    public boolean cached;
+
+    private TreeRouter router;
+    private Request echo;
+    private Request userAgent;
+
+    private static Request parse(String head)
+            throws IOException, BadRequestException {
+        return Request.parseFrom(
+                new ByteArrayInputStream(head.getBytes(US_ASCII)));
+    }
+
+    @Setup
+    public void setUp() throws IOException, BadRequestException {
+        var cache = cached ? new ResponseCache(16 << 20) : null;
+        router = new TreeRouter();
+        Handler echoHandler = new SimpleHandler(req -> req.getParam("text"));
+        Handler agentHandler = new SimpleHandler(
+                req -> req.getHeader("User-Agent"));
+        if (cache != null) {
+            echoHandler = cache.wrap(echoHandler);
+            agentHandler = cache.wrap(agentHandler, "User-Agent");
+        }
+        router.addRoute(Set.of(Method.GET), "/echo/{text}", echoHandler);
+        router.addRoute(Set.of(Method.GET), "/user-agent", agentHandler);
+        echo = parse("GET /echo/" + "abc".repeat(20) + " HTTP/1.1\r\n"
+                + "Host: localhost\r\n\r\n");
+        userAgent = parse("GET /user-agent HTTP/1.1\r\nHost: localhost\r\n"
+                + "User-Agent: Mozilla/5.0 (X11; Linux x86_64)\r\n\r\n");
+    }
+
+    @Benchmark
+    public void echo(Connection conn) throws IOException {
+        conn.enc.write(router.handle(echo), true, conn.sink);
+    }
+
+    @Benchmark
+    public void userAgent(Connection conn) throws IOException {
+        conn.enc.write(router.handle(userAgent), true, conn.sink);
+    }
+}
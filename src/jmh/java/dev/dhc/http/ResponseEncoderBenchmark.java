@@ -0,0 +1,98 @@
+package dev.dhc.http;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import static java.nio.charset.StandardCharsets.US_ASCII;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Serializes a response with each kind of Body through a ResponseEncoder
+// that's reused, as on a connection, into a stream that discards the
+// bytes. Bodies that are consumed by writing them are created in each
+// operation, so FILE includes opening and closing the file.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResponseEncoderBenchmark {
+
+    private static final String CONTENT_TYPE = "application/octet-stream";
+
+    @Param({"EMPTY", "STRING", "BYTES", "CACHED_FILE", "FILE", "STREAM",
+        "CHUNKED"})
+    public String body;
+
+    @Param({"128", "16384"})
+    public int size;
+
+    private final ResponseEncoder enc = new ResponseEncoder();
+    private final OutputStream sink = OutputStream.nullOutputStream();
+    private Path dir;
+    private Path file;
+    private byte[] payload;
+    private String text;
+    private ByteBuffer cached;
+
+    @Setup
+    public void setUp() throws IOException {
+        text = "x".repeat(size);
+        payload = text.getBytes(US_ASCII);
+        cached = ByteBuffer.allocateDirect(size).put(payload).flip();
+        dir = Files.createTempDirectory(Benchmarks.tmpfs(), "jmh");
+        file = Files.write(dir.resolve("body"), payload);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Benchmarks.deleteRecursively(dir);
+    }
+
+    private Body newBody() throws IOException {
+        return switch (body) {
+            case "EMPTY" ->
+                new Body.EmptyBody();
+            case "STRING" ->
+                new Body.StringBody(text);
+            case "BYTES" ->
+                new Body.BytesBody(payload, CONTENT_TYPE);
+            case "CACHED_FILE" ->
+                new Body.CachedFileBody(file, cached.duplicate(), CONTENT_TYPE);
+            case "FILE" ->
+                new Body.FileBody(file, FileChannel.open(file), CONTENT_TYPE,
+                        size);
+            case "STREAM" ->
+                new Body.StreamBody(new ByteArrayInputStream(payload),
+                        CONTENT_TYPE, size);
+            case "CHUNKED" ->
+                new Body.ChunkedBody(out -> out.write(payload), CONTENT_TYPE);
+            default ->
+                throw new IllegalArgumentException(body);
+        };
+    }
+
+    @Benchmark
+    public void write() throws IOException {
+        var resp = new Response(StatusCode.OK, newBody())
+                .withHeader("X-Request-Id", "7b0e4c3a");
+        enc.write(resp, true, sink);
+    }
+}
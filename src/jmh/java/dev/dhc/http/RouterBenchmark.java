@@ -0,0 +1,83 @@
+package dev.dhc.http;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import static java.nio.charset.StandardCharsets.US_ASCII;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Looks up routes in a table of 10, 100 or 1000 routes of the form
+// /api/v1/resource<i>/{id}, with TreeRouter and with RegexRouter. Each
+// operation routes one of: the first route, the middle one, the last one,
+// and a path that matches nothing.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RouterBenchmark {
+
+    private static final Response RESPONSE = new Response(StatusCode.OK);
+
+    @Param({"10", "100", "1000"})
+    public int routes;
+
+    @Param({"tree", "regex"})
+    public String router;
+
+    private Handler handler;
+    private Request[] requests;
+    private int next;
+
+    private static Request get(String path)
+            throws IOException, BadRequestException {
+        var head = "GET %s HTTP/1.1\r\nHost: localhost\r\n\r\n".formatted(path);
+        return Request.parseFrom(new ByteArrayInputStream(
+                head.getBytes(US_ASCII)));
+    }
+
+    @Setup
+    public void setUp() throws IOException, BadRequestException {
+        Handler ok = req -> RESPONSE;
+        if (router.equals("tree")) {
+            var tree = new TreeRouter();
+            for (int i = 0; i < routes; i++) {
+                tree.addRoute(Set.of(Method.GET),
+                        "/api/v1/resource%d/{id}".formatted(i), ok);
+            }
+            handler = tree;
+        } else {
+            var regex = new RegexRouter();
+            for (int i = 0; i < routes; i++) {
+                regex.addRoute(Set.of(Method.GET), Pattern.compile(
+                        "/api/v1/resource%d/(?<id>[^/]+)".formatted(i)),
+                        Set.of("id"), ok);
+            }
+            handler = regex;
+        }
+        requests = new Request[]{
+            get("/api/v1/resource0/42"),
+            get("/api/v1/resource%d/42".formatted(routes / 2)),
+            get("/api/v1/resource%d/42".formatted(routes - 1)),
+            get("/api/v2/missing/42"),};
+    }
+
+    @Benchmark
+    public Response lookup() {
+        return handler.handle(requests[next++ & 3]);
+    }
+}
@@ -1,11 +1,88 @@
 package dev.dhc.codecrafters_http;
 
 import java.nio.file.Path;
+import java.time.Duration;
 
-record Args(Path root) {
+import dev.dhc.http.FileSystemHandler.Durability;
+import dev.dhc.http.RateLimiter.Limit;
+import dev.dhc.http.ServerOptions;
+import dev.dhc.http.ServerOptions.Engine;
+
+// |fileCacheBytes| and |responseCacheBytes| are the budgets of the hot-file
+// cache and of the cache of encoded responses, or 0 to disable them.
+// timeouts are given in seconds, and 0 disables them. |durability| is how
+// far uploads are synced before they're published. rate limits are given as
+// "<requests per second>[:<burst>]", and are null when they aren't set.
+record Args(Path root, ServerOptions options, long fileCacheBytes,
+        long responseCacheBytes, Durability durability, Limit rateLimit,
+        Limit uploadRateLimit) {
+
+    private static Duration seconds(String value) {
+        return Duration.ofMillis((long) (Double.parseDouble(value) * 1000));
+    }
 
     public static Args parse(String[] args) {
-        Path root = args.length == 0 ? Path.of(".") : Path.of(args[1]);
-        return new Args(root);
+        Path root = Path.of(".");
+        // the server shards accepting over a socket per processor, unless
+        // --acceptors says otherwise.
+        var options = ServerOptions.builder()
+                .acceptors(Runtime.getRuntime().availableProcessors());
+        long fileCacheBytes = 0;
+        long responseCacheBytes = 0;
+        var durability = Durability.NONE;
+        Limit rateLimit = null;
+        Limit uploadRateLimit = null;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            var value = args[i + 1];
+            switch (args[i]) {
+                case "--directory" ->
+                    root = Path.of(value);
+                case "--engine" ->
+                    options.engine(Engine.valueOf(value.toUpperCase()));
+                case "--file-cache-bytes" ->
+                    fileCacheBytes = Long.parseLong(value);
+                case "--response-cache-bytes" ->
+                    responseCacheBytes = Long.parseLong(value);
+                case "--acceptors" ->
+                    options.acceptors(Integer.parseInt(value));
+                case "--max-connections" ->
+                    options.maxConnections(Integer.parseInt(value));
+                case "--max-in-flight" ->
+                    options.maxInFlightRequests(Integer.parseInt(value));
+                case "--idle-timeout" ->
+                    options.idleTimeout(seconds(value));
+                case "--header-timeout" ->
+                    options.headerTimeout(seconds(value));
+                case "--body-timeout" ->
+                    options.bodyTimeout(seconds(value));
+                case "--min-body-rate" ->
+                    options.minBodyRate(Long.parseLong(value));
+                case "--write-timeout" ->
+                    options.writeTimeout(seconds(value));
+                case "--handler-timeout" ->
+                    options.handlerTimeout(seconds(value));
+                case "--access-log" ->
+                    options.accessLog(Path.of(value));
+                case "--access-log-max-bytes" ->
+                    options.accessLogMaxBytes(Long.parseLong(value));
+                case "--rate-limit" ->
+                    rateLimit = Limit.parse(value);
+                case "--upload-rate-limit" ->
+                    uploadRateLimit = Limit.parse(value);
+                case "--connection-rate-limit" ->
+                    options.connectionRateLimit(Limit.parse(value));
+                case "--h2c" ->
+                    options.h2c(Boolean.parseBoolean(value));
+                case "--max-concurrent-streams" ->
+                    options.maxConcurrentStreams(Integer.parseInt(value));
+                case "--durability" ->
+                    durability = Durability.valueOf(value.toUpperCase());
+                default ->
+                    throw new IllegalArgumentException(
+                            "unknown flag: " + args[i]);
+            }
+        }
+        return new Args(root, options.build(), fileCacheBytes,
+                responseCacheBytes, durability, rateLimit, uploadRateLimit);
     }
 }
@@ -2,6 +2,9 @@ package dev.dhc.codecrafters_http;
 
 import java.io.IOException;
 
+import dev.dhc.http.FileCache;
+import dev.dhc.http.Metrics;
+import dev.dhc.http.ResponseCache;
 import dev.dhc.http.Server;
 
 public class Main {
@@ -13,7 +16,27 @@ public class Main {
 
     public static void main(String[] args) {
         int port = 4221;
-        var server = new Server(port, Router.make(Args.parse(args).root()));
+        var parsed = Args.parse(args);
+        var options = parsed.options();
+        var cache = parsed.fileCacheBytes() > 0
+                ? new FileCache(parsed.fileCacheBytes())
+                : null;
+        var responses = parsed.responseCacheBytes() > 0
+                ? new ResponseCache(parsed.responseCacheBytes())
+                : null;
+        var metrics = new Metrics();
+        if (cache != null) {
+            metrics.observe(cache);
+        }
+        var router = Router.builder(parsed.root())
+                .cache(cache)
+                .metrics(metrics)
+                .durability(parsed.durability())
+                .responses(responses)
+                .clientLimit(parsed.rateLimit())
+                .uploadLimit(parsed.uploadRateLimit())
+                .build();
+        var server = new Server(port, router, options, metrics);
         System.out.println("listening at http://localhost:%d".formatted(port));
         try {
             server.run();
@@ -2,37 +2,127 @@ package dev.dhc.codecrafters_http;
 
 import java.nio.file.Path;
 import java.util.Set;
-import java.util.regex.Pattern;
 
+import dev.dhc.http.CompressionHandler;
+import dev.dhc.http.FileCache;
 import dev.dhc.http.FileSystemHandler;
+import dev.dhc.http.FileSystemHandler.Durability;
+import dev.dhc.http.Handler;
 import dev.dhc.http.Method;
-import dev.dhc.http.RegexRouter;
+import dev.dhc.http.Metrics;
+import dev.dhc.http.RateLimiter;
+import dev.dhc.http.ResponseCache;
 import dev.dhc.http.SimpleHandler;
+import dev.dhc.http.TreeRouter;
 
 public class Router {
-    public static RegexRouter make(Path root) {
-        var router = new RegexRouter();
-        router.addRoute(
-                Set.of(Method.GET),
-                Pattern.compile("\\/"),
-                Set.of(),
-                new SimpleHandler());
-        router.addRoute(
-                Set.of(Method.GET),
-                Pattern.compile("\\/user-agent"),
-                Set.of(),
-                new SimpleHandler(req -> req.getHeader("User-Agent")));
-        router.addRoute(
-                Set.of(Method.GET),
-                Pattern.compile("\\/echo\\/(?<text>[^\\/]+)"),
-                Set.of("text"),
-                new SimpleHandler(req -> req.getParam("text")));
-        router.addRoute(
-                Set.of(Method.GET, Method.POST),
-                Pattern.compile("\\/files\\/(?<filename>[^\\/]+)"),
-                Set.of("filename"),
-                new FileSystemHandler(root));
-        return router;
+    public static Handler make(Path root) {
+        return builder(root).build();
     }
 
+    public static Builder builder(Path root) {
+        return new Builder(root);
+    }
+
+    private static Handler cached(ResponseCache responses, Handler handler,
+            String... vary) {
+        return responses != null ? responses.wrap(handler, vary) : handler;
+    }
+
+    private static Handler limited(RateLimiter limiter, Handler handler,
+            RateLimiter.Limit limit) {
+        return limit != null ? limiter.wrap(handler, limit) : handler;
+    }
+
+    // Collects what the routes are served with. with |metrics|, routes are
+    // timed and GET /metrics serves the results. with |responses|, the
+    // routes whose responses depend only on the request are served from
+    // it. each client may make |clientLimit| requests in all, and
+    // |uploadLimit| uploads, when they're given. responses are compressed
+    // with |compression|; files are application/octet-stream, so they're
+    // compressed only when its content types allow that.
+    public static final class Builder {
+
+        private final Path root;
+        private FileCache cache;
+        private Metrics metrics;
+        private Durability durability = Durability.NONE;
+        private ResponseCache responses;
+        private RateLimiter.Limit clientLimit;
+        private RateLimiter.Limit uploadLimit;
+        private CompressionHandler.Options compression
+                = CompressionHandler.Options.defaults();
+
+        private Builder(Path root) {
+            this.root = root;
+        }
+
+        public Builder cache(FileCache cache) {
+            this.cache = cache;
+            return this;
+        }
+
+        public Builder metrics(Metrics metrics) {
+            this.metrics = metrics;
+            return this;
+        }
+
+        public Builder durability(Durability durability) {
+            this.durability = durability;
+            return this;
+        }
+
+        public Builder responses(ResponseCache responses) {
+            this.responses = responses;
+            return this;
+        }
+
+        public Builder clientLimit(RateLimiter.Limit clientLimit) {
+            this.clientLimit = clientLimit;
+            return this;
+        }
+
+        public Builder uploadLimit(RateLimiter.Limit uploadLimit) {
+            this.uploadLimit = uploadLimit;
+            return this;
+        }
+
+        public Builder compression(CompressionHandler.Options compression) {
+            this.compression = compression;
+            return this;
+        }
+
+        public Handler build() {
+            var limiter = new RateLimiter(metrics);
+            var router = new TreeRouter(metrics);
+            router.addRoute(
+                    Set.of(Method.GET),
+                    "/",
+                    cached(responses, new SimpleHandler()));
+            router.addRoute(
+                    Set.of(Method.GET),
+                    "/user-agent",
+                    cached(responses,
+                            new SimpleHandler(
+                                    req -> req.getHeader("User-Agent")),
+                            "User-Agent"));
+            router.addRoute(
+                    Set.of(Method.GET),
+                    "/echo/{text}",
+                    cached(responses,
+                            new SimpleHandler(req -> req.getParam("text"))));
+            var files = new FileSystemHandler(root, cache, durability);
+            router.addRoute(Set.of(Method.GET), "/files/{filename}", files);
+            router.addRoute(
+                    Set.of(Method.POST),
+                    "/files/{filename}",
+                    limited(limiter, files, uploadLimit));
+            if (metrics != null) {
+                router.addRoute(
+                        Set.of(Method.GET), "/metrics", metrics.handler());
+            }
+            return limited(limiter,
+                    new CompressionHandler(router, compression), clientLimit);
+        }
+    }
 }
@@ -0,0 +1,146 @@
+package dev.dhc.http;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.function.IntFunction;
+
+// Accepts connections on |acceptors| listening sockets bound to the same
+// port with SO_REUSEPORT, which the kernel load-balances between them on
+// Linux, so that a single accept loop doesn't limit the connection rate.
+// Each socket has its own accept loop on a platform thread and its own
+// counters. Where SO_REUSEPORT isn't supported there is just one socket.
+// A client that can't be handed off is closed without stopping its
+// acceptor, which only stops once its socket is closed.
+final class Acceptors {
+
+    // how long an acceptor waits after accept() fails, e.g. because the
+    // process is out of file descriptors, rather than spinning.
+    private static final long ACCEPT_BACKOFF_MILLIS = 50;
+
+    // receives the connections that one acceptor admits.
+    @FunctionalInterface
+    interface Sink {
+        void accept(SocketChannel ch) throws IOException;
+    }
+
+    private final int port;
+    private final int backlog;
+    private final int shards;
+    private final Admission admission;
+    private final Metrics metrics;
+
+    // a |backlog| of 0 uses the platform's default.
+    Acceptors(int port, int backlog, ServerOptions options,
+            Admission admission, Metrics metrics) {
+        this.port = port;
+        this.backlog = backlog;
+        this.shards = Math.max(1, options.acceptors());
+        this.admission = admission;
+        this.metrics = metrics;
+    }
+
+    private ServerSocketChannel bind(boolean reusePort) throws IOException {
+        var server = ServerSocketChannel.open();
+        try {
+            server.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            if (reusePort) {
+                server.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            }
+            server.bind(new InetSocketAddress(port), backlog);
+            return server;
+        } catch (IOException e) {
+            server.close();
+            throw e;
+        }
+    }
+
+    // binds every socket, then accepts on them, passing the connections
+    // that shard |i| admits to |sinks.apply(i)|. shard 0 runs on the
+    // calling thread, and every socket is closed once it stops.
+    void run(IntFunction<Sink> sinks) throws IOException {
+        var servers = new ServerSocketChannel[shards];
+        try {
+            servers[0] = bind(shards > 1);
+            int n = shards;
+            if (n > 1 && !servers[0].supportedOptions()
+                    .contains(StandardSocketOptions.SO_REUSEPORT)) {
+                System.err.println("SO_REUSEPORT isn't supported; "
+                        + "accepting on one socket");
+                n = 1;
+            }
+            for (int i = 1; i < n; i++) {
+                servers[i] = bind(true);
+            }
+            for (int i = 1; i < n; i++) {
+                var server = servers[i];
+                var shard = metrics.shard(i);
+                var sink = sinks.apply(i);
+                Thread.ofPlatform().name("acceptor-" + i).start(() -> {
+                    try (server) {
+                        accept(server, shard, sink);
+                    } catch (IOException e) {
+                        e.printStackTrace(System.err);
+                    }
+                });
+            }
+            accept(servers[0], metrics.shard(0), sinks.apply(0));
+        } finally {
+            for (var server : servers) {
+                if (server != null) {
+                    server.close();
+                }
+            }
+        }
+    }
+
+    private void accept(ServerSocketChannel server, Metrics.Shard shard,
+            Sink sink) throws IOException {
+        while (true) {
+            SocketChannel client;
+            try {
+                client = server.accept();
+            } catch (ClosedChannelException e) {
+                throw e;
+            } catch (IOException e) {
+                e.printStackTrace(System.err);
+                backOff();
+                continue;
+            }
+            if (!admission.accept(client)) {
+                shard.refused();
+                continue;
+            }
+            shard.accepted();
+            try {
+                sink.accept(client);
+            } catch (IOException | RuntimeException e) {
+                // e.g. the client reset the connection before it could be
+                // set up.
+                e.printStackTrace(System.err);
+                closeQuietly(client);
+                admission.release();
+            }
+        }
+    }
+
+    private static void backOff() throws InterruptedIOException {
+        try {
+            Thread.sleep(ACCEPT_BACKOFF_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+
+    private static void closeQuietly(SocketChannel ch) {
+        try {
+            ch.close();
+        } catch (IOException e) {
+        }
+    }
+}
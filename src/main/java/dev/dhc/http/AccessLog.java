@@ -0,0 +1,311 @@
+package dev.dhc.http;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import static java.nio.charset.StandardCharsets.US_ASCII;
+
+// Writes a line of JSON for each request to a file from a background
+// thread, so that logging never makes a request wait on a lock or on the
+// disk. Requests copy a fixed-size record into a preallocated ring, which
+// any number of threads add to without locks: as in Vyukov's bounded
+// queue, each slot has a sequence number that says whether it's free for
+// the writer at a given position or holds a record for the reader. When
+// the ring is full, records are dropped and counted instead of waiting.
+//
+// The writer thread drains the ring every few milliseconds, formats a
+// batch of records into one buffer and writes it to the file at once. If
+// |maxBytes| is positive, then once the file would grow past it, it's
+// renamed to "<name>.1", older files shift up to "<name>.<BACKUPS>", and a
+// new file is started. Paths longer than PATH_BYTES are truncated.
+final class AccessLog implements AutoCloseable {
+
+    static final int CAPACITY = 8192;
+    static final int PATH_BYTES = 256;
+    private static final int BACKUPS = 4;
+    private static final int ADDRESS_BYTES = 16;
+    private static final long IDLE_NANOS = 5_000_000;
+    // room for a record whose path is all escapes, and then some.
+    private static final int MAX_LINE = 6 * PATH_BYTES + 256;
+
+    // a client's address as records store it, computed once per
+    // connection.
+    record Remote(byte[] address, int port) {
+    }
+
+    private final Path path;
+    private final long maxBytes;
+    private final Metrics metrics;
+
+    private final int capacity;
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLongArray sequences;
+    // the fields of each slot's record, which are published by setting its
+    // sequence number.
+    private final long[] times;
+    private final long[] latencies;
+    private final long[] lengths;
+    private final int[] statuses;
+    private final byte[] methods;
+    private final int[] ports;
+    private final byte[] addressLengths;
+    private final byte[] addresses;
+    private final short[] pathLengths;
+    private final byte[] paths;
+
+    // only used by the writer thread.
+    private long head;
+    private final ByteBuffer batch = ByteBuffer.allocate(64 << 10);
+    private FileChannel file;
+    private long size;
+
+    private final Thread writer;
+    private volatile boolean closed;
+
+    // |capacity| must be a power of two.
+    AccessLog(Path path, long maxBytes, int capacity, Metrics metrics)
+            throws IOException {
+        this.path = path;
+        this.maxBytes = maxBytes;
+        this.metrics = metrics;
+        this.capacity = capacity;
+        this.sequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            sequences.set(i, i);
+        }
+        this.times = new long[capacity];
+        this.latencies = new long[capacity];
+        this.lengths = new long[capacity];
+        this.statuses = new int[capacity];
+        this.methods = new byte[capacity];
+        this.ports = new int[capacity];
+        this.addressLengths = new byte[capacity];
+        this.addresses = new byte[capacity * ADDRESS_BYTES];
+        this.pathLengths = new short[capacity];
+        this.paths = new byte[capacity * PATH_BYTES];
+        open();
+        this.writer = new Thread(this::run, "access-log");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    AccessLog(Path path, long maxBytes, Metrics metrics) throws IOException {
+        this(path, maxBytes, CAPACITY, metrics);
+    }
+
+    // returns how records store |addr|, or null if it isn't an internet
+    // address.
+    static Remote remote(SocketAddress addr) {
+        return addr instanceof InetSocketAddress inet
+                && inet.getAddress() != null
+                ? new Remote(inet.getAddress().getAddress(), inet.getPort())
+                : null;
+    }
+
+    // records a response to |req|, which is null if the request couldn't
+    // be parsed. |length| is the body's length, or Body.UNKNOWN_LENGTH, and
+    // the latency runs from the request starting to arrive until the
+    // response is ready to send.
+    void record(Request req, StatusCode status, long length,
+            long latencyNanos, Remote remote) {
+        long pos = tail.get();
+        int slot;
+        for (;;) {
+            slot = (int) pos & (capacity - 1);
+            long seq = sequences.get(slot);
+            if (seq == pos) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    break;
+                }
+                pos = tail.get();
+            } else if (seq < pos) {
+                // the reader hasn't freed this slot since the last lap.
+                metrics.accessLogDropped();
+                return;
+            } else {
+                pos = tail.get();
+            }
+        }
+        times[slot] = System.currentTimeMillis();
+        latencies[slot] = latencyNanos;
+        lengths[slot] = length;
+        statuses[slot] = status.code();
+        methods[slot] = (byte) (req == null ? -1 : req.getMethod().ordinal());
+        int n = 0;
+        if (req != null) {
+            var p = req.getPath();
+            n = Math.min(p.length(), PATH_BYTES);
+            for (int i = 0, off = slot * PATH_BYTES; i < n; i++) {
+                // the parser only accepts printable ascii in paths.
+                paths[off + i] = (byte) p.charAt(i);
+            }
+        }
+        pathLengths[slot] = (short) n;
+        if (remote != null) {
+            var a = remote.address();
+            System.arraycopy(a, 0, addresses, slot * ADDRESS_BYTES, a.length);
+            addressLengths[slot] = (byte) a.length;
+            ports[slot] = remote.port();
+        } else {
+            addressLengths[slot] = 0;
+        }
+        sequences.set(slot, pos + 1);
+    }
+
+    private void run() {
+        while (true) {
+            boolean wasClosed = closed;
+            try {
+                int n = drain();
+                if (n == 0 && wasClosed) {
+                    file.close();
+                    return;
+                }
+                if (n == 0) {
+                    LockSupport.parkNanos(IDLE_NANOS);
+                }
+            } catch (IOException e) {
+                e.printStackTrace(System.err);
+                batch.clear();
+                LockSupport.parkNanos(IDLE_NANOS);
+            }
+        }
+    }
+
+    // formats and writes every record that's been published, returning how
+    // many there were.
+    private int drain() throws IOException {
+        int n = 0;
+        for (;; head++, n++) {
+            int slot = (int) head & (capacity - 1);
+            if (sequences.get(slot) != head + 1) {
+                break;
+            }
+            if (batch.remaining() < MAX_LINE) {
+                flush();
+            }
+            format(slot);
+            sequences.set(slot, head + capacity);
+        }
+        flush();
+        return n;
+    }
+
+    private void flush() throws IOException {
+        if (batch.position() == 0) {
+            return;
+        }
+        if (maxBytes > 0 && size > 0
+                && size + batch.position() > maxBytes) {
+            rotate();
+        }
+        batch.flip();
+        while (batch.hasRemaining()) {
+            size += file.write(batch);
+        }
+        batch.clear();
+    }
+
+    private void open() throws IOException {
+        file = FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        size = file.size();
+    }
+
+    private Path backup(int i) {
+        return path.resolveSibling(path.getFileName() + "." + i);
+    }
+
+    private void rotate() throws IOException {
+        file.close();
+        for (int i = BACKUPS - 1; i > 0; i--) {
+            if (Files.exists(backup(i))) {
+                Files.move(backup(i), backup(i + 1),
+                        StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        Files.move(path, backup(1), StandardCopyOption.REPLACE_EXISTING);
+        open();
+    }
+
+    private void put(String s) {
+        batch.put(s.getBytes(US_ASCII));
+    }
+
+    private void format(int slot) {
+        put("{\"time\":\"");
+        put(Instant.ofEpochMilli(times[slot]).toString());
+        put("\",\"remote\":");
+        int addressLength = addressLengths[slot];
+        if (addressLength == 0) {
+            put("null");
+        } else {
+            int off = slot * ADDRESS_BYTES;
+            put("\"");
+            put(host(Arrays.copyOfRange(
+                    addresses, off, off + addressLength)));
+            put(":" + ports[slot] + "\"");
+        }
+        int method = methods[slot];
+        if (method < 0) {
+            put(",\"method\":null,\"path\":null");
+        } else {
+            put(",\"method\":\"");
+            put(Method.values()[method].name());
+            put("\",\"path\":\"");
+            putEscaped(slot * PATH_BYTES, pathLengths[slot]);
+            put("\"");
+        }
+        put(",\"status\":" + statuses[slot]);
+        long length = lengths[slot];
+        put(",\"bytes\":" + (length < 0 ? "null" : String.valueOf(length)));
+        put(",\"latency_us\":" + latencies[slot] / 1000 + "}\n");
+    }
+
+    private static String host(byte[] address) {
+        try {
+            return InetAddress.getByAddress(address).getHostAddress();
+        } catch (UnknownHostException e) {
+            // only thrown for lengths other than 4 or 16.
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    // writes path bytes as the contents of a JSON string.
+    private void putEscaped(int off, int len) {
+        for (int i = off; i < off + len; i++) {
+            int c = paths[i] & 0xff;
+            if (c == '"' || c == '\\') {
+                batch.put((byte) '\\').put((byte) c);
+            } else if (c < 0x20 || c >= 0x7f) {
+                put("\\u%04x".formatted(c));
+            } else {
+                batch.put((byte) c);
+            }
+        }
+    }
+
+    // writes out what's been recorded and stops the writer.
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package dev.dhc.http;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import static java.nio.charset.StandardCharsets.US_ASCII;
+
+// Limits how much work the server takes on, so that overload costs some
+// clients a quick 503 instead of costing everyone their latency. Accepted
+// connections beyond |maxConnections| are refused, and requests wait for
+// one of |maxInFlightRequests| permits before they're handled. How long a
+// request may wait follows CoDel: if even the shortest wait in the last
+// interval was above the target, the queue isn't draining, so requests are
+// only allowed to wait for the target before being shed; otherwise bursts
+// may queue for up to a whole interval.
+//
+// With a connection rate limit, each client address may also only open
+// connections so often, and those opened too soon are sent a 429 and
+// closed before they count towards the limit or cost an event loop
+// anything.
+final class Admission {
+
+    // the advice given to clients that are turned away.
+    static final String RETRY_AFTER_SECONDS = "1";
+
+    private static final byte[] REFUSED
+            = ("HTTP/1.1 503 Service Unavailable\r\n"
+            + "Retry-After: " + RETRY_AFTER_SECONDS + "\r\n"
+            + "Content-Length: 0\r\nConnection: close\r\n\r\n")
+            .getBytes(US_ASCII);
+
+    private final int maxConnections;
+    private final AtomicInteger connections = new AtomicInteger();
+    private final Semaphore inFlight;
+    private final long targetNanos;
+    private final long intervalNanos;
+    private final Metrics metrics;
+    // null without a connection rate limit.
+    private final TokenBuckets clients;
+
+    // the shortest queueing delay seen in the current interval, and when
+    // the interval ends.
+    private final AtomicLong minDelay = new AtomicLong(Long.MAX_VALUE);
+    private final AtomicLong intervalEnd = new AtomicLong(System.nanoTime());
+    private volatile boolean overloaded;
+
+    Admission(ServerOptions options, Metrics metrics) {
+        this.maxConnections = options.maxConnections();
+        this.inFlight = new Semaphore(options.maxInFlightRequests());
+        this.targetNanos = options.queueTarget().toNanos();
+        this.intervalNanos = options.queueInterval().toNanos();
+        this.metrics = metrics;
+        var limit = options.connectionRateLimit();
+        this.clients = limit != null
+                ? new TokenBuckets(limit)
+                : null;
+    }
+
+    // returns whether a newly accepted connection may be served. if not,
+    // it's sent a 429 or 503 and closed; otherwise release() must be called
+    // once it's closed.
+    boolean accept(SocketChannel ch) {
+        if (clients != null) {
+            long wait = throttle(ch);
+            if (wait > 0) {
+                metrics.connectionRateLimited();
+                refuse(ch, ("HTTP/1.1 429 Too Many Requests\r\n"
+                        + "Retry-After: " + RateLimiter.retryAfter(wait)
+                        + "\r\nContent-Length: 0\r\nConnection: close\r\n\r\n")
+                        .getBytes(US_ASCII));
+                return false;
+            }
+        }
+        if (connections.incrementAndGet() <= maxConnections) {
+            return true;
+        }
+        connections.decrementAndGet();
+        metrics.connectionRefused();
+        refuse(ch, REFUSED);
+        return false;
+    }
+
+    // takes a token for |ch|'s client, returning how long until there's
+    // one if there isn't.
+    private long throttle(SocketChannel ch) {
+        Object key;
+        try {
+            key = RateLimiter.client(ch.getRemoteAddress());
+        } catch (IOException e) {
+            key = null;
+        }
+        return key != null ? clients.take(key) : 0;
+    }
+
+    private static void refuse(SocketChannel ch, byte[] response) {
+        // the socket's send buffer is empty, so this doesn't block for long
+        // even on a blocking channel.
+        try (ch) {
+            ch.write(ByteBuffer.wrap(response));
+        } catch (IOException e) {
+        }
+    }
+
+    void release() {
+        connections.decrementAndGet();
+    }
+
+    private static Response shed() {
+        return new Response(StatusCode.ServiceUnavailable)
+                .withHeader("Retry-After", RETRY_AFTER_SECONDS);
+    }
+
+    // waits for an in-flight permit, and returns whether one was acquired.
+    private boolean acquire() {
+        long start = System.nanoTime();
+        if (!inFlight.tryAcquire()) {
+            boolean acquired;
+            try {
+                acquired = inFlight.tryAcquire(
+                        overloaded ? targetNanos : intervalNanos,
+                        TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                acquired = false;
+            }
+            if (!acquired) {
+                observe(System.nanoTime() - start);
+                metrics.requestShed();
+                return false;
+            }
+        }
+        observe(System.nanoTime() - start);
+        metrics.requestStarted();
+        return true;
+    }
+
+    private void finished() {
+        metrics.requestFinished();
+        inFlight.release();
+    }
+
+    // wraps |handler| so that each request first waits for an in-flight
+    // permit, or is shed if that takes too long. an asynchronous request
+    // holds its permit until its stage completes.
+    Handler guard(Handler handler) {
+        return new Handler() {
+            @Override
+            public Response handle(Request req) {
+                if (!acquire()) {
+                    return shed();
+                }
+                try {
+                    return handler.handle(req);
+                } finally {
+                    finished();
+                }
+            }
+
+            @Override
+            public CompletionStage<Response> handleAsync(Request req) {
+                if (!acquire()) {
+                    return CompletableFuture.completedFuture(shed());
+                }
+                CompletionStage<Response> stage;
+                try {
+                    stage = handler.handleAsync(req);
+                } catch (RuntimeException e) {
+                    finished();
+                    throw e;
+                }
+                stage.whenComplete((resp, e) -> finished());
+                return stage;
+            }
+        };
+    }
+
+    private void observe(long delay) {
+        minDelay.accumulateAndGet(delay, Math::min);
+        long now = System.nanoTime();
+        long end = intervalEnd.get();
+        if (now - end >= 0
+                && intervalEnd.compareAndSet(end, now + intervalNanos)) {
+            overloaded = minDelay.getAndSet(Long.MAX_VALUE) > targetNanos;
+        }
+    }
+
+    boolean overloaded() {
+        return overloaded;
+    }
+}
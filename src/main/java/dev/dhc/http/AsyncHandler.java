@@ -0,0 +1,57 @@
+package dev.dhc.http;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.function.Function;
+
+// A handler that may finish after it returns, e.g. once slow storage or an
+// upstream service has answered, without holding a thread in the meantime.
+// Every Handler is also an AsyncHandler whose stage is already complete.
+//
+// The server cancels the stage if the client disconnects (where the engine
+// can tell) or the handler timeout passes. Handlers that can give up early
+// should return a CompletableFuture and stop their work once it's
+// cancelled; the wrappers in this package pass cancellation through to the
+// stages they wrap.
+@FunctionalInterface
+public interface AsyncHandler {
+
+    CompletionStage<Response> handleAsync(Request req);
+
+    // adapts |handler| for callers that need the Response itself, by
+    // waiting for it, which is cheap on a virtual thread.
+    static Handler blocking(AsyncHandler handler) {
+        if (handler instanceof Handler h) {
+            return h;
+        }
+        return req -> await(handler.handleAsync(req));
+    }
+
+    // waits for |stage|, rethrowing whatever it failed with.
+    static Response await(CompletionStage<Response> stage) {
+        try {
+            return stage.toCompletableFuture().join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException r) {
+                throw r;
+            }
+            throw e;
+        }
+    }
+
+    // returns a stage that completes with f applied to |stage|'s result,
+    // and that cancels |stage| when it's cancelled itself.
+    static <T, U> CompletableFuture<U> map(CompletionStage<T> stage,
+            Function<? super T, ? extends U> f) {
+        var source = stage.toCompletableFuture();
+        var derived = source.<U>thenApply(f);
+        derived.whenComplete((r, e) -> {
+            if (e instanceof CancellationException) {
+                source.cancel(true);
+            }
+        });
+        return derived;
+    }
+}
@@ -1,13 +1,25 @@
 package dev.dhc.http;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 import java.util.Optional;
 import java.util.Scanner;
+import java.util.function.LongConsumer;
 
-public sealed interface Body permits Body.StreamBody, Body.StringBody, Body.EmptyBody {
+public sealed interface Body permits Body.StreamBody, Body.FileBody, Body.ChunkedBody,
+        Body.StringBody, Body.BytesBody, Body.CachedFileBody, Body.EmptyBody {
+
+    // contentLength() of a body whose length isn't known up front. it is
+    // sent with Transfer-Encoding: chunked.
+    public static final long UNKNOWN_LENGTH = -1;
 
     public Optional<String> getContentType();
 
@@ -67,6 +79,124 @@ public sealed interface Body permits Body.StreamBody, Body.StringBody, Body.Empt
         }
     }
 
+    // a region of an open file. when the connection is backed by a socket
+    // channel, the bytes go straight from the page cache to the socket via
+    // FileChannel.transferTo (sendfile on linux) without passing through
+    // the heap. |path| is where |file| was opened from, so that wrappers
+    // such as CompressionHandler can look for variants of it.
+    public final record FileBody(Path path, FileChannel file,
+            String contentType, long position, long contentLength)
+            implements Body {
+
+        // the most sent per transferTo call.
+        private static final long TRANSFER_CHUNK = 1 << 20;
+
+        public FileBody(Path path, FileChannel file, String contentType,
+                long contentLength) {
+            this(path, file, contentType, 0, contentLength);
+        }
+
+        @Override
+        public void write(OutputStream out) throws IOException {
+            try (file) {
+                if (out instanceof ChannelOutputStream c) {
+                    c.flush();
+                    transferTo(c.channel(), c::sent);
+                    return;
+                }
+                if (region().transferTo(out) != contentLength) {
+                    throw truncated();
+                }
+            }
+        }
+
+        // blocks until the whole region is written to |ch|, reporting each
+        // piece to |progress| so that a slow client is noticed before the
+        // whole file has gone out.
+        void transferTo(WritableByteChannel ch, LongConsumer progress)
+                throws IOException {
+            long end = position + contentLength;
+            for (long pos = position; pos < end;) {
+                long n = file.transferTo(
+                        pos, Math.min(end - pos, TRANSFER_CHUNK), ch);
+                if (n <= 0 && pos >= file.size()) {
+                    throw truncated();
+                }
+                pos += n;
+                progress.accept(n);
+            }
+        }
+
+        // the file shrank after its length was sent, so the response can't
+        // be completed and the connection has to be closed.
+        private static IOException truncated() {
+            return new IOException("file truncated while sending");
+        }
+
+        private InputStream region() throws IOException {
+            return new BoundedInputStream(
+                    Channels.newInputStream(file.position(position)),
+                    contentLength);
+        }
+
+        @Override
+        public String asString() throws IOException {
+            try (file) {
+                return new String(region().readAllBytes(),
+                        StandardCharsets.US_ASCII);
+            }
+        }
+
+        @Override
+        public Optional<String> getContentType() {
+            return Optional.of(contentType);
+        }
+    }
+
+    // output generated while the response is being sent, e.g. from a
+    // query or an upstream stream, whose length isn't known in advance.
+    // whatever the producer writes is sent in chunks of |chunkSize| bytes,
+    // and calling flush() on its stream sends a short chunk right away.
+    public final record ChunkedBody(Producer producer, String contentType,
+            int chunkSize) implements Body {
+
+        public static final int DEFAULT_CHUNK_SIZE = 8192;
+
+        @FunctionalInterface
+        public interface Producer {
+
+            void writeTo(OutputStream out) throws IOException;
+        }
+
+        public ChunkedBody(Producer producer, String contentType) {
+            this(producer, contentType, DEFAULT_CHUNK_SIZE);
+        }
+
+        @Override
+        public long contentLength() {
+            return UNKNOWN_LENGTH;
+        }
+
+        @Override
+        public void write(OutputStream out) throws IOException {
+            var chunked = new ChunkedOutputStream(out, chunkSize);
+            producer.writeTo(chunked);
+            chunked.finish();
+        }
+
+        @Override
+        public String asString() throws IOException {
+            var out = new ByteArrayOutputStream();
+            producer.writeTo(out);
+            return out.toString(StandardCharsets.US_ASCII);
+        }
+
+        @Override
+        public Optional<String> getContentType() {
+            return Optional.of(contentType);
+        }
+    }
+
     public final record StringBody(String body) implements Body {
 
         @Override
@@ -89,4 +219,71 @@ public sealed interface Body permits Body.StreamBody, Body.StringBody, Body.Empt
             return body;
         }
     }
+
+    // binary content that's already in memory, such as a compressed copy
+    // of another body.
+    public final record BytesBody(byte[] bytes, String contentType)
+            implements Body {
+
+        @Override
+        public long contentLength() {
+            return bytes.length;
+        }
+
+        @Override
+        public Optional<String> getContentType() {
+            return Optional.of(contentType);
+        }
+
+        @Override
+        public void write(OutputStream w) throws IOException {
+            w.write(bytes);
+        }
+
+        @Override
+        public String asString() {
+            return new String(bytes, StandardCharsets.US_ASCII);
+        }
+    }
+
+    // the contents of |path| as held by a FileCache, usually in a direct
+    // buffer. like a FileBody, it's written straight to the socket channel
+    // when there is one.
+    public final record CachedFileBody(Path path, ByteBuffer contents,
+            String contentType) implements Body {
+
+        @Override
+        public long contentLength() {
+            return contents.remaining();
+        }
+
+        @Override
+        public Optional<String> getContentType() {
+            return Optional.of(contentType);
+        }
+
+        @Override
+        public void write(OutputStream out) throws IOException {
+            var src = contents.duplicate();
+            if (out instanceof ChannelOutputStream c) {
+                c.flush();
+                while (src.hasRemaining()) {
+                    c.sent(c.channel().write(src));
+                }
+                return;
+            }
+            var buf = new byte[Math.min(src.remaining(), 8192)];
+            while (src.hasRemaining()) {
+                int n = Math.min(buf.length, src.remaining());
+                src.get(buf, 0, n);
+                out.write(buf, 0, n);
+            }
+        }
+
+        @Override
+        public String asString() {
+            return StandardCharsets.US_ASCII.decode(contents.duplicate())
+                    .toString();
+        }
+    }
 }
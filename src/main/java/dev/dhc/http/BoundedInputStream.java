@@ -0,0 +1,104 @@
+package dev.dhc.http;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+// exposes at most |limit| bytes of the underlying stream, so that a handler
+// can't read into the next request on a persistent connection. closing it
+// leaves the underlying stream open.
+class BoundedInputStream extends InputStream {
+
+    private final InputStream in;
+    private long remaining;
+    // run once the last byte has been read.
+    private Runnable onEnd;
+    private boolean cutShort;
+
+    BoundedInputStream(InputStream in, long limit) {
+        this.in = in;
+        this.remaining = limit;
+    }
+
+    long remaining() {
+        return remaining;
+    }
+
+    // runs |action| once the whole body has been read, which may be now.
+    void onEnd(Runnable action) {
+        onEnd = action;
+        if (remaining <= 0) {
+            ended();
+        }
+    }
+
+    private void ended() {
+        var action = onEnd;
+        onEnd = null;
+        if (action != null) {
+            action.run();
+        }
+    }
+
+    // whether the underlying stream ended before the body did.
+    boolean cutShort() {
+        return cutShort;
+    }
+
+    // counts |n| bytes read, or notes that the stream ended if it's -1.
+    private void advance(long n) {
+        if (n < 0) {
+            cutShort = true;
+            return;
+        }
+        remaining -= n;
+        if (remaining <= 0) {
+            ended();
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (remaining <= 0) {
+            return -1;
+        }
+        int c = in.read();
+        advance(c < 0 ? -1 : 1);
+        return c;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (remaining <= 0) {
+            return -1;
+        }
+        int n = in.read(b, off, (int) Math.min(len, remaining));
+        advance(n);
+        return n;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return (int) Math.min(in.available(), remaining);
+    }
+
+    // discards whatever the handler didn't read. returns false if the stream
+    // ended early.
+    boolean drain() throws IOException {
+        while (remaining > 0) {
+            long n = in.skip(remaining);
+            if (n <= 0) {
+                if (in.read() < 0) {
+                    cutShort = true;
+                    return false;
+                }
+                n = 1;
+            }
+            advance(n);
+        }
+        return true;
+    }
+
+    @Override
+    public void close() {
+    }
+}
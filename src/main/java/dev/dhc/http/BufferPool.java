@@ -0,0 +1,229 @@
+package dev.dhc.http;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+// A pool of byte buffers in a few size classes, so that connections and
+// uploads reuse the same buffers instead of allocating new ones each time.
+// Each class keeps a global free list with small magazines in front of it,
+// which threads pick by their id, so most leases and releases touch only a
+// magazine that no other running thread is using. Magazines are striped
+// rather than thread-local because virtual threads are short-lived and far
+// too numerous to each hold on to buffers.
+//
+// At most |capacity| bytes of buffers are pooled. Once they're all leased,
+// and for requests larger than the largest class, acquire() allocates a
+// buffer that's dropped on release instead. With |trackLeaks|, the pool
+// remembers where each leased buffer was acquired so that leaks() can
+// report the ones that were never released.
+final class BufferPool {
+
+    // the size classes, which cover connection i/o and upload chunks.
+    static final int[] CLASSES = {8 << 10, 64 << 10, 256 << 10};
+
+    private static final int MAGAZINE = 8;
+    private static final long DEFAULT_CAPACITY = 64L << 20;
+
+    // direct buffers for socket i/o, which the JDK would otherwise copy
+    // through a temporary direct buffer of its own.
+    static final BufferPool DIRECT = new BufferPool(true, DEFAULT_CAPACITY);
+    // heap buffers for callers that need an array, e.g. to read streams.
+    static final BufferPool HEAP = new BufferPool(false, DEFAULT_CAPACITY);
+
+    // a leased buffer, which must be closed once it's no longer used.
+    final class Buffer implements AutoCloseable {
+
+        private final ByteBuffer buffer;
+        // the index of the buffer's size class, or -1 if it isn't pooled.
+        private final int sizeClass;
+        private final AtomicBoolean leased = new AtomicBoolean();
+        private Throwable acquiredAt;
+
+        private Buffer(ByteBuffer buffer, int sizeClass) {
+            this.buffer = buffer;
+            this.sizeClass = sizeClass;
+        }
+
+        ByteBuffer buffer() {
+            return buffer;
+        }
+
+        @Override
+        public void close() {
+            release(this);
+        }
+    }
+
+    private static final class Magazine {
+
+        private final Buffer[] buffers = new Buffer[MAGAZINE];
+        private int count;
+    }
+
+    private final boolean direct;
+    private final long capacity;
+    private final boolean trackLeaks;
+    private final Magazine[][] magazines;
+    private final ConcurrentLinkedQueue<Buffer>[] free;
+    // bytes of pooled buffers, whether leased or free.
+    private final AtomicLong pooled = new AtomicLong();
+    private final LongAdder leasedBytes = new LongAdder();
+    private final LongAdder unpooled = new LongAdder();
+    private final Set<Buffer> outstanding = ConcurrentHashMap.newKeySet();
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    BufferPool(boolean direct, long capacity, boolean trackLeaks) {
+        this.direct = direct;
+        this.capacity = capacity;
+        this.trackLeaks = trackLeaks;
+        int stripes = Integer.highestOneBit(
+                2 * Runtime.getRuntime().availableProcessors() - 1) << 1;
+        this.magazines = new Magazine[CLASSES.length][stripes];
+        this.free = new ConcurrentLinkedQueue[CLASSES.length];
+        for (int i = 0; i < CLASSES.length; i++) {
+            for (int j = 0; j < stripes; j++) {
+                magazines[i][j] = new Magazine();
+            }
+            free[i] = new ConcurrentLinkedQueue<>();
+        }
+    }
+
+    BufferPool(boolean direct, long capacity) {
+        this(direct, capacity, false);
+    }
+
+    private Magazine magazine(int sizeClass) {
+        var stripes = magazines[sizeClass];
+        return stripes[(int) Thread.currentThread().threadId()
+                & (stripes.length - 1)];
+    }
+
+    private static int sizeClass(int size) {
+        for (int i = 0; i < CLASSES.length; i++) {
+            if (size <= CLASSES[i]) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private ByteBuffer allocate(int size) {
+        return direct
+                ? ByteBuffer.allocateDirect(size)
+                : ByteBuffer.allocate(size);
+    }
+
+    // leases a cleared buffer with room for at least |size| bytes.
+    Buffer acquire(int size) {
+        int c = sizeClass(size);
+        var b = c < 0 ? null : take(c);
+        if (b == null) {
+            b = c >= 0 && reserve(CLASSES[c])
+                    ? new Buffer(allocate(CLASSES[c]), c)
+                    : overflow(c < 0 ? size : CLASSES[c]);
+        }
+        b.leased.set(true);
+        if (b.sizeClass >= 0) {
+            leasedBytes.add(b.buffer.capacity());
+        }
+        if (trackLeaks) {
+            b.acquiredAt = new Throwable("buffer acquired here");
+            outstanding.add(b);
+        }
+        return b;
+    }
+
+    private Buffer take(int c) {
+        var m = magazine(c);
+        synchronized (m) {
+            if (m.count > 0) {
+                var b = m.buffers[--m.count];
+                m.buffers[m.count] = null;
+                return b;
+            }
+            // refill half the magazine, so that the next few leases don't
+            // have to go to the free list.
+            Buffer b = free[c].poll();
+            for (Buffer more; m.count < MAGAZINE / 2
+                    && (more = free[c].poll()) != null;) {
+                m.buffers[m.count++] = more;
+            }
+            return b;
+        }
+    }
+
+    private boolean reserve(int size) {
+        for (long p; (p = pooled.get()) + size <= capacity;) {
+            if (pooled.compareAndSet(p, p + size)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private Buffer overflow(int size) {
+        unpooled.increment();
+        return new Buffer(allocate(size), -1);
+    }
+
+    private void release(Buffer b) {
+        if (!b.leased.compareAndSet(true, false)) {
+            throw new IllegalStateException("buffer released twice");
+        }
+        if (trackLeaks) {
+            outstanding.remove(b);
+            b.acquiredAt = null;
+        }
+        if (b.sizeClass < 0) {
+            return;
+        }
+        leasedBytes.add(-b.buffer.capacity());
+        b.buffer.clear();
+        var m = magazine(b.sizeClass);
+        synchronized (m) {
+            if (m.count == MAGAZINE) {
+                // hand half of a full magazine back to the other threads.
+                while (m.count > MAGAZINE / 2) {
+                    free[b.sizeClass].add(m.buffers[--m.count]);
+                    m.buffers[m.count] = null;
+                }
+            }
+            m.buffers[m.count++] = b;
+        }
+    }
+
+    long capacity() {
+        return capacity;
+    }
+
+    // bytes of pooled buffers currently leased.
+    long leasedBytes() {
+        return leasedBytes.sum();
+    }
+
+    // bytes of pooled buffers waiting to be leased.
+    long freeBytes() {
+        return pooled.get() - leasedBytes.sum();
+    }
+
+    // how many leases were served with a buffer from outside the pool.
+    long unpooled() {
+        return unpooled.sum();
+    }
+
+    // returns an exception for each buffer that's leased, whose cause is
+    // where it was acquired, if leaks are being tracked.
+    List<IllegalStateException> leaks() {
+        return outstanding.stream()
+                .map(b -> new IllegalStateException(
+                        "leaked " + b.buffer.capacity() + "-byte buffer",
+                        b.acquiredAt))
+                .toList();
+    }
+}
@@ -0,0 +1,196 @@
+package dev.dhc.http;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import static java.nio.charset.StandardCharsets.US_ASCII;
+
+// Parses Range headers and builds multipart/byteranges bodies. Only the
+// requested regions are read, using positional reads so that the parts
+// don't depend on a shared file position.
+final class ByteRanges {
+
+    // a request for more ranges than this is served as a whole, since many
+    // small ranges cost more to send than the file itself.
+    static final int MAX_RANGES = 16;
+
+    record Range(long start, long length) {
+
+        String contentRange(long size) {
+            return "bytes %d-%d/%d".formatted(start, start + length - 1, size);
+        }
+    }
+
+    // reads bytes at |position| into |dst|, like FileChannel.read.
+    @FunctionalInterface
+    interface Reader {
+
+        int read(ByteBuffer dst, long position) throws IOException;
+    }
+
+    private ByteRanges() {
+    }
+
+    // returns the satisfiable ranges in |header| for a file of |size|
+    // bytes, which is empty if none are, or null if the header should be
+    // ignored because it's malformed, uses another unit, or asks for too
+    // many ranges.
+    static List<Range> parse(String header, long size) {
+        if (header == null || header.length() < 6
+                || !header.regionMatches(true, 0, "bytes=", 0, 6)) {
+            return null;
+        }
+        var ranges = new ArrayList<Range>();
+        int count = 0;
+        for (var spec : header.substring(6).split(",")) {
+            spec = spec.trim();
+            if (spec.isEmpty()) {
+                continue;
+            }
+            if (++count > MAX_RANGES) {
+                return null;
+            }
+            int dash = spec.indexOf('-');
+            if (dash < 0) {
+                return null;
+            }
+            long first, last;
+            try {
+                if (dash == 0) {
+                    // the last n bytes.
+                    long n = digits(spec.substring(1));
+                    if (n == 0) {
+                        continue;
+                    }
+                    first = Math.max(0, size - n);
+                    last = size - 1;
+                } else {
+                    first = digits(spec.substring(0, dash));
+                    if (dash == spec.length() - 1) {
+                        last = size - 1;
+                    } else {
+                        last = digits(spec.substring(dash + 1));
+                        if (last < first) {
+                            return null;
+                        }
+                    }
+                }
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            if (first < size) {
+                last = Math.min(last, size - 1);
+                ranges.add(new Range(first, last - first + 1));
+            }
+        }
+        return count == 0 ? null : ranges;
+    }
+
+    private static long digits(String s) {
+        if (s.isEmpty() || !s.chars().allMatch(c -> c >= '0' && c <= '9')) {
+            throw new NumberFormatException(s);
+        }
+        // values too large for a long are past the end of any file.
+        return s.length() > 18 ? Long.MAX_VALUE / 2 : Long.parseLong(s);
+    }
+
+    // returns a multipart/byteranges body with a part for each range,
+    // reading from |reader| and closing |resource| when it's done.
+    static Body multipart(List<Range> ranges, long size, String contentType,
+            Reader reader, Closeable resource) {
+        var boundary = Long.toHexString(ThreadLocalRandom.current().nextLong()
+                | Long.MIN_VALUE);
+        var heads = new byte[ranges.size()][];
+        long length = 0;
+        for (int i = 0; i < heads.length; i++) {
+            var range = ranges.get(i);
+            heads[i] = "\r\n--%s\r\nContent-Type: %s\r\nContent-Range: %s\r\n\r\n"
+                    .formatted(boundary, contentType, range.contentRange(size))
+                    .getBytes(US_ASCII);
+            length += heads[i].length + range.length();
+        }
+        var tail = "\r\n--%s--\r\n".formatted(boundary).getBytes(US_ASCII);
+        length += tail.length;
+        return new Body.StreamBody(
+                new PartsInputStream(ranges, heads, tail, reader, resource),
+                "multipart/byteranges; boundary=" + boundary,
+                length);
+    }
+
+    // the parts of a multipart body in order: each part's head, then its
+    // region, then the closing delimiter.
+    private static final class PartsInputStream extends InputStream {
+
+        private final List<Range> ranges;
+        private final byte[][] heads;
+        private final byte[] tail;
+        private final Reader reader;
+        private final Closeable resource;
+        private int part;
+        private int headPos;
+        private long regionPos;
+        private int tailPos;
+
+        PartsInputStream(List<Range> ranges, byte[][] heads, byte[] tail,
+                Reader reader, Closeable resource) {
+            this.ranges = ranges;
+            this.heads = heads;
+            this.tail = tail;
+            this.reader = reader;
+            this.resource = resource;
+        }
+
+        @Override
+        public int read() throws IOException {
+            var b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            while (part < heads.length) {
+                var head = heads[part];
+                if (headPos < head.length) {
+                    int n = Math.min(len, head.length - headPos);
+                    System.arraycopy(head, headPos, b, off, n);
+                    headPos += n;
+                    return n;
+                }
+                var range = ranges.get(part);
+                long left = range.length() - regionPos;
+                if (left > 0) {
+                    int n = reader.read(
+                            ByteBuffer.wrap(b, off, (int) Math.min(len, left)),
+                            range.start() + regionPos);
+                    if (n < 0) {
+                        throw new IOException("file shrank while being sent");
+                    }
+                    regionPos += n;
+                    return n;
+                }
+                part++;
+                headPos = 0;
+                regionPos = 0;
+            }
+            if (tailPos < tail.length) {
+                int n = Math.min(len, tail.length - tailPos);
+                System.arraycopy(tail, tailPos, b, off, n);
+                tailPos += n;
+                return n;
+            }
+            return -1;
+        }
+
+        @Override
+        public void close() throws IOException {
+            resource.close();
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package dev.dhc.http;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.function.LongConsumer;
+
+// a buffered input stream over a blocking socket channel, which reads into
+// a direct buffer leased from |pool| and returns it on close. every read
+// from the socket is reported to |received|. as with BufferedInputStream, a
+// mark is dropped once more than its read limit has been read past it, and
+// a mark can't hold more than one buffer's worth.
+class ChannelInputStream extends InputStream {
+
+    private final SocketChannel channel;
+    private final InputStream socket;
+    private final LongConsumer received;
+    private final BufferPool.Buffer lease;
+    private final ByteBuffer buf;
+    private int mark = -1;
+    private int markLimit;
+    private boolean closed;
+
+    ChannelInputStream(SocketChannel channel, BufferPool pool,
+            LongConsumer received) throws IOException {
+        this.channel = channel;
+        this.socket = channel.socket().getInputStream();
+        this.received = received;
+        this.lease = pool.acquire(BufferPool.CLASSES[0]);
+        this.buf = lease.buffer().flip();
+    }
+
+    // reads more from the socket once everything buffered has been read.
+    // returns false at the end of the stream.
+    private boolean fill() throws IOException {
+        if (buf.hasRemaining()) {
+            return true;
+        }
+        // keep the marked bytes, moving them to the front.
+        int keep = mark >= 0 ? buf.position() - mark : 0;
+        if (keep >= markLimit || keep == buf.capacity()) {
+            mark = -1;
+            keep = 0;
+        }
+        buf.position(buf.position() - keep).compact();
+        if (mark >= 0) {
+            mark = 0;
+        }
+        int n = channel.read(buf);
+        buf.flip().position(keep);
+        if (n > 0) {
+            received.accept(n);
+        }
+        return n > 0;
+    }
+
+    @Override
+    public int read() throws IOException {
+        return fill() ? buf.get() & 0xff : -1;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!fill()) {
+            return -1;
+        }
+        int n = Math.min(len, buf.remaining());
+        buf.get(b, off, n);
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        if (n <= 0 || !fill()) {
+            return 0;
+        }
+        int skipped = (int) Math.min(n, buf.remaining());
+        buf.position(buf.position() + skipped);
+        return skipped;
+    }
+
+    // what's buffered plus what the socket has already received.
+    @Override
+    public int available() throws IOException {
+        return buf.remaining() + socket.available();
+    }
+
+    @Override
+    public boolean markSupported() {
+        return true;
+    }
+
+    @Override
+    public void mark(int readlimit) {
+        mark = buf.position();
+        markLimit = readlimit;
+    }
+
+    @Override
+    public void reset() throws IOException {
+        if (mark < 0) {
+            throw new IOException("no mark");
+        }
+        buf.position(mark);
+    }
+
+    // returns the buffer to the pool, leaving the channel open.
+    @Override
+    public void close() {
+        if (!closed) {
+            closed = true;
+            lease.close();
+        }
+    }
+}
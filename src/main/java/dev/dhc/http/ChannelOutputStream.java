@@ -0,0 +1,118 @@
+package dev.dhc.http;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.function.LongConsumer;
+
+// a buffered output stream over a blocking socket channel, which exposes the
+// channel so that bodies that can write to it directly (see Body.FileBody)
+// may skip the buffer after flushing it. writes are buffered in a direct
+// buffer leased from |pool|, which close() returns. every write to the
+// socket is reported to |sent|, including those made to the channel
+// directly, which bodies report with sent().
+class ChannelOutputStream extends OutputStream {
+
+    private final SocketChannel channel;
+    private final LongConsumer sent;
+    private final BufferPool.Buffer lease;
+    // in write mode, holding the bytes that haven't been sent.
+    private final ByteBuffer buf;
+    private boolean closed;
+
+    ChannelOutputStream(SocketChannel channel, BufferPool pool,
+            LongConsumer sent) {
+        this.channel = channel;
+        this.sent = sent;
+        this.lease = pool.acquire(BufferPool.CLASSES[0]);
+        this.buf = lease.buffer();
+    }
+
+    SocketChannel channel() {
+        return channel;
+    }
+
+    // records |n| bytes written to channel() directly.
+    void sent(long n) {
+        sent.accept(n);
+    }
+
+    // sends what's buffered followed by |rest|, in one gathering write
+    // where the socket takes it all.
+    private void send(ByteBuffer... rest) throws IOException {
+        var buffers = new ByteBuffer[rest.length + 1];
+        buffers[0] = buf.flip();
+        System.arraycopy(rest, 0, buffers, 1, rest.length);
+        try {
+            for (var b : buffers) {
+                while (b.hasRemaining()) {
+                    sent.accept(channel.write(buffers));
+                }
+            }
+        } finally {
+            buf.clear();
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (!buf.hasRemaining()) {
+            send();
+        }
+        buf.put((byte) b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (len > buf.remaining() && len < buf.capacity()) {
+            send();
+        }
+        if (len <= buf.remaining()) {
+            buf.put(b, off, len);
+            return;
+        }
+        // too big to buffer, so send it along with what's buffered.
+        send(ByteBuffer.wrap(b, off, len));
+    }
+
+    // writes a response held in memory, such as a head and its body. small
+    // responses are buffered like any other write, so that pipelined
+    // responses still go out together; larger ones are sent along with
+    // whatever is already buffered in a single gathering write, without
+    // copying them.
+    void write(ByteBuffer... response) throws IOException {
+        long size = 0;
+        for (var b : response) {
+            size += b.remaining();
+        }
+        if (size > buf.remaining()) {
+            send(response);
+            return;
+        }
+        for (var b : response) {
+            buf.put(b);
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (buf.position() > 0) {
+            send();
+        }
+    }
+
+    // flushes and returns the buffer to the pool, leaving the channel open.
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            flush();
+        } finally {
+            lease.close();
+        }
+    }
+}
@@ -0,0 +1,238 @@
+package dev.dhc.http;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+
+// Decodes a request body sent with Transfer-Encoding: chunked. Chunk
+// extensions are ignored, and trailer fields are collected once the last
+// chunk has been read. Like BoundedInputStream, it never reads past the end
+// of the body, and closing it leaves the underlying stream open.
+class ChunkedInputStream extends InputStream {
+
+    // thrown when the chunked framing is malformed, as opposed to the
+    // connection failing.
+    static class MalformedChunkException extends IOException {
+
+        MalformedChunkException(String message) {
+            super(message);
+        }
+    }
+
+    private static final int MAX_LINE = 4096;
+    private static final int MAX_TRAILERS = 8192;
+
+    private final InputStream in;
+    private long remaining;
+    private boolean done;
+    private boolean started;
+    private int trailerBytes;
+    private final Map<String, String> trailers = new HashMap<>();
+    private final byte[] single = new byte[1];
+    // run once the last chunk and the trailers have been read.
+    private Runnable onEnd;
+    private boolean cutShort;
+
+    ChunkedInputStream(InputStream in) {
+        this.in = in;
+    }
+
+    // runs |action| once the whole body has been read, which may be now.
+    void onEnd(Runnable action) {
+        onEnd = action;
+        if (done) {
+            ended();
+        }
+    }
+
+    private void ended() {
+        var action = onEnd;
+        onEnd = null;
+        if (action != null) {
+            action.run();
+        }
+    }
+
+    // whether the underlying stream ended before the body did.
+    boolean cutShort() {
+        return cutShort;
+    }
+
+    private MalformedChunkException truncated() {
+        cutShort = true;
+        return new MalformedChunkException("unexpected end of body");
+    }
+
+    // reads a byte of the framing, which the body can't end in.
+    private int readFraming() throws IOException {
+        int c = in.read();
+        if (c < 0) {
+            throw truncated();
+        }
+        return c;
+    }
+
+    // reads a CRLF-terminated line, without the CRLF.
+    private String readLine() throws IOException {
+        var b = new StringBuilder();
+        while (true) {
+            int c = readFraming();
+            if (c == '\r') {
+                if (readFraming() != '\n') {
+                    throw new MalformedChunkException("expected CRLF");
+                }
+                return b.toString();
+            }
+            if (b.length() >= MAX_LINE) {
+                throw new MalformedChunkException("chunk line too long");
+            }
+            b.append((char) c);
+        }
+    }
+
+    static long parseSize(String line) throws MalformedChunkException {
+        int end = line.indexOf(';');
+        var hex = (end < 0 ? line : line.substring(0, end)).trim();
+        if (hex.isEmpty() || hex.length() > 15) {
+            throw new MalformedChunkException("invalid chunk size");
+        }
+        try {
+            return Long.parseLong(hex, 16);
+        } catch (NumberFormatException e) {
+            throw new MalformedChunkException("invalid chunk size");
+        }
+    }
+
+    // positions the stream at the next chunk's data, or at the end.
+    private void nextChunk() throws IOException {
+        if (started) {
+            if (readFraming() != '\r' || readFraming() != '\n') {
+                throw new MalformedChunkException("expected CRLF");
+            }
+        }
+        started = true;
+        remaining = parseSize(readLine());
+        if (remaining == 0) {
+            readTrailers();
+            done = true;
+            ended();
+        }
+    }
+
+    private void readTrailers() throws IOException {
+        for (String line; !(line = readLine()).isEmpty();) {
+            trailerBytes += line.length() + 2;
+            if (trailerBytes > MAX_TRAILERS) {
+                throw new MalformedChunkException("trailers too large");
+            }
+            int colon = line.indexOf(':');
+            if (colon <= 0) {
+                throw new MalformedChunkException("invalid trailer");
+            }
+            // names are kept lowercase, since they're case-insensitive.
+            trailers.put(line.substring(0, colon).toLowerCase(Locale.ROOT),
+                    line.substring(colon + 1).trim());
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        return read(single, 0, 1) < 0 ? -1 : single[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        while (!done && remaining == 0) {
+            nextChunk();
+        }
+        if (done) {
+            return -1;
+        }
+        int n = in.read(b, off, (int) Math.min(len, remaining));
+        if (n < 0) {
+            throw truncated();
+        }
+        remaining -= n;
+        return n;
+    }
+
+    // returns a trailer field, once the whole body has been read.
+    String trailer(String name) {
+        return trailers.get(name.toLowerCase(Locale.ROOT));
+    }
+
+    // reads and discards the rest of the body. returns false if the body
+    // was malformed or ended early.
+    boolean drain() throws IOException {
+        var buf = new byte[4096];
+        try {
+            while (read(buf, 0, buf.length) >= 0) {
+            }
+        } catch (MalformedChunkException e) {
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public void close() {
+    }
+
+    // returns the length of the complete chunked body at the start of
+    // buf[off, end), or -1 if more bytes are needed. used by the event-loop
+    // engine to find the end of a body before decoding it.
+    static long scan(byte[] buf, int off, int end)
+            throws MalformedChunkException {
+        long pos = off;
+        while (true) {
+            int eol = indexOfCrlf(buf, (int) pos, end);
+            if (eol < 0) {
+                if (end - pos > MAX_LINE) {
+                    throw new MalformedChunkException("chunk line too long");
+                }
+                return -1;
+            }
+            long size = parseSize(
+                    new String(buf, (int) pos, eol - (int) pos, ISO_8859_1));
+            pos = eol + 2;
+            if (size == 0) {
+                break;
+            }
+            pos += size + 2;
+            if (pos > end) {
+                return -1;
+            }
+        }
+        // trailers, up to and including the blank line.
+        int start = (int) pos;
+        while (true) {
+            int eol = indexOfCrlf(buf, (int) pos, end);
+            if (eol < 0) {
+                return -1;
+            }
+            if (eol - start > MAX_TRAILERS) {
+                throw new MalformedChunkException("trailers too large");
+            }
+            boolean blank = eol == pos;
+            pos = eol + 2;
+            if (blank) {
+                return pos - off;
+            }
+        }
+    }
+
+    private static int indexOfCrlf(byte[] buf, int from, int end) {
+        for (int i = from; i + 1 < end; i++) {
+            if (buf[i] == '\r' && buf[i + 1] == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
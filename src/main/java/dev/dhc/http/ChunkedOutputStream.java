@@ -0,0 +1,88 @@
+package dev.dhc.http;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import static java.nio.charset.StandardCharsets.US_ASCII;
+
+// Encodes everything written to it as Transfer-Encoding: chunked, emitting
+// a chunk whenever |chunkSize| bytes have accumulated. finish() writes the
+// last chunk but leaves the underlying stream open.
+class ChunkedOutputStream extends OutputStream {
+
+    private static final byte[] CRLF = {'\r', '\n'};
+    private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes(US_ASCII);
+
+    private final OutputStream out;
+    private final byte[] buf;
+    private int count;
+
+    ChunkedOutputStream(OutputStream out, int chunkSize) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("bad chunk size: " + chunkSize);
+        }
+        this.out = out;
+        this.buf = new byte[chunkSize];
+    }
+
+    private void writeChunk(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return;
+        }
+        out.write(Integer.toHexString(len).getBytes(US_ASCII));
+        out.write(CRLF);
+        out.write(b, off, len);
+        out.write(CRLF);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (count == buf.length) {
+            flushChunk();
+        }
+        buf[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (count == 0 && len >= buf.length) {
+                // big writes skip the buffer.
+                writeChunk(b, off, buf.length);
+                off += buf.length;
+                len -= buf.length;
+                continue;
+            }
+            int n = Math.min(len, buf.length - count);
+            System.arraycopy(b, off, buf, count, n);
+            count += n;
+            off += n;
+            len -= n;
+            if (count == buf.length) {
+                flushChunk();
+            }
+        }
+    }
+
+    private void flushChunk() throws IOException {
+        writeChunk(buf, 0, count);
+        count = 0;
+    }
+
+    // sends what has been written so far as a chunk, so a slow producer's
+    // output reaches the client without waiting for a full chunk.
+    @Override
+    public void flush() throws IOException {
+        flushChunk();
+        out.flush();
+    }
+
+    void finish() throws IOException {
+        flushChunk();
+        out.write(LAST_CHUNK);
+    }
+
+    @Override
+    public void close() throws IOException {
+        finish();
+    }
+}
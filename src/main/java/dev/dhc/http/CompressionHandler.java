@@ -0,0 +1,374 @@
+package dev.dhc.http;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+// Compresses responses with gzip or deflate when the request's
+// Accept-Encoding allows it. Only 200 responses whose content type is on
+// the allowlist and whose length is at least minSize are compressed, since
+// small or already-compressed payloads tend to grow. Chunked bodies are
+// compressed as they're written. For file bodies, a "<name>.gz" sibling
+// that's at least as new as the file is sent as is; otherwise the file is
+// compressed once and kept in a bounded cache keyed by path and mtime.
+public class CompressionHandler implements Handler {
+
+    public record Options(
+            int minSize,
+            int maxSize,
+            List<String> contentTypes,
+            long cacheBytes) {
+
+        public static Options defaults() {
+            return new Options(
+                    1024,
+                    8 << 20,
+                    List.of("text/*", "application/json",
+                            "application/javascript", "application/xml",
+                            "image/svg+xml"),
+                    32 << 20);
+        }
+
+        public Options withMinSize(int minSize) {
+            return new Options(minSize, maxSize, contentTypes, cacheBytes);
+        }
+
+        public Options withMaxSize(int maxSize) {
+            return new Options(minSize, maxSize, contentTypes, cacheBytes);
+        }
+
+        public Options withContentTypes(List<String> contentTypes) {
+            return new Options(minSize, maxSize, contentTypes, cacheBytes);
+        }
+
+        public Options withCacheBytes(long cacheBytes) {
+            return new Options(minSize, maxSize, contentTypes, cacheBytes);
+        }
+    }
+
+    enum Encoding {
+        GZIP("gzip"),
+        DEFLATE("deflate");
+
+        private final String token;
+
+        Encoding(String token) {
+            this.token = token;
+        }
+
+        // the stream flushes compressed output when |out| is flushed, so
+        // that chunked producers can still send partial output.
+        DeflaterOutputStream wrap(OutputStream out) throws IOException {
+            return this == GZIP
+                    ? new GZIPOutputStream(out, true)
+                    : new DeflaterOutputStream(out, true);
+        }
+    }
+
+    private record Key(Path path, FileTime modified, long size,
+            Encoding encoding) {
+    }
+
+    // compressed files, evicted least recently used first once they add up
+    // to more than |capacity| bytes.
+    static final class VariantCache {
+
+        private final long capacity;
+        private final LinkedHashMap<Key, byte[]> entries
+                = new LinkedHashMap<>(16, 0.75f, true);
+        private long size;
+
+        VariantCache(long capacity) {
+            this.capacity = capacity;
+        }
+
+        synchronized byte[] get(Key key) {
+            return entries.get(key);
+        }
+
+        synchronized void put(Key key, byte[] bytes) {
+            if (bytes.length > capacity) {
+                return;
+            }
+            var old = entries.put(key, bytes);
+            size += bytes.length - (old == null ? 0 : old.length);
+            for (var it = entries.values().iterator(); size > capacity;) {
+                size -= it.next().length;
+                it.remove();
+            }
+        }
+
+        synchronized long size() {
+            return size;
+        }
+    }
+
+    private final Handler delegate;
+    private final Options options;
+    private final VariantCache cache;
+
+    public CompressionHandler(Handler delegate, Options options) {
+        this.delegate = delegate;
+        this.options = options;
+        this.cache = new VariantCache(options.cacheBytes());
+    }
+
+    public CompressionHandler(Handler delegate) {
+        this(delegate, Options.defaults());
+    }
+
+    // returns the acceptable encoding with the highest q-value, preferring
+    // gzip on ties, or null if the client accepts neither.
+    static Encoding negotiate(String accept) {
+        if (accept == null) {
+            return null;
+        }
+        double gzip = -1, deflate = -1, any = -1;
+        for (var part : accept.split(",")) {
+            var fields = part.split(";");
+            double q = 1;
+            for (int i = 1; i < fields.length; i++) {
+                var param = fields[i].trim();
+                if (param.startsWith("q=") || param.startsWith("Q=")) {
+                    try {
+                        q = Double.parseDouble(param.substring(2));
+                    } catch (NumberFormatException e) {
+                        q = 0;
+                    }
+                }
+            }
+            switch (fields[0].trim().toLowerCase(Locale.ROOT)) {
+                case "gzip", "x-gzip" ->
+                    gzip = q;
+                case "deflate" ->
+                    deflate = q;
+                case "*" ->
+                    any = q;
+                default -> {
+                }
+            }
+        }
+        // codings that weren't mentioned get the q-value of "*", if any.
+        gzip = gzip < 0 ? any : gzip;
+        deflate = deflate < 0 ? any : deflate;
+        if (gzip <= 0 && deflate <= 0) {
+            return null;
+        }
+        return gzip >= deflate ? Encoding.GZIP : Encoding.DEFLATE;
+    }
+
+    private boolean allowed(Body body) {
+        var contentType = body.getContentType();
+        if (contentType.isEmpty()) {
+            return false;
+        }
+        var type = contentType.get();
+        int semi = type.indexOf(';');
+        type = (semi < 0 ? type : type.substring(0, semi)).trim()
+                .toLowerCase(Locale.ROOT);
+        for (var allowed : options.contentTypes()) {
+            if (allowed.endsWith("/*")
+                    ? type.startsWith(allowed.substring(0, allowed.length() - 1))
+                    : type.equals(allowed)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean compressible(Body body) {
+        long length = body.contentLength();
+        boolean sized = length == Body.UNKNOWN_LENGTH
+                || (length >= options.minSize() && length <= options.maxSize());
+        return sized && allowed(body);
+    }
+
+    @Override
+    public Response handle(Request req) {
+        return encode(req, delegate.handle(req));
+    }
+
+    @Override
+    public CompletionStage<Response> handleAsync(Request req) {
+        var stage = delegate.handleAsync(req);
+        var done = stage.toCompletableFuture();
+        // a response that's already here is encoded without another stage.
+        if (done.isDone() && !done.isCompletedExceptionally()) {
+            return CompletableFuture.completedFuture(
+                    encode(req, done.join()));
+        }
+        return AsyncHandler.map(stage, resp -> encode(req, resp));
+    }
+
+    private Response encode(Request req, Response resp) {
+        var body = resp.getBody();
+        // file bodies may have a precompressed sibling whatever their type.
+        if (resp.getStatus() != StatusCode.OK
+                || resp.getHeader("Content-Encoding") != null
+                || !(body instanceof Body.FileBody
+                || body instanceof Body.CachedFileBody
+                || compressible(body))) {
+            return resp;
+        }
+        resp = resp.withHeader("Vary", "Accept-Encoding");
+        var encoding = negotiate(req.getHeader(Headers.ACCEPT_ENCODING));
+        if (encoding == null) {
+            return resp;
+        }
+        Body compressed;
+        try {
+            compressed = switch (body) {
+                case Body.FileBody f ->
+                    f.position() == 0 ? compressFile(f.path(), f, encoding)
+                    : null;
+                case Body.CachedFileBody c ->
+                    compressFile(c.path(), c, encoding);
+                case Body.ChunkedBody c ->
+                    compressChunked(c, encoding);
+                default ->
+                    new Body.BytesBody(compress(body, encoding),
+                            body.getContentType().get());
+            };
+        } catch (IOException e) {
+            e.printStackTrace(System.err);
+            return new Response(StatusCode.InternalServerError);
+        }
+        if (compressed == null) {
+            return resp;
+        }
+        resp = resp.withBody(compressed)
+                .withoutHeader("Accept-Ranges")
+                .withHeader("Content-Encoding", encoding.token);
+        // the compressed bytes differ from the ones a strong validator was
+        // computed for, and ranges of them aren't supported.
+        var etag = resp.getHeader("ETag");
+        if (etag != null && !etag.startsWith("W/")) {
+            resp = resp.withoutHeader("ETag").withHeader("ETag", "W/" + etag);
+        }
+        return resp;
+    }
+
+    private static byte[] compress(Body body, Encoding encoding)
+            throws IOException {
+        var buf = new ByteArrayOutputStream(
+                (int) Math.min(body.contentLength() / 2 + 64, 1 << 16));
+        try (var z = encoding.wrap(buf)) {
+            body.write(z);
+        }
+        return buf.toByteArray();
+    }
+
+    // a stream that can be closed, releasing the compressor wrapping it,
+    // without closing the stream underneath.
+    private static OutputStream shield(OutputStream out) {
+        return new FilterOutputStream(out) {
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+            }
+
+            @Override
+            public void close() throws IOException {
+                flush();
+            }
+        };
+    }
+
+    private static Body compressChunked(Body.ChunkedBody body,
+            Encoding encoding) {
+        return new Body.ChunkedBody(
+                out -> {
+                    try (var z = encoding.wrap(shield(out))) {
+                        body.producer().writeTo(z);
+                    }
+                },
+                body.contentType(),
+                body.chunkSize());
+    }
+
+    // returns the compressed contents of |path|, or null if |body| should
+    // be sent as is.
+    private Body compressFile(Path path, Body body, Encoding encoding)
+            throws IOException {
+        BasicFileAttributes attrs;
+        try {
+            attrs = Files.readAttributes(path, BasicFileAttributes.class);
+        } catch (IOException e) {
+            return null;
+        }
+        // files that changed since they were opened aren't worth caching.
+        if (attrs.size() != body.contentLength()) {
+            return null;
+        }
+        var contentType = body.getContentType().get();
+        if (encoding == Encoding.GZIP) {
+            var sibling = precompressed(path, contentType,
+                    attrs.lastModifiedTime());
+            if (sibling != null) {
+                release(body);
+                return sibling;
+            }
+        }
+        if (!compressible(body)) {
+            return null;
+        }
+        var key = new Key(path, attrs.lastModifiedTime(), attrs.size(),
+                encoding);
+        var bytes = cache.get(key);
+        if (bytes == null) {
+            bytes = compress(body, encoding);
+            cache.put(key, bytes);
+        } else {
+            release(body);
+        }
+        return new Body.BytesBody(bytes, contentType);
+    }
+
+    private static void release(Body body) throws IOException {
+        if (body instanceof Body.FileBody f) {
+            f.file().close();
+        }
+    }
+
+    private static Body.FileBody precompressed(Path path, String contentType,
+            FileTime modified) {
+        var gz = path.resolveSibling(path.getFileName() + ".gz");
+        if (!Files.isRegularFile(gz)) {
+            return null;
+        }
+        FileChannel ch = null;
+        try {
+            if (Files.getLastModifiedTime(gz).compareTo(modified) < 0) {
+                return null;
+            }
+            ch = FileChannel.open(gz);
+            return new Body.FileBody(gz, ch, contentType, ch.size());
+        } catch (IOException e) {
+            if (ch != null) {
+                try {
+                    ch.close();
+                } catch (IOException suppressed) {
+                }
+            }
+            return null;
+        }
+    }
+
+    // the number of bytes of compressed files held in memory.
+    long cachedBytes() {
+        return cache.size();
+    }
+}
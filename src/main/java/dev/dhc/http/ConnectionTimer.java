@@ -0,0 +1,133 @@
+package dev.dhc.http;
+
+import java.util.function.Consumer;
+
+// The deadline a connection is currently held to, which depends on what
+// it's waiting for: the next request, the rest of a request head, a request
+// body, an asynchronous handler, or the client to accept a response. A body
+// must arrive within |bodyTimeout| plus the time |minBodyRate| allows for
+// the bytes received so far, and a write times out after |writeTimeout|
+// without progress. The body deadline keeps applying while a handler reads
+// the body, and stops once it has been read to the end. Otherwise, while a
+// handler runs on the connection's own thread, no deadline applies, since
+// it couldn't be interrupted anyway; once it has returned a stage that
+// isn't complete, |handlerTimeout| does. A zero
+// timeout disables that deadline. When one expires it's counted,
+// remembered, and passed to |onTimeout| on the wheel's thread.
+final class ConnectionTimer {
+
+    enum Phase {
+        IDLE, HEADER, BODY, HANDLER, WRITE;
+
+        String label() {
+            return name().toLowerCase();
+        }
+    }
+
+    private final TimerWheel.Timer timer;
+    private final ServerOptions options;
+    private final Metrics metrics;
+    private final Consumer<Phase> onTimeout;
+    private volatile Phase phase;
+    private volatile Phase expired;
+    private long bodyStart;
+    private long bodyBytes;
+
+    ConnectionTimer(TimerWheel wheel, ServerOptions options, Metrics metrics,
+            Consumer<Phase> onTimeout) {
+        this.timer = wheel.timer(this::fire);
+        this.options = options;
+        this.metrics = metrics;
+        this.onTimeout = onTimeout;
+    }
+
+    private void fire() {
+        var p = phase;
+        if (p == null || expired != null) {
+            return;
+        }
+        expired = p;
+        metrics.timedOut(p);
+        onTimeout.accept(p);
+    }
+
+    // returns the phase being timed, or null if none is.
+    Phase phase() {
+        return phase;
+    }
+
+    // returns the phase whose deadline expired, or null.
+    Phase expired() {
+        return expired;
+    }
+
+    private void arm(Phase p, long nanos) {
+        phase = p;
+        if (nanos > 0) {
+            timer.reset(nanos);
+        } else {
+            timer.cancel();
+        }
+    }
+
+    void idle() {
+        arm(Phase.IDLE, options.idleTimeout().toNanos());
+    }
+
+    void header() {
+        arm(Phase.HEADER, options.headerTimeout().toNanos());
+    }
+
+    void body() {
+        bodyStart = System.nanoTime();
+        bodyBytes = 0;
+        arm(Phase.BODY, options.bodyTimeout().toNanos());
+    }
+
+    void handler() {
+        arm(Phase.HANDLER, options.handlerTimeout().toNanos());
+    }
+
+    void write() {
+        arm(Phase.WRITE, options.writeTimeout().toNanos());
+    }
+
+    // no deadline applies, e.g. while the handler runs.
+    void cancel() {
+        phase = null;
+        timer.cancel();
+    }
+
+    // stops timing the body, which has been read to the end, unless
+    // another phase is already being timed.
+    void bodyDone() {
+        if (phase == Phase.BODY) {
+            cancel();
+        }
+    }
+
+    // extends the body deadline by what |n| more bytes earn at the minimum
+    // rate.
+    void received(long n) {
+        long timeout = options.bodyTimeout().toNanos();
+        long rate = options.minBodyRate();
+        if (phase != Phase.BODY || timeout <= 0) {
+            return;
+        }
+        if (rate <= 0) {
+            timer.reset(timeout);
+            return;
+        }
+        bodyBytes += n;
+        long earned = bodyBytes / rate * 1_000_000_000
+                + bodyBytes % rate * 1_000_000_000 / rate;
+        timer.reset(bodyStart + timeout + earned - System.nanoTime());
+    }
+
+    // re-arms the write deadline after progress.
+    void sent(long n) {
+        if (phase == Phase.WRITE && n > 0) {
+            write();
+        }
+    }
+}
@@ -0,0 +1,1047 @@
+package dev.dhc.http;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Serves connections from a handful of selector threads. Each loop owns its
+// channels: it reads into a per-connection buffer until a whole request has
+// arrived, hands the request to the worker pool, and writes the encoded
+// response back without blocking. A connection stops reading while its
+// request is being handled, so responses go out in request order. While an
+// asynchronous handler's stage is pending, the connection goes back to
+// reading only to notice the client leaving, which cancels the stage.
+// Bodies too large to buffer are handed over with the head instead, and
+// the loop keeps reading them into a bounded pipe that the worker reads
+// from; the next request waits until the worker has read to the end.
+// Bodies that aren't in memory or in a file are written by the worker in
+// pieces, each of which the loop sends before the worker may hand it the
+// next.
+// HTTP/2 connections multiplex their own requests, so they leave the loop
+// for a blocking Http2Connection on a worker.
+class EventLoopEngine {
+
+    private static final int INITIAL_BUFFER = 8192;
+    // the largest body that's read in full before the request is handled.
+    private static final int MAX_BUFFERED_BODY = 64 * 1024;
+    // how much of a streamed body the loop reads ahead of the worker.
+    private static final int BODY_PIPE = 64 * 1024;
+    // the size of each piece of a streamed response.
+    private static final int STREAM_BUFFER = 16 * 1024;
+
+    private final int port;
+    private final Handler handler;
+    private final ServerOptions options;
+    private final Metrics metrics;
+    private final Admission admission;
+    private final TimerWheel wheel;
+    private final ExecutorService workers;
+    private final AccessLog accessLog;
+
+    // |accessLog| may be null.
+    EventLoopEngine(int port, Handler handler, ServerOptions options,
+            Metrics metrics, Admission admission, TimerWheel wheel,
+            ExecutorService workers, AccessLog accessLog) {
+        this.port = port;
+        this.handler = handler;
+        this.options = options;
+        this.metrics = metrics;
+        this.admission = admission;
+        this.wheel = wheel;
+        this.workers = workers;
+        this.accessLog = accessLog;
+    }
+
+    void run() throws IOException {
+        int n = Math.max(1, options.eventLoops());
+        var loops = new Loop[n];
+        for (int i = 0; i < n; i++) {
+            loops[i] = new Loop(Selector.open());
+            Thread.ofPlatform().name("event-loop-" + i).start(loops[i]);
+        }
+        new Acceptors(port, 1024, options, admission, metrics)
+                .run(shard -> new Distributor(loops, shard));
+    }
+
+    // hands one acceptor's connections to the loops in turn, starting at a
+    // different loop for each acceptor.
+    private final class Distributor implements Acceptors.Sink {
+
+        private final Loop[] loops;
+        private int next;
+
+        Distributor(Loop[] loops, int shard) {
+            this.loops = loops;
+            this.next = shard % loops.length;
+        }
+
+        @Override
+        public void accept(SocketChannel client) throws IOException {
+            client.configureBlocking(false);
+            client.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            // counted once it can't fail, since the loop counts it closed.
+            metrics.connectionOpened();
+            loops[next].register(client);
+            next = (next + 1) % loops.length;
+        }
+    }
+
+    private final class Loop implements Runnable {
+
+        private final Selector selector;
+        private final ConcurrentLinkedQueue<Runnable> tasks
+                = new ConcurrentLinkedQueue<>();
+        // connections leaving the loop, which can only be made blocking
+        // once the select after their keys were cancelled has deregistered
+        // them. only used on the loop's thread.
+        private final ArrayList<Runnable> handoffs = new ArrayList<>();
+
+        Loop(Selector selector) {
+            this.selector = selector;
+        }
+
+        void register(SocketChannel ch) {
+            execute(() -> {
+                var conn = new Connection(this, ch);
+                try {
+                    conn.key = ch.register(
+                            selector, SelectionKey.OP_READ, conn);
+                    conn.timer.idle();
+                } catch (IOException e) {
+                    conn.close();
+                }
+            });
+        }
+
+        // runs |task| on this loop's thread.
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        // runs |task| on a worker after the next select, once a channel
+        // whose key was just cancelled can leave non-blocking mode.
+        void handOff(Runnable task) {
+            handoffs.add(task);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    selector.select();
+                } catch (IOException e) {
+                    e.printStackTrace(System.err);
+                    return;
+                }
+                for (var task : handoffs) {
+                    workers.submit(task);
+                }
+                handoffs.clear();
+                for (Runnable task; (task = tasks.poll()) != null;) {
+                    task.run();
+                }
+                var selected = selector.selectedKeys();
+                for (var key : selected) {
+                    var conn = (Connection) key.attachment();
+                    try {
+                        if (key.isValid() && key.isWritable()) {
+                            conn.onWritable();
+                        }
+                        if (key.isValid() && key.isReadable()) {
+                            conn.onReadable();
+                        }
+                    } catch (IOException e) {
+                        conn.close();
+                    }
+                }
+                selected.clear();
+            }
+        }
+    }
+
+    private final class Connection {
+
+        private final Loop loop;
+        private final SocketChannel ch;
+        private SelectionKey key;
+
+        // leased from the heap pool, since the parser reads its array.
+        private BufferPool.Buffer lease = BufferPool.HEAP.acquire(
+                INITIAL_BUFFER);
+        private ByteBuffer in = lease.buffer();
+        private ByteBuffer[] out;
+        private final ResponseEncoder enc = new ResponseEncoder();
+        private Body.FileBody file;
+        private long filePosition;
+        // the streamed response whose worker is waiting for its last piece
+        // to be sent, or null.
+        private ResponseStream stream;
+        // the streamed body the worker is reading, or null, and how much
+        // of it is left to feed it, or -1 if it's chunked.
+        private BodyPipe body;
+        private long bodyLeft;
+        // whether the response is out but the worker is still reading
+        // what the handler left of a streamed body.
+        private boolean draining;
+        // whether the client isn't taking the response as fast as it's
+        // written.
+        private boolean blocked;
+        private final RequestParser parser;
+        // how much of the input buffer the parser has seen.
+        private int scanned;
+        private Request head;
+        private int headLength;
+        private int served;
+        private boolean closeAfterWrite;
+        private boolean busy;
+        private boolean closed;
+        // the pending stage of an asynchronous handler.
+        private CompletableFuture<Response> inFlight;
+        private final ConnectionTimer timer;
+        private final AccessLog.Remote remote;
+        // when the current request started arriving.
+        private long start;
+
+        Connection(Loop loop, SocketChannel ch) {
+            this.loop = loop;
+            this.ch = ch;
+            var addr = ch.socket().getRemoteSocketAddress();
+            this.parser = new RequestParser(options.maxRequestLineBytes(),
+                    options.maxHeaderBytes(), addr);
+            this.remote = accessLog != null ? AccessLog.remote(addr) : null;
+            this.timer = new ConnectionTimer(wheel, options, metrics,
+                    phase -> loop.execute(() -> expire(phase)));
+        }
+
+        void onReadable() throws IOException {
+            if (!in.hasRemaining() && !busy) {
+                grow();
+            }
+            int n = ch.read(in);
+            if (n < 0) {
+                if (inFlight != null) {
+                    inFlight.cancel(true);
+                }
+                close();
+                return;
+            }
+            metrics.received(n);
+            timer.received(n);
+            if (body != null) {
+                feed();
+            }
+            if (busy) {
+                // hold on to whatever was pipelined until the response is
+                // out, and stop reading if there's no room for more.
+                interest();
+                return;
+            }
+            process();
+        }
+
+        // waits to write while the client holds up a response, and to read
+        // whenever there's room for input that something will take: the
+        // next request, more of a streamed body, or the client leaving
+        // while an asynchronous handler is pending.
+        private void interest() {
+            boolean read = !busy
+                    || in.hasRemaining() && (body != null || inFlight != null);
+            key.interestOps((blocked ? SelectionKey.OP_WRITE : 0)
+                    | (read ? SelectionKey.OP_READ : 0));
+        }
+
+        private void grow() {
+            grow(in.capacity() * 2);
+        }
+
+        private void grow(int size) {
+            var bigger = BufferPool.HEAP.acquire(size);
+            in.flip();
+            bigger.buffer().put(in);
+            lease.close();
+            lease = bigger;
+            in = bigger.buffer();
+        }
+
+        // tries to cut a complete request out of the input buffer. the
+        // buffer is in write mode, holding bytes [0, position).
+        private void process() throws IOException {
+            if (timer.phase() == ConnectionTimer.Phase.IDLE) {
+                timer.header();
+                start = System.nanoTime();
+            }
+            // a client with prior knowledge of HTTP/2 starts with its
+            // preface instead of a request.
+            if (served == 0 && head == null && options.h2c()
+                    && Http2Connection.startsPreface(
+                            in.array(), in.position())) {
+                if (in.position() >= Http2Connection.PREFACE.length) {
+                    hijack(null);
+                }
+                return;
+            }
+            if (head == null && !parseHead()) {
+                return;
+            }
+            long total = -1;
+            if (head.isChunked()) {
+                long n;
+                try {
+                    n = ChunkedInputStream.scan(
+                            in.array(), headLength, in.position());
+                } catch (ChunkedInputStream.MalformedChunkException e) {
+                    fail();
+                    return;
+                }
+                if (n >= 0) {
+                    total = headLength + n;
+                }
+            } else {
+                total = headLength + head.contentLength();
+            }
+            if (total < 0 || total - headLength > MAX_BUFFERED_BODY) {
+                stream();
+                return;
+            }
+            if (in.position() < total) {
+                if (total > in.capacity()) {
+                    grow((int) total);
+                }
+                return;
+            }
+            // copy the body out, since the buffer is reused for the next
+            // request.
+            var body = Arrays.copyOfRange(in.array(), headLength, (int) total);
+            var req = head.withBody(new ByteArrayInputStream(body));
+            consume((int) total);
+            if (options.h2c() && Http2Connection.upgradable(req)) {
+                hijack(req);
+                return;
+            }
+            dispatch(req, null);
+        }
+
+        // hands the request over before its body has arrived, and feeds the
+        // body to the worker as it does.
+        private void stream() {
+            var pipe = new BodyPipe();
+            var req = head.withBody(pipe);
+            bodyLeft = head.isChunked() ? -1 : head.contentLength();
+            consume(headLength);
+            body = pipe;
+            req.onBodyEnd(() -> loop.execute(() -> bodyEnded(pipe)));
+            feed();
+            dispatch(req, pipe);
+        }
+
+        // moves what has arrived of the streamed body from the input buffer
+        // into its pipe, as far as there's room.
+        private void feed() {
+            if (bodyLeft == 0) {
+                return;
+            }
+            in.flip();
+            int max = bodyLeft < 0 ? in.remaining()
+                    : (int) Math.min(in.remaining(), bodyLeft);
+            int n = body.offer(in, max);
+            in.compact();
+            if (bodyLeft > 0) {
+                bodyLeft -= n;
+                if (bodyLeft == 0) {
+                    body.end();
+                }
+            }
+        }
+
+        // runs on the loop once the worker has made room in |pipe|.
+        private void refill(BodyPipe pipe) {
+            if (closed || body != pipe) {
+                return;
+            }
+            feed();
+            interest();
+        }
+
+        // runs on the loop once the worker has read to the end of |pipe|.
+        // whatever was fed past the end belongs to the next request.
+        private void bodyEnded(BodyPipe pipe) {
+            if (closed || body != pipe) {
+                return;
+            }
+            body = null;
+            timer.bodyDone();
+            unread(pipe.takeRest());
+            if (!draining) {
+                interest();
+                return;
+            }
+            draining = false;
+            try {
+                next();
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        // puts |b| back in front of whatever is in the input buffer.
+        private void unread(byte[] b) {
+            if (b.length == 0) {
+                return;
+            }
+            var bigger = BufferPool.HEAP.acquire(
+                    Math.max(in.capacity(), b.length + in.position()));
+            in.flip();
+            bigger.buffer().put(b).put(in);
+            lease.close();
+            lease = bigger;
+            in = bigger.buffer();
+        }
+
+        // runs on the loop when the worker couldn't read to the end of a
+        // streamed body, so the connection can't be reused.
+        private void closeAfterResponse() {
+            if (closed) {
+                return;
+            }
+            if (draining) {
+                close();
+            } else {
+                closeAfterWrite = true;
+            }
+        }
+
+        // hands the connection over to a blocking Http2Connection on a
+        // worker, along with whatever has been read but not parsed. the
+        // loop forgets it, and the worker closes it. |upgrade| is the
+        // request that asked to switch protocols, or null.
+        private void hijack(Request upgrade) {
+            closed = true;
+            timer.cancel();
+            key.cancel();
+            in.flip();
+            var buffered = new byte[in.remaining()];
+            in.get(buffered);
+            lease.close();
+            loop.handOff(() -> serveHttp2(ch, buffered, upgrade));
+        }
+
+        private boolean parseHead() throws IOException {
+            try {
+                scanned += parser.feed(
+                        in.array(), scanned, in.position() - scanned);
+                if (!parser.isComplete()) {
+                    return false;
+                }
+                head = parser.finish(InputStream.nullInputStream());
+            } catch (BadRequestException e) {
+                parser.reset();
+                fail();
+                return false;
+            }
+            headLength = scanned;
+            if (head.hasBody()) {
+                timer.body();
+            }
+            return true;
+        }
+
+        private void consume(int n) {
+            in.flip();
+            in.position(n);
+            in.compact();
+            scanned = 0;
+            head = null;
+        }
+
+        // |pipe| is the streamed body, whose deadline still runs, or null.
+        private void dispatch(Request req, BodyPipe pipe) {
+            if (pipe == null) {
+                timer.cancel();
+            }
+            busy = true;
+            interest();
+            boolean keepAlive = req.keepAlive()
+                    && ++served < options.maxRequestsPerConnection();
+            long started = start;
+            workers.submit(() -> {
+                try {
+                    handle(req, started, keepAlive, pipe);
+                } catch (Throwable e) {
+                    abandon(e);
+                }
+            });
+        }
+
+        private void handle(Request req, long started, boolean keepAlive,
+                BodyPipe pipe) {
+            CompletableFuture<Response> stage;
+            try {
+                stage = handler.handleAsync(req).toCompletableFuture();
+            } catch (RuntimeException e) {
+                stage = CompletableFuture.failedFuture(e);
+            }
+            if (stage.isDone()) {
+                respond(stage, req, started, keepAlive, pipe);
+                return;
+            }
+            // the loop sees this before the response, since its tasks run
+            // in order.
+            var pending = stage;
+            loop.execute(() -> await(pending));
+            stage.whenCompleteAsync(
+                    (resp, e) -> respond(
+                            pending, req, started, keepAlive, pipe),
+                    workers);
+        }
+
+        // closes the connection from a worker that failed to produce a
+        // response, e.g. because a body's producer threw, since the loop
+        // has stopped reading it and nothing else would.
+        private void abandon(Throwable e) {
+            e.printStackTrace(System.err);
+            loop.execute(this::close);
+        }
+
+        // runs on the loop while |stage| is pending, which is timed, and
+        // is cancelled if the client goes away.
+        private void await(CompletableFuture<Response> stage) {
+            if (closed) {
+                stage.cancel(true);
+                return;
+            }
+            if (stage.isDone()) {
+                return;
+            }
+            inFlight = stage;
+            timer.handler();
+            interest();
+        }
+
+        // records a response in the access log, if there is one.
+        private void log(Request req, Response resp, long started) {
+            if (accessLog != null) {
+                accessLog.record(req, resp.getStatus(),
+                        resp.getBody().contentLength(),
+                        System.nanoTime() - started, remote);
+            }
+        }
+
+        private void respond(CompletableFuture<Response> stage, Request req,
+                long started, boolean keepAlive, BodyPipe pipe) {
+            try {
+                if (encode(stage, req, started, keepAlive) && pipe != null) {
+                    drain(req);
+                }
+            } catch (Throwable e) {
+                abandon(e);
+            }
+        }
+
+        // reads what the handler left of a streamed body once its response
+        // is on its way, since the next request follows it.
+        private void drain(Request req) {
+            boolean drained;
+            try {
+                drained = req.drainBody();
+            } catch (IOException e) {
+                drained = false;
+            }
+            if (!drained) {
+                loop.execute(this::closeAfterResponse);
+            }
+        }
+
+        // encodes the response to a completed stage on a worker thread, and
+        // returns whether the connection stays open. a cancelled stage gets
+        // a 503, a failed one a 500, and a handler that only saw part of a
+        // body because the client stalled gets a 408 in its place.
+        private boolean encode(CompletableFuture<Response> stage,
+                Request req, long started, boolean keepAlive) {
+            Response resp;
+            try {
+                resp = stage.join();
+            } catch (CancellationException e) {
+                resp = new Response(StatusCode.ServiceUnavailable);
+                keepAlive = false;
+            } catch (CompletionException e) {
+                e.getCause().printStackTrace(System.err);
+                resp = new Response(StatusCode.InternalServerError);
+            }
+            if (timer.expired() == ConnectionTimer.Phase.BODY
+                    && req.bodyCutShort()) {
+                resp = new Response(StatusCode.RequestTimeout);
+                keepAlive = false;
+            }
+            log(req, resp, started);
+            boolean close = !keepAlive;
+            if (resp.encoded() != null) {
+                var encoded = ResponseEncoder.buffers(
+                        resp.encoded(), keepAlive);
+                loop.execute(() -> send(encoded, null, close));
+                return keepAlive;
+            }
+            // file bodies are sent with transferTo once the head is out,
+            // in-memory bodies go out in the same gathering write as the
+            // head, and anything else is streamed as it's written.
+            var head = enc.encodeHead(resp, keepAlive);
+            var body = resp.getBody();
+            var bytes = ResponseEncoder.inMemory(body);
+            var file = body instanceof Body.FileBody f
+                    && f.contentLength() > 0 ? f : null;
+            if (bytes == null && file == null) {
+                var out = new ResponseStream(close);
+                try {
+                    out.write(head.array(), head.position(), head.remaining());
+                    body.write(out);
+                    out.finish();
+                } catch (IOException e) {
+                    // there's nothing to report if the client left.
+                    if (!out.abandoned) {
+                        abandon(e);
+                    }
+                    return false;
+                }
+                return keepAlive;
+            }
+            var encoded = bytes != null
+                    ? new ByteBuffer[]{head, bytes}
+                    : new ByteBuffer[]{head};
+            loop.execute(() -> send(encoded, file, close));
+            return keepAlive;
+        }
+
+        // the head and body of a response that a worker writes while the
+        // loop sends it. whatever is written is handed to the loop in
+        // pieces, and the worker waits while the last one is still being
+        // sent, so a slow client holds up the body's producer rather than
+        // letting it fill memory. flush() hands over a short piece.
+        private final class ResponseStream extends OutputStream {
+
+            private final boolean close;
+            // released by the loop once a piece has been sent, or the
+            // connection has closed.
+            private final Semaphore sent = new Semaphore(1);
+            private volatile boolean abandoned;
+            // the loop sends from one buffer while the worker fills the
+            // other.
+            private byte[] buf = new byte[STREAM_BUFFER];
+            private byte[] spare = new byte[STREAM_BUFFER];
+            private int count;
+
+            ResponseStream(boolean close) {
+                this.close = close;
+            }
+
+            @Override
+            public void write(int b) throws IOException {
+                if (count == buf.length) {
+                    hand(false);
+                }
+                buf[count++] = (byte) b;
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                while (len > 0) {
+                    if (count == buf.length) {
+                        hand(false);
+                    }
+                    int n = Math.min(len, buf.length - count);
+                    System.arraycopy(b, off, buf, count, n);
+                    count += n;
+                    off += n;
+                    len -= n;
+                }
+            }
+
+            @Override
+            public void flush() throws IOException {
+                if (count > 0) {
+                    hand(false);
+                }
+            }
+
+            void finish() throws IOException {
+                hand(true);
+            }
+
+            private void hand(boolean last) throws IOException {
+                try {
+                    sent.acquire();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+                if (abandoned) {
+                    throw new IOException("connection closed");
+                }
+                var piece = ByteBuffer.wrap(buf, 0, count);
+                loop.execute(() -> sendPiece(this, piece, last));
+                var t = buf;
+                buf = spare;
+                spare = t;
+                count = 0;
+            }
+
+            // called on the loop.
+            void sent() {
+                sent.release();
+            }
+
+            void abandon() {
+                abandoned = true;
+                sent.release();
+            }
+        }
+
+        // the body of a request that's too large to buffer, which the loop
+        // feeds as it arrives while the worker reads it. it holds at most
+        // BODY_PIPE bytes, so a handler that reads slowly stops the loop
+        // from reading the connection rather than letting the body fill
+        // memory.
+        private final class BodyPipe extends InputStream {
+
+            private final ReentrantLock lock = new ReentrantLock();
+            private final Condition fed = lock.newCondition();
+            private final byte[] buf = new byte[BODY_PIPE];
+            private final byte[] single = new byte[1];
+            private int start;
+            private int count;
+            private boolean ended;
+            // whether the loop has more to feed once there's room.
+            private boolean stalled;
+
+            // called on the loop. takes as much of |src| as there's room
+            // for, up to |max| bytes, and returns how much it took.
+            int offer(ByteBuffer src, int max) {
+                lock.lock();
+                try {
+                    int n = Math.min(max, buf.length - count);
+                    for (int done = 0; done < n;) {
+                        int end = (start + count) % buf.length;
+                        int m = Math.min(n - done, buf.length - end);
+                        src.get(buf, end, m);
+                        count += m;
+                        done += m;
+                    }
+                    stalled = n < max;
+                    if (n > 0) {
+                        fed.signal();
+                    }
+                    return n;
+                } finally {
+                    lock.unlock();
+                }
+            }
+
+            // called on the loop once nothing more will be fed.
+            void end() {
+                lock.lock();
+                try {
+                    ended = true;
+                    fed.signal();
+                } finally {
+                    lock.unlock();
+                }
+            }
+
+            // called on the loop. ends the pipe and returns what the
+            // worker didn't read.
+            byte[] takeRest() {
+                lock.lock();
+                try {
+                    var rest = new byte[count];
+                    int n = Math.min(count, buf.length - start);
+                    System.arraycopy(buf, start, rest, 0, n);
+                    System.arraycopy(buf, 0, rest, n, count - n);
+                    count = 0;
+                    ended = true;
+                    return rest;
+                } finally {
+                    lock.unlock();
+                }
+            }
+
+            @Override
+            public int read() throws IOException {
+                return read(single, 0, 1) < 0 ? -1 : single[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (len == 0) {
+                    return 0;
+                }
+                int n;
+                boolean resume;
+                lock.lock();
+                try {
+                    while (count == 0 && !ended) {
+                        fed.await();
+                    }
+                    if (count == 0) {
+                        return -1;
+                    }
+                    n = Math.min(len, Math.min(count, buf.length - start));
+                    System.arraycopy(buf, start, b, off, n);
+                    start = (start + n) % buf.length;
+                    count -= n;
+                    // wake the loop once there's room for a good part of
+                    // what it's holding, rather than after every read.
+                    resume = stalled && count <= buf.length / 2;
+                    if (resume) {
+                        stalled = false;
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                } finally {
+                    lock.unlock();
+                }
+                if (resume) {
+                    loop.execute(() -> refill(this));
+                }
+                return n;
+            }
+
+            @Override
+            public int available() {
+                lock.lock();
+                try {
+                    return count;
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+
+        private void sendPiece(ResponseStream s, ByteBuffer piece,
+                boolean last) {
+            if (closed) {
+                s.abandon();
+                return;
+            }
+            stream = last ? null : s;
+            send(new ByteBuffer[]{piece}, null, s.close);
+        }
+
+        private void fail() {
+            metrics.parseError();
+            busy = true;
+            var resp = new Response(StatusCode.BadRequest);
+            log(null, resp, start);
+            send(new ByteBuffer[]{enc.encodeHead(resp, false)}, null, true);
+        }
+
+        private void send(ByteBuffer[] encoded, Body.FileBody file,
+                boolean close) {
+            inFlight = null;
+            if (closed) {
+                // the client left while the response was being computed.
+                if (file != null) {
+                    this.file = file;
+                    closeFile();
+                }
+                return;
+            }
+            out = encoded;
+            if (file != null) {
+                this.file = file;
+                filePosition = file.position();
+            }
+            closeAfterWrite = close;
+            timer.write();
+            try {
+                onWritable();
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        void onWritable() throws IOException {
+            if (!key.isValid()) {
+                return;
+            }
+            long written = ch.write(out);
+            metrics.sent(written);
+            timer.sent(written);
+            if (out[out.length - 1].hasRemaining()) {
+                blocked = true;
+                interest();
+                return;
+            }
+            if (file != null) {
+                long end = file.position() + file.contentLength();
+                long n = file.file().transferTo(
+                        filePosition, end - filePosition, ch);
+                if (n == 0 && filePosition >= file.file().size()) {
+                    // the file shrank under us; the response can't be
+                    // completed.
+                    close();
+                    return;
+                }
+                metrics.sent(n);
+                timer.sent(n);
+                filePosition += n;
+                if (filePosition < end) {
+                    blocked = true;
+                    interest();
+                    return;
+                }
+                closeFile();
+            }
+            out = null;
+            blocked = false;
+            if (stream != null) {
+                // wait for the next piece, still held to the write
+                // deadline.
+                interest();
+                stream.sent();
+                return;
+            }
+            if (closeAfterWrite) {
+                close();
+                return;
+            }
+            if (body != null) {
+                // the next request waits for the worker to read past the
+                // rest of the body, which is held to the body deadline.
+                draining = true;
+                timer.body();
+                interest();
+                return;
+            }
+            next();
+        }
+
+        private void next() throws IOException {
+            busy = false;
+            timer.idle();
+            interest();
+            // the client may have pipelined the next request already.
+            if (in.position() > 0) {
+                process();
+            }
+        }
+
+        private void closeFile() {
+            try {
+                file.file().close();
+            } catch (IOException e) {
+            }
+            file = null;
+        }
+
+        // runs on the loop once |phase| has expired. a client that stalled
+        // while sending a request gets a 408, unless part of a response has
+        // already gone out, and a handler that's too slow gets cancelled;
+        // otherwise the connection is just closed.
+        private void expire(ConnectionTimer.Phase phase) {
+            if (closed) {
+                return;
+            }
+            if (phase == ConnectionTimer.Phase.HANDLER) {
+                // the response to the cancelled stage closes the connection.
+                if (inFlight != null) {
+                    inFlight.cancel(true);
+                }
+                return;
+            }
+            if (phase == ConnectionTimer.Phase.BODY && body != null
+                    && !draining) {
+                // the handler sees the body end early, and its response
+                // closes the connection.
+                bodyLeft = 0;
+                body.end();
+                return;
+            }
+            boolean reading = phase == ConnectionTimer.Phase.HEADER
+                    || phase == ConnectionTimer.Phase.BODY;
+            if (!reading || out != null) {
+                close();
+            } else if (!busy) {
+                busy = true;
+                var resp = new Response(StatusCode.RequestTimeout);
+                log(null, resp, start);
+                send(new ByteBuffer[]{enc.encodeHead(resp, false)}, null,
+                        true);
+            }
+        }
+
+        void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            timer.cancel();
+            metrics.connectionClosed();
+            admission.release();
+            if (key != null) {
+                key.cancel();
+            }
+            closeQuietly(ch);
+            if (file != null) {
+                closeFile();
+            }
+            if (stream != null) {
+                stream.abandon();
+                stream = null;
+            }
+            if (body != null) {
+                body.end();
+                body = null;
+            }
+            lease.close();
+        }
+    }
+
+    private void serveHttp2(SocketChannel ch, byte[] buffered,
+            Request upgrade) {
+        var addr = ch.socket().getRemoteSocketAddress();
+        try (ch) {
+            ch.configureBlocking(true);
+            try (var r = new ChannelInputStream(ch, BufferPool.DIRECT,
+                    metrics::received);
+                var w = new ChannelOutputStream(ch, BufferPool.DIRECT,
+                        metrics::sent)) {
+                var in = new SequenceInputStream(
+                        new ByteArrayInputStream(buffered), r);
+                new Http2Connection(ch, in, w, handler, options, metrics,
+                        wheel, workers, accessLog).serve(upgrade);
+            }
+        } catch (IOException e) {
+            System.err.printf("error handling client %s:\n", addr);
+            e.printStackTrace(System.err);
+        } finally {
+            metrics.connectionClosed();
+            admission.release();
+        }
+    }
+
+    private static void closeQuietly(SocketChannel ch) {
+        try {
+            ch.close();
+        } catch (IOException e) {
+        }
+    }
+}
@@ -0,0 +1,251 @@
+package dev.dhc.http;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+// Keeps the contents of small, frequently requested files in direct
+// buffers, so that a hit costs no file open and no copy through the heap.
+// Entries are evicted with a segmented LRU: files start out in a probation
+// segment and are only promoted to the protected segment, which holds most
+// of the budget, when they're requested again, so a scan over many files
+// that are each requested once can't flush the hot ones. An entry is
+// checked against the file's mtime and size once it's older than
+// |revalidateAfter|; FileSystemHandler also invalidates files it writes.
+//
+// Entries are found through a concurrent map, so a hit on a protected file
+// takes no lock: it only marks the entry as referenced. The segments are
+// locked to promote, demote or evict, and recency within the protected
+// segment is approximated with those marks, which give a referenced entry a
+// second chance before it's pushed back into probation.
+public final class FileCache {
+
+    // a cached file: its contents and when it was last modified.
+    record Contents(ByteBuffer buffer, FileTime modified) {
+    }
+
+    private static final class Entry {
+
+        private final ByteBuffer contents;
+        private final FileTime modified;
+        private volatile long checkedAt;
+        // set by hits, and cleared when the entry is given a second chance.
+        private volatile boolean referenced;
+        // guarded by the cache's lock, but read without it by hits.
+        private volatile boolean promoted;
+
+        Entry(ByteBuffer contents, FileTime modified, long checkedAt) {
+            this.contents = contents;
+            this.modified = modified;
+            this.checkedAt = checkedAt;
+        }
+
+        int size() {
+            return contents.capacity();
+        }
+
+        Contents contents() {
+            return new Contents(contents.duplicate(), modified);
+        }
+    }
+
+    private final long maxBytes;
+    private final long protectedBytes;
+    private final int maxEntryBytes;
+    private final long revalidateNanos;
+
+    // every entry, in either segment.
+    private final ConcurrentHashMap<Path, Entry> entries
+            = new ConcurrentHashMap<>();
+    // guarded by |this|. both in the order entries joined them, oldest
+    // first.
+    private final LinkedHashMap<Path, Entry> probation = new LinkedHashMap<>();
+    private final LinkedHashMap<Path, Entry> protect = new LinkedHashMap<>();
+    private long probationSize;
+    private long protectSize;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public FileCache(long maxBytes, int maxEntryBytes,
+            Duration revalidateAfter) {
+        this.maxBytes = maxBytes;
+        this.protectedBytes = maxBytes / 5 * 4;
+        this.maxEntryBytes = maxEntryBytes;
+        this.revalidateNanos = revalidateAfter.toNanos();
+    }
+
+    public FileCache(long maxBytes) {
+        this(maxBytes, (int) Math.min(maxBytes / 16, 1 << 20),
+                Duration.ofSeconds(1));
+    }
+
+    // returns the contents of |path| in a read-only buffer, loading them if
+    // needed, or null if the file can't be cached or read.
+    Contents get(Path path) {
+        var entry = entries.get(path);
+        long now = System.nanoTime();
+        if (entry != null && now - entry.checkedAt > revalidateNanos) {
+            if (fresh(path, entry)) {
+                entry.checkedAt = now;
+            } else {
+                invalidate(path);
+                entry = null;
+            }
+        }
+        if (entry != null) {
+            if (entry.promoted) {
+                entry.referenced = true;
+            } else {
+                promote(path, entry);
+            }
+            hits.increment();
+            return entry.contents();
+        }
+        misses.increment();
+        entry = load(path, now);
+        if (entry == null) {
+            return null;
+        }
+        insert(path, entry);
+        return entry.contents();
+    }
+
+    // moves an entry that was requested again out of probation, which may
+    // push protected entries that haven't been requested lately back into
+    // it.
+    private synchronized void promote(Path path, Entry entry) {
+        if (probation.get(path) != entry) {
+            // it was promoted, replaced or evicted meanwhile.
+            return;
+        }
+        probation.remove(path);
+        probationSize -= entry.size();
+        protect.put(path, entry);
+        protectSize += entry.size();
+        entry.promoted = true;
+        while (protectSize > protectedBytes) {
+            var demoted = eldest(protect);
+            protect.remove(demoted.getKey());
+            protectSize -= demoted.getValue().size();
+            demoted.getValue().promoted = false;
+            probation.put(demoted.getKey(), demoted.getValue());
+            probationSize += demoted.getValue().size();
+        }
+    }
+
+    // returns the oldest entry of |segment| that hasn't been referenced
+    // since it was last passed over, moving the ones that have to the end.
+    // each entry is passed over at most once, however busy it is.
+    private static Map.Entry<Path, Entry> eldest(
+            LinkedHashMap<Path, Entry> segment) {
+        for (int chances = segment.size() - 1;; chances--) {
+            var eldest = segment.entrySet().iterator().next();
+            var entry = eldest.getValue();
+            if (!entry.referenced || chances <= 0) {
+                return eldest;
+            }
+            entry.referenced = false;
+            segment.remove(eldest.getKey());
+            segment.put(eldest.getKey(), entry);
+        }
+    }
+
+    private synchronized void insert(Path path, Entry entry) {
+        remove(path);
+        if (entry.size() > maxBytes) {
+            return;
+        }
+        probation.put(path, entry);
+        probationSize += entry.size();
+        entries.put(path, entry);
+        while (probationSize + protectSize > maxBytes) {
+            var victim = probation.isEmpty()
+                    ? eldest(protect)
+                    : probation.entrySet().iterator().next();
+            remove(victim.getKey());
+            evictions.increment();
+        }
+    }
+
+    private void remove(Path path) {
+        var old = entries.remove(path);
+        if (old == null) {
+            return;
+        }
+        if (old.promoted) {
+            protect.remove(path);
+            protectSize -= old.size();
+        } else {
+            probation.remove(path);
+            probationSize -= old.size();
+        }
+    }
+
+    // drops |path| from the cache, e.g. because it's being written.
+    synchronized void invalidate(Path path) {
+        remove(path);
+    }
+
+    private static boolean fresh(Path path, Entry entry) {
+        try {
+            var attrs = Files.readAttributes(path, BasicFileAttributes.class);
+            return attrs.lastModifiedTime().equals(entry.modified)
+                    && attrs.size() == entry.size();
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private Entry load(Path path, long now) {
+        BasicFileAttributes attrs;
+        try {
+            attrs = Files.readAttributes(path, BasicFileAttributes.class);
+        } catch (IOException e) {
+            return null;
+        }
+        if (!attrs.isRegularFile() || attrs.size() > maxEntryBytes) {
+            return null;
+        }
+        try (var file = FileChannel.open(path)) {
+            var contents = ByteBuffer.allocateDirect((int) attrs.size());
+            while (contents.hasRemaining()) {
+                if (file.read(contents) < 0) {
+                    // the file shrank while we were reading it.
+                    return null;
+                }
+            }
+            return new Entry(contents.flip().asReadOnlyBuffer(),
+                    attrs.lastModifiedTime(), now);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    public long hits() {
+        return hits.sum();
+    }
+
+    public long misses() {
+        return misses.sum();
+    }
+
+    public long evictions() {
+        return evictions.sum();
+    }
+
+    // the number of bytes of file contents held by the cache.
+    public synchronized long size() {
+        return probationSize + protectSize;
+    }
+}
@@ -2,17 +2,72 @@ package dev.dhc.http;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.List;
+import java.util.Locale;
 import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 
 public class FileSystemHandler implements Handler {
 
+    private static final String CONTENT_TYPE = "application/octet-stream";
+    private static final DateTimeFormatter HTTP_DATE = DateTimeFormatter
+            .ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US)
+            .withZone(ZoneOffset.UTC);
+
+    // uploads are read in pieces this large, so that the file is written
+    // with few, large writes.
+    private static final int UPLOAD_CHUNK = 256 * 1024;
+
+    // how far an upload is synced to disk before it's published.
+    public enum Durability {
+        // left to the page cache; a crash may lose a published file.
+        NONE,
+        // the file's contents are synced before it's renamed into place.
+        DATA,
+        // the contents and metadata are synced, and so is the directory
+        // after the rename, so the new name survives a crash too.
+        FULL,
+    }
+
     private final Path root;
+    private final FileCache cache;
+    private final Durability durability;
+    private final BufferPool pool;
 
-    public FileSystemHandler(Path root) {
+    // upload buffers are leased from |pool|.
+    FileSystemHandler(Path root, FileCache cache, Durability durability,
+            BufferPool pool) {
         this.root = root;
+        this.cache = cache;
+        this.durability = durability;
+        this.pool = pool;
+    }
+
+    // |cache| may be null, in which case every request opens the file.
+    public FileSystemHandler(Path root, FileCache cache,
+            Durability durability) {
+        this(root, cache, durability, BufferPool.HEAP);
+    }
+
+    public FileSystemHandler(Path root, FileCache cache) {
+        this(root, cache, Durability.NONE);
+    }
+
+    public FileSystemHandler(Path root) {
+        this(root, null);
     }
 
     private Optional<Path> getValidPath(String filename) {
@@ -21,17 +76,29 @@ public class FileSystemHandler implements Handler {
                 : Optional.of(path);
     }
 
-    private void copy(OutputStream w, InputStream r, int n)
-            throws IOException, BadRequestException {
-        byte buf[] = new byte[4096];
-        for (int k = 0; k < n;) {
-            int chunk = Math.min(4096, n - k);
-            int read = r.read(buf, 0, chunk);
-            if (read <= 0) {
-                throw new BadRequestException("can't read enough bytes");
+    // copies |in| to the end of |out| and returns how many bytes there
+    // were. reads fill the whole buffer where they can, so that each write
+    // to the file is large.
+    private long copy(InputStream in, FileChannel out) throws IOException {
+        try (var lease = pool.acquire(UPLOAD_CHUNK)) {
+            var wrapped = lease.buffer();
+            var buf = wrapped.array();
+            long total = 0;
+            for (int n; (n = in.readNBytes(buf, 0, UPLOAD_CHUNK)) > 0;) {
+                wrapped.clear().limit(n);
+                while (wrapped.hasRemaining()) {
+                    out.write(wrapped);
+                }
+                total += n;
             }
-            w.write(buf, 0, read);
-            k += read;
+            return total;
+        }
+    }
+
+    private static void closeQuietly(FileChannel file) {
+        try {
+            file.close();
+        } catch (IOException e) {
         }
     }
 
@@ -51,20 +118,157 @@ public class FileSystemHandler implements Handler {
             return new Response(StatusCode.NotFound);
         }
         Path path = validPath.get();
-        if (!Files.isReadable(path)) {
-            return new Response(StatusCode.NotFound);
-        }
-        InputStream r;
+        var cached = cache == null ? null : cache.get(path);
+        FileTime modified;
         long size;
+        if (cached != null) {
+            modified = cached.modified();
+            size = cached.buffer().remaining();
+        } else {
+            if (!Files.isReadable(path)) {
+                return new Response(StatusCode.NotFound);
+            }
+            try {
+                var attrs = Files.readAttributes(
+                        path, BasicFileAttributes.class);
+                modified = attrs.lastModifiedTime();
+                size = attrs.size();
+            } catch (IOException e) {
+                return new Response(StatusCode.InternalServerError);
+            }
+        }
+        // preconditions and ranges are checked before the file is opened,
+        // so a 304 or a 416 costs no more than a stat.
+        var etag = etag(modified, size);
+        var lastModified = HTTP_DATE.format(modified.toInstant());
+        if (notModified(req, etag, modified)) {
+            return new Response(StatusCode.NotModified)
+                    .withHeader("ETag", etag)
+                    .withHeader("Last-Modified", lastModified);
+        }
+        var ranges = ifRange(req, etag, modified)
+                ? ByteRanges.parse(req.getHeader(Headers.RANGE), size)
+                : null;
+        if (ranges != null && ranges.isEmpty()) {
+            return new Response(StatusCode.RangeNotSatisfiable)
+                    .withHeader("Content-Range", "bytes */" + size);
+        }
+        Body body;
+        if (cached != null) {
+            body = cachedBody(path, cached.buffer(), ranges, size);
+        } else {
+            FileChannel file;
+            try {
+                file = FileChannel.open(path);
+            } catch (IOException e) {
+                return new Response(StatusCode.InternalServerError);
+            }
+            body = fileBody(path, file, ranges, size);
+        }
+        var resp = new Response(
+                ranges == null ? StatusCode.OK : StatusCode.PartialContent,
+                body)
+                .withHeader("Accept-Ranges", "bytes")
+                .withHeader("ETag", etag)
+                .withHeader("Last-Modified", lastModified);
+        if (ranges != null && ranges.size() == 1) {
+            resp = resp.withHeader(
+                    "Content-Range", ranges.get(0).contentRange(size));
+        }
+        return resp;
+    }
+
+    private static String etag(FileTime modified, long size) {
+        return "\"%x-%x\"".formatted(modified.to(TimeUnit.MICROSECONDS), size);
+    }
+
+    private static Instant parseDate(String s) {
+        if (s == null) {
+            return null;
+        }
         try {
-            r = Files.newInputStream(path);
-            size = Files.size(path);
-        } catch (IOException e) {
-            return new Response(StatusCode.InternalServerError);
+            return HTTP_DATE.parse(s.trim(), Instant::from);
+        } catch (DateTimeParseException e) {
+            return null;
+        }
+    }
+
+    // If-None-Match uses the weak comparison, and takes precedence over
+    // If-Modified-Since.
+    private static boolean notModified(Request req, String etag,
+            FileTime modified) {
+        var ifNoneMatch = req.getHeader(Headers.IF_NONE_MATCH);
+        if (ifNoneMatch != null) {
+            for (var tag : ifNoneMatch.split(",")) {
+                tag = tag.trim();
+                if (tag.startsWith("W/")) {
+                    tag = tag.substring(2);
+                }
+                if (tag.equals("*") || tag.equals(etag)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        var since = parseDate(req.getHeader(Headers.IF_MODIFIED_SINCE));
+        return since != null
+                && modified.toInstant().getEpochSecond() <= since.getEpochSecond();
+    }
+
+    // whether a Range header should be honoured. If-Range uses the strong
+    // comparison, so a weak tag never matches.
+    private static boolean ifRange(Request req, String etag, FileTime modified) {
+        var ifRange = req.getHeader(Headers.IF_RANGE);
+        if (ifRange == null) {
+            return true;
+        }
+        ifRange = ifRange.trim();
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+            return ifRange.equals(etag);
+        }
+        var date = parseDate(ifRange);
+        return date != null
+                && date.getEpochSecond() == modified.toInstant().getEpochSecond();
+    }
+
+    // the whole file, one region of it, or a multipart body that reads only
+    // the requested regions.
+    private static Body fileBody(Path path, FileChannel file,
+            List<ByteRanges.Range> ranges, long size) {
+        if (ranges == null) {
+            return new Body.FileBody(path, file, CONTENT_TYPE, size);
+        }
+        if (ranges.size() == 1) {
+            var range = ranges.get(0);
+            return new Body.FileBody(path, file, CONTENT_TYPE, range.start(),
+                    range.length());
+        }
+        return ByteRanges.multipart(ranges, size, CONTENT_TYPE, file::read,
+                file);
+    }
+
+    private static Body cachedBody(Path path, ByteBuffer contents,
+            List<ByteRanges.Range> ranges, long size) {
+        if (ranges == null) {
+            return new Body.CachedFileBody(path, contents, CONTENT_TYPE);
+        }
+        if (ranges.size() == 1) {
+            var range = ranges.get(0);
+            return new Body.CachedFileBody(path, contents.slice(
+                    (int) range.start(), (int) range.length()), CONTENT_TYPE);
         }
-        return new Response(
-                StatusCode.OK,
-                new Body.StreamBody(r, "application/octet-stream", size));
+        return ByteRanges.multipart(ranges, size, CONTENT_TYPE,
+                (dst, position) -> {
+                    int n = (int) Math.min(dst.remaining(),
+                            contents.limit() - position);
+                    if (n <= 0) {
+                        return -1;
+                    }
+                    dst.put(contents.slice((int) position, n));
+                    return n;
+                },
+                () -> {
+                });
     }
 
     private Response post(Request req) {
@@ -73,23 +277,53 @@ public class FileSystemHandler implements Handler {
             return new Response(StatusCode.NotFound);
         }
         Path path = validPath.get();
-        int size;
         try {
-            size = Integer.parseInt(req.getHeader("Content-Length"));
-        } catch (NumberFormatException e) {
-            return new Response(StatusCode.BadRequest);
-        }
-        try (var w = Files.newOutputStream(path)) {
-            copy(w, req.getBody(), size);
-            if (Files.size(path) != size) {
-                return new Response(
-                        StatusCode.BadRequest,
-                        new Body.StringBody("bad content length"));
+            return write(req, path);
+        } finally {
+            // also covers a GET that cached the file while it was written.
+            if (cache != null) {
+                cache.invalidate(path);
             }
+        }
+    }
+
+    // streams the body into a temporary file next to |path| and renames it
+    // into place once it's complete, so readers see either the old file or
+    // the whole new one, and a failed upload leaves nothing behind.
+    private Response write(Request req, Path path) {
+        var dir = path.getParent();
+        var tmp = dir.resolve(".%s.%x.upload".formatted(path.getFileName(),
+                ThreadLocalRandom.current().nextLong()));
+        try {
+            try (var out = FileChannel.open(tmp,
+                    StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                long n = copy(req.getBody(), out);
+                if (!req.isChunked() && n != req.contentLength()) {
+                    return new Response(
+                            StatusCode.BadRequest,
+                            new Body.StringBody("bad content length"));
+                }
+                if (durability != Durability.NONE) {
+                    out.force(durability == Durability.FULL);
+                }
+            }
+            Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE);
+            if (durability == Durability.FULL) {
+                try (var d = FileChannel.open(dir, StandardOpenOption.READ)) {
+                    d.force(true);
+                }
+            }
+        } catch (ChunkedInputStream.MalformedChunkException e) {
+            return new Response(
+                    StatusCode.BadRequest,
+                    new Body.StringBody(e.getMessage()));
         } catch (IOException e) {
             return new Response(StatusCode.InternalServerError);
-        } catch (BadRequestException e) {
-            return new Response(StatusCode.BadRequest);
+        } finally {
+            try {
+                Files.deleteIfExists(tmp);
+            } catch (IOException e) {
+            }
         }
         return new Response(StatusCode.Created);
     }
@@ -1,7 +1,19 @@
 package dev.dhc.http;
 
-public interface Handler {
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
+public interface Handler extends AsyncHandler {
 
     Response handle(Request req);
 
+    // runs handle() on the calling thread.
+    @Override
+    default CompletionStage<Response> handleAsync(Request req) {
+        try {
+            return CompletableFuture.completedFuture(handle(req));
+        } catch (RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
 }
@@ -0,0 +1,313 @@
+package dev.dhc.http;
+
+import java.util.ArrayList;
+import java.util.List;
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+
+// Header fields of a parsed request, kept as the raw bytes of the request
+// head plus (nameStart, nameEnd, valueStart, valueEnd) offsets and a
+// case-insensitive hash of the name for each field. Names are matched
+// without regard to case, a name may have several fields, and values are
+// only decoded into Strings when asked for. Looking up one of the Name
+// constants compares bytes against its precomputed lowercase form, so it
+// allocates nothing.
+final class Headers {
+
+    // a header name with its hash and lowercase bytes computed up front.
+    static final class Name {
+
+        private final String name;
+        private final byte[] lower;
+        private final int hash;
+
+        Name(String name) {
+            this.name = name;
+            this.lower = new byte[name.length()];
+            for (int i = 0; i < lower.length; i++) {
+                lower[i] = (byte) lower(name.charAt(i));
+            }
+            this.hash = hash(name);
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    static final Name ACCEPT_ENCODING = new Name("Accept-Encoding");
+    static final Name CONNECTION = new Name("Connection");
+    static final Name CONTENT_LENGTH = new Name("Content-Length");
+    static final Name CONTENT_TYPE = new Name("Content-Type");
+    static final Name EXPECT = new Name("Expect");
+    static final Name HOST = new Name("Host");
+    static final Name IF_MODIFIED_SINCE = new Name("If-Modified-Since");
+    static final Name IF_NONE_MATCH = new Name("If-None-Match");
+    static final Name IF_RANGE = new Name("If-Range");
+    static final Name RANGE = new Name("Range");
+    static final Name TRANSFER_ENCODING = new Name("Transfer-Encoding");
+    static final Name UPGRADE = new Name("Upgrade");
+    static final Name USER_AGENT = new Name("User-Agent");
+
+    private static final Name[] WELL_KNOWN = {
+        ACCEPT_ENCODING, CONNECTION, CONTENT_LENGTH, CONTENT_TYPE, EXPECT,
+        HOST, IF_MODIFIED_SINCE, IF_NONE_MATCH, IF_RANGE, RANGE,
+        TRANSFER_ENCODING, UPGRADE, USER_AGENT,
+    };
+
+    static final Headers EMPTY
+            = new Headers(new byte[0], new int[0], new int[0], 0);
+
+    private final byte[] raw;
+    private final int[] fields;
+    private final int[] hashes;
+    private final int count;
+
+    Headers(byte[] raw, int[] fields, int[] hashes, int count) {
+        this.raw = raw;
+        this.fields = fields;
+        this.hashes = hashes;
+        this.count = count;
+    }
+
+    // builds the fields of a request whose head didn't arrive as text,
+    // e.g. one decoded from HTTP/2, from alternating names and values.
+    static Headers of(List<String> namesAndValues) {
+        int count = namesAndValues.size() / 2;
+        int length = 0;
+        for (var s : namesAndValues) {
+            length += s.length();
+        }
+        var raw = new byte[length];
+        var fields = new int[4 * count];
+        var hashes = new int[count];
+        int pos = 0;
+        for (int i = 0; i < 2 * count; i++) {
+            var s = namesAndValues.get(i);
+            fields[2 * i] = pos;
+            for (int j = 0; j < s.length(); j++) {
+                raw[pos++] = (byte) s.charAt(j);
+            }
+            fields[2 * i + 1] = pos;
+            if (i % 2 == 0) {
+                hashes[i / 2] = hash(s);
+            }
+        }
+        return new Headers(raw, fields, hashes, count);
+    }
+
+    static int lower(int c) {
+        return c >= 'A' && c <= 'Z' ? c + ('a' - 'A') : c;
+    }
+
+    // the hash of a name, ignoring case. the parser computes the same
+    // hash a byte at a time as it scans each name.
+    static int hash(CharSequence name) {
+        int h = 0;
+        for (int i = 0; i < name.length(); i++) {
+            h = 31 * h + lower(name.charAt(i));
+        }
+        return h;
+    }
+
+    int size() {
+        return count;
+    }
+
+    private int nameLength(int i) {
+        return fields[4 * i + 1] - fields[4 * i];
+    }
+
+    private boolean nameEquals(int i, Name name) {
+        if (hashes[i] != name.hash || nameLength(i) != name.lower.length) {
+            return false;
+        }
+        int start = fields[4 * i];
+        for (int j = 0; j < name.lower.length; j++) {
+            if (lower(raw[start + j]) != name.lower[j]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean nameEquals(int i, String name, int hash) {
+        if (hashes[i] != hash || nameLength(i) != name.length()) {
+            return false;
+        }
+        int start = fields[4 * i];
+        for (int j = 0; j < name.length(); j++) {
+            if (lower(raw[start + j]) != lower(name.charAt(j))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // returns the index of the last field called |name|, or -1.
+    int last(Name name) {
+        for (int i = count - 1; i >= 0; i--) {
+            if (nameEquals(i, name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private int last(String name) {
+        int hash = hash(name);
+        for (int i = count - 1; i >= 0; i--) {
+            if (nameEquals(i, name, hash)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // returns the name of the i'th field, as the constant's String if it's
+    // a well-known name.
+    String name(int i) {
+        for (var name : WELL_KNOWN) {
+            if (nameEquals(i, name)) {
+                return name.name;
+            }
+        }
+        int start = fields[4 * i];
+        return new String(raw, start, nameLength(i), ISO_8859_1);
+    }
+
+    String value(int i) {
+        int start = fields[4 * i + 2];
+        return new String(raw, start, fields[4 * i + 3] - start, ISO_8859_1);
+    }
+
+    // the hash of the i'th value, which is the same as the hashCode of
+    // value(i).
+    int valueHash(int i) {
+        int h = 0;
+        for (int j = fields[4 * i + 2]; j < fields[4 * i + 3]; j++) {
+            h = 31 * h + (raw[j] & 0xff);
+        }
+        return h;
+    }
+
+    // whether the i'th value is exactly |value|.
+    boolean valueIs(int i, String value) {
+        int start = fields[4 * i + 2];
+        if (fields[4 * i + 3] - start != value.length()) {
+            return false;
+        }
+        for (int j = 0; j < value.length(); j++) {
+            if ((raw[start + j] & 0xff) != value.charAt(j)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // returns the value of the last field called |name|, or null.
+    String get(Name name) {
+        int i = last(name);
+        return i < 0 ? null : value(i);
+    }
+
+    String get(String name) {
+        int i = last(name);
+        return i < 0 ? null : value(i);
+    }
+
+    // returns the values of every field called |name|, in order.
+    List<String> getAll(String name) {
+        int hash = hash(name);
+        var values = new ArrayList<String>(1);
+        for (int i = 0; i < count; i++) {
+            if (nameEquals(i, name, hash)) {
+                values.add(value(i));
+            }
+        }
+        return values;
+    }
+
+    // how many fields are called |name|.
+    int count(Name name) {
+        int n = 0;
+        for (int i = 0; i < count; i++) {
+            if (nameEquals(i, name)) {
+                n++;
+            }
+        }
+        return n;
+    }
+
+    private boolean regionEqualsIgnoreCase(int start, int end, String s) {
+        if (end - start != s.length()) {
+            return false;
+        }
+        for (int j = 0; j < s.length(); j++) {
+            if (lower(raw[start + j]) != lower(s.charAt(j))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // whether the last field called |name| has the value |value|, ignoring
+    // case.
+    boolean valueEquals(Name name, String value) {
+        int i = last(name);
+        return i >= 0 && regionEqualsIgnoreCase(
+                fields[4 * i + 2], fields[4 * i + 3], value);
+    }
+
+    // whether any field called |name| lists |token| among its
+    // comma-separated elements, ignoring case, as with Connection: close.
+    boolean hasToken(Name name, String token) {
+        for (int i = 0; i < count; i++) {
+            if (!nameEquals(i, name)) {
+                continue;
+            }
+            int end = fields[4 * i + 3];
+            for (int start = fields[4 * i + 2]; start <= end;) {
+                int comma = start;
+                while (comma < end && raw[comma] != ',') {
+                    comma++;
+                }
+                int s = start;
+                int e = comma;
+                while (s < e && (raw[s] == ' ' || raw[s] == '\t')) {
+                    s++;
+                }
+                while (e > s && (raw[e - 1] == ' ' || raw[e - 1] == '\t')) {
+                    e--;
+                }
+                if (regionEqualsIgnoreCase(s, e, token)) {
+                    return true;
+                }
+                start = comma + 1;
+            }
+        }
+        return false;
+    }
+
+    // parses the decimal value of the last field called |name|, or returns
+    // -1 if there is none.
+    long getLong(Name name) {
+        int i = last(name);
+        if (i < 0) {
+            return -1;
+        }
+        int start = fields[4 * i + 2];
+        int end = fields[4 * i + 3];
+        if (start == end || end - start > 18) {
+            throw new NumberFormatException(value(i));
+        }
+        long n = 0;
+        for (int j = start; j < end; j++) {
+            if (raw[j] < '0' || raw[j] > '9') {
+                throw new NumberFormatException(value(i));
+            }
+            n = 10 * n + (raw[j] - '0');
+        }
+        return n;
+    }
+}
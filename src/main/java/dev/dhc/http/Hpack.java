@@ -0,0 +1,591 @@
+package dev.dhc.http;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+
+// Header compression for HTTP/2, as specified by RFC 7541. A header block
+// is a sequence of representations, each of which either refers to a
+// field by its index in the static table or in a dynamic table that both
+// sides maintain, or spells out the field as literal strings, which may be
+// Huffman-coded, and may add it to the dynamic table. Names and values are
+// treated as latin-1 text, as they are in HTTP/1.1 heads.
+//
+// A Decoder and an Encoder each own one dynamic table, for the fields the
+// client sends and the fields the server sends respectively, so a
+// connection has one of each and must process its header blocks in the
+// order they're sent.
+final class Hpack {
+
+    // the size of the dynamic tables before either side changes it.
+    static final int DEFAULT_TABLE_SIZE = 4096;
+
+    // a header block that can't be decoded, which leaves the dynamic table
+    // in an unknown state and so is fatal to the connection.
+    static final class CompressionException extends Exception {
+
+        CompressionException(String message) {
+            super(message);
+        }
+    }
+
+    // the static table, indexed from 1, as alternating names and values.
+    private static final String[] STATIC = {
+        ":authority", "",
+        ":method", "GET",
+        ":method", "POST",
+        ":path", "/",
+        ":path", "/index.html",
+        ":scheme", "http",
+        ":scheme", "https",
+        ":status", "200",
+        ":status", "204",
+        ":status", "206",
+        ":status", "304",
+        ":status", "400",
+        ":status", "404",
+        ":status", "500",
+        "accept-charset", "",
+        "accept-encoding", "gzip, deflate",
+        "accept-language", "",
+        "accept-ranges", "",
+        "accept", "",
+        "access-control-allow-origin", "",
+        "age", "",
+        "allow", "",
+        "authorization", "",
+        "cache-control", "",
+        "content-disposition", "",
+        "content-encoding", "",
+        "content-language", "",
+        "content-length", "",
+        "content-location", "",
+        "content-range", "",
+        "content-type", "",
+        "cookie", "",
+        "date", "",
+        "etag", "",
+        "expect", "",
+        "expires", "",
+        "from", "",
+        "host", "",
+        "if-match", "",
+        "if-modified-since", "",
+        "if-none-match", "",
+        "if-range", "",
+        "if-unmodified-since", "",
+        "last-modified", "",
+        "link", "",
+        "location", "",
+        "max-forwards", "",
+        "proxy-authenticate", "",
+        "proxy-authorization", "",
+        "range", "",
+        "referer", "",
+        "refresh", "",
+        "retry-after", "",
+        "server", "",
+        "set-cookie", "",
+        "strict-transport-security", "",
+        "transfer-encoding", "",
+        "user-agent", "",
+        "vary", "",
+        "via", "",
+        "www-authenticate", "",};
+
+    private static final int STATIC_COUNT = STATIC.length / 2;
+
+    // the index of each static name's first entry, and of each static
+    // field with a value, keyed by name + '\0' + value.
+    private static final Map<String, Integer> STATIC_NAMES = new HashMap<>();
+    private static final Map<String, Integer> STATIC_FIELDS = new HashMap<>();
+
+    static {
+        for (int i = STATIC_COUNT; i >= 1; i--) {
+            var name = STATIC[2 * i - 2];
+            var value = STATIC[2 * i - 1];
+            STATIC_NAMES.put(name, i);
+            if (!value.isEmpty()) {
+                STATIC_FIELDS.put(name + '\0' + value, i);
+            }
+        }
+    }
+
+    // the Huffman code of each byte, and of the end-of-string symbol, from
+    // RFC 7541 appendix B, with the length of each code in bits.
+    private static final int[] CODES = {
+        0x1ff8, 0x7fffd8, 0xfffffe2, 0xfffffe3, 0xfffffe4, 0xfffffe5, 0xfffffe6,
+        0xfffffe7, 0xfffffe8, 0xffffea, 0x3ffffffc, 0xfffffe9, 0xfffffea,
+        0x3ffffffd, 0xfffffeb, 0xfffffec, 0xfffffed, 0xfffffee, 0xfffffef,
+        0xffffff0, 0xffffff1, 0xffffff2, 0x3ffffffe, 0xffffff3, 0xffffff4,
+        0xffffff5, 0xffffff6, 0xffffff7, 0xffffff8, 0xffffff9, 0xffffffa,
+        0xffffffb, 0x14, 0x3f8, 0x3f9, 0xffa, 0x1ff9, 0x15, 0xf8, 0x7fa, 0x3fa,
+        0x3fb, 0xf9, 0x7fb, 0xfa, 0x16, 0x17, 0x18, 0x0, 0x1, 0x2, 0x19, 0x1a,
+        0x1b, 0x1c, 0x1d, 0x1e, 0x1f, 0x5c, 0xfb, 0x7ffc, 0x20, 0xffb, 0x3fc,
+        0x1ffa, 0x21, 0x5d, 0x5e, 0x5f, 0x60, 0x61, 0x62, 0x63, 0x64, 0x65,
+        0x66, 0x67, 0x68, 0x69, 0x6a, 0x6b, 0x6c, 0x6d, 0x6e, 0x6f, 0x70, 0x71,
+        0x72, 0xfc, 0x73, 0xfd, 0x1ffb, 0x7fff0, 0x1ffc, 0x3ffc, 0x22, 0x7ffd,
+        0x3, 0x23, 0x4, 0x24, 0x5, 0x25, 0x26, 0x27, 0x6, 0x74, 0x75, 0x28,
+        0x29, 0x2a, 0x7, 0x2b, 0x76, 0x2c, 0x8, 0x9, 0x2d, 0x77, 0x78, 0x79,
+        0x7a, 0x7b, 0x7ffe, 0x7fc, 0x3ffd, 0x1ffd, 0xffffffc, 0xfffe6, 0x3fffd2,
+        0xfffe7, 0xfffe8, 0x3fffd3, 0x3fffd4, 0x3fffd5, 0x7fffd9, 0x3fffd6,
+        0x7fffda, 0x7fffdb, 0x7fffdc, 0x7fffdd, 0x7fffde, 0xffffeb, 0x7fffdf,
+        0xffffec, 0xffffed, 0x3fffd7, 0x7fffe0, 0xffffee, 0x7fffe1, 0x7fffe2,
+        0x7fffe3, 0x7fffe4, 0x1fffdc, 0x3fffd8, 0x7fffe5, 0x3fffd9, 0x7fffe6,
+        0x7fffe7, 0xffffef, 0x3fffda, 0x1fffdd, 0xfffe9, 0x3fffdb, 0x3fffdc,
+        0x7fffe8, 0x7fffe9, 0x1fffde, 0x7fffea, 0x3fffdd, 0x3fffde, 0xfffff0,
+        0x1fffdf, 0x3fffdf, 0x7fffeb, 0x7fffec, 0x1fffe0, 0x1fffe1, 0x3fffe0,
+        0x1fffe2, 0x7fffed, 0x3fffe1, 0x7fffee, 0x7fffef, 0xfffea, 0x3fffe2,
+        0x3fffe3, 0x3fffe4, 0x7ffff0, 0x3fffe5, 0x3fffe6, 0x7ffff1, 0x3ffffe0,
+        0x3ffffe1, 0xfffeb, 0x7fff1, 0x3fffe7, 0x7ffff2, 0x3fffe8, 0x1ffffec,
+        0x3ffffe2, 0x3ffffe3, 0x3ffffe4, 0x7ffffde, 0x7ffffdf, 0x3ffffe5,
+        0xfffff1, 0x1ffffed, 0x7fff2, 0x1fffe3, 0x3ffffe6, 0x7ffffe0, 0x7ffffe1,
+        0x3ffffe7, 0x7ffffe2, 0xfffff2, 0x1fffe4, 0x1fffe5, 0x3ffffe8,
+        0x3ffffe9, 0xffffffd, 0x7ffffe3, 0x7ffffe4, 0x7ffffe5, 0xfffec,
+        0xfffff3, 0xfffed, 0x1fffe6, 0x3fffe9, 0x1fffe7, 0x1fffe8, 0x7ffff3,
+        0x3fffea, 0x3fffeb, 0x1ffffee, 0x1ffffef, 0xfffff4, 0xfffff5, 0x3ffffea,
+        0x7ffff4, 0x3ffffeb, 0x7ffffe6, 0x3ffffec, 0x3ffffed, 0x7ffffe7,
+        0x7ffffe8, 0x7ffffe9, 0x7ffffea, 0x7ffffeb, 0xffffffe, 0x7ffffec,
+        0x7ffffed, 0x7ffffee, 0x7ffffef, 0x7fffff0, 0x3ffffee, 0x3fffffff,
+    };
+
+    private static final byte[] LENGTHS = {
+        13, 23, 28, 28, 28, 28, 28, 28, 28, 24, 30, 28, 28, 30, 28, 28, 28, 28,
+        28, 28, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 28, 6, 10, 10, 12,
+        13, 6, 8, 11, 10, 10, 8, 11, 8, 6, 6, 6, 5, 5, 5, 6, 6, 6, 6, 6, 6, 6,
+        7, 8, 15, 6, 12, 10, 13, 6, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7,
+        7, 7, 7, 7, 7, 7, 7, 8, 7, 8, 13, 19, 13, 14, 6, 15, 5, 6, 5, 6, 5, 6,
+        6, 6, 5, 7, 7, 6, 6, 6, 5, 6, 7, 6, 5, 5, 6, 7, 7, 7, 7, 7, 15, 11, 14,
+        13, 28, 20, 22, 20, 20, 22, 22, 22, 23, 22, 23, 23, 23, 23, 23, 24, 23,
+        24, 24, 22, 23, 24, 23, 23, 23, 23, 21, 22, 23, 22, 23, 23, 24, 22, 21,
+        20, 22, 22, 23, 23, 21, 23, 22, 22, 24, 21, 22, 23, 23, 21, 21, 22, 21,
+        23, 22, 23, 23, 20, 22, 22, 22, 23, 22, 22, 23, 26, 26, 20, 19, 22, 23,
+        22, 25, 26, 26, 26, 27, 27, 26, 24, 25, 19, 21, 26, 27, 27, 26, 27, 24,
+        21, 21, 26, 26, 28, 27, 27, 27, 20, 24, 20, 21, 22, 21, 21, 23, 22, 22,
+        25, 25, 24, 24, 26, 23, 26, 27, 26, 26, 27, 27, 27, 27, 27, 28, 27, 27,
+        27, 27, 27, 26, 30,
+    };
+
+    private static final int EOS = 256;
+
+    // the decoding trie: node n's children for bits 0 and 1 are at 2n and
+    // 2n + 1, and a negative child -1 - s is a leaf for symbol s.
+    private static final int[] TRIE;
+
+    static {
+        var trie = new int[2 * 2 * CODES.length];
+        int nodes = 1;
+        for (int sym = 0; sym < CODES.length; sym++) {
+            int node = 0;
+            for (int bit = LENGTHS[sym] - 1; bit > 0; bit--) {
+                int i = 2 * node + ((CODES[sym] >>> bit) & 1);
+                if (trie[i] == 0) {
+                    trie[i] = nodes++;
+                }
+                node = trie[i];
+            }
+            trie[2 * node + (CODES[sym] & 1)] = -1 - sym;
+        }
+        TRIE = Arrays.copyOf(trie, 2 * nodes);
+    }
+
+    // the overhead counted for each entry in a dynamic table, on top of its
+    // name and value.
+    private static final int ENTRY_OVERHEAD = 32;
+
+    // a dynamic table: a ring of fields, newest first, that evicts the
+    // oldest ones to stay within its maximum size.
+    static final class Table {
+
+        private String[] names = new String[16];
+        private String[] values = new String[16];
+        // the slot of the newest entry.
+        private int head;
+        private int count;
+        private int size;
+        private int maxSize;
+
+        Table(int maxSize) {
+            this.maxSize = maxSize;
+        }
+
+        int count() {
+            return count;
+        }
+
+        int size() {
+            return size;
+        }
+
+        int maxSize() {
+            return maxSize;
+        }
+
+        private int slot(int i) {
+            return (head + i) & (names.length - 1);
+        }
+
+        // the i'th newest entry, from 0.
+        String name(int i) {
+            return names[slot(i)];
+        }
+
+        String value(int i) {
+            return values[slot(i)];
+        }
+
+        private static int entrySize(String name, String value) {
+            return name.length() + value.length() + ENTRY_OVERHEAD;
+        }
+
+        void add(String name, String value) {
+            int n = entrySize(name, value);
+            evict(maxSize - n);
+            if (n > maxSize) {
+                // an entry larger than the table empties it.
+                return;
+            }
+            if (count == names.length) {
+                var moreNames = new String[2 * count];
+                var moreValues = new String[2 * count];
+                for (int i = 0; i < count; i++) {
+                    moreNames[i] = name(i);
+                    moreValues[i] = value(i);
+                }
+                names = moreNames;
+                values = moreValues;
+                head = 0;
+            }
+            head = (head - 1) & (names.length - 1);
+            names[head] = name;
+            values[head] = value;
+            count++;
+            size += n;
+        }
+
+        void resize(int maxSize) {
+            this.maxSize = maxSize;
+            evict(maxSize);
+        }
+
+        private void evict(int limit) {
+            while (count > 0 && size > limit) {
+                int last = slot(count - 1);
+                size -= entrySize(names[last], values[last]);
+                names[last] = null;
+                values[last] = null;
+                count--;
+            }
+        }
+    }
+
+    // Decodes the header blocks a client sends. The client may shrink the
+    // dynamic table below |maxTableSize|, which is what the server allows.
+    static final class Decoder {
+
+        private final Table table;
+        private final int maxTableSize;
+        private byte[] block;
+        private int pos;
+        private int end;
+
+        Decoder(int maxTableSize) {
+            this.maxTableSize = maxTableSize;
+            this.table = new Table(maxTableSize);
+        }
+
+        Decoder() {
+            this(DEFAULT_TABLE_SIZE);
+        }
+
+        Table table() {
+            return table;
+        }
+
+        // decodes a whole header block, adding each field's name and value
+        // to |fields| in order.
+        void decode(byte[] b, int off, int len, List<String> fields)
+                throws CompressionException {
+            block = b;
+            pos = off;
+            end = off + len;
+            boolean first = true;
+            while (pos < end) {
+                int c = block[pos] & 0xff;
+                if ((c & 0x80) != 0) {
+                    int index = readInt(7);
+                    fields.add(name(index));
+                    fields.add(value(index));
+                } else if ((c & 0xc0) == 0x40) {
+                    int index = readInt(6);
+                    var name = index == 0 ? readString() : name(index);
+                    var value = readString();
+                    table.add(name, value);
+                    fields.add(name);
+                    fields.add(value);
+                } else if ((c & 0xe0) == 0x20) {
+                    // size updates may only start a block.
+                    if (!first) {
+                        throw new CompressionException(
+                                "table size update after a field");
+                    }
+                    int size = readInt(5);
+                    if (size > maxTableSize) {
+                        throw new CompressionException(
+                                "table size update over the limit");
+                    }
+                    table.resize(size);
+                    continue;
+                } else {
+                    // a literal without indexing, or never indexed.
+                    int index = readInt(4);
+                    fields.add(index == 0 ? readString() : name(index));
+                    fields.add(readString());
+                }
+                first = false;
+            }
+            block = null;
+        }
+
+        private String name(int index) throws CompressionException {
+            if (index >= 1 && index <= STATIC_COUNT) {
+                return STATIC[2 * index - 2];
+            }
+            int i = index - STATIC_COUNT - 1;
+            if (index < 1 || i >= table.count()) {
+                throw new CompressionException("invalid index: " + index);
+            }
+            return table.name(i);
+        }
+
+        private String value(int index) throws CompressionException {
+            if (index >= 1 && index <= STATIC_COUNT) {
+                return STATIC[2 * index - 1];
+            }
+            int i = index - STATIC_COUNT - 1;
+            if (index < 1 || i >= table.count()) {
+                throw new CompressionException("invalid index: " + index);
+            }
+            return table.value(i);
+        }
+
+        // reads an integer whose first byte has |bits| bits for it.
+        private int readInt(int bits) throws CompressionException {
+            int max = (1 << bits) - 1;
+            int n = block[pos++] & max;
+            if (n < max) {
+                return n;
+            }
+            for (int shift = 0;; shift += 7) {
+                if (pos == end || shift > 21) {
+                    throw new CompressionException("invalid integer");
+                }
+                int c = block[pos++] & 0xff;
+                n += (c & 0x7f) << shift;
+                if ((c & 0x80) == 0) {
+                    return n;
+                }
+            }
+        }
+
+        private String readString() throws CompressionException {
+            if (pos == end) {
+                throw new CompressionException("missing string");
+            }
+            boolean huffman = (block[pos] & 0x80) != 0;
+            int len = readInt(7);
+            if (len > end - pos) {
+                throw new CompressionException("truncated string");
+            }
+            var s = huffman
+                    ? huffmanDecode(block, pos, len)
+                    : new String(block, pos, len, ISO_8859_1);
+            pos += len;
+            return s;
+        }
+    }
+
+    static String huffmanDecode(byte[] b, int off, int len)
+            throws CompressionException {
+        var s = new StringBuilder(len * 8 / 5);
+        int node = 0;
+        // the bits read since the last symbol, which at the end must be
+        // fewer than 8 and all ones, the start of the EOS code.
+        int pending = 0;
+        boolean ones = true;
+        for (int i = off; i < off + len; i++) {
+            int c = b[i] & 0xff;
+            for (int bit = 7; bit >= 0; bit--) {
+                int one = (c >>> bit) & 1;
+                node = TRIE[2 * node + one];
+                pending++;
+                ones &= one == 1;
+                if (node < 0) {
+                    int sym = -1 - node;
+                    if (sym == EOS) {
+                        throw new CompressionException("EOS in string");
+                    }
+                    s.append((char) sym);
+                    node = 0;
+                    pending = 0;
+                    ones = true;
+                } else if (node == 0) {
+                    throw new CompressionException("invalid code");
+                }
+            }
+        }
+        if (pending > 7 || !ones) {
+            throw new CompressionException("invalid padding");
+        }
+        return s.toString();
+    }
+
+    // the length of |s| once Huffman-coded, in bytes.
+    static int huffmanLength(String s) {
+        long bits = 0;
+        for (int i = 0; i < s.length(); i++) {
+            bits += LENGTHS[s.charAt(i) & 0xff];
+        }
+        return (int) ((bits + 7) >>> 3);
+    }
+
+    // Encodes the header blocks the server sends. Fields are indexed
+    // where either table has them, and otherwise added to the dynamic
+    // table unless their values are unlikely to repeat, such as lengths
+    // and dates.
+    static final class Encoder {
+
+        private static final Set<String> UNINDEXED = Set.of(
+                "content-length", "content-range", "date", "etag",
+                "last-modified", "set-cookie");
+
+        private final Table table = new Table(DEFAULT_TABLE_SIZE);
+        // a size update the client's settings call for, announced at the
+        // start of the next block, or -1.
+        private int pendingSize = -1;
+        private byte[] buf = new byte[256];
+        private int len;
+
+        Table table() {
+            return table;
+        }
+
+        // sets the most the client will hold in its copy of the table.
+        void setMaxTableSize(int size) {
+            int limit = Math.min(size, DEFAULT_TABLE_SIZE);
+            table.resize(limit);
+            pendingSize = pendingSize < 0
+                    ? limit
+                    : Math.min(pendingSize, limit);
+        }
+
+        // starts a new header block.
+        void begin() {
+            len = 0;
+            if (pendingSize >= 0) {
+                // announce the smallest size since the last block, and then
+                // the current one, so the client evicts what we did.
+                writeInt(0x20, 5, pendingSize);
+                if (pendingSize != table.maxSize()) {
+                    writeInt(0x20, 5, table.maxSize());
+                }
+                pendingSize = -1;
+            }
+        }
+
+        // the block so far, which is valid until the next call to begin().
+        byte[] bytes() {
+            return buf;
+        }
+
+        int length() {
+            return len;
+        }
+
+        // appends a field whose name is lowercase latin-1 text.
+        void add(String name, String value) {
+            var exact = STATIC_FIELDS.get(name + '\0' + value);
+            if (exact != null) {
+                writeInt(0x80, 7, exact);
+                return;
+            }
+            int nameIndex = STATIC_NAMES.getOrDefault(name, 0);
+            for (int i = 0; i < table.count(); i++) {
+                if (table.name(i).equals(name)) {
+                    if (table.value(i).equals(value)) {
+                        writeInt(0x80, 7, STATIC_COUNT + 1 + i);
+                        return;
+                    }
+                    if (nameIndex == 0) {
+                        nameIndex = STATIC_COUNT + 1 + i;
+                    }
+                }
+            }
+            boolean index = !UNINDEXED.contains(name);
+            if (index) {
+                writeInt(0x40, 6, nameIndex);
+            } else {
+                writeInt(0x00, 4, nameIndex);
+            }
+            if (nameIndex == 0) {
+                writeString(name);
+            }
+            writeString(value);
+            if (index) {
+                table.add(name, value);
+            }
+        }
+
+        private void ensure(int n) {
+            if (len + n > buf.length) {
+                buf = Arrays.copyOf(buf, Math.max(len + n, 2 * buf.length));
+            }
+        }
+
+        private void writeInt(int prefix, int bits, int n) {
+            ensure(6);
+            int max = (1 << bits) - 1;
+            if (n < max) {
+                buf[len++] = (byte) (prefix | n);
+                return;
+            }
+            buf[len++] = (byte) (prefix | max);
+            for (n -= max; n >= 0x80; n >>>= 7) {
+                buf[len++] = (byte) (0x80 | (n & 0x7f));
+            }
+            buf[len++] = (byte) n;
+        }
+
+        // writes |s| Huffman-coded if that's shorter.
+        private void writeString(String s) {
+            int coded = huffmanLength(s);
+            if (coded >= s.length()) {
+                writeInt(0x00, 7, s.length());
+                ensure(s.length());
+                for (int i = 0; i < s.length(); i++) {
+                    buf[len++] = (byte) s.charAt(i);
+                }
+                return;
+            }
+            writeInt(0x80, 7, coded);
+            ensure(coded);
+            long bits = 0;
+            int n = 0;
+            for (int i = 0; i < s.length(); i++) {
+                int c = s.charAt(i) & 0xff;
+                bits = (bits << LENGTHS[c]) | CODES[c];
+                n += LENGTHS[c];
+                for (; n >= 8; n -= 8) {
+                    buf[len++] = (byte) (bits >>> (n - 8));
+                }
+            }
+            if (n > 0) {
+                // pad with the start of the EOS code, which is all ones.
+                buf[len++] = (byte) ((bits << (8 - n)) | (0xff >>> n));
+            }
+        }
+    }
+}
@@ -0,0 +1,1360 @@
+package dev.dhc.http;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static dev.dhc.http.Http2Frames.*;
+import static java.nio.charset.StandardCharsets.US_ASCII;
+
+// Serves HTTP/2 over a cleartext connection (h2c), which the engines hand
+// over to once a client sends the HTTP/2 preface or upgrades an HTTP/1.1
+// request. Each request arrives on a stream of its own, and streams are
+// handled concurrently on the executor, so one connection carries many
+// requests at once and a slow response doesn't hold up the others.
+//
+// The connection's own thread reads frames: header blocks are decoded into
+// Requests and dispatched to the handler, and DATA frames are appended to
+// their stream's request body, which the handler reads as a blocking
+// InputStream. Handler threads write their own responses, taking turns at
+// the socket: a response's fields are HPACK-encoded into HEADERS and
+// CONTINUATION frames, and its body is cut into DATA frames as it's
+// written, so a file is streamed rather than buffered.
+//
+// Both directions are flow-controlled. A stream buffers no more of a
+// request body than its window, which is reopened as the handler reads,
+// and a response body waits while the client's window for its stream or
+// for the connection is shut.
+final class Http2Connection {
+
+    static final byte[] PREFACE
+            = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(US_ASCII);
+    private static final byte[] SWITCHING_PROTOCOLS
+            = ("HTTP/1.1 101 Switching Protocols\r\nConnection: Upgrade\r\n"
+                    + "Upgrade: h2c\r\n\r\n").getBytes(US_ASCII);
+    private static final Headers.Name HTTP2_SETTINGS
+            = new Headers.Name("HTTP2-Settings");
+    // the window every stream and the connection start with.
+    private static final int DEFAULT_WINDOW = 65_535;
+    private static final int MAX_WINDOW = Integer.MAX_VALUE;
+    // the connection's receive window, which is reopened as data arrives,
+    // since each stream's window already bounds what it buffers.
+    private static final int CONNECTION_WINDOW = 1 << 20;
+    // the largest DATA frame sent, if the client allows it.
+    private static final int MAX_DATA_FRAME = 64 << 10;
+    // fields that only mean something to an HTTP/1.1 connection.
+    private static final Set<String> CONNECTION_FIELDS = Set.of(
+            "connection", "keep-alive", "proxy-connection",
+            "transfer-encoding", "upgrade");
+
+    private final SocketChannel channel;
+    private final InputStream in;
+    private final OutputStream out;
+    private final Handler handler;
+    private final ServerOptions options;
+    private final Metrics metrics;
+    private final TimerWheel wheel;
+    private final ExecutorService executor;
+    private final AccessLog accessLog;
+    private final SocketAddress addr;
+    private final AccessLog.Remote remote;
+    private final int maxHeaderListSize;
+    // the idle deadline while no streams are open, and the deadline for
+    // each write.
+    private final ConnectionTimer readTimer;
+    private final ConnectionTimer writeTimer;
+
+    // guards the open streams and the send windows, which writers wait on.
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition windowOpened = lock.newCondition();
+    private final Map<Integer, Stream> streams = new HashMap<>();
+    // streams whose handlers haven't returned, including any that have been
+    // reset, so resetting streams doesn't make room for more handlers.
+    private int handling;
+    private long sendWindow = DEFAULT_WINDOW;
+    private int initialWindow = DEFAULT_WINDOW;
+    private boolean closed;
+
+    // guards the socket and the encoder, whose dynamic table changes with
+    // every block, so blocks must go out in the order they're encoded.
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private final Hpack.Encoder encoder = new Hpack.Encoder();
+    private final byte[] frameHeader = new byte[HEADER_LENGTH];
+    private volatile boolean outputClosed;
+    private volatile int maxFrameSize = DEFAULT_MAX_FRAME_SIZE;
+
+    // used by the reading thread only.
+    private final Hpack.Decoder decoder = new Hpack.Decoder();
+    private int lastStreamId;
+    private int receiveWindow = CONNECTION_WINDOW;
+    // a header block that may be continued in CONTINUATION frames.
+    private byte[] block = new byte[DEFAULT_MAX_FRAME_SIZE];
+    private int blockLength;
+    private int blockStream;
+    private boolean blockEndsStream;
+
+    // a request and its response. the reading thread tracks what the client
+    // has sent, and the stream's handler thread writes the response.
+    private final class Stream {
+
+        final int id;
+        final long start = System.nanoTime();
+        final RequestBody body = new RequestBody(this);
+        // how much more of the body the client may send.
+        final AtomicInteger receiveWindow = new AtomicInteger(DEFAULT_WINDOW);
+        // guarded by |lock|.
+        long sendWindow;
+        // the declared content length, or -1, and how much has arrived.
+        long declaredLength = -1;
+        long received;
+        volatile boolean remoteClosed;
+        volatile boolean reset;
+        volatile boolean bodyTimedOut;
+        volatile CompletableFuture<Response> stage;
+
+        Stream(int id, long sendWindow) {
+            this.id = id;
+            this.sendWindow = sendWindow;
+        }
+    }
+
+    // |accessLog| may be null. everything is read from |in| and written to
+    // |out|; |channel| is only used to cut the connection short when a
+    // deadline expires.
+    Http2Connection(SocketChannel channel, InputStream in, OutputStream out,
+            Handler handler, ServerOptions options, Metrics metrics,
+            TimerWheel wheel, ExecutorService executor, AccessLog accessLog) {
+        this.channel = channel;
+        this.in = in;
+        this.out = out;
+        this.handler = handler;
+        this.options = options;
+        this.metrics = metrics;
+        this.wheel = wheel;
+        this.executor = executor;
+        this.accessLog = accessLog;
+        this.addr = channel.socket().getRemoteSocketAddress();
+        this.remote = accessLog != null ? AccessLog.remote(addr) : null;
+        this.maxHeaderListSize = options.maxRequestLineBytes()
+                + options.maxHeaderBytes();
+        this.readTimer = new ConnectionTimer(wheel, options, metrics,
+                phase -> shutdownInput());
+        this.writeTimer = new ConnectionTimer(wheel, options, metrics,
+                phase -> closeChannel());
+    }
+
+    // whether the first |len| bytes of |b| could start the preface.
+    static boolean startsPreface(byte[] b, int len) {
+        for (int i = 0; i < Math.min(len, PREFACE.length); i++) {
+            if (b[i] != PREFACE[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // whether the next bytes on |in| start the preface rather than an
+    // HTTP/1.1 request, leaving them unread. every request line is longer
+    // than the three bytes this waits for.
+    static boolean startsPreface(InputStream in) throws IOException {
+        in.mark(3);
+        var b = in.readNBytes(3);
+        in.reset();
+        return b.length == 3 && startsPreface(b, 3);
+    }
+
+    // whether |req| asks to switch to HTTP/2, which is only done for
+    // requests without a body.
+    static boolean upgradable(Request req) {
+        var headers = req.headers();
+        return !req.hasBody()
+                && headers.hasToken(Headers.UPGRADE, "h2c")
+                && headers.hasToken(Headers.CONNECTION, "HTTP2-Settings")
+                && headers.count(HTTP2_SETTINGS) == 1
+                && settings(req) != null;
+    }
+
+    // decodes the SETTINGS payload sent with an upgrade, or returns null if
+    // it's invalid.
+    private static byte[] settings(Request req) {
+        try {
+            var b = Base64.getUrlDecoder().decode(
+                    req.getHeader(HTTP2_SETTINGS).trim());
+            return b.length % 6 == 0 ? b : null;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    // serves the connection until the client closes it, it's idle for too
+    // long, or it fails. the preface is next on |in|, unless |upgrade| isn't
+    // null, in which case it's the HTTP/1.1 request that switched to HTTP/2
+    // and is answered on stream 1.
+    void serve(Request upgrade) throws IOException {
+        try {
+            writeLock.lock();
+            try {
+                if (upgrade != null) {
+                    out.write(SWITCHING_PROTOCOLS);
+                }
+                writeSettings();
+            } finally {
+                release();
+            }
+            lock.lock();
+            try {
+                updateIdle();
+            } finally {
+                lock.unlock();
+            }
+            if (!Arrays.equals(in.readNBytes(PREFACE.length), PREFACE)) {
+                throw new ConnectionException(PROTOCOL_ERROR, "bad preface");
+            }
+            if (upgrade != null) {
+                var settings = settings(upgrade);
+                applySettings(settings, settings.length);
+                lastStreamId = 1;
+                var s = open(1);
+                s.remoteClosed = true;
+                dispatch(s, upgrade);
+            }
+            read(new Reader(in));
+            goAway(NO_ERROR, null);
+        } catch (ConnectionException e) {
+            goAway(e.code(), e.getMessage());
+        } catch (Hpack.CompressionException e) {
+            goAway(COMPRESSION_ERROR, e.getMessage());
+        } catch (IOException e) {
+            // a connection that timed out fails however it was blocked.
+            if (readTimer.expired() == null && writeTimer.expired() == null) {
+                throw e;
+            }
+        } finally {
+            shutdown();
+        }
+    }
+
+    private void read(Reader frames) throws IOException, ConnectionException,
+            Hpack.CompressionException {
+        for (boolean first = true; frames.next(); first = false) {
+            if (first && frames.type != SETTINGS) {
+                throw new ConnectionException(PROTOCOL_ERROR,
+                        "expected SETTINGS");
+            }
+            if (blockStream != 0 && frames.type != CONTINUATION) {
+                throw new ConnectionException(PROTOCOL_ERROR,
+                        "expected CONTINUATION");
+            }
+            switch (frames.type) {
+                case DATA ->
+                    onData(frames);
+                case HEADERS ->
+                    onHeaders(frames);
+                case PRIORITY ->
+                    onPriority(frames);
+                case RST_STREAM ->
+                    onReset(frames);
+                case SETTINGS ->
+                    onSettings(frames);
+                case PUSH_PROMISE ->
+                    throw new ConnectionException(PROTOCOL_ERROR,
+                            "PUSH_PROMISE from a client");
+                case PING ->
+                    onPing(frames);
+                case GOAWAY ->
+                    checkConnectionFrame(frames, 8);
+                case WINDOW_UPDATE ->
+                    onWindowUpdate(frames);
+                case CONTINUATION ->
+                    onContinuation(frames);
+                default -> {
+                    // unknown frame types are ignored.
+                }
+            }
+        }
+    }
+
+    // checks that a frame that applies to the whole connection is on
+    // stream 0 and at least |minLength| long.
+    private static void checkConnectionFrame(Reader f, int minLength)
+            throws ConnectionException {
+        if (f.stream != 0) {
+            throw new ConnectionException(PROTOCOL_ERROR,
+                    "frame type %d on a stream".formatted(f.type));
+        }
+        if (f.length < minLength) {
+            throw new ConnectionException(FRAME_SIZE_ERROR,
+                    "frame type %d too short".formatted(f.type));
+        }
+    }
+
+    // checks that a frame that applies to a stream names one the client
+    // has opened.
+    private void checkStreamFrame(Reader f) throws ConnectionException {
+        if (f.stream == 0 || f.stream > lastStreamId) {
+            throw new ConnectionException(PROTOCOL_ERROR,
+                    "frame type %d on idle stream %d".formatted(
+                            f.type, f.stream));
+        }
+    }
+
+    private void onHeaders(Reader f) throws IOException, ConnectionException,
+            Hpack.CompressionException {
+        if (f.stream % 2 == 0) {
+            throw new ConnectionException(PROTOCOL_ERROR,
+                    "even stream %d".formatted(f.stream));
+        }
+        f.strip();
+        blockStream = f.stream;
+        blockEndsStream = (f.flags & END_STREAM) != 0;
+        blockLength = 0;
+        appendBlock(f);
+    }
+
+    private void onContinuation(Reader f) throws IOException,
+            ConnectionException, Hpack.CompressionException {
+        if (blockStream == 0 || f.stream != blockStream) {
+            throw new ConnectionException(PROTOCOL_ERROR,
+                    "unexpected CONTINUATION");
+        }
+        appendBlock(f);
+    }
+
+    // a block can't be skipped, since decoding it updates the dynamic table,
+    // so one too big to decode ends the connection.
+    private void appendBlock(Reader f) throws IOException, ConnectionException,
+            Hpack.CompressionException {
+        if (blockLength + f.dataLength > maxHeaderListSize) {
+            throw new ConnectionException(ENHANCE_YOUR_CALM,
+                    "header block too large");
+        }
+        if (blockLength + f.dataLength > block.length) {
+            block = Arrays.copyOf(block, Math.max(
+                    blockLength + f.dataLength, 2 * block.length));
+        }
+        System.arraycopy(f.payload(), f.offset, block, blockLength,
+                f.dataLength);
+        blockLength += f.dataLength;
+        if ((f.flags & END_HEADERS) != 0) {
+            onHeaderBlock();
+        }
+    }
+
+    private void onHeaderBlock() throws IOException,
+            Hpack.CompressionException {
+        int id = blockStream;
+        blockStream = 0;
+        var fields = new ArrayList<String>();
+        decoder.decode(block, 0, blockLength, fields);
+        if (id <= lastStreamId) {
+            onTrailers(id);
+            return;
+        }
+        lastStreamId = id;
+        var s = open(id);
+        if (s == null) {
+            writeReset(id, REFUSED_STREAM);
+            return;
+        }
+        s.remoteClosed = blockEndsStream;
+        if (s.remoteClosed) {
+            s.body.end();
+        }
+        Request req;
+        try {
+            req = request(s, fields);
+        } catch (BadRequestException e) {
+            metrics.parseError();
+            executor.submit(() -> send(s, null,
+                    new Response(StatusCode.BadRequest)));
+            return;
+        }
+        dispatch(s, req);
+    }
+
+    // a block on a stream that's already open ends its body. the trailer
+    // fields themselves aren't kept.
+    private void onTrailers(int id) throws IOException {
+        var s = stream(id);
+        if (s == null) {
+            // the stream is closed, e.g. because it's been answered.
+            return;
+        }
+        if (s.remoteClosed) {
+            reset(s, STREAM_CLOSED);
+        } else if (!blockEndsStream) {
+            reset(s, PROTOCOL_ERROR);
+        } else {
+            endBody(s);
+        }
+    }
+
+    // builds the request in a header block, enforcing RFC 9113's rules for
+    // pseudo-header fields and leaving out what only HTTP/1.1 uses.
+    private Request request(Stream s, List<String> fields)
+            throws BadRequestException {
+        String method = null;
+        String scheme = null;
+        String path = null;
+        String authority = null;
+        var regular = new ArrayList<String>(fields.size());
+        boolean host = false;
+        long size = 0;
+        for (int i = 0; i < fields.size(); i += 2) {
+            var name = fields.get(i);
+            var value = fields.get(i + 1);
+            size += name.length() + value.length() + 32;
+            if (name.startsWith(":")) {
+                if (!regular.isEmpty()) {
+                    throw new BadRequestException("pseudo-header after fields");
+                }
+                switch (name) {
+                    case ":method" ->
+                        method = pseudo(method, value);
+                    case ":scheme" ->
+                        scheme = pseudo(scheme, value);
+                    case ":path" ->
+                        path = pseudo(path, value);
+                    case ":authority" ->
+                        authority = pseudo(authority, value);
+                    default ->
+                        throw new BadRequestException(
+                                "unknown pseudo-header: " + name);
+                }
+                continue;
+            }
+            if (!name.equals(name.toLowerCase(Locale.ROOT))
+                    || CONNECTION_FIELDS.contains(name)
+                    || name.equals("te") && !value.equals("trailers")) {
+                throw new BadRequestException("invalid field: " + name);
+            }
+            host |= name.equals("host");
+            regular.add(name);
+            regular.add(value);
+        }
+        if (size > maxHeaderListSize) {
+            throw new BadRequestException("request head too large");
+        }
+        if (method == null || scheme == null || path == null) {
+            throw new BadRequestException("missing pseudo-header");
+        }
+        Method m;
+        try {
+            m = Method.valueOf(method);
+        } catch (IllegalArgumentException e) {
+            throw new BadRequestException("unsupported method: " + method);
+        }
+        if (!path.startsWith("/")
+                || path.chars().anyMatch(c -> c <= ' ' || c >= 0x7f)) {
+            throw new BadRequestException("invalid path: " + path);
+        }
+        if (authority != null && !host) {
+            regular.add(0, authority);
+            regular.add(0, "host");
+        }
+        var headers = Headers.of(regular);
+        try {
+            s.declaredLength = headers.getLong(Headers.CONTENT_LENGTH);
+        } catch (NumberFormatException e) {
+            throw new BadRequestException("invalid content length");
+        }
+        long length = s.declaredLength < 0 ? Request.CHUNKED : s.declaredLength;
+        if (s.remoteClosed) {
+            if (length > 0) {
+                throw new BadRequestException("missing body");
+            }
+            length = 0;
+        }
+        return Request.framed(m, path, headers, s.body, length, addr);
+    }
+
+    private static String pseudo(String previous, String value)
+            throws BadRequestException {
+        if (previous != null) {
+            throw new BadRequestException("repeated pseudo-header");
+        }
+        return value;
+    }
+
+    private void onData(Reader f) throws IOException, ConnectionException {
+        checkStreamFrame(f);
+        // the connection's window covers every frame, padding and all, and
+        // is reopened once half of it is used.
+        receiveWindow -= f.length;
+        if (receiveWindow < 0) {
+            throw new ConnectionException(FLOW_CONTROL_ERROR,
+                    "connection window exceeded");
+        }
+        if (receiveWindow <= CONNECTION_WINDOW / 2) {
+            writeWindowUpdate(0, CONNECTION_WINDOW - receiveWindow);
+            receiveWindow = CONNECTION_WINDOW;
+        }
+        f.strip();
+        var s = stream(f.stream);
+        if (s == null) {
+            return;
+        }
+        if (s.remoteClosed) {
+            reset(s, STREAM_CLOSED);
+            return;
+        }
+        if (s.receiveWindow.addAndGet(-f.length) < 0) {
+            reset(s, FLOW_CONTROL_ERROR);
+            return;
+        }
+        s.received += f.dataLength;
+        if (s.declaredLength >= 0 && s.received > s.declaredLength) {
+            reset(s, PROTOCOL_ERROR);
+            return;
+        }
+        s.body.offer(f.payload(), f.offset, f.dataLength);
+        // nobody reads the padding, so its part of the window is returned
+        // right away.
+        s.body.credit(f.length - f.dataLength);
+        if ((f.flags & END_STREAM) != 0) {
+            endBody(s);
+        }
+    }
+
+    private void endBody(Stream s) {
+        s.remoteClosed = true;
+        if (s.declaredLength >= 0 && s.received != s.declaredLength) {
+            reset(s, PROTOCOL_ERROR);
+            return;
+        }
+        s.body.end();
+    }
+
+    private void onPriority(Reader f) throws ConnectionException {
+        if (f.stream == 0) {
+            throw new ConnectionException(PROTOCOL_ERROR,
+                    "PRIORITY on stream 0");
+        }
+        // priorities are advisory, and deprecated, so they're ignored.
+        if (f.length != 5) {
+            writeReset(f.stream, FRAME_SIZE_ERROR);
+        }
+    }
+
+    private void onReset(Reader f) throws ConnectionException {
+        checkStreamFrame(f);
+        if (f.length != 4) {
+            throw new ConnectionException(FRAME_SIZE_ERROR,
+                    "RST_STREAM of %d bytes".formatted(f.length));
+        }
+        var s = stream(f.stream);
+        if (s != null) {
+            abort(s);
+        }
+    }
+
+    private void onSettings(Reader f) throws IOException, ConnectionException {
+        checkConnectionFrame(f, 0);
+        if ((f.flags & ACK) != 0) {
+            if (f.length != 0) {
+                throw new ConnectionException(FRAME_SIZE_ERROR,
+                        "SETTINGS acknowledgement with a payload");
+            }
+            return;
+        }
+        if (f.length % 6 != 0) {
+            throw new ConnectionException(FRAME_SIZE_ERROR,
+                    "SETTINGS of %d bytes".formatted(f.length));
+        }
+        applySettings(f.payload(), f.length);
+        writeFrame(SETTINGS, ACK, 0, ByteBuffer.allocate(0));
+    }
+
+    private void applySettings(byte[] b, int len) throws ConnectionException {
+        for (int i = 0; i < len; i += 6) {
+            int id = (b[i] & 0xff) << 8 | (b[i + 1] & 0xff);
+            long value = readInt(b, i + 2) & 0xffffffffL;
+            switch (id) {
+                case HEADER_TABLE_SIZE -> {
+                    writeLock.lock();
+                    try {
+                        encoder.setMaxTableSize(
+                                (int) Math.min(value, Integer.MAX_VALUE));
+                    } finally {
+                        writeLock.unlock();
+                    }
+                }
+                case ENABLE_PUSH -> {
+                    if (value > 1) {
+                        throw new ConnectionException(PROTOCOL_ERROR,
+                                "invalid ENABLE_PUSH");
+                    }
+                }
+                case INITIAL_WINDOW_SIZE -> {
+                    if (value > MAX_WINDOW) {
+                        throw new ConnectionException(FLOW_CONTROL_ERROR,
+                                "invalid INITIAL_WINDOW_SIZE");
+                    }
+                    resizeWindows((int) value);
+                }
+                case MAX_FRAME_SIZE -> {
+                    if (value < DEFAULT_MAX_FRAME_SIZE
+                            || value > MAX_FRAME_SIZE_LIMIT) {
+                        throw new ConnectionException(PROTOCOL_ERROR,
+                                "invalid MAX_FRAME_SIZE");
+                    }
+                    maxFrameSize = (int) value;
+                }
+                default -> {
+                    // the rest limit what the client receives unasked,
+                    // which the server never sends.
+                }
+            }
+        }
+    }
+
+    // a change to the initial window applies to the streams already open
+    // as well, and may leave their windows negative.
+    private void resizeWindows(int initial) throws ConnectionException {
+        lock.lock();
+        try {
+            int delta = initial - initialWindow;
+            initialWindow = initial;
+            for (var s : streams.values()) {
+                s.sendWindow += delta;
+                if (s.sendWindow > MAX_WINDOW) {
+                    throw new ConnectionException(FLOW_CONTROL_ERROR,
+                            "stream window overflowed");
+                }
+            }
+            windowOpened.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void onPing(Reader f) throws IOException, ConnectionException {
+        checkConnectionFrame(f, 8);
+        if (f.length != 8) {
+            throw new ConnectionException(FRAME_SIZE_ERROR,
+                    "PING of %d bytes".formatted(f.length));
+        }
+        if ((f.flags & ACK) == 0) {
+            writeFrame(PING, ACK, 0,
+                    ByteBuffer.wrap(Arrays.copyOf(f.payload(), 8)));
+        }
+    }
+
+    private void onWindowUpdate(Reader f) throws ConnectionException {
+        if (f.length != 4) {
+            throw new ConnectionException(FRAME_SIZE_ERROR,
+                    "WINDOW_UPDATE of %d bytes".formatted(f.length));
+        }
+        int increment = readInt(f.payload(), 0) & 0x7fffffff;
+        if (f.stream == 0) {
+            if (increment == 0) {
+                throw new ConnectionException(PROTOCOL_ERROR,
+                        "empty WINDOW_UPDATE");
+            }
+            lock.lock();
+            try {
+                sendWindow += increment;
+                if (sendWindow > MAX_WINDOW) {
+                    throw new ConnectionException(FLOW_CONTROL_ERROR,
+                            "connection window overflowed");
+                }
+                windowOpened.signalAll();
+            } finally {
+                lock.unlock();
+            }
+            return;
+        }
+        checkStreamFrame(f);
+        var s = stream(f.stream);
+        if (s == null) {
+            return;
+        }
+        if (increment == 0) {
+            reset(s, PROTOCOL_ERROR);
+            return;
+        }
+        boolean overflowed;
+        lock.lock();
+        try {
+            s.sendWindow += increment;
+            overflowed = s.sendWindow > MAX_WINDOW;
+            windowOpened.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        if (overflowed) {
+            reset(s, FLOW_CONTROL_ERROR);
+        }
+    }
+
+    // opens a stream, or returns null if too many are being handled
+    // already.
+    private Stream open(int id) {
+        lock.lock();
+        try {
+            if (handling >= options.maxConcurrentStreams()) {
+                return null;
+            }
+            var s = new Stream(id, initialWindow);
+            streams.put(id, s);
+            handling++;
+            updateIdle();
+            return s;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Stream stream(int id) {
+        lock.lock();
+        try {
+            return streams.get(id);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // the idle deadline applies while no streams are open. the caller holds
+    // |lock|.
+    private void updateIdle() {
+        if (closed) {
+            return;
+        }
+        if (streams.isEmpty()) {
+            readTimer.idle();
+        } else {
+            readTimer.cancel();
+        }
+    }
+
+    // forgets a stream whose handler has returned and whose response is
+    // complete, unless it was reset. if the client is still sending a body
+    // that nobody will read, it's told to stop.
+    private void finish(Stream s) {
+        boolean open;
+        lock.lock();
+        try {
+            handling--;
+            open = streams.remove(s.id) != null;
+            updateIdle();
+        } finally {
+            lock.unlock();
+        }
+        if (open && !s.remoteClosed) {
+            writeReset(s.id, NO_ERROR);
+        }
+    }
+
+    // forgets a stream that's been reset, stopping its handler and waking
+    // anything waiting on it. it still counts towards the streams being
+    // handled until its handler returns.
+    private void abort(Stream s) {
+        s.reset = true;
+        var stage = s.stage;
+        if (stage != null) {
+            stage.cancel(true);
+        }
+        s.body.fail("stream reset");
+        lock.lock();
+        try {
+            streams.remove(s.id);
+            updateIdle();
+            windowOpened.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void reset(Stream s, int code) {
+        abort(s);
+        writeReset(s.id, code);
+    }
+
+    // stops every stream and any further writes, once the connection has
+    // ended.
+    private void shutdown() {
+        List<Stream> open;
+        lock.lock();
+        try {
+            closed = true;
+            open = new ArrayList<>(streams.values());
+            windowOpened.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        for (var s : open) {
+            abort(s);
+        }
+        writeLock.lock();
+        try {
+            outputClosed = true;
+        } finally {
+            writeLock.unlock();
+        }
+        readTimer.cancel();
+        writeTimer.cancel();
+    }
+
+    private void shutdownInput() {
+        try {
+            channel.shutdownInput();
+        } catch (IOException e) {
+        }
+    }
+
+    private void closeChannel() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+        }
+    }
+
+    private void dispatch(Stream s, Request req) {
+        executor.submit(() -> send(s, req, respond(s, req)));
+    }
+
+    // runs the handler for a stream. the handler deadline only applies once
+    // it has returned a stage that isn't complete; if that's cancelled the
+    // client gets a 503, and if it fails, a 500. returns null if the stream
+    // was reset in the meantime.
+    private Response respond(Stream s, Request req) {
+        CompletableFuture<Response> stage;
+        try {
+            stage = handler.handleAsync(req).toCompletableFuture();
+        } catch (RuntimeException e) {
+            stage = CompletableFuture.failedFuture(e);
+        }
+        if (!stage.isDone()) {
+            s.stage = stage;
+            if (s.reset) {
+                stage.cancel(true);
+            }
+            var deadline = deadline(stage);
+            stage.handle((resp, e) -> null).join();
+            if (deadline != null) {
+                deadline.cancel();
+            }
+        }
+        Response resp;
+        try {
+            resp = stage.join();
+        } catch (CancellationException e) {
+            resp = new Response(StatusCode.ServiceUnavailable);
+        } catch (CompletionException e) {
+            if (!s.reset) {
+                e.getCause().printStackTrace(System.err);
+            }
+            resp = new Response(StatusCode.InternalServerError);
+        }
+        if (s.reset) {
+            discard(resp.getBody());
+            return null;
+        }
+        // the body stopped arriving, so the handler saw it end early.
+        return s.bodyTimedOut ? new Response(StatusCode.RequestTimeout) : resp;
+    }
+
+    private TimerWheel.Timer deadline(CompletableFuture<Response> stage) {
+        long nanos = options.handlerTimeout().toNanos();
+        if (nanos <= 0) {
+            return null;
+        }
+        var timer = wheel.timer(() -> {
+            if (stage.cancel(true)) {
+                metrics.timedOut(ConnectionTimer.Phase.HANDLER);
+            }
+        });
+        timer.reset(nanos);
+        return timer;
+    }
+
+    // records a response in the access log, if there is one. |req| is null
+    // if the request was malformed.
+    private void log(Request req, Response resp, long start) {
+        if (accessLog != null) {
+            accessLog.record(req, resp.getStatus(),
+                    resp.getBody().contentLength(), System.nanoTime() - start,
+                    remote);
+        }
+    }
+
+    // sends the response on a stream, unless it was reset. a body that
+    // fails partway resets the stream, so the client can tell it was cut
+    // short.
+    private void send(Stream s, Request req, Response resp) {
+        if (resp == null) {
+            finish(s);
+            return;
+        }
+        log(req, resp, s.start);
+        try {
+            write(s, resp);
+        } catch (IOException | RuntimeException e) {
+            if (!s.reset && !outputClosed) {
+                e.printStackTrace(System.err);
+                reset(s, INTERNAL_ERROR);
+            }
+        } finally {
+            finish(s);
+        }
+    }
+
+    private void write(Stream s, Response resp) throws IOException {
+        var body = resp.getBody();
+        boolean empty = resp.getStatus() == StatusCode.NotModified
+                || body.contentLength() == 0;
+        try {
+            writeHeaders(s, resp, empty);
+        } catch (IOException e) {
+            discard(body);
+            throw e;
+        }
+        if (empty) {
+            discard(body);
+            return;
+        }
+        var bytes = ResponseEncoder.inMemory(body);
+        if (bytes != null) {
+            writeData(s, bytes, true);
+            return;
+        }
+        // HTTP/2 has no chunked coding, since DATA frames already delimit
+        // the body, so a chunked body's producer writes to the frames
+        // directly.
+        try (var data = new DataOutput(s)) {
+            if (body instanceof Body.ChunkedBody c) {
+                c.producer().writeTo(data);
+            } else {
+                body.write(data);
+            }
+            data.finish();
+        }
+    }
+
+    // closes the file behind a body that won't be written.
+    private static void discard(Body body) {
+        if (body instanceof Body.FileBody f) {
+            try {
+                f.file().close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    private void writeHeaders(Stream s, Response resp, boolean endStream)
+            throws IOException {
+        var body = resp.getBody();
+        writeLock.lock();
+        try {
+            if (s.reset) {
+                throw new IOException("stream reset");
+            }
+            encoder.begin();
+            encoder.add(":status", String.valueOf(resp.getStatus().code()));
+            long length = body.contentLength();
+            // as in HTTP/1.1, a 304's length would describe the body the
+            // client already has.
+            if (resp.getStatus() != StatusCode.NotModified
+                    && length != Body.UNKNOWN_LENGTH) {
+                encoder.add("content-length", String.valueOf(length));
+            }
+            var contentType = body.getContentType();
+            if (contentType.isPresent()) {
+                encoder.add("content-type", contentType.get());
+            }
+            var headers = resp.headers();
+            for (int i = 0; i < headers.length; i += 2) {
+                var name = headers[i].toLowerCase(Locale.ROOT);
+                if (!CONNECTION_FIELDS.contains(name)) {
+                    encoder.add(name, headers[i + 1]);
+                }
+            }
+            var bytes = encoder.bytes();
+            int len = encoder.length();
+            int type = HEADERS;
+            int flags = endStream ? END_STREAM : 0;
+            int off = 0;
+            do {
+                int n = Math.min(maxFrameSize, len - off);
+                if (off + n == len) {
+                    flags |= END_HEADERS;
+                }
+                frame(type, flags, s.id, ByteBuffer.wrap(bytes, off, n));
+                type = CONTINUATION;
+                flags = 0;
+                off += n;
+            } while (off < len);
+        } finally {
+            release();
+        }
+    }
+
+    // sends |data| on a stream as fast as the windows allow, ending the
+    // stream with the last frame if |endStream| is set.
+    private void writeData(Stream s, ByteBuffer data, boolean endStream)
+            throws IOException {
+        do {
+            int n = acquire(s, data.remaining());
+            var frame = data.slice(data.position(), n);
+            data.position(data.position() + n);
+            boolean last = endStream && !data.hasRemaining();
+            writeFrame(DATA, last ? END_STREAM : 0, s.id, frame);
+        } while (data.hasRemaining());
+    }
+
+    // takes up to |want| bytes of the stream's and the connection's send
+    // windows, at most a frame's worth, waiting while either is shut. a
+    // stream whose window stays shut for the write timeout is reset.
+    private int acquire(Stream s, int want) throws IOException {
+        long timeout = options.writeTimeout().toNanos();
+        lock.lock();
+        try {
+            while (!s.reset && !closed) {
+                long open = Math.min(s.sendWindow, sendWindow);
+                if (want == 0 || open > 0) {
+                    int n = (int) Math.min(Math.min(open, want),
+                            Math.min(maxFrameSize, MAX_DATA_FRAME));
+                    s.sendWindow -= n;
+                    sendWindow -= n;
+                    return n;
+                }
+                if (timeout <= 0) {
+                    windowOpened.await();
+                } else if ((timeout = windowOpened.awaitNanos(timeout)) <= 0) {
+                    break;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } finally {
+            lock.unlock();
+        }
+        if (!s.reset && !closed) {
+            metrics.timedOut(ConnectionTimer.Phase.WRITE);
+            reset(s, CANCEL);
+        }
+        throw new IOException(closed ? "connection closed" : "stream reset");
+    }
+
+    private void writeSettings() throws IOException {
+        var settings = new byte[12];
+        setting(settings, 0, MAX_CONCURRENT_STREAMS,
+                options.maxConcurrentStreams());
+        setting(settings, 6, MAX_HEADER_LIST_SIZE, maxHeaderListSize);
+        frame(SETTINGS, 0, 0, ByteBuffer.wrap(settings));
+        var increment = new byte[4];
+        writeInt(increment, 0, CONNECTION_WINDOW - DEFAULT_WINDOW);
+        frame(WINDOW_UPDATE, 0, 0, ByteBuffer.wrap(increment));
+    }
+
+    private static void setting(byte[] b, int off, int id, int value) {
+        b[off] = (byte) (id >>> 8);
+        b[off + 1] = (byte) id;
+        writeInt(b, off + 2, value);
+    }
+
+    private void writeWindowUpdate(int stream, int increment)
+            throws IOException {
+        var payload = new byte[4];
+        writeInt(payload, 0, increment);
+        writeFrame(WINDOW_UPDATE, 0, stream, ByteBuffer.wrap(payload));
+    }
+
+    // tells the client a stream has ended early. a connection that's
+    // already failed can't be told anything.
+    private void writeReset(int stream, int code) {
+        var payload = new byte[4];
+        writeInt(payload, 0, code);
+        try {
+            writeFrame(RST_STREAM, 0, stream, ByteBuffer.wrap(payload));
+        } catch (IOException e) {
+        }
+    }
+
+    private void goAway(int code, String reason) {
+        var debug = code != NO_ERROR && reason != null
+                ? reason.getBytes(US_ASCII)
+                : new byte[0];
+        var payload = new byte[8 + debug.length];
+        writeInt(payload, 0, lastStreamId);
+        writeInt(payload, 4, code);
+        System.arraycopy(debug, 0, payload, 8, debug.length);
+        try {
+            writeFrame(GOAWAY, 0, 0, ByteBuffer.wrap(payload));
+        } catch (IOException e) {
+        }
+    }
+
+    private void writeFrame(int type, int flags, int stream,
+            ByteBuffer payload) throws IOException {
+        writeLock.lock();
+        try {
+            frame(type, flags, stream, payload);
+        } finally {
+            release();
+        }
+    }
+
+    // writes a frame, under the write deadline. the caller holds
+    // |writeLock|.
+    private void frame(int type, int flags, int stream, ByteBuffer payload)
+            throws IOException {
+        if (outputClosed) {
+            throw new IOException("connection closed");
+        }
+        Http2Frames.header(frameHeader, payload.remaining(), type, flags,
+                stream);
+        writeTimer.write();
+        try {
+            if (out instanceof ChannelOutputStream c) {
+                c.write(ByteBuffer.wrap(frameHeader), payload);
+            } else {
+                out.write(frameHeader);
+                var b = new byte[payload.remaining()];
+                payload.get(b);
+                out.write(b);
+            }
+        } catch (IOException e) {
+            outputClosed = true;
+            throw e;
+        } finally {
+            writeTimer.cancel();
+        }
+    }
+
+    // ends a turn at the socket, flushing unless another writer is waiting
+    // to take the next turn, so that frames written together go out
+    // together.
+    private void release() throws IOException {
+        try {
+            if (!outputClosed && !writeLock.hasQueuedThreads()) {
+                writeTimer.write();
+                try {
+                    out.flush();
+                } catch (IOException e) {
+                    outputClosed = true;
+                    throw e;
+                } finally {
+                    writeTimer.cancel();
+                }
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    // a request body that fills up as DATA frames arrive. reads block until
+    // more arrives, and reopen the stream's window as it's consumed. a body
+    // that stops arriving for the body timeout fails, and the client gets a
+    // 408.
+    private final class RequestBody extends InputStream {
+
+        private final Stream stream;
+        private final ReentrantLock bodyLock = new ReentrantLock();
+        private final Condition arrived = bodyLock.newCondition();
+        // holds the unread bytes in [start, end). flow control keeps it
+        // within the stream's window.
+        private byte[] buf = new byte[0];
+        private int start;
+        private int end;
+        private boolean ended;
+        private IOException failure;
+        // bytes consumed since the window was last reopened.
+        private int consumed;
+
+        RequestBody(Stream stream) {
+            this.stream = stream;
+        }
+
+        void offer(byte[] b, int off, int len) {
+            bodyLock.lock();
+            try {
+                if (end + len > buf.length) {
+                    System.arraycopy(buf, start, buf, 0, end - start);
+                    end -= start;
+                    start = 0;
+                }
+                if (end + len > buf.length) {
+                    buf = Arrays.copyOf(buf, Math.max(end + len,
+                            Math.min(2 * buf.length, DEFAULT_WINDOW)));
+                }
+                System.arraycopy(b, off, buf, end, len);
+                end += len;
+                arrived.signalAll();
+            } finally {
+                bodyLock.unlock();
+            }
+        }
+
+        void end() {
+            bodyLock.lock();
+            try {
+                ended = true;
+                arrived.signalAll();
+            } finally {
+                bodyLock.unlock();
+            }
+        }
+
+        void fail(String reason) {
+            bodyLock.lock();
+            try {
+                if (failure == null) {
+                    failure = new IOException(reason);
+                }
+                arrived.signalAll();
+            } finally {
+                bodyLock.unlock();
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            var b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            Objects.checkFromIndexSize(off, len, b.length);
+            if (len == 0) {
+                return 0;
+            }
+            int n;
+            long timeout = options.bodyTimeout().toNanos();
+            bodyLock.lock();
+            try {
+                while (start == end && !ended && failure == null) {
+                    if (timeout <= 0) {
+                        arrived.await();
+                    } else if ((timeout = arrived.awaitNanos(timeout)) <= 0) {
+                        stream.bodyTimedOut = true;
+                        metrics.timedOut(ConnectionTimer.Phase.BODY);
+                        failure = new IOException("request body timed out");
+                    }
+                }
+                if (failure != null) {
+                    throw failure;
+                }
+                if (start == end) {
+                    return -1;
+                }
+                n = Math.min(len, end - start);
+                System.arraycopy(buf, start, b, off, n);
+                start += n;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            } finally {
+                bodyLock.unlock();
+            }
+            credit(n);
+            return n;
+        }
+
+        @Override
+        public int available() {
+            bodyLock.lock();
+            try {
+                return end - start;
+            } finally {
+                bodyLock.unlock();
+            }
+        }
+
+        // reopens the stream's window once half of it has been consumed, so
+        // the client isn't held up waiting for updates.
+        void credit(int n) throws IOException {
+            int increment;
+            bodyLock.lock();
+            try {
+                consumed += n;
+                if (consumed < DEFAULT_WINDOW / 2 || ended || stream.reset) {
+                    return;
+                }
+                increment = consumed;
+                consumed = 0;
+            } finally {
+                bodyLock.unlock();
+            }
+            stream.receiveWindow.addAndGet(increment);
+            writeWindowUpdate(stream.id, increment);
+        }
+    }
+
+    // a response body's stream, which cuts what's written into DATA frames
+    // as the windows allow. flush() sends what's buffered right away.
+    private final class DataOutput extends OutputStream {
+
+        private final Stream stream;
+        private final BufferPool.Buffer lease
+                = BufferPool.HEAP.acquire(DEFAULT_MAX_FRAME_SIZE);
+        private final ByteBuffer buf = lease.buffer();
+
+        DataOutput(Stream stream) {
+            this.stream = stream;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (!buf.hasRemaining()) {
+                flush();
+            }
+            buf.put((byte) b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            Objects.checkFromIndexSize(off, len, b.length);
+            while (len > 0) {
+                if (!buf.hasRemaining()) {
+                    flush();
+                }
+                int n = Math.min(len, buf.remaining());
+                buf.put(b, off, n);
+                off += n;
+                len -= n;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (buf.position() > 0) {
+                writeData(stream, buf.flip(), false);
+                buf.clear();
+            }
+        }
+
+        // sends what's left, ending the stream.
+        void finish() throws IOException {
+            writeData(stream, buf.flip(), true);
+            buf.clear();
+        }
+
+        @Override
+        public void close() {
+            lease.close();
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package dev.dhc.http;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+// The framing layer of HTTP/2 (RFC 9113 section 4). Every frame is a
+// 9-byte header, giving the length of its payload, its type, flags and
+// stream, followed by the payload. A Reader reads frames one at a time into
+// a buffer that it reuses, and header() encodes a frame header for writing.
+final class Http2Frames {
+
+    static final int HEADER_LENGTH = 9;
+    // the largest payload either side may send until the other allows
+    // more. the server never allows more.
+    static final int DEFAULT_MAX_FRAME_SIZE = 16_384;
+    static final int MAX_FRAME_SIZE_LIMIT = (1 << 24) - 1;
+
+    // frame types.
+    static final int DATA = 0x0;
+    static final int HEADERS = 0x1;
+    static final int PRIORITY = 0x2;
+    static final int RST_STREAM = 0x3;
+    static final int SETTINGS = 0x4;
+    static final int PUSH_PROMISE = 0x5;
+    static final int PING = 0x6;
+    static final int GOAWAY = 0x7;
+    static final int WINDOW_UPDATE = 0x8;
+    static final int CONTINUATION = 0x9;
+
+    // flags, whose meanings depend on the frame type.
+    static final int END_STREAM = 0x1;
+    static final int ACK = 0x1;
+    static final int END_HEADERS = 0x4;
+    static final int PADDED = 0x8;
+    static final int PRIORITY_FLAG = 0x20;
+
+    // setting identifiers.
+    static final int HEADER_TABLE_SIZE = 0x1;
+    static final int ENABLE_PUSH = 0x2;
+    static final int MAX_CONCURRENT_STREAMS = 0x3;
+    static final int INITIAL_WINDOW_SIZE = 0x4;
+    static final int MAX_FRAME_SIZE = 0x5;
+    static final int MAX_HEADER_LIST_SIZE = 0x6;
+
+    // error codes, for RST_STREAM and GOAWAY.
+    static final int NO_ERROR = 0x0;
+    static final int PROTOCOL_ERROR = 0x1;
+    static final int INTERNAL_ERROR = 0x2;
+    static final int FLOW_CONTROL_ERROR = 0x3;
+    static final int STREAM_CLOSED = 0x5;
+    static final int FRAME_SIZE_ERROR = 0x6;
+    static final int REFUSED_STREAM = 0x7;
+    static final int CANCEL = 0x8;
+    static final int COMPRESSION_ERROR = 0x9;
+    static final int ENHANCE_YOUR_CALM = 0xb;
+
+    // a violation of the protocol that ends the whole connection, which is
+    // reported to the client in a GOAWAY frame with |code|.
+    static final class ConnectionException extends Exception {
+
+        private final int code;
+
+        ConnectionException(int code, String message) {
+            super(message);
+            this.code = code;
+        }
+
+        int code() {
+            return code;
+        }
+    }
+
+    // Reads frames from a stream. After next() returns true, the fields
+    // describe the frame and payload() holds its payload, until the next
+    // call.
+    static final class Reader {
+
+        private final InputStream in;
+        private final byte[] header = new byte[HEADER_LENGTH];
+        private final byte[] payload = new byte[DEFAULT_MAX_FRAME_SIZE];
+
+        int type;
+        int flags;
+        int stream;
+        int length;
+        // the part of the payload left once padding and priority fields
+        // are removed by strip().
+        int offset;
+        int dataLength;
+
+        Reader(InputStream in) {
+            this.in = in;
+        }
+
+        // reads the next frame. returns false if the stream ended before
+        // it started.
+        boolean next() throws IOException, ConnectionException {
+            int n = in.readNBytes(header, 0, HEADER_LENGTH);
+            if (n == 0) {
+                return false;
+            }
+            if (n < HEADER_LENGTH) {
+                throw new EOFException("truncated frame header");
+            }
+            length = (header[0] & 0xff) << 16 | (header[1] & 0xff) << 8
+                    | (header[2] & 0xff);
+            type = header[3] & 0xff;
+            flags = header[4] & 0xff;
+            stream = readInt(header, 5) & 0x7fffffff;
+            if (length > payload.length) {
+                throw new ConnectionException(FRAME_SIZE_ERROR,
+                        "frame of %d bytes".formatted(length));
+            }
+            if (in.readNBytes(payload, 0, length) < length) {
+                throw new EOFException("truncated frame");
+            }
+            offset = 0;
+            dataLength = length;
+            return true;
+        }
+
+        byte[] payload() {
+            return payload;
+        }
+
+        // finds the data in a DATA or HEADERS frame, which may be preceded
+        // by a pad length and priority fields and followed by padding.
+        void strip() throws ConnectionException {
+            int pad = 0;
+            if ((flags & PADDED) != 0) {
+                if (length < 1) {
+                    throw new ConnectionException(FRAME_SIZE_ERROR,
+                            "missing pad length");
+                }
+                pad = payload[0] & 0xff;
+                offset = 1;
+            }
+            if (type == HEADERS && (flags & PRIORITY_FLAG) != 0) {
+                offset += 5;
+            }
+            dataLength = length - offset - pad;
+            if (dataLength < 0) {
+                throw new ConnectionException(PROTOCOL_ERROR,
+                        "padding longer than the frame");
+            }
+        }
+    }
+
+    static int readInt(byte[] b, int off) {
+        return (b[off] & 0xff) << 24 | (b[off + 1] & 0xff) << 16
+                | (b[off + 2] & 0xff) << 8 | (b[off + 3] & 0xff);
+    }
+
+    static void writeInt(byte[] b, int off, int n) {
+        b[off] = (byte) (n >>> 24);
+        b[off + 1] = (byte) (n >>> 16);
+        b[off + 2] = (byte) (n >>> 8);
+        b[off + 3] = (byte) n;
+    }
+
+    // encodes the header of a frame into the first HEADER_LENGTH bytes of
+    // |b|.
+    static void header(byte[] b, int length, int type, int flags,
+            int stream) {
+        b[0] = (byte) (length >>> 16);
+        b[1] = (byte) (length >>> 8);
+        b[2] = (byte) length;
+        b[3] = (byte) type;
+        b[4] = (byte) flags;
+        writeInt(b, 5, stream);
+    }
+}
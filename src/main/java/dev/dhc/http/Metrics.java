@@ -0,0 +1,430 @@
+package dev.dhc.http;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// Counters, gauges and per-route latency histograms, exposed in the
+// Prometheus text format by handler(). Routers record each route's handler
+// time by status code, the engines count connections, bytes, parse errors,
+// rate-limited clients and dropped access log records, and the shared
+// buffer pools and the file cache, if any, report their occupancy and
+// counters. Recording only updates atomics:
+// histograms have fixed buckets, and a route's histogram for a status is
+// created the first time it's used, so nothing is allocated per request
+// after that.
+public final class Metrics {
+
+    public static final String CONTENT_TYPE
+            = "text/plain; version=0.0.4; charset=utf-8";
+
+    // bucket upper bounds, in nanoseconds, from 100us to 10s.
+    private static final long[] BOUNDS = {
+        100_000, 250_000, 500_000,
+        1_000_000, 2_500_000, 5_000_000,
+        10_000_000, 25_000_000, 50_000_000,
+        100_000_000, 250_000_000, 500_000_000,
+        1_000_000_000, 2_500_000_000L, 5_000_000_000L, 10_000_000_000L,};
+
+    // a latency histogram with cumulative output, as Prometheus expects.
+    static final class Histogram {
+
+        // one per bound, plus one for larger values.
+        private final AtomicLongArray counts
+                = new AtomicLongArray(BOUNDS.length + 1);
+        private final AtomicLong sumNanos = new AtomicLong();
+
+        void record(long nanos) {
+            int i = 0;
+            while (i < BOUNDS.length && nanos > BOUNDS[i]) {
+                i++;
+            }
+            counts.incrementAndGet(i);
+            sumNanos.addAndGet(nanos);
+        }
+
+        long count() {
+            long n = 0;
+            for (int i = 0; i < counts.length(); i++) {
+                n += counts.get(i);
+            }
+            return n;
+        }
+    }
+
+    // the histograms of one route, indexed by StatusCode.ordinal().
+    static final class Route {
+
+        private final AtomicReferenceArray<Histogram> byStatus
+                = new AtomicReferenceArray<>(StatusCode.values().length);
+
+        void record(StatusCode status, long nanos) {
+            int i = status.ordinal();
+            var h = byStatus.get(i);
+            if (h == null) {
+                byStatus.compareAndSet(i, null, new Histogram());
+                h = byStatus.get(i);
+            }
+            h.record(nanos);
+        }
+
+        Histogram histogram(StatusCode status) {
+            return byStatus.get(status.ordinal());
+        }
+    }
+
+    // the counters of one acceptor socket.
+    static final class Shard {
+
+        private final LongAdder accepted = new LongAdder();
+        private final LongAdder refused = new LongAdder();
+
+        void accepted() {
+            accepted.increment();
+        }
+
+        void refused() {
+            refused.increment();
+        }
+
+        long acceptedCount() {
+            return accepted.sum();
+        }
+
+        long refusedCount() {
+            return refused.sum();
+        }
+    }
+
+    private final Map<String, Route> routes = new ConcurrentHashMap<>();
+    private final Map<Integer, Shard> shards = new ConcurrentHashMap<>();
+    private final LongAdder activeConnections = new LongAdder();
+    private final LongAdder acceptedConnections = new LongAdder();
+    private final LongAdder bytesReceived = new LongAdder();
+    private final LongAdder bytesSent = new LongAdder();
+    private final LongAdder parseErrors = new LongAdder();
+    private final LongAdder refusedConnections = new LongAdder();
+    private final LongAdder inFlightRequests = new LongAdder();
+    private final LongAdder shedRequests = new LongAdder();
+    private final LongAdder accessLogDrops = new LongAdder();
+    private final LongAdder rateLimitedRequests = new LongAdder();
+    private final LongAdder rateLimitedConnections = new LongAdder();
+    private final LongAdder[] timeouts
+            = new LongAdder[ConnectionTimer.Phase.values().length];
+    // the cache that FileSystemHandlers serve from, or null.
+    private volatile FileCache fileCache;
+
+    public Metrics() {
+        for (int i = 0; i < timeouts.length; i++) {
+            timeouts[i] = new LongAdder();
+        }
+    }
+
+    // reports |cache|'s hits, misses, evictions and size along with the
+    // server's own metrics.
+    public void observe(FileCache cache) {
+        this.fileCache = cache;
+    }
+
+    // returns the histograms for |name|, which is usually a route template.
+    Route route(String name) {
+        return routes.computeIfAbsent(name, k -> new Route());
+    }
+
+    Shard shard(int i) {
+        return shards.computeIfAbsent(i, k -> new Shard());
+    }
+
+    // wraps |handler| so that its latency is recorded under |name|.
+    Handler instrument(String name, Handler handler) {
+        var route = route(name);
+        return req -> {
+            long start = System.nanoTime();
+            try {
+                var resp = handler.handle(req);
+                route.record(resp.getStatus(), System.nanoTime() - start);
+                return resp;
+            } catch (RuntimeException e) {
+                route.record(StatusCode.InternalServerError,
+                        System.nanoTime() - start);
+                throw e;
+            }
+        };
+    }
+
+    // like instrument(), but for a handler whose stage may complete later,
+    // which is when its latency is recorded. a cancelled stage counts as
+    // the 503 that the server answers with.
+    AsyncHandler instrumentAsync(String name, AsyncHandler handler) {
+        if (handler instanceof Handler h) {
+            return instrument(name, h);
+        }
+        var route = route(name);
+        return req -> {
+            long start = System.nanoTime();
+            CompletionStage<Response> stage;
+            try {
+                stage = handler.handleAsync(req);
+            } catch (RuntimeException e) {
+                route.record(StatusCode.InternalServerError,
+                        System.nanoTime() - start);
+                throw e;
+            }
+            stage.whenComplete((resp, e) -> route.record(
+                    e == null ? resp.getStatus()
+                    : e instanceof CancellationException
+                    ? StatusCode.ServiceUnavailable
+                    : StatusCode.InternalServerError,
+                    System.nanoTime() - start));
+            return stage;
+        };
+    }
+
+    void connectionOpened() {
+        acceptedConnections.increment();
+        activeConnections.increment();
+    }
+
+    void connectionClosed() {
+        activeConnections.decrement();
+    }
+
+    void received(long n) {
+        bytesReceived.add(n);
+    }
+
+    void sent(long n) {
+        bytesSent.add(n);
+    }
+
+    void parseError() {
+        parseErrors.increment();
+    }
+
+    void connectionRefused() {
+        refusedConnections.increment();
+    }
+
+    void requestStarted() {
+        inFlightRequests.increment();
+    }
+
+    void requestFinished() {
+        inFlightRequests.decrement();
+    }
+
+    void requestShed() {
+        shedRequests.increment();
+    }
+
+    void accessLogDropped() {
+        accessLogDrops.increment();
+    }
+
+    void requestRateLimited() {
+        rateLimitedRequests.increment();
+    }
+
+    void connectionRateLimited() {
+        rateLimitedConnections.increment();
+    }
+
+    void timedOut(ConnectionTimer.Phase phase) {
+        timeouts[phase.ordinal()].increment();
+    }
+
+    long activeConnections() {
+        return activeConnections.sum();
+    }
+
+    long bytesReceived() {
+        return bytesReceived.sum();
+    }
+
+    long bytesSent() {
+        return bytesSent.sum();
+    }
+
+    long parseErrors() {
+        return parseErrors.sum();
+    }
+
+    long refusedConnections() {
+        return refusedConnections.sum();
+    }
+
+    long shedRequests() {
+        return shedRequests.sum();
+    }
+
+    long accessLogDrops() {
+        return accessLogDrops.sum();
+    }
+
+    long rateLimitedRequests() {
+        return rateLimitedRequests.sum();
+    }
+
+    long rateLimitedConnections() {
+        return rateLimitedConnections.sum();
+    }
+
+    long timeouts(ConnectionTimer.Phase phase) {
+        return timeouts[phase.ordinal()].sum();
+    }
+
+    private static String escape(String label) {
+        return label.replace("\\", "\\\\").replace("\"", "\\\"")
+                .replace("\n", "\\n");
+    }
+
+    private static void metric(StringBuilder b, String name, String type,
+            String help, long value) {
+        b.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        b.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        b.append(name).append(' ').append(value).append('\n');
+    }
+
+    // renders every metric in the Prometheus text exposition format.
+    public String render() {
+        var b = new StringBuilder();
+        metric(b, "http_connections_active", "gauge",
+                "Connections currently open.", activeConnections.sum());
+        metric(b, "http_connections_accepted_total", "counter",
+                "Connections accepted.", acceptedConnections.sum());
+        metric(b, "http_received_bytes_total", "counter",
+                "Bytes read from clients.", bytesReceived.sum());
+        metric(b, "http_sent_bytes_total", "counter",
+                "Bytes written to clients.", bytesSent.sum());
+        metric(b, "http_parse_errors_total", "counter",
+                "Requests rejected as malformed.", parseErrors.sum());
+        metric(b, "http_connections_refused_total", "counter",
+                "Connections refused over the connection limit.",
+                refusedConnections.sum());
+        metric(b, "http_requests_in_flight", "gauge",
+                "Requests currently being handled.", inFlightRequests.sum());
+        metric(b, "http_requests_shed_total", "counter",
+                "Requests answered with 503 because they queued too long.",
+                shedRequests.sum());
+        metric(b, "http_access_log_dropped_total", "counter",
+                "Access log records dropped because the log fell behind.",
+                accessLogDrops.sum());
+        metric(b, "http_requests_rate_limited_total", "counter",
+                "Requests answered with 429 because their client was over"
+                + " its rate limit.", rateLimitedRequests.sum());
+        metric(b, "http_connections_rate_limited_total", "counter",
+                "Connections refused because their client was opening them"
+                + " too often.", rateLimitedConnections.sum());
+        var sorted = new TreeMap<>(shards);
+        b.append("# HELP http_acceptor_connections_total Connections admitted")
+                .append(" by each acceptor.\n");
+        b.append("# TYPE http_acceptor_connections_total counter\n");
+        for (var e : sorted.entrySet()) {
+            b.append("http_acceptor_connections_total{shard=\"")
+                    .append(e.getKey()).append("\"} ")
+                    .append(e.getValue().acceptedCount()).append('\n');
+        }
+        b.append("# HELP http_acceptor_refused_total Connections refused")
+                .append(" by each acceptor.\n");
+        b.append("# TYPE http_acceptor_refused_total counter\n");
+        for (var e : sorted.entrySet()) {
+            b.append("http_acceptor_refused_total{shard=\"")
+                    .append(e.getKey()).append("\"} ")
+                    .append(e.getValue().refusedCount()).append('\n');
+        }
+        var pools = Map.of("direct", BufferPool.DIRECT,
+                "heap", BufferPool.HEAP);
+        b.append("# HELP http_buffer_pool_bytes Bytes of pooled buffers, by")
+                .append(" whether they're leased.\n");
+        b.append("# TYPE http_buffer_pool_bytes gauge\n");
+        for (var e : new TreeMap<>(pools).entrySet()) {
+            var pool = e.getValue();
+            b.append("http_buffer_pool_bytes{pool=\"").append(e.getKey())
+                    .append("\",state=\"leased\"} ")
+                    .append(pool.leasedBytes()).append('\n');
+            b.append("http_buffer_pool_bytes{pool=\"").append(e.getKey())
+                    .append("\",state=\"free\"} ")
+                    .append(pool.freeBytes()).append('\n');
+        }
+        b.append("# HELP http_buffer_pool_capacity_bytes The most each pool")
+                .append(" holds.\n");
+        b.append("# TYPE http_buffer_pool_capacity_bytes gauge\n");
+        for (var e : new TreeMap<>(pools).entrySet()) {
+            b.append("http_buffer_pool_capacity_bytes{pool=\"")
+                    .append(e.getKey()).append("\"} ")
+                    .append(e.getValue().capacity()).append('\n');
+        }
+        b.append("# HELP http_buffer_pool_unpooled_total Buffers allocated")
+                .append(" outside a pool because it was full or they were")
+                .append(" too large.\n");
+        b.append("# TYPE http_buffer_pool_unpooled_total counter\n");
+        for (var e : new TreeMap<>(pools).entrySet()) {
+            b.append("http_buffer_pool_unpooled_total{pool=\"")
+                    .append(e.getKey()).append("\"} ")
+                    .append(e.getValue().unpooled()).append('\n');
+        }
+        var cache = fileCache;
+        if (cache != null) {
+            metric(b, "http_file_cache_hits_total", "counter",
+                    "File requests served from the file cache.",
+                    cache.hits());
+            metric(b, "http_file_cache_misses_total", "counter",
+                    "File requests that weren't in the file cache.",
+                    cache.misses());
+            metric(b, "http_file_cache_evictions_total", "counter",
+                    "Files evicted from the file cache to make room.",
+                    cache.evictions());
+            metric(b, "http_file_cache_bytes", "gauge",
+                    "Bytes of file contents held by the file cache.",
+                    cache.size());
+        }
+        b.append("# HELP http_timeouts_total Connections closed because a")
+                .append(" deadline expired.\n");
+        b.append("# TYPE http_timeouts_total counter\n");
+        for (var phase : ConnectionTimer.Phase.values()) {
+            b.append("http_timeouts_total{phase=\"").append(phase.label())
+                    .append("\"} ").append(timeouts(phase)).append('\n');
+        }
+        var name = "http_request_duration_seconds";
+        b.append("# HELP ").append(name)
+                .append(" Time spent in route handlers.\n");
+        b.append("# TYPE ").append(name).append(" histogram\n");
+        for (var e : new TreeMap<>(routes).entrySet()) {
+            for (var status : StatusCode.values()) {
+                var h = e.getValue().histogram(status);
+                if (h == null) {
+                    continue;
+                }
+                var labels = "route=\"%s\",status=\"%d\"".formatted(
+                        escape(e.getKey()), status.code());
+                long cumulative = 0;
+                for (int i = 0; i <= BOUNDS.length; i++) {
+                    cumulative += h.counts.get(i);
+                    var le = i < BOUNDS.length
+                            ? String.valueOf(BOUNDS[i] / 1e9) : "+Inf";
+                    b.append(name).append("_bucket{").append(labels)
+                            .append(",le=\"").append(le).append("\"} ")
+                            .append(cumulative).append('\n');
+                }
+                b.append(name).append("_sum{").append(labels).append("} ")
+                        .append(h.sumNanos.get() / 1e9).append('\n');
+                b.append(name).append("_count{").append(labels).append("} ")
+                        .append(cumulative).append('\n');
+            }
+        }
+        return b.toString();
+    }
+
+    // serves render(), e.g. as GET /metrics.
+    public Handler handler() {
+        return req -> new Response(StatusCode.OK, new Body.BytesBody(
+                render().getBytes(StandardCharsets.UTF_8), CONTENT_TYPE));
+    }
+}
@@ -0,0 +1,104 @@
+package dev.dhc.http;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
+// Limits how often each client may make requests, so that one busy client
+// can't take the capacity that Admission shares out among everyone. wrap()
+// decorates a handler with its own limit, keyed by the client's address, so
+// a route can be limited more tightly than the server as a whole. Requests
+// over the limit are answered with 429 and a Retry-After of the whole
+// seconds until the client's next request would be allowed; requests with
+// no known address, e.g. those made in-process, aren't limited.
+public final class RateLimiter {
+
+    // |perSecond| requests a second on average, and up to |burst| at once.
+    public record Limit(double perSecond, int burst) {
+
+        public Limit {
+            if (!(perSecond > 0) || burst < 1) {
+                throw new IllegalArgumentException(
+                        "invalid rate limit: %s/s, burst %d"
+                                .formatted(perSecond, burst));
+            }
+        }
+
+        // allows a second's worth of requests at once.
+        public static Limit perSecond(double perSecond) {
+            return new Limit(perSecond,
+                    (int) Math.max(1, Math.ceil(perSecond)));
+        }
+
+        // parses "<rate>" or "<rate>:<burst>", as given on the command line.
+        public static Limit parse(String s) {
+            int colon = s.indexOf(':');
+            if (colon < 0) {
+                return perSecond(Double.parseDouble(s));
+            }
+            return new Limit(Double.parseDouble(s.substring(0, colon)),
+                    Integer.parseInt(s.substring(colon + 1)));
+        }
+    }
+
+    private final Metrics metrics;
+
+    // |metrics| may be null.
+    public RateLimiter(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    // returns the key that clients at |addr| are limited by, or null if
+    // they can't be told apart.
+    static Object client(SocketAddress addr) {
+        return addr instanceof InetSocketAddress inet
+                ? inet.getAddress()
+                : null;
+    }
+
+    // returns the Retry-After value for a wait of |nanos|.
+    static String retryAfter(long nanos) {
+        long seconds = (nanos + 999_999_999) / 1_000_000_000;
+        return String.valueOf(Math.max(1, seconds));
+    }
+
+    // returns a handler that passes requests to |delegate| until their
+    // client goes over |limit|.
+    public Handler wrap(Handler delegate, Limit limit) {
+        var buckets = new TokenBuckets(limit);
+        return new Handler() {
+            @Override
+            public Response handle(Request req) {
+                var rejected = check(buckets, req);
+                return rejected != null ? rejected : delegate.handle(req);
+            }
+
+            @Override
+            public CompletionStage<Response> handleAsync(Request req) {
+                var rejected = check(buckets, req);
+                return rejected != null
+                        ? CompletableFuture.completedFuture(rejected)
+                        : delegate.handleAsync(req);
+            }
+        };
+    }
+
+    // takes a token for |req|'s client, returning null if there was one
+    // and otherwise the response to send instead.
+    private Response check(TokenBuckets buckets, Request req) {
+        var key = client(req.getRemoteAddress());
+        if (key == null) {
+            return null;
+        }
+        long wait = buckets.take(key);
+        if (wait == 0) {
+            return null;
+        }
+        if (metrics != null) {
+            metrics.requestRateLimited();
+        }
+        return new Response(StatusCode.TooManyRequests)
+                .withHeader("Retry-After", retryAfter(wait));
+    }
+}
@@ -41,12 +41,19 @@ public class RegexRouter implements Handler {
         routes.add(new Route(methods, pattern, params, handler));
     }
 
-    @Override
-    public Response handle(Request req) {
+    boolean isEmpty() {
+        return routes.isEmpty();
+    }
+
+    Optional<Response> route(Request req) {
         return routes.stream()
                 .map(route -> route.handle(req))
                 .flatMap(Optional::stream)
-                .findFirst()
-                .orElseGet(Response::notFound);
+                .findFirst();
+    }
+
+    @Override
+    public Response handle(Request req) {
+        return route(req).orElseGet(Response::notFound);
     }
 }
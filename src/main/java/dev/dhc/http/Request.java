@@ -2,85 +2,169 @@ package dev.dhc.http;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.HashMap;
+import java.net.SocketAddress;
+import java.util.List;
 import java.util.Map;
-import java.util.regex.Pattern;
 
 public class Request {
 
-    private final Map<String, String> headers;
+    private final Headers headers;
     private final Map<String, String> params;
     private final String path;
     private final Method method;
 
-    private InputStream body;
+    // the declared length of the body, or CHUNKED.
+    private final long contentLength;
+    // a BoundedInputStream, or a ChunkedInputStream if the length is CHUNKED.
+    private final InputStream body;
+    // the client's address, or null if it isn't known.
+    private final SocketAddress remote;
 
-    private Request(Method method, String path, Map<String, String> headers, Map<String, String> params, InputStream body) {
+    static final long CHUNKED = -1;
+
+    private Request(Method method, String path, Headers headers, Map<String, String> params, long contentLength, InputStream body, SocketAddress remote) {
         this.headers = headers;
         this.path = path;
         this.method = method;
+        this.contentLength = contentLength;
         this.body = body;
         this.params = params;
+        this.remote = remote;
     }
 
-    private Request(Method method, String path, Map<String, String> headers, InputStream body) {
-        this(method, path, headers, Map.of(), body);
+    public static Request parseFrom(InputStream in)
+            throws IOException, BadRequestException {
+        return new RequestParser().parse(in);
     }
 
-    private static final Pattern REQUEST_LINE_PAT
-            = Pattern.compile("(GET|POST) (\\S+) HTTP\\/1.1");
+    static Request create(Method method, String path, Headers headers,
+            InputStream in, SocketAddress remote) throws BadRequestException {
+        long n = bodyLength(headers);
+        return new Request(method, path, headers, Map.of(), n, wrap(in, n),
+                remote);
+    }
 
-    private static Map.Entry<String, String> parseHeader(String line)
-            throws BadRequestException {
-        try {
-            var toks = line.split(": ");
-            return Map.entry(toks[0], toks[1]);
-        } catch (Exception e) {
-            throw new BadRequestException("invalid header: " + line);
-        }
+    static Request create(Method method, String path, Headers headers,
+            InputStream in) throws BadRequestException {
+        return create(method, path, headers, in, null);
     }
 
-    // custom readline to avoid using InputStreamReader, which reads ahead
-    // in the underlying stream -- whereas we need to keep all of that unread
-    // so we can pass it off to the client.
-    private static String readLine(InputStream r) throws IOException {
-        var b = new StringBuilder();
-        for (int c; (c = r.read()) >= 0;) {
-            b.append((char) c);
-            int n = b.length();
-            if (n >= 2 && b.charAt(n - 2) == '\r' && b.charAt(n - 1) == '\n') {
-                var line = b.substring(0, n - 2);
-                b.setLength(0);
-                return line;
-            }
-        }
-        return b.toString();
+    // a request whose body is framed by the protocol rather than by its
+    // fields, as in HTTP/2, so |in| is used as it is and ends with the
+    // body. |contentLength| is still the declared length, or CHUNKED if
+    // there isn't one.
+    static Request framed(Method method, String path, Headers headers,
+            InputStream in, long contentLength, SocketAddress remote) {
+        return new Request(method, path, headers, Map.of(), contentLength, in,
+                remote);
     }
 
-    public static Request parseFrom(InputStream in)
-            throws IOException, BadRequestException {
-        var requestLine = readLine(in);
-        var matcher = REQUEST_LINE_PAT.matcher(requestLine);
-        if (!matcher.matches()) {
-            throw new BadRequestException("invalid request line");
+    private static InputStream wrap(InputStream in, long contentLength) {
+        return contentLength == CHUNKED
+                ? new ChunkedInputStream(in)
+                : new BoundedInputStream(in, contentLength);
+    }
+
+    private static long bodyLength(Headers headers)
+            throws BadRequestException {
+        int lengths = headers.count(Headers.CONTENT_LENGTH);
+        if (headers.count(Headers.TRANSFER_ENCODING) > 0) {
+            // a message with both is a request smuggling attempt, as is
+            // one whose fields disagree about the encoding.
+            if (headers.count(Headers.TRANSFER_ENCODING) != 1 || lengths != 0
+                    || !headers.valueEquals(
+                            Headers.TRANSFER_ENCODING, "chunked")) {
+                throw new BadRequestException("unsupported transfer encoding");
+            }
+            return CHUNKED;
+        }
+        if (lengths == 0) {
+            return 0;
         }
-        Method method;
+        long n;
         try {
-            method = Method.valueOf(matcher.group(1));
-        } catch (Exception e) {
-            throw new BadRequestException("unsupported http method");
+            n = headers.getLong(Headers.CONTENT_LENGTH);
+        } catch (NumberFormatException e) {
+            throw new BadRequestException("invalid content length");
+        }
+        // repeated fields are only allowed if they agree.
+        if (lengths > 1 && headers.getAll(Headers.CONTENT_LENGTH.toString())
+                .stream().anyMatch(v -> !v.equals(String.valueOf(n)))) {
+            throw new BadRequestException("conflicting content lengths");
         }
-        var path = matcher.group(2);
-        var headers = new HashMap<String, String>();
-        for (String s; (s = readLine(in)) != null && !s.isEmpty();) {
-            var kv = parseHeader(s);
-            headers.put(kv.getKey(), kv.getValue());
+        return n;
+    }
+
+    // whether the client wants the connection to stay open after this
+    // request. persistent connections are the default in HTTP/1.1.
+    public boolean keepAlive() {
+        return !headers.hasToken(Headers.CONNECTION, "close");
+    }
+
+    // re-binds the body to a different stream, e.g. one over bytes that
+    // arrived after the head was parsed.
+    Request withBody(InputStream in) {
+        return new Request(method, path, headers, params, contentLength,
+                wrap(in, contentLength), remote);
+    }
+
+    // the declared length of the body, or CHUNKED.
+    long contentLength() {
+        return contentLength;
+    }
+
+    boolean hasBody() {
+        return contentLength != 0;
+    }
+
+    // whether the body is sent with Transfer-Encoding: chunked, so its
+    // length isn't known up front.
+    public boolean isChunked() {
+        return contentLength == CHUNKED;
+    }
+
+    // runs |action| once the body has been read to its end, which may be
+    // now, e.g. to stop timing it.
+    void onBodyEnd(Runnable action) {
+        switch (body) {
+            case ChunkedInputStream c ->
+                c.onEnd(action);
+            case BoundedInputStream b ->
+                b.onEnd(action);
+            default ->
+                throw new AssertionError("unexpected body stream");
         }
-        return new Request(method, path, headers, in);
+    }
+
+    // whether the connection ended before the body did, so the handler
+    // only saw part of it.
+    boolean bodyCutShort() {
+        return switch (body) {
+            case ChunkedInputStream c ->
+                c.cutShort();
+            case BoundedInputStream b ->
+                b.cutShort();
+            default ->
+                false;
+        };
+    }
+
+    // skips any part of the body that the handler didn't consume, so the
+    // stream is positioned at the start of the next request.
+    boolean drainBody() throws IOException {
+        return switch (body) {
+            case ChunkedInputStream c ->
+                c.drain();
+            case BoundedInputStream b ->
+                b.drain();
+            default ->
+                throw new AssertionError("unexpected body stream");
+        };
     }
 
     public Request withParams(Map<String, String> params) {
-        return new Request(method, path, headers, params, body);
+        return new Request(method, path, headers, params, contentLength, body,
+                remote);
     }
 
     public Method getMethod() {
@@ -91,15 +175,41 @@ public class Request {
         return path;
     }
 
+    // the address of the client that sent the request, or null if it isn't
+    // known.
+    public SocketAddress getRemoteAddress() {
+        return remote;
+    }
+
     public InputStream getBody() {
         return body;
     }
 
+    // returns the value of the last field called |header|, ignoring case.
     public String getHeader(String header) {
         return headers.get(header);
     }
 
+    String getHeader(Headers.Name header) {
+        return headers.get(header);
+    }
+
+    // returns the values of every field called |header|, in order.
+    public List<String> getHeaders(String header) {
+        return headers.getAll(header);
+    }
+
+    Headers headers() {
+        return headers;
+    }
+
     public String getParam(String param) {
         return params.get(param);
     }
+
+    // returns a trailer field of a chunked body, which is only available
+    // once the body has been read to the end.
+    public String getTrailer(String name) {
+        return body instanceof ChunkedInputStream c ? c.trailer(name) : null;
+    }
 }
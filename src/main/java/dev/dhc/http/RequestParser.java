@@ -0,0 +1,296 @@
+package dev.dhc.http;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.SocketAddress;
+import java.util.Arrays;
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+import static java.nio.charset.StandardCharsets.US_ASCII;
+
+// Incremental parser for HTTP/1.1 request heads. Bytes are fed in as they
+// arrive and accumulated in a buffer that is reused for every request on a
+// connection; the request line and header fields are recognized by a state
+// machine that records offsets into that buffer instead of building Strings.
+final class RequestParser {
+
+    static final int DEFAULT_MAX_REQUEST_LINE = 8 * 1024;
+    static final int DEFAULT_MAX_HEADER_BYTES = 64 * 1024;
+
+    private enum State {
+        METHOD, TARGET, VERSION, REQUEST_LINE_LF,
+        LINE_START, NAME, VALUE_START, VALUE, FIELD_LF, FINAL_LF, DONE,
+    }
+
+    private static final byte[] GET = "GET".getBytes(US_ASCII);
+    private static final byte[] POST = "POST".getBytes(US_ASCII);
+    private static final byte[] HTTP_1_1 = "HTTP/1.1".getBytes(US_ASCII);
+
+    private final int maxRequestLine;
+    private final int maxHeaderBytes;
+    private final SocketAddress remote;
+
+    private byte[] buf = new byte[1024];
+    private final byte[] chunk = new byte[4096];
+    private int len;
+    private int pos;
+    private State state;
+
+    private Method method;
+    private int nameStart;
+    private int targetStart;
+    private int targetEnd;
+    private int versionStart;
+    private int headersStart;
+    private int[] fields = new int[4 * 16];
+    // the case-insensitive hash of each field's name, and of the name
+    // being scanned.
+    private int[] hashes = new int[16];
+    private int nameHash;
+    private int count;
+
+    // |remote| is the address of the client whose requests this parses, or
+    // null.
+    RequestParser(int maxRequestLine, int maxHeaderBytes,
+            SocketAddress remote) {
+        this.maxRequestLine = maxRequestLine;
+        this.maxHeaderBytes = maxHeaderBytes;
+        this.remote = remote;
+        reset();
+    }
+
+    RequestParser(int maxRequestLine, int maxHeaderBytes) {
+        this(maxRequestLine, maxHeaderBytes, null);
+    }
+
+    RequestParser() {
+        this(DEFAULT_MAX_REQUEST_LINE, DEFAULT_MAX_HEADER_BYTES);
+    }
+
+    void reset() {
+        len = 0;
+        pos = 0;
+        count = 0;
+        state = State.METHOD;
+    }
+
+    boolean isComplete() {
+        return state == State.DONE;
+    }
+
+    // appends up to |n| bytes from |data| and advances the state machine.
+    // returns how many of them belong to the head: all |n| while the head
+    // is incomplete, fewer once the blank line that ends it has been seen.
+    int feed(byte[] data, int off, int n) throws BadRequestException {
+        int room = maxRequestLine + maxHeaderBytes - len;
+        int take = Math.min(n, room);
+        if (len + take > buf.length) {
+            buf = Arrays.copyOf(buf, Math.max(len + take, 2 * buf.length));
+        }
+        System.arraycopy(data, off, buf, len, take);
+        len += take;
+        scan();
+        if (state == State.DONE) {
+            int used = take - (len - pos);
+            len = pos;
+            return used;
+        }
+        if (take < n) {
+            throw new BadRequestException("request head too large");
+        }
+        return n;
+    }
+
+    // reads exactly the request head from |in|, leaving the body unread.
+    Request parse(InputStream in) throws IOException, BadRequestException {
+        reset();
+        while (!isComplete()) {
+            int n;
+            if (in.markSupported()) {
+                in.mark(chunk.length);
+                n = in.read(chunk);
+            } else {
+                int c = in.read();
+                chunk[0] = (byte) c;
+                n = c < 0 ? -1 : 1;
+            }
+            if (n < 0) {
+                throw new BadRequestException("unexpected end of request");
+            }
+            int used = feed(chunk, 0, n);
+            if (used < n) {
+                in.reset();
+                in.skipNBytes(used);
+            }
+        }
+        return finish(in);
+    }
+
+    // builds the request once the head is complete, and resets the parser
+    // for the next one. the request keeps a copy of the head bytes, since
+    // the buffer will be overwritten.
+    Request finish(InputStream body) throws BadRequestException {
+        var headers = new Headers(
+                Arrays.copyOf(buf, len),
+                Arrays.copyOf(fields, 4 * count),
+                Arrays.copyOf(hashes, count),
+                count);
+        var path = new String(buf, targetStart, targetEnd - targetStart,
+                ISO_8859_1);
+        var m = method;
+        reset();
+        return Request.create(m, path, headers, body, remote);
+    }
+
+    private static boolean isTokenChar(byte c) {
+        return c > ' ' && c < 127 && c != ':';
+    }
+
+    private void checkRequestLine() throws BadRequestException {
+        if (pos >= maxRequestLine) {
+            throw new BadRequestException("request line too long");
+        }
+    }
+
+    private void checkHeaders() throws BadRequestException {
+        if (pos - headersStart >= maxHeaderBytes) {
+            throw new BadRequestException("headers too large");
+        }
+    }
+
+    private void addField(int start, int end, int hash) {
+        if (4 * count + 4 > fields.length) {
+            fields = Arrays.copyOf(fields, 2 * fields.length);
+            hashes = Arrays.copyOf(hashes, 2 * hashes.length);
+        }
+        fields[4 * count] = start;
+        fields[4 * count + 1] = end;
+        hashes[count] = hash;
+        count++;
+    }
+
+    private void endValue(int end) {
+        int start = fields[4 * count - 2];
+        while (end > start && (buf[end - 1] == ' ' || buf[end - 1] == '\t')) {
+            end--;
+        }
+        fields[4 * count - 1] = end;
+    }
+
+    private void scan() throws BadRequestException {
+        for (; pos < len && state != State.DONE; pos++) {
+            byte c = buf[pos];
+            switch (state) {
+                case METHOD -> {
+                    checkRequestLine();
+                    if (c == ' ') {
+                        method = parseMethod(pos);
+                        targetStart = pos + 1;
+                        state = State.TARGET;
+                    } else if (c < 'A' || c > 'Z') {
+                        throw new BadRequestException("invalid request line");
+                    }
+                }
+                case TARGET -> {
+                    checkRequestLine();
+                    if (c == ' ') {
+                        if (pos == targetStart) {
+                            throw new BadRequestException(
+                                    "invalid request line");
+                        }
+                        targetEnd = pos;
+                        versionStart = pos + 1;
+                        state = State.VERSION;
+                    } else if ((c & 0xff) <= ' ' || c == 127) {
+                        // bytes above 0x7f are let through, for handlers
+                        // to decode.
+                        throw new BadRequestException("invalid request line");
+                    }
+                }
+                case VERSION -> {
+                    checkRequestLine();
+                    if (c == '\r') {
+                        if (!Arrays.equals(buf, versionStart, pos,
+                                HTTP_1_1, 0, HTTP_1_1.length)) {
+                            throw new BadRequestException(
+                                    "unsupported http version");
+                        }
+                        state = State.REQUEST_LINE_LF;
+                    }
+                }
+                case REQUEST_LINE_LF -> {
+                    expectLf(c);
+                    headersStart = pos + 1;
+                    state = State.LINE_START;
+                }
+                case LINE_START -> {
+                    checkHeaders();
+                    if (c == '\r') {
+                        state = State.FINAL_LF;
+                    } else if (isTokenChar(c)) {
+                        nameStart = pos;
+                        nameHash = Headers.lower(c);
+                        state = State.NAME;
+                    } else {
+                        throw new BadRequestException("invalid header");
+                    }
+                }
+                case NAME -> {
+                    checkHeaders();
+                    if (c == ':') {
+                        addField(nameStart, pos, nameHash);
+                        state = State.VALUE_START;
+                    } else if (!isTokenChar(c)) {
+                        throw new BadRequestException("invalid header");
+                    } else {
+                        nameHash = 31 * nameHash + Headers.lower(c);
+                    }
+                }
+                case VALUE_START -> {
+                    checkHeaders();
+                    if (c != ' ' && c != '\t') {
+                        fields[4 * count - 2] = pos;
+                        state = State.VALUE;
+                        pos--;
+                    }
+                }
+                case VALUE -> {
+                    checkHeaders();
+                    if (c == '\r') {
+                        endValue(pos);
+                        state = State.FIELD_LF;
+                    } else if (((c & 0xff) < ' ' && c != '\t') || c == 127) {
+                        // obs-text, bytes above 0x7f, is allowed in values
+                        // (RFC 9110 section 5.5).
+                        throw new BadRequestException("invalid header");
+                    }
+                }
+                case FIELD_LF -> {
+                    expectLf(c);
+                    state = State.LINE_START;
+                }
+                case FINAL_LF -> {
+                    expectLf(c);
+                    state = State.DONE;
+                }
+                case DONE -> {
+                }
+            }
+        }
+    }
+
+    private static void expectLf(byte c) throws BadRequestException {
+        if (c != '\n') {
+            throw new BadRequestException("expected CRLF");
+        }
+    }
+
+    private Method parseMethod(int end) throws BadRequestException {
+        if (Arrays.equals(buf, 0, end, GET, 0, GET.length)) {
+            return Method.GET;
+        }
+        if (Arrays.equals(buf, 0, end, POST, 0, POST.length)) {
+            return Method.POST;
+        }
+        throw new BadRequestException("unsupported http method");
+    }
+}
@@ -2,16 +2,31 @@ package dev.dhc.http;
 
 import java.io.IOException;
 import java.io.OutputStream;
-import static java.nio.charset.StandardCharsets.US_ASCII;
+import java.util.Arrays;
 
 public class Response {
 
     private final StatusCode status;
     private final Body body;
+    // extra header fields as alternating names and values.
+    private final String[] headers;
+    // the whole response encoded ahead of time, or null.
+    private final ResponseEncoder.Encoded encoded;
 
-    Response(StatusCode status, Body body) {
+    private Response(StatusCode status, Body body, String[] headers,
+            ResponseEncoder.Encoded encoded) {
         this.status = status;
         this.body = body;
+        this.headers = headers;
+        this.encoded = encoded;
+    }
+
+    private Response(StatusCode status, Body body, String[] headers) {
+        this(status, body, headers, null);
+    }
+
+    Response(StatusCode status, Body body) {
+        this(status, body, new String[0]);
     }
 
     Response(StatusCode status) {
@@ -26,35 +41,77 @@ public class Response {
         return body;
     }
 
-    static Response notFound() {
-        return new Response(StatusCode.NotFound);
+    private static void checkHeaderText(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '\r' || c == '\n' || c > 0xff) {
+                throw new IllegalArgumentException("invalid header: " + s);
+            }
+        }
     }
 
-    private void sendStatus(OutputStream w, StatusCode status)
-            throws IOException {
-        w.write("HTTP/1.1 %d %s\r\n".formatted(status.code(), status.message())
-                .getBytes(US_ASCII));
+    // returns a copy of this response with an additional header field.
+    // Content-Length, Content-Type and Connection are derived from the body
+    // and the connection, and shouldn't be set here.
+    public Response withHeader(String name, String value) {
+        checkHeaderText(name);
+        checkHeaderText(value);
+        var more = Arrays.copyOf(headers, headers.length + 2);
+        more[headers.length] = name;
+        more[headers.length + 1] = value;
+        return new Response(status, body, more);
     }
 
-    private void appendHeader(OutputStream w, String key, Object value)
-            throws IOException {
-        w.write("%s: %s\r\n".formatted(key, value).getBytes(US_ASCII));
+    // returns a copy of this response without any header fields called
+    // |name|.
+    Response withoutHeader(String name) {
+        var kept = new String[headers.length];
+        int n = 0;
+        for (int i = 0; i < headers.length; i += 2) {
+            if (!headers[i].equalsIgnoreCase(name)) {
+                kept[n++] = headers[i];
+                kept[n++] = headers[i + 1];
+            }
+        }
+        return new Response(status, body, Arrays.copyOf(kept, n));
     }
 
-    private void finishHeaders(OutputStream w) throws IOException {
-        w.write("\r\n".getBytes(US_ASCII));
+    // returns a copy of this response with a different body and the same
+    // status and header fields.
+    Response withBody(Body body) {
+        return new Response(status, body, headers);
     }
 
-    void write(OutputStream w) throws IOException {
-        sendStatus(w, status);
-        appendHeader(w, "Content-Length", body.contentLength());
-        if (body.getContentType().isPresent()) {
-            appendHeader(w, "Content-Type", body.getContentType().get());
-        }
-        finishHeaders(w);
-        if (body.contentLength() > 0) {
-            body.write(w);
+    // returns the value of the last header field called |name|, or null.
+    public String getHeader(String name) {
+        for (int i = headers.length - 2; i >= 0; i -= 2) {
+            if (headers[i].equalsIgnoreCase(name)) {
+                return headers[i + 1];
+            }
         }
-        w.flush();
+        return null;
+    }
+
+    String[] headers() {
+        return headers;
+    }
+
+    // returns a copy of this response that's written out as |encoded|,
+    // which must be this response's own encoding. the copies made by the
+    // with* methods are encoded afresh.
+    Response withEncoding(ResponseEncoder.Encoded encoded) {
+        return new Response(status, body, headers, encoded);
+    }
+
+    ResponseEncoder.Encoded encoded() {
+        return encoded;
+    }
+
+    static Response notFound() {
+        return new Response(StatusCode.NotFound);
+    }
+
+    void write(OutputStream w, boolean keepAlive) throws IOException {
+        new ResponseEncoder().write(this, keepAlive, w);
     }
 }
@@ -0,0 +1,290 @@
+package dev.dhc.http;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+// Keeps whole responses encoded, so that a hit is written to the socket as
+// the bytes that were sent the first time, without running the handler or
+// encoding anything. wrap() decorates a handler with the cache, keyed by
+// the request's method and path and the values of whichever header fields
+// the handler's responses depend on, e.g. User-Agent.
+//
+// Entries are split into stripes by key, each a ConcurrentHashMap, whose
+// lookups take no locks, with its own share of the byte budget. A stripe
+// over budget evicts the entry that expires soonest out of a small sample.
+// Entries expire |ttl| after they're stored. When a key is missing or has
+// expired, the first request to notice calls the handler while the others
+// wait for its response, instead of all calling the handler at once.
+//
+// Only 200 responses to GETs whose bodies are in memory and no longer than
+// maxEntryBytes are kept; anything else is passed through. A hit returns the
+// same Response each time, and wrappers outside the cache that rewrite it,
+// such as CompressionHandler, make copies that are encoded as usual.
+public final class ResponseCache {
+
+    private static final int SAMPLE = 8;
+
+    // a stored key: the method and path, and the values of the header
+    // fields the response depends on, with null for those that are missing.
+    private static final class Key {
+
+        private final Method method;
+        private final String path;
+        private final String[] values;
+        private final int hash;
+
+        Key(Request req, Headers.Name[] vary) {
+            this.method = req.getMethod();
+            this.path = req.getPath();
+            this.values = new String[vary.length];
+            int h = 31 * method.ordinal() + path.hashCode();
+            for (int i = 0; i < vary.length; i++) {
+                values[i] = req.headers().get(vary[i]);
+                h = 31 * h + (values[i] == null ? 0 : values[i].hashCode());
+            }
+            this.hash = h;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Key k && hash == k.hash
+                    && method == k.method && path.equals(k.path)
+                    && Arrays.equals(values, k.values);
+        }
+    }
+
+    // looks up a request's Key without copying its header values: probes
+    // hash the same as the Key they'd make and are equal to it, and map
+    // lookups compare the argument to the stored keys.
+    private static final class Probe {
+
+        private final Request req;
+        private final Headers.Name[] vary;
+        private final int hash;
+
+        Probe(Request req, Headers.Name[] vary) {
+            this.req = req;
+            this.vary = vary;
+            var headers = req.headers();
+            int h = 31 * req.getMethod().ordinal() + req.getPath().hashCode();
+            for (var name : vary) {
+                int i = headers.last(name);
+                h = 31 * h + (i < 0 ? 0 : headers.valueHash(i));
+            }
+            this.hash = h;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key k) || hash != k.hash
+                    || req.getMethod() != k.method
+                    || !req.getPath().equals(k.path)) {
+                return false;
+            }
+            var headers = req.headers();
+            for (int j = 0; j < vary.length; j++) {
+                int i = headers.last(vary[j]);
+                if (i < 0 ? k.values[j] != null
+                        : k.values[j] == null
+                        || !headers.valueIs(i, k.values[j])) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private static final class Entry {
+
+        private final Key key;
+        // completes with the cached response, or with null if there isn't
+        // one because it couldn't be cached or the handler threw, in which
+        // case waiters call the handler themselves.
+        private final CompletableFuture<Response> response
+                = new CompletableFuture<>();
+        // set before the response completes.
+        private long expiresAt;
+        private int size;
+
+        Entry(Key key) {
+            this.key = key;
+        }
+    }
+
+    private static final class Stripe {
+
+        private final ConcurrentHashMap<Object, Entry> entries
+                = new ConcurrentHashMap<>();
+        private final AtomicLong bytes = new AtomicLong();
+    }
+
+    private final Stripe[] stripes;
+    private final long stripeBytes;
+    private final int maxEntryBytes;
+    private final long ttlNanos;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public ResponseCache(long maxBytes, int maxEntryBytes, Duration ttl) {
+        int n = Integer.highestOneBit(
+                2 * Runtime.getRuntime().availableProcessors() - 1) << 1;
+        this.stripes = new Stripe[n];
+        for (int i = 0; i < n; i++) {
+            stripes[i] = new Stripe();
+        }
+        this.stripeBytes = maxBytes / n;
+        this.maxEntryBytes = (int) Math.min(maxEntryBytes, stripeBytes);
+        this.ttlNanos = ttl.toNanos();
+    }
+
+    public ResponseCache(long maxBytes) {
+        this(maxBytes, (int) Math.min(maxBytes / 16, 64 << 10),
+                Duration.ofSeconds(10));
+    }
+
+    // returns a handler that serves |delegate|'s responses from the cache,
+    // keyed by method, path and the values of the |vary| header fields.
+    public Handler wrap(Handler delegate, String... vary) {
+        var names = new Headers.Name[vary.length];
+        for (int i = 0; i < vary.length; i++) {
+            names[i] = new Headers.Name(vary[i]);
+        }
+        return req -> handle(delegate, names, req);
+    }
+
+    private Stripe stripe(int hash) {
+        return stripes[(hash ^ (hash >>> 16)) & (stripes.length - 1)];
+    }
+
+    private Response handle(Handler delegate, Headers.Name[] vary,
+            Request req) {
+        if (req.getMethod() != Method.GET) {
+            return delegate.handle(req);
+        }
+        var probe = new Probe(req, vary);
+        var stripe = stripe(probe.hash);
+        for (;;) {
+            var entry = stripe.entries.get(probe);
+            if (entry != null && !entry.response.isDone()) {
+                return await(entry, delegate, req);
+            }
+            if (entry != null
+                    && System.nanoTime() - entry.expiresAt < 0) {
+                var resp = entry.response.getNow(null);
+                if (resp != null) {
+                    hits.increment();
+                    return resp;
+                }
+            }
+            // missing or expired: whoever installs a new entry loads it.
+            var mine = new Entry(entry != null
+                    ? entry.key
+                    : new Key(req, vary));
+            if (entry == null
+                    ? stripe.entries.putIfAbsent(mine.key, mine) == null
+                    : stripe.entries.replace(mine.key, entry, mine)) {
+                if (entry != null) {
+                    stripe.bytes.addAndGet(-entry.size);
+                }
+                return load(stripe, mine, delegate, req);
+            }
+        }
+    }
+
+    private static Response await(Entry entry, Handler delegate,
+            Request req) {
+        var resp = entry.response.join();
+        return resp != null ? resp : delegate.handle(req);
+    }
+
+    private Response load(Stripe stripe, Entry entry, Handler delegate,
+            Request req) {
+        misses.increment();
+        Response resp;
+        try {
+            resp = delegate.handle(req);
+        } catch (RuntimeException | Error e) {
+            stripe.entries.remove(entry.key, entry);
+            entry.response.complete(null);
+            throw e;
+        }
+        var encoded = resp.getStatus() == StatusCode.OK
+                && resp.getBody().contentLength() <= maxEntryBytes
+                ? new ResponseEncoder().encode(resp)
+                : null;
+        if (encoded == null || encoded.bytes().length > maxEntryBytes) {
+            stripe.entries.remove(entry.key, entry);
+            entry.response.complete(null);
+            return resp;
+        }
+        var cached = resp.withEncoding(encoded);
+        entry.size = encoded.bytes().length;
+        entry.expiresAt = System.nanoTime() + ttlNanos;
+        stripe.bytes.addAndGet(entry.size);
+        entry.response.complete(cached);
+        evict(stripe);
+        return cached;
+    }
+
+    private void evict(Stripe stripe) {
+        while (stripe.bytes.get() > stripeBytes) {
+            Entry victim = null;
+            int sampled = 0;
+            for (var entry : stripe.entries.values()) {
+                if (!entry.response.isDone()) {
+                    continue;
+                }
+                if (victim == null || entry.expiresAt - victim.expiresAt < 0) {
+                    victim = entry;
+                }
+                if (++sampled == SAMPLE) {
+                    break;
+                }
+            }
+            if (victim == null) {
+                return;
+            }
+            if (stripe.entries.remove(victim.key, victim)) {
+                stripe.bytes.addAndGet(-victim.size);
+                evictions.increment();
+            }
+        }
+    }
+
+    public long hits() {
+        return hits.sum();
+    }
+
+    public long misses() {
+        return misses.sum();
+    }
+
+    public long evictions() {
+        return evictions.sum();
+    }
+
+    // the number of bytes of encoded responses held by the cache.
+    public long size() {
+        long size = 0;
+        for (var stripe : stripes) {
+            size += stripe.bytes.get();
+        }
+        return size;
+    }
+}
@@ -0,0 +1,195 @@
+package dev.dhc.http;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import static java.nio.charset.StandardCharsets.US_ASCII;
+
+// Encodes response heads into a buffer that is reused for every response on
+// a connection. Status lines are encoded once per StatusCode, and numbers
+// are written as digits straight into the buffer, so no Strings are built.
+final class ResponseEncoder {
+
+    // a whole response encoded for a connection that's kept alive, and the
+    // offset of the blank line that ends its head, which is where
+    // Connection: close goes when the connection is closing instead.
+    record Encoded(byte[] bytes, int headEnd) {
+    }
+
+    private static final byte[][] STATUS_LINES;
+
+    static {
+        var codes = StatusCode.values();
+        STATUS_LINES = new byte[codes.length][];
+        for (var code : codes) {
+            STATUS_LINES[code.ordinal()] = "HTTP/1.1 %d %s\r\n"
+                    .formatted(code.code(), code.message())
+                    .getBytes(US_ASCII);
+        }
+    }
+
+    private static final byte[] CONTENT_LENGTH
+            = "Content-Length: ".getBytes(US_ASCII);
+    private static final byte[] CONTENT_TYPE
+            = "Content-Type: ".getBytes(US_ASCII);
+    private static final byte[] TRANSFER_ENCODING_CHUNKED
+            = "Transfer-Encoding: chunked\r\n".getBytes(US_ASCII);
+    private static final byte[] CONNECTION_CLOSE
+            = "Connection: close\r\n".getBytes(US_ASCII);
+    private static final byte[] COLON = {':', ' '};
+    private static final byte[] CRLF = {'\r', '\n'};
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private byte[] buf = new byte[256];
+    private int len;
+
+    private void ensure(int n) {
+        if (len + n > buf.length) {
+            buf = Arrays.copyOf(buf, Math.max(len + n, 2 * buf.length));
+        }
+    }
+
+    private void put(byte[] b) {
+        ensure(b.length);
+        System.arraycopy(b, 0, buf, len, b.length);
+        len += b.length;
+    }
+
+    // header names and values are validated to be single-line latin-1 text
+    // when they're added to the response.
+    private void put(String s) {
+        ensure(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            buf[len++] = (byte) s.charAt(i);
+        }
+    }
+
+    private void putDecimal(long n) {
+        ensure(20);
+        if (n == 0) {
+            buf[len++] = '0';
+            return;
+        }
+        int start = len;
+        for (; n > 0; n /= 10) {
+            buf[len++] = (byte) ('0' + n % 10);
+        }
+        for (int i = start, j = len - 1; i < j; i++, j--) {
+            byte t = buf[i];
+            buf[i] = buf[j];
+            buf[j] = t;
+        }
+    }
+
+    // returns the encoded status line and headers. the buffer is only valid
+    // until the next call.
+    ByteBuffer encodeHead(Response resp, boolean keepAlive) {
+        len = 0;
+        var body = resp.getBody();
+        put(STATUS_LINES[resp.getStatus().ordinal()]);
+        long length = body.contentLength();
+        // a 304 has no body, and a length would describe the one the client
+        // already has.
+        if (resp.getStatus() != StatusCode.NotModified) {
+            if (length == Body.UNKNOWN_LENGTH) {
+                put(TRANSFER_ENCODING_CHUNKED);
+            } else {
+                put(CONTENT_LENGTH);
+                putDecimal(length);
+                put(CRLF);
+            }
+        }
+        var contentType = body.getContentType();
+        if (contentType.isPresent()) {
+            put(CONTENT_TYPE);
+            put(contentType.get());
+            put(CRLF);
+        }
+        var headers = resp.headers();
+        for (int i = 0; i < headers.length; i += 2) {
+            put(headers[i]);
+            put(COLON);
+            put(headers[i + 1]);
+            put(CRLF);
+        }
+        if (!keepAlive) {
+            put(CONNECTION_CLOSE);
+        }
+        put(CRLF);
+        return ByteBuffer.wrap(buf, 0, len);
+    }
+
+    // returns the body as a buffer if it's already in memory, or null if it
+    // has to be streamed.
+    static ByteBuffer inMemory(Body body) {
+        return switch (body) {
+            case Body.EmptyBody e ->
+                EMPTY;
+            case Body.StringBody s ->
+                ByteBuffer.wrap(s.body().getBytes(US_ASCII));
+            case Body.BytesBody b ->
+                ByteBuffer.wrap(b.bytes());
+            case Body.CachedFileBody c ->
+                c.contents().duplicate();
+            default ->
+                null;
+        };
+    }
+
+    // returns the whole of |resp| encoded, or null if its body isn't in
+    // memory.
+    Encoded encode(Response resp) {
+        var bytes = inMemory(resp.getBody());
+        if (bytes == null) {
+            return null;
+        }
+        var head = encodeHead(resp, true);
+        var encoded = new byte[head.remaining() + bytes.remaining()];
+        head.get(encoded, 0, len);
+        bytes.get(encoded, len, encoded.length - len);
+        return new Encoded(encoded, len - CRLF.length);
+    }
+
+    // the buffers to send for a response encoded ahead of time.
+    static ByteBuffer[] buffers(Encoded encoded, boolean keepAlive) {
+        var bytes = encoded.bytes();
+        if (keepAlive) {
+            return new ByteBuffer[]{ByteBuffer.wrap(bytes)};
+        }
+        int end = encoded.headEnd();
+        return new ByteBuffer[]{
+            ByteBuffer.wrap(bytes, 0, end),
+            ByteBuffer.wrap(CONNECTION_CLOSE),
+            ByteBuffer.wrap(bytes, end, bytes.length - end),
+        };
+    }
+
+    void write(Response resp, boolean keepAlive, OutputStream out)
+            throws IOException {
+        var encoded = resp.encoded();
+        if (encoded != null) {
+            var buffers = buffers(encoded, keepAlive);
+            if (out instanceof ChannelOutputStream c) {
+                c.write(buffers);
+                return;
+            }
+            for (var b : buffers) {
+                out.write(b.array(), b.position(), b.remaining());
+            }
+            return;
+        }
+        var head = encodeHead(resp, keepAlive);
+        var body = resp.getBody();
+        var bytes = inMemory(body);
+        if (bytes != null && out instanceof ChannelOutputStream c) {
+            c.write(head, bytes);
+            return;
+        }
+        out.write(buf, 0, len);
+        if (body.contentLength() != 0) {
+            body.write(out);
+        }
+    }
+}
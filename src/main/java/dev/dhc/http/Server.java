@@ -1,56 +1,331 @@
 package dev.dhc.http;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.SocketAddress;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class Server {
 
     private final int port;
     private final Handler handler;
+    private final ServerOptions options;
+    private final Metrics metrics;
+    private final Admission admission;
+    private final TimerWheel wheel = new TimerWheel();
+    private final ExecutorService executor
+            = Executors.newVirtualThreadPerTaskExecutor();
+    // opened by run() if options.accessLog() is set.
+    private AccessLog accessLog;
 
-    public Server(int port, Handler handler) {
+    // connection and byte counts are recorded in |metrics|, which may be
+    // shared with the handler's routers so that /metrics can serve both.
+    public Server(int port, Handler handler, ServerOptions options,
+            Metrics metrics) {
         this.port = port;
-        this.handler = handler;
+        this.options = options;
+        this.metrics = metrics;
+        this.admission = new Admission(options, metrics);
+        this.handler = admission.guard(handler);
+    }
+
+    public Server(int port, Handler handler, ServerOptions options) {
+        this(port, handler, options, new Metrics());
+    }
+
+    public Server(int port, Handler handler) {
+        this(port, handler, ServerOptions.defaults());
+    }
+
+    public Metrics metrics() {
+        return metrics;
+    }
+
+    // a response that is still being computed for a pipelined request.
+    private record Pending(Request req, long start, Future<Response> response,
+            boolean keepAlive) {
+    }
+
+    private RequestParser newParser(SocketAddress remote) {
+        return new RequestParser(options.maxRequestLineBytes(),
+                options.maxHeaderBytes(), remote);
+    }
+
+    // blocks until the next request starts arriving. returns false if the
+    // client closed the connection or stayed idle for too long.
+    private boolean awaitRequest(InputStream in) throws IOException {
+        in.mark(1);
+        if (in.read() < 0) {
+            return false;
+        }
+        in.reset();
+        return true;
     }
 
-    private void fulfill(OutputStream out, InputStream in) throws IOException {
-        Response resp;
+    // requests without side effects or bodies can be handled concurrently
+    // with the ones queued behind them on the same connection.
+    private static boolean pipelinable(Request req) {
+        return req.getMethod() == Method.GET && !req.hasBody();
+    }
+
+    // records a response in the access log, if there is one, before it's
+    // sent. |req| is null if the request couldn't be parsed.
+    private void log(AccessLog.Remote remote, Request req, Response resp,
+            long start) {
+        if (accessLog != null) {
+            accessLog.record(req, resp.getStatus(),
+                    resp.getBody().contentLength(), System.nanoTime() - start,
+                    remote);
+        }
+    }
+
+    // writes the queued responses in the order their requests arrived. the
+    // write deadline doesn't apply while waiting for a handler.
+    private void writePending(OutputStream out, ResponseEncoder enc,
+            Queue<Pending> pending, ConnectionTimer timer,
+            AccessLog.Remote remote) throws IOException {
+        for (Pending p; (p = pending.poll()) != null;) {
+            Response resp;
+            try {
+                timer.cancel();
+                resp = p.response().get();
+            } catch (ExecutionException e) {
+                e.getCause().printStackTrace(System.err);
+                resp = new Response(StatusCode.InternalServerError);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+            timer.write();
+            log(remote, p.req(), resp, p.start());
+            enc.write(resp, p.keepAlive(), out);
+        }
+    }
+
+    private Http2Connection http2(SocketChannel channel, InputStream in,
+            OutputStream out) {
+        return new Http2Connection(channel, in, out, handler, options, metrics,
+                wheel, executor, accessLog);
+    }
+
+    // returns whether the connection can be reused for another request.
+    private boolean fulfill(SocketChannel channel, OutputStream out,
+            InputStream in, RequestParser parser, ResponseEncoder enc,
+            Queue<Pending> pending, ConnectionTimer timer, InFlight inFlight,
+            AccessLog.Remote remote, boolean last) throws IOException {
+        Request req;
+        long start = System.nanoTime();
         try {
-            resp = handler.handle(Request.parseFrom(in));
+            timer.header();
+            req = parser.parse(in);
         } catch (BadRequestException e) {
-            resp = new Response(StatusCode.BadRequest);
+            var status = StatusCode.RequestTimeout;
+            if (timer.expired() == null) {
+                metrics.parseError();
+                status = StatusCode.BadRequest;
+            }
+            writePending(out, enc, pending, timer, remote);
+            timer.write();
+            var resp = new Response(status);
+            log(remote, null, resp, start);
+            enc.write(resp, false, out);
+            return false;
+        }
+        // an upgrade can't be pipelined, since the responses that follow
+        // its 101 are all HTTP/2.
+        if (options.h2c() && pending.isEmpty()
+                && Http2Connection.upgradable(req)) {
+            timer.cancel();
+            http2(channel, in, out).serve(req);
+            return false;
+        }
+        boolean keepAlive = req.keepAlive() && !last;
+        if (keepAlive && pipelinable(req) && in.available() > 0) {
+            timer.cancel();
+            pending.add(new Pending(req, start,
+                    executor.submit(() -> handler.handle(req)), keepAlive));
+            if (pending.size() >= options.maxPipelineDepth()) {
+                writePending(out, enc, pending, timer, remote);
+            }
+            return true;
+        }
+        writePending(out, enc, pending, timer, remote);
+        if (req.hasBody()) {
+            timer.body();
+            req.onBodyEnd(timer::bodyDone);
+        } else {
+            timer.cancel();
+        }
+        var resp = respond(req, timer, inFlight);
+        if (timer.expired() == ConnectionTimer.Phase.BODY
+                && req.bodyCutShort()) {
+            // the body stopped arriving, so the handler saw it end early.
+            resp = new Response(StatusCode.RequestTimeout);
+        }
+        if (timer.expired() != null) {
+            keepAlive = false;
+        }
+        timer.write();
+        log(remote, req, resp, start);
+        enc.write(resp, keepAlive, out);
+        if (!keepAlive) {
+            return false;
+        }
+        if (req.hasBody()) {
+            timer.body();
+        }
+        return req.drainBody();
+    }
+
+    // the stage of an asynchronous handler that a connection is waiting
+    // for, so that its deadline can cancel it.
+    private static final class InFlight {
+
+        private volatile CompletableFuture<Response> stage;
+    }
+
+    // runs the handler and waits for its response. the handler deadline
+    // only applies once it has returned a stage that isn't complete; if
+    // that's cancelled the client gets a 503, and if it fails, a 500.
+    private Response respond(Request req, ConnectionTimer timer,
+            InFlight inFlight) {
+        CompletableFuture<Response> stage;
+        try {
+            stage = handler.handleAsync(req).toCompletableFuture();
+        } catch (RuntimeException e) {
+            stage = CompletableFuture.failedFuture(e);
+        }
+        if (!stage.isDone()) {
+            inFlight.stage = stage;
+            timer.handler();
+            stage.handle((resp, e) -> null).join();
+            inFlight.stage = null;
+        }
+        try {
+            return stage.join();
+        } catch (CancellationException e) {
+            return new Response(StatusCode.ServiceUnavailable);
+        } catch (CompletionException e) {
+            e.getCause().printStackTrace(System.err);
+            return new Response(StatusCode.InternalServerError);
+        }
+    }
+
+    // unblocks a connection's thread when |phase| expires: reads see the
+    // end of the stream, so a 408 can still be sent, a handler's stage is
+    // cancelled, and a stalled write fails outright.
+    private static void expire(SocketChannel channel, InFlight inFlight,
+            ConnectionTimer.Phase phase) {
+        try {
+            switch (phase) {
+                case HANDLER -> {
+                    var stage = inFlight.stage;
+                    if (stage != null) {
+                        stage.cancel(true);
+                    }
+                }
+                case WRITE ->
+                    channel.close();
+                default ->
+                    channel.shutdownInput();
+            }
+        } catch (IOException e) {
         }
-        resp.write(out);
     }
 
-    private void serve(Socket client) {
+    private void serve(SocketChannel channel) {
+        final var client = channel.socket();
         final var addr = client.getRemoteSocketAddress();
-        try (client;
-            var r = new BufferedInputStream(client.getInputStream());
-            var w = new BufferedOutputStream(client.getOutputStream())
+        final var remote = accessLog != null ? AccessLog.remote(addr) : null;
+        metrics.connectionOpened();
+        var inFlight = new InFlight();
+        var timer = new ConnectionTimer(wheel, options, metrics,
+                phase -> expire(channel, inFlight, phase));
+        // bytes received also extend the body deadline, and bytes sent the
+        // write deadline.
+        try (channel;
+            var r = new ChannelInputStream(channel, BufferPool.DIRECT, n -> {
+                metrics.received(n);
+                timer.received(n);
+            });
+            var w = new ChannelOutputStream(channel, BufferPool.DIRECT, n -> {
+                metrics.sent(n);
+                timer.sent(n);
+            })
          ) {
-            fulfill(w, r);
+            int max = options.maxRequestsPerConnection();
+            var parser = newParser(addr);
+            var enc = new ResponseEncoder();
+            var pending = new ArrayDeque<Pending>();
+            for (int n = 1;; n++) {
+                // only flush once the client has nothing else queued up, so
+                // that pipelined responses go out together.
+                if (r.available() == 0) {
+                    writePending(w, enc, pending, timer, remote);
+                    timer.write();
+                    w.flush();
+                }
+                timer.idle();
+                if (!awaitRequest(r)) {
+                    break;
+                }
+                // a client with prior knowledge of HTTP/2 starts with its
+                // preface instead of a request.
+                if (n == 1 && options.h2c()
+                        && Http2Connection.startsPreface(r)) {
+                    timer.cancel();
+                    http2(channel, r, w).serve(null);
+                    return;
+                }
+                if (!fulfill(channel, w, r, parser, enc, pending, timer,
+                        inFlight, remote, n >= max)) {
+                    break;
+                }
+            }
+            writePending(w, enc, pending, timer, remote);
+            timer.write();
+            w.flush();
         } catch (IOException e) {
-            System.err.printf("error handling client %s:\n", addr);
-            e.printStackTrace(System.err);
+            // a connection that timed out fails however it was blocked.
+            if (timer.expired() == null) {
+                System.err.printf("error handling client %s:\n", addr);
+                e.printStackTrace(System.err);
+            }
+        } finally {
+            timer.cancel();
+            metrics.connectionClosed();
+            admission.release();
         }
     }
 
     public void run() throws IOException {
-        try (ServerSocket server = new ServerSocket(port)) {
-            server.setReuseAddress(true);
-            var executor = Executors.newVirtualThreadPerTaskExecutor();
-            while (true) {
-                var client = server.accept();
-                executor.submit(() -> serve(client));
-            }
+        if (options.accessLog() != null) {
+            accessLog = new AccessLog(options.accessLog(),
+                    options.accessLogMaxBytes(), metrics);
         }
+        switch (options.engine()) {
+            case THREAD_PER_CONNECTION ->
+                runThreadPerConnection();
+            case EVENT_LOOP ->
+                new EventLoopEngine(port, handler, options, metrics, admission,
+                        wheel, executor, accessLog).run();
+        }
+    }
+
+    private void runThreadPerConnection() throws IOException {
+        new Acceptors(port, 0, options, admission, metrics).run(
+                shard -> client -> executor.submit(() -> serve(client)));
     }
 
 }
@@ -0,0 +1,227 @@
+package dev.dhc.http;
+
+import java.nio.file.Path;
+import java.time.Duration;
+
+public record ServerOptions(
+        Engine engine,
+        int eventLoops,
+        int acceptors,
+        Duration idleTimeout,
+        int maxRequestsPerConnection,
+        int maxPipelineDepth,
+        int maxRequestLineBytes,
+        int maxHeaderBytes,
+        int maxConnections,
+        int maxInFlightRequests,
+        Duration queueTarget,
+        Duration queueInterval,
+        Duration headerTimeout,
+        Duration bodyTimeout,
+        long minBodyRate,
+        Duration writeTimeout,
+        Duration handlerTimeout,
+        Path accessLog,
+        long accessLogMaxBytes,
+        RateLimiter.Limit connectionRateLimit,
+        boolean h2c,
+        int maxConcurrentStreams) {
+
+    public enum Engine {
+        // blocking socket i/o with a virtual thread per connection.
+        THREAD_PER_CONNECTION,
+        // non-blocking channels multiplexed over a few selector threads,
+        // with handlers running on virtual threads.
+        EVENT_LOOP,
+    }
+
+    public static ServerOptions defaults() {
+        return builder().build();
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    // returns a builder that starts from these options.
+    public Builder toBuilder() {
+        var b = new Builder();
+        b.engine = engine;
+        b.eventLoops = eventLoops;
+        b.acceptors = acceptors;
+        b.idleTimeout = idleTimeout;
+        b.maxRequestsPerConnection = maxRequestsPerConnection;
+        b.maxPipelineDepth = maxPipelineDepth;
+        b.maxRequestLineBytes = maxRequestLineBytes;
+        b.maxHeaderBytes = maxHeaderBytes;
+        b.maxConnections = maxConnections;
+        b.maxInFlightRequests = maxInFlightRequests;
+        b.queueTarget = queueTarget;
+        b.queueInterval = queueInterval;
+        b.headerTimeout = headerTimeout;
+        b.bodyTimeout = bodyTimeout;
+        b.minBodyRate = minBodyRate;
+        b.writeTimeout = writeTimeout;
+        b.handlerTimeout = handlerTimeout;
+        b.accessLog = accessLog;
+        b.accessLogMaxBytes = accessLogMaxBytes;
+        b.connectionRateLimit = connectionRateLimit;
+        b.h2c = h2c;
+        b.maxConcurrentStreams = maxConcurrentStreams;
+        return b;
+    }
+
+    // Collects options, starting from the defaults, so that callers only
+    // name the ones they change.
+    public static final class Builder {
+
+        private Engine engine = Engine.THREAD_PER_CONNECTION;
+        private int eventLoops = Runtime.getRuntime().availableProcessors();
+        // more than one shares the port with SO_REUSEPORT, and so with any
+        // other server bound to it that way, so it has to be asked for.
+        private int acceptors = 1;
+        private Duration idleTimeout = Duration.ofSeconds(30);
+        private int maxRequestsPerConnection = 1000;
+        private int maxPipelineDepth = 32;
+        private int maxRequestLineBytes
+                = RequestParser.DEFAULT_MAX_REQUEST_LINE;
+        private int maxHeaderBytes = RequestParser.DEFAULT_MAX_HEADER_BYTES;
+        private int maxConnections = 10_000;
+        private int maxInFlightRequests = 1024;
+        private Duration queueTarget = Duration.ofMillis(5);
+        private Duration queueInterval = Duration.ofMillis(100);
+        private Duration headerTimeout = Duration.ofSeconds(10);
+        private Duration bodyTimeout = Duration.ofSeconds(10);
+        private long minBodyRate = 1024;
+        private Duration writeTimeout = Duration.ofSeconds(30);
+        private Duration handlerTimeout = Duration.ofSeconds(60);
+        private Path accessLog = null;
+        private long accessLogMaxBytes = 64L << 20;
+        private RateLimiter.Limit connectionRateLimit = null;
+        private boolean h2c = true;
+        private int maxConcurrentStreams = 256;
+
+        private Builder() {
+        }
+
+        public Builder engine(Engine engine) {
+            this.engine = engine;
+            return this;
+        }
+
+        public Builder eventLoops(int eventLoops) {
+            this.eventLoops = eventLoops;
+            return this;
+        }
+
+        public Builder acceptors(int acceptors) {
+            this.acceptors = acceptors;
+            return this;
+        }
+
+        public Builder idleTimeout(Duration idleTimeout) {
+            this.idleTimeout = idleTimeout;
+            return this;
+        }
+
+        public Builder maxRequestsPerConnection(int maxRequestsPerConnection) {
+            this.maxRequestsPerConnection = maxRequestsPerConnection;
+            return this;
+        }
+
+        public Builder maxPipelineDepth(int maxPipelineDepth) {
+            this.maxPipelineDepth = maxPipelineDepth;
+            return this;
+        }
+
+        public Builder maxRequestLineBytes(int maxRequestLineBytes) {
+            this.maxRequestLineBytes = maxRequestLineBytes;
+            return this;
+        }
+
+        public Builder maxHeaderBytes(int maxHeaderBytes) {
+            this.maxHeaderBytes = maxHeaderBytes;
+            return this;
+        }
+
+        public Builder maxConnections(int maxConnections) {
+            this.maxConnections = maxConnections;
+            return this;
+        }
+
+        public Builder maxInFlightRequests(int maxInFlightRequests) {
+            this.maxInFlightRequests = maxInFlightRequests;
+            return this;
+        }
+
+        public Builder queueTarget(Duration queueTarget) {
+            this.queueTarget = queueTarget;
+            return this;
+        }
+
+        public Builder queueInterval(Duration queueInterval) {
+            this.queueInterval = queueInterval;
+            return this;
+        }
+
+        public Builder headerTimeout(Duration headerTimeout) {
+            this.headerTimeout = headerTimeout;
+            return this;
+        }
+
+        public Builder bodyTimeout(Duration bodyTimeout) {
+            this.bodyTimeout = bodyTimeout;
+            return this;
+        }
+
+        public Builder minBodyRate(long minBodyRate) {
+            this.minBodyRate = minBodyRate;
+            return this;
+        }
+
+        public Builder writeTimeout(Duration writeTimeout) {
+            this.writeTimeout = writeTimeout;
+            return this;
+        }
+
+        public Builder handlerTimeout(Duration handlerTimeout) {
+            this.handlerTimeout = handlerTimeout;
+            return this;
+        }
+
+        public Builder accessLog(Path accessLog) {
+            this.accessLog = accessLog;
+            return this;
+        }
+
+        public Builder accessLogMaxBytes(long accessLogMaxBytes) {
+            this.accessLogMaxBytes = accessLogMaxBytes;
+            return this;
+        }
+
+        public Builder connectionRateLimit(RateLimiter.Limit limit) {
+            this.connectionRateLimit = limit;
+            return this;
+        }
+
+        public Builder h2c(boolean h2c) {
+            this.h2c = h2c;
+            return this;
+        }
+
+        public Builder maxConcurrentStreams(int maxConcurrentStreams) {
+            this.maxConcurrentStreams = maxConcurrentStreams;
+            return this;
+        }
+
+        public ServerOptions build() {
+            return new ServerOptions(engine, eventLoops, acceptors,
+                    idleTimeout, maxRequestsPerConnection, maxPipelineDepth,
+                    maxRequestLineBytes, maxHeaderBytes, maxConnections,
+                    maxInFlightRequests, queueTarget, queueInterval,
+                    headerTimeout, bodyTimeout, minBodyRate, writeTimeout,
+                    handlerTimeout, accessLog, accessLogMaxBytes,
+                    connectionRateLimit, h2c, maxConcurrentStreams);
+        }
+    }
+}
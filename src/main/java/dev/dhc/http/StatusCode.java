@@ -1,15 +1,24 @@
 package dev.dhc.http;
 
 public enum StatusCode {
-    BadRequest, NotFound, OK, InternalServerError, Created;
+    BadRequest, NotFound, MethodNotAllowed, OK, InternalServerError, Created,
+    PartialContent, NotModified, RangeNotSatisfiable, ServiceUnavailable,
+    RequestTimeout, TooManyRequests;
 
     public int code() {
         return switch (this) {
             case BadRequest -> 400;
             case NotFound -> 404;
+            case MethodNotAllowed -> 405;
             case OK -> 200;
             case InternalServerError -> 500;
             case Created -> 201;
+            case PartialContent -> 206;
+            case NotModified -> 304;
+            case RangeNotSatisfiable -> 416;
+            case ServiceUnavailable -> 503;
+            case RequestTimeout -> 408;
+            case TooManyRequests -> 429;
         };
     }
 
@@ -17,9 +26,16 @@ public enum StatusCode {
         return switch (this) {
             case BadRequest -> "Bad Request";
             case NotFound -> "Not Found";
+            case MethodNotAllowed -> "Method Not Allowed";
             case OK -> "OK";
             case InternalServerError -> "Internal Server Error";
             case Created -> "Created";
+            case PartialContent -> "Partial Content";
+            case NotModified -> "Not Modified";
+            case RangeNotSatisfiable -> "Range Not Satisfiable";
+            case ServiceUnavailable -> "Service Unavailable";
+            case RequestTimeout -> "Request Timeout";
+            case TooManyRequests -> "Too Many Requests";
         };
     }
 }
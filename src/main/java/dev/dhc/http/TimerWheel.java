@@ -0,0 +1,131 @@
+package dev.dhc.http;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+// A hashed timer wheel that fires the deadlines of every connection from a
+// single thread. Each connection owns one Timer that it re-arms as it moves
+// between phases, which only writes the new deadline: the timer stays in
+// whichever slot it's in and is moved when the wheel reaches that slot, so
+// re-arming is cheap and allocation-free. Deadlines fire up to one tick
+// late, and tasks run on the wheel's thread, so they must not block.
+final class TimerWheel {
+
+    private static final long NONE = Long.MAX_VALUE;
+
+    final class Timer {
+
+        private final Runnable task;
+        private final AtomicLong deadline = new AtomicLong(NONE);
+        // whether the timer is in a slot or in the inbox.
+        private final AtomicBoolean queued = new AtomicBoolean();
+
+        private Timer(Runnable task) {
+            this.task = task;
+        }
+
+        // arms the timer to fire |delayNanos| from now, replacing any
+        // earlier deadline.
+        void reset(long delayNanos) {
+            deadline.set(System.nanoTime() + delayNanos);
+            if (queued.compareAndSet(false, true)) {
+                inbox.add(this);
+            }
+        }
+
+        void cancel() {
+            deadline.set(NONE);
+        }
+    }
+
+    private final long tickNanos;
+    private final ArrayDeque<Timer>[] slots;
+    private final ConcurrentLinkedQueue<Timer> inbox
+            = new ConcurrentLinkedQueue<>();
+    private long tick;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    TimerWheel(Duration tick, int slots) {
+        this.tickNanos = tick.toNanos();
+        this.slots = new ArrayDeque[slots];
+        for (int i = 0; i < slots; i++) {
+            this.slots[i] = new ArrayDeque<>();
+        }
+        this.tick = Math.floorDiv(System.nanoTime(), tickNanos);
+        var thread = new Thread(this::run, "timer-wheel");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    TimerWheel() {
+        this(Duration.ofMillis(100), 512);
+    }
+
+    Timer timer(Runnable task) {
+        return new Timer(task);
+    }
+
+    private void run() {
+        while (true) {
+            LockSupport.parkNanos(tickNanos);
+            long now = System.nanoTime();
+            for (Timer t; (t = inbox.poll()) != null;) {
+                place(t);
+            }
+            long last = Math.floorDiv(now, tickNanos);
+            for (; tick <= last; tick++) {
+                expire(slot(tick), now);
+            }
+        }
+    }
+
+    // nanoTime may be negative, so ticks are too.
+    private ArrayDeque<Timer> slot(long tick) {
+        return slots[(int) Math.floorMod(tick, (long) slots.length)];
+    }
+
+    private void place(Timer t) {
+        long d = t.deadline.get();
+        if (d == NONE) {
+            dequeue(t);
+            return;
+        }
+        // deadlines that have already passed go in the next slot to expire.
+        slot(Math.max(Math.floorDiv(d, tickNanos), tick)).add(t);
+    }
+
+    private void expire(ArrayDeque<Timer> slot, long now) {
+        for (int n = slot.size(); n > 0; n--) {
+            var t = slot.poll();
+            long d = t.deadline.get();
+            if (d == NONE) {
+                dequeue(t);
+            } else if (d > now) {
+                // re-armed since it was placed, or due on a later turn.
+                slot(Math.max(Math.floorDiv(d, tickNanos), tick + 1)).add(t);
+            } else if (t.deadline.compareAndSet(d, NONE)) {
+                dequeue(t);
+                try {
+                    t.task.run();
+                } catch (RuntimeException e) {
+                    e.printStackTrace(System.err);
+                }
+            } else {
+                // re-armed just now; look again on the next tick.
+                slot(tick + 1).add(t);
+            }
+        }
+    }
+
+    // takes |t| off the wheel, unless it was re-armed in the meantime.
+    private void dequeue(Timer t) {
+        t.queued.set(false);
+        if (t.deadline.get() != NONE && t.queued.compareAndSet(false, true)) {
+            inbox.add(t);
+        }
+    }
+}
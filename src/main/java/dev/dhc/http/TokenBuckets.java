@@ -0,0 +1,94 @@
+package dev.dhc.http;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+// A token bucket per key, e.g. per client address, that fills at a limit's
+// rate up to its burst. Each bucket is a single AtomicLong holding the time
+// at which it will be full again, as in GCRA: taking a token moves that
+// time one interval later, unless that would put it more than a full
+// bucket's worth ahead of now, so a decision is one CAS and nothing is
+// locked.
+//
+// Keys are spread over stripes, each a ConcurrentHashMap, and each stripe
+// is swept of full buckets by whichever thread first finds its sweep due.
+// A full bucket behaves exactly like a missing one, so evicting idle
+// clients never changes a decision, except that a token taken from a
+// bucket just as it's evicted is forgotten.
+final class TokenBuckets {
+
+    private static final long SWEEP_NANOS = 1_000_000_000;
+
+    private static final class Stripe {
+
+        private final ConcurrentHashMap<Object, AtomicLong> buckets
+                = new ConcurrentHashMap<>();
+        private final AtomicLong nextSweep = new AtomicLong(System.nanoTime());
+    }
+
+    private final long intervalNanos;
+    private final long burstNanos;
+    private final long sweepNanos;
+    private final Stripe[] stripes;
+
+    TokenBuckets(RateLimiter.Limit limit, long sweepNanos) {
+        this.sweepNanos = sweepNanos;
+        this.intervalNanos = Math.max(1, (long) (1e9 / limit.perSecond()));
+        this.burstNanos = intervalNanos * limit.burst();
+        int n = Integer.highestOneBit(
+                2 * Runtime.getRuntime().availableProcessors() - 1) << 1;
+        this.stripes = new Stripe[n];
+        for (int i = 0; i < n; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    TokenBuckets(RateLimiter.Limit limit) {
+        this(limit, SWEEP_NANOS);
+    }
+
+    // takes a token from |key|'s bucket. returns 0 if there was one, or
+    // else how many nanoseconds until there will be.
+    long take(Object key) {
+        int h = key.hashCode();
+        var stripe = stripes[(h ^ (h >>> 16)) & (stripes.length - 1)];
+        long now = System.nanoTime();
+        sweep(stripe, now);
+        var bucket = stripe.buckets.get(key);
+        if (bucket == null) {
+            var fresh = new AtomicLong(now);
+            bucket = stripe.buckets.putIfAbsent(key, fresh);
+            if (bucket == null) {
+                bucket = fresh;
+            }
+        }
+        for (;;) {
+            long full = bucket.get();
+            long next = Math.max(full, now) + intervalNanos;
+            if (next - now > burstNanos) {
+                return next - now - burstNanos;
+            }
+            if (bucket.compareAndSet(full, next)) {
+                return 0;
+            }
+        }
+    }
+
+    private void sweep(Stripe stripe, long now) {
+        long due = stripe.nextSweep.get();
+        if (now - due < 0
+                || !stripe.nextSweep.compareAndSet(due, now + sweepNanos)) {
+            return;
+        }
+        stripe.buckets.values().removeIf(bucket -> bucket.get() - now <= 0);
+    }
+
+    // how many keys have a bucket that isn't full, or was until recently.
+    int size() {
+        int n = 0;
+        for (var stripe : stripes) {
+            n += stripe.buckets.size();
+        }
+        return n;
+    }
+}
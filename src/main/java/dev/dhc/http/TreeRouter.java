@@ -0,0 +1,284 @@
+package dev.dhc.http;
+
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletionStage;
+import java.util.regex.Pattern;
+import static java.util.stream.Collectors.joining;
+
+// Routes requests through a radix tree built from path templates such as
+// "/files/{filename}". Literal text is stored on compressed edges and each
+// {param} matches one non-empty path segment, so lookup cost depends on the
+// length of the path rather than on the number of routes. Literal edges
+// take priority over parameters, unless the literal route doesn't accept
+// the request's method. Routes that need a regex can still be added and are
+// tried when the tree has no handler for the request; if neither does but
+// the path matched, the response is 405 with an Allow header. Given a
+// Metrics, each route's handler is timed under its template (or pattern),
+// and requests that match no route are recorded as "unmatched". Routes may
+// be asynchronous: handleAsync() passes their stages through, while
+// handle() waits for them.
+public class TreeRouter implements Handler {
+
+    private static final Response NOT_FOUND = Response.notFound();
+    static final String UNMATCHED = "unmatched";
+
+    private static final class Node {
+
+        private String label;
+        private Node[] children = new Node[0];
+        private Node param;
+        private String paramName;
+        // indexed by Method.ordinal(), or null if no route ends here.
+        private AsyncHandler[] handlers;
+        private String allow;
+        // what a path that ends here matches when no route here accepts
+        // the request's method.
+        private Match mismatch;
+
+        Node(String label) {
+            this.label = label;
+        }
+    }
+
+    // the leaf that a path matched, plus the parameters bound on the way.
+    // only allocated once a route for the method has been found; a path
+    // that matched only routes for other methods gets the leaf's shared
+    // mismatch, which binds no parameters.
+    private static final class Match {
+
+        private final Node node;
+        private final Map<String, String> params;
+
+        Match(Node node, Map<String, String> params) {
+            this.node = node;
+            this.params = params;
+        }
+
+        boolean found() {
+            return params != null;
+        }
+    }
+
+    private final Node root = new Node("");
+    private final RegexRouter fallback = new RegexRouter();
+    private final Metrics metrics;
+    private final Metrics.Route unmatched;
+
+    public TreeRouter(Metrics metrics) {
+        this.metrics = metrics;
+        this.unmatched = metrics != null ? metrics.route(UNMATCHED) : null;
+    }
+
+    public TreeRouter() {
+        this(null);
+    }
+
+    private Handler instrument(String name, Handler handler) {
+        return metrics != null ? metrics.instrument(name, handler) : handler;
+    }
+
+    public void addRoute(Set<Method> methods, String template,
+            Handler handler) {
+        insert(methods, template, instrument(template, handler));
+    }
+
+    public void addAsyncRoute(Set<Method> methods, String template,
+            AsyncHandler handler) {
+        insert(methods, template, metrics != null
+                ? metrics.instrumentAsync(template, handler)
+                : handler);
+    }
+
+    private void insert(Set<Method> methods, String template,
+            AsyncHandler handler) {
+        if (!template.startsWith("/")) {
+            throw new IllegalArgumentException(
+                    "template must start with /: " + template);
+        }
+        var node = root;
+        for (int pos = 0; pos < template.length();) {
+            int open = template.indexOf('{', pos);
+            if (open < 0) {
+                node = insertStatic(node, template.substring(pos));
+                break;
+            }
+            int close = template.indexOf('}', open);
+            if (close < 0 || template.charAt(open - 1) != '/'
+                    || (close + 1 < template.length()
+                    && template.charAt(close + 1) != '/')) {
+                throw new IllegalArgumentException(
+                        "parameters must span a whole segment: " + template);
+            }
+            node = insertStatic(node, template.substring(pos, open));
+            node = insertParam(node, template.substring(open + 1, close));
+            pos = close + 1;
+        }
+        if (node.handlers == null) {
+            node.handlers = new AsyncHandler[Method.values().length];
+            node.mismatch = new Match(node, null);
+        }
+        for (var method : methods) {
+            node.handlers[method.ordinal()] = handler;
+        }
+        var allowed = EnumSet.noneOf(Method.class);
+        for (var method : Method.values()) {
+            if (node.handlers[method.ordinal()] != null) {
+                allowed.add(method);
+            }
+        }
+        node.allow = allowed.stream().map(Method::name).collect(joining(", "));
+    }
+
+    // adds a route that is matched with a regex, as in RegexRouter.
+    public void addRoute(Set<Method> methods, Pattern pattern,
+            Set<String> params, Handler handler) {
+        fallback.addRoute(methods, pattern, params,
+                instrument(pattern.pattern(), handler));
+    }
+
+    private static int commonPrefix(String a, String b) {
+        int n = Math.min(a.length(), b.length());
+        int i = 0;
+        while (i < n && a.charAt(i) == b.charAt(i)) {
+            i++;
+        }
+        return i;
+    }
+
+    private static Node insertStatic(Node node, String s) {
+        while (!s.isEmpty()) {
+            Node next = null;
+            for (int i = 0; i < node.children.length; i++) {
+                var child = node.children[i];
+                int common = commonPrefix(child.label, s);
+                if (common == 0) {
+                    continue;
+                }
+                if (common < child.label.length()) {
+                    var split = new Node(child.label.substring(0, common));
+                    child.label = child.label.substring(common);
+                    split.children = new Node[]{child};
+                    node.children[i] = split;
+                    child = split;
+                }
+                next = child;
+                s = s.substring(common);
+                break;
+            }
+            if (next == null) {
+                next = new Node(s);
+                node.children = Arrays.copyOf(
+                        node.children, node.children.length + 1);
+                node.children[node.children.length - 1] = next;
+                s = "";
+            }
+            node = next;
+        }
+        return node;
+    }
+
+    private static Node insertParam(Node node, String name) {
+        if (name.isEmpty()) {
+            throw new IllegalArgumentException("empty parameter name");
+        }
+        if (node.param == null) {
+            node.param = new Node("");
+            node.paramName = name;
+        } else if (!node.paramName.equals(name)) {
+            throw new IllegalArgumentException(
+                    "conflicting parameter names: {%s} and {%s}".formatted(
+                            node.paramName, name));
+        }
+        return node.param;
+    }
+
+    // finds the node where |path| ends and that has a handler for |method|,
+    // continuing from |pos| in |node|. failing that, returns the mismatch
+    // of the first node where |path| ends, or null if there's none. either
+    // way the tree is walked once, and nothing is allocated unless a route
+    // matches.
+    private static Match match(Node node, String path, int pos,
+            Method method) {
+        if (pos == path.length()) {
+            if (node.handlers == null) {
+                return null;
+            }
+            return node.handlers[method.ordinal()] != null
+                    ? new Match(node, new HashMap<>(4))
+                    : node.mismatch;
+        }
+        Match other = null;
+        char c = path.charAt(pos);
+        for (var child : node.children) {
+            if (child.label.charAt(0) == c) {
+                if (path.startsWith(child.label, pos)) {
+                    other = match(child, path, pos + child.label.length(),
+                            method);
+                    if (other != null && other.found()) {
+                        return other;
+                    }
+                }
+                break;
+            }
+        }
+        if (node.param != null) {
+            int end = path.indexOf('/', pos);
+            if (end < 0) {
+                end = path.length();
+            }
+            if (end > pos) {
+                var m = match(node.param, path, end, method);
+                if (m != null && m.found()) {
+                    m.params.put(node.paramName, path.substring(pos, end));
+                    return m;
+                }
+                if (other == null) {
+                    other = m;
+                }
+            }
+        }
+        return other;
+    }
+
+    @Override
+    public Response handle(Request req) {
+        long start = System.nanoTime();
+        var m = match(root, req.getPath(), 0, req.getMethod());
+        if (m != null && m.found()) {
+            var handler = m.node.handlers[req.getMethod().ordinal()];
+            req = req.withParams(m.params);
+            return handler instanceof Handler h ? h.handle(req)
+                    : AsyncHandler.await(handler.handleAsync(req));
+        }
+        if (!fallback.isEmpty()) {
+            var fallbackResponse = fallback.route(req);
+            if (fallbackResponse.isPresent()) {
+                return fallbackResponse.get();
+            }
+        }
+        // the path may still have matched a route for some other method.
+        var resp = m != null
+                ? new Response(StatusCode.MethodNotAllowed)
+                        .withHeader("Allow", m.node.allow)
+                : NOT_FOUND;
+        if (unmatched != null) {
+            unmatched.record(resp.getStatus(), System.nanoTime() - start);
+        }
+        return resp;
+    }
+
+    @Override
+    public CompletionStage<Response> handleAsync(Request req) {
+        var m = match(root, req.getPath(), 0, req.getMethod());
+        if (m != null && m.found()) {
+            var handler = m.node.handlers[req.getMethod().ordinal()];
+            return handler.handleAsync(req.withParams(m.params));
+        }
+        // regex routes, 404s and 405s are all answered right away.
+        return Handler.super.handleAsync(req);
+    }
+}
@@ -4,11 +4,17 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStreamWriter;
+import java.net.ConnectException;
+import java.net.ServerSocket;
+import java.net.Socket;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
@@ -16,6 +22,8 @@ import dev.dhc.codecrafters_http.Router;
 import dev.dhc.http.BadRequestException;
 import dev.dhc.http.Handler;
 import dev.dhc.http.Request;
+import dev.dhc.http.Server;
+import dev.dhc.http.ServerOptions;
 import dev.dhc.http.StatusCode;
 
 public class IntegrationTest {
@@ -119,4 +127,158 @@ public class IntegrationTest {
                         fsRoot.resolve("goodbye.txt"),
                         StandardCharsets.US_ASCII));
     }
+
+    @Test
+    public void testBodyIsBoundedByContentLength()
+            throws IOException, BadRequestException {
+        var in = new ByteArrayInputStream(
+                ("POST /files/a.txt HTTP/1.1\r\n"
+                        + "Content-Length: 3\r\n"
+                        + "\r\n"
+                        + "abcGET / HTTP/1.1\r\n"
+                        + "\r\n").getBytes(StandardCharsets.US_ASCII));
+        var first = Request.parseFrom(in);
+        assertEquals(
+                "abc",
+                new String(first.getBody().readAllBytes(),
+                        StandardCharsets.US_ASCII));
+        var second = Request.parseFrom(in);
+        assertEquals("/", second.getPath());
+    }
+
+    @Test
+    public void testConnectionClose() throws IOException, BadRequestException {
+        var in = new ByteArrayInputStream(
+                ("GET / HTTP/1.1\r\nConnection: close\r\n\r\n")
+                        .getBytes(StandardCharsets.US_ASCII));
+        assertEquals(false, Request.parseFrom(in).keepAlive());
+        assertEquals(true, get("/").keepAlive());
+    }
+
+    @Test
+    public void testPostChunkedFile() throws IOException, BadRequestException {
+        var req = Request.parseFrom(new ByteArrayInputStream(
+                ("POST /files/chunked.txt HTTP/1.1\r\n"
+                        + "Transfer-Encoding: chunked\r\n"
+                        + "\r\n"
+                        + "4;ext=1\r\ngood\r\n"
+                        + "3\r\nbye\r\n"
+                        + "0\r\n"
+                        + "Checksum: abc\r\n"
+                        + "\r\n").getBytes(StandardCharsets.US_ASCII)));
+        var resp = handler.handle(req);
+        assertEquals(StatusCode.Created, resp.getStatus());
+        assertEquals(
+                "goodbye",
+                Files.readString(
+                        fsRoot.resolve("chunked.txt"),
+                        StandardCharsets.US_ASCII));
+        assertEquals("abc", req.getTrailer("Checksum"));
+    }
+
+    // a response read off a socket, with lowercase header names.
+    private record Reply(String statusLine, Map<String, String> headers,
+            String body) {
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        var b = new StringBuilder();
+        for (int c; (c = in.read()) >= 0 && c != '\n';) {
+            if (c != '\r') {
+                b.append((char) c);
+            }
+        }
+        return b.toString();
+    }
+
+    private static Reply read(InputStream in) throws IOException {
+        var status = readLine(in);
+        var headers = new HashMap<String, String>();
+        for (String line; !(line = readLine(in)).isEmpty();) {
+            int colon = line.indexOf(':');
+            headers.put(line.substring(0, colon).toLowerCase(),
+                    line.substring(colon + 1).trim());
+        }
+        int n = Integer.parseInt(headers.getOrDefault("content-length", "0"));
+        var body = new String(in.readNBytes(n), StandardCharsets.US_ASCII);
+        return new Reply(status, headers, body);
+    }
+
+    // starts a server with |options| on a daemon thread, and connects to
+    // it once it's listening.
+    private Socket connect(ServerOptions options)
+            throws IOException, InterruptedException {
+        int port;
+        try (var s = new ServerSocket(0)) {
+            port = s.getLocalPort();
+        }
+        var server = new Server(port, handler, options);
+        Thread.ofPlatform().daemon().start(() -> {
+            try {
+                server.run();
+            } catch (IOException e) {
+                e.printStackTrace(System.err);
+            }
+        });
+        for (int i = 0;; i++) {
+            try {
+                return new Socket("localhost", port);
+            } catch (ConnectException e) {
+                if (i == 100) {
+                    throw e;
+                }
+                Thread.sleep(20);
+            }
+        }
+    }
+
+    private static void send(Socket socket, String head) throws IOException {
+        socket.getOutputStream().write(
+                head.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    // requests on one connection are answered on it until the client asks
+    // to close it, or it has served its limit.
+    private void checkPersistentConnection(ServerOptions.Engine engine)
+            throws IOException, InterruptedException {
+        var options = ServerOptions.builder().engine(engine)
+                .eventLoops(1).build();
+        try (var socket = connect(options)) {
+            var in = socket.getInputStream();
+            send(socket, "GET /echo/one HTTP/1.1\r\n\r\n");
+            var first = read(in);
+            assertEquals("HTTP/1.1 200 OK", first.statusLine());
+            assertEquals("one", first.body());
+            assertNull(first.headers().get("connection"));
+            send(socket, "GET /echo/two HTTP/1.1\r\n\r\n");
+            assertEquals("two", read(in).body());
+            send(socket, "GET /echo/three HTTP/1.1\r\n"
+                    + "Connection: close\r\n\r\n");
+            var last = read(in);
+            assertEquals("three", last.body());
+            assertEquals("close", last.headers().get("connection"));
+            assertEquals(-1, in.read());
+        }
+        try (var socket = connect(
+                options.toBuilder().maxRequestsPerConnection(2).build())) {
+            var in = socket.getInputStream();
+            send(socket, "GET /echo/one HTTP/1.1\r\n\r\n");
+            assertNull(read(in).headers().get("connection"));
+            send(socket, "GET /echo/two HTTP/1.1\r\n\r\n");
+            var last = read(in);
+            assertEquals("two", last.body());
+            assertEquals("close", last.headers().get("connection"));
+            assertEquals(-1, in.read());
+        }
+    }
+
+    @Test
+    public void testPersistentConnection() throws Exception {
+        checkPersistentConnection(ServerOptions.Engine.THREAD_PER_CONNECTION);
+    }
+
+    @Test
+    public void testPersistentConnectionOnEventLoop() throws Exception {
+        checkPersistentConnection(ServerOptions.Engine.EVENT_LOOP);
+    }
 }
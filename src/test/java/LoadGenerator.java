@@ -0,0 +1,361 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.LockSupport;
+
+import org.HdrHistogram.Histogram;
+
+import dev.dhc.codecrafters_http.Router;
+import dev.dhc.http.Server;
+import dev.dhc.http.ServerOptions;
+import dev.dhc.http.ServerOptions.Engine;
+
+// Drives a server over loopback at a constant arrival rate and reports
+// latency percentiles and throughput. The load is open-loop: each request
+// has a scheduled send time, requests are pipelined on their connection
+// without waiting for earlier responses, and latency is measured from the
+// scheduled time. A server that stalls therefore shows up in the
+// percentiles instead of just slowing the client down, which is how
+// coordinated omission hides it.
+//
+// By default the server runs in-process with a fresh root directory; pass
+// --port (and --directory, for the files route) to target a server that's
+// already running. Run with:
+//   mvn test-compile
+//   java -cp target/classes:target/test-classes:<HdrHistogram jar> \
+//       LoadGenerator --route echo --rate 20000 --connections 16
+// Options, with their defaults:
+//   --route echo            echo, user-agent or files
+//   --rate 10000            requests per second, over all connections
+//   --connections 16
+//   --payload 64            echo text, User-Agent or file size in bytes
+//   --duration 10           seconds measured, after --warmup 2 seconds
+//   --engine thread_per_connection
+//   --save-baseline FILE    writes the results as a baseline
+//   --baseline FILE         exits with status 1 if p99 or throughput are
+//                           worse than FILE's by more than --threshold 10
+//                           percent
+public class LoadGenerator {
+
+    private record Options(String route, int rate, int connections,
+            int payload, Duration warmup, Duration duration, Engine engine,
+            int port, Path directory, Path baseline, Path saveBaseline,
+            double threshold) {
+
+        static Options parse(String[] args) {
+            String route = "echo";
+            int rate = 10_000, connections = 16, payload = 64, port = 0;
+            var warmup = Duration.ofSeconds(2);
+            var duration = Duration.ofSeconds(10);
+            var engine = Engine.THREAD_PER_CONNECTION;
+            Path directory = null, baseline = null, saveBaseline = null;
+            double threshold = 10;
+            for (int i = 0; i + 1 < args.length; i += 2) {
+                var value = args[i + 1];
+                switch (args[i]) {
+                    case "--route" ->
+                        route = value;
+                    case "--rate" ->
+                        rate = Integer.parseInt(value);
+                    case "--connections" ->
+                        connections = Integer.parseInt(value);
+                    case "--payload" ->
+                        payload = Integer.parseInt(value);
+                    case "--warmup" ->
+                        warmup = Duration.ofSeconds(Long.parseLong(value));
+                    case "--duration" ->
+                        duration = Duration.ofSeconds(Long.parseLong(value));
+                    case "--engine" ->
+                        engine = Engine.valueOf(value.toUpperCase());
+                    case "--port" ->
+                        port = Integer.parseInt(value);
+                    case "--directory" ->
+                        directory = Path.of(value);
+                    case "--baseline" ->
+                        baseline = Path.of(value);
+                    case "--save-baseline" ->
+                        saveBaseline = Path.of(value);
+                    case "--threshold" ->
+                        threshold = Double.parseDouble(value);
+                    default ->
+                        throw new IllegalArgumentException(
+                                "unknown flag: " + args[i]);
+                }
+            }
+            return new Options(route, rate, connections, payload, warmup,
+                    duration, engine, port, directory, baseline,
+                    saveBaseline, threshold);
+        }
+
+        Options withDirectory(Path directory) {
+            return new Options(route, rate, connections, payload, warmup,
+                    duration, engine, port, directory, baseline,
+                    saveBaseline, threshold);
+        }
+    }
+
+    private record Result(Histogram latencies, long completed,
+            double seconds) {
+
+        double throughput() {
+            return completed / seconds;
+        }
+
+        long p99() {
+            return latencies.getValueAtPercentile(99);
+        }
+    }
+
+    private static int freePort() throws IOException {
+        try (var s = new ServerSocket(0)) {
+            return s.getLocalPort();
+        }
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        var b = new StringBuilder();
+        for (int c; (c = in.read()) != '\n';) {
+            if (c < 0) {
+                throw new IOException("connection closed");
+            }
+            if (c != '\r') {
+                b.append((char) c);
+            }
+        }
+        return b.toString();
+    }
+
+    private static void readResponse(InputStream in) throws IOException {
+        var status = readLine(in);
+        if (!status.startsWith("HTTP/1.1 200")) {
+            throw new IOException("unexpected status: " + status);
+        }
+        long contentLength = 0;
+        for (String s; !(s = readLine(in)).isEmpty();) {
+            if (s.regionMatches(true, 0, "Content-Length:", 0, 15)) {
+                contentLength = Long.parseLong(s.substring(15).trim());
+            }
+        }
+        in.skipNBytes(contentLength);
+    }
+
+    private static byte[] request(Options options) throws IOException {
+        var filler = "x".repeat(options.payload());
+        var head = switch (options.route()) {
+            case "echo" ->
+                "GET /echo/%s HTTP/1.1\r\nHost: localhost\r\n\r\n"
+                        .formatted(filler);
+            case "user-agent" ->
+                "GET /user-agent HTTP/1.1\r\nHost: localhost\r\n"
+                        + "User-Agent: %s\r\n\r\n".formatted(filler);
+            case "files" -> {
+                var name = "load-%d.bin".formatted(options.payload());
+                Files.writeString(options.directory().resolve(name), filler);
+                yield "GET /files/%s HTTP/1.1\r\nHost: localhost\r\n\r\n"
+                        .formatted(name);
+            }
+            default ->
+                throw new IllegalArgumentException(
+                        "unknown route: " + options.route());
+        };
+        return head.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static void sleepUntil(long deadline) {
+        for (long now; (now = System.nanoTime()) < deadline;) {
+            LockSupport.parkNanos(deadline - now);
+        }
+    }
+
+    // sends |count| requests on |socket|, the i-th at start + i * interval,
+    // while reading the responses on another thread. records the latency
+    // of each response scheduled after |measureFrom|, in microseconds.
+    private static Histogram drive(Socket socket, byte[] request, long start,
+            long interval, long count, long measureFrom) throws Exception {
+        var latencies = new Histogram(3);
+        try (var writer = Executors.newVirtualThreadPerTaskExecutor()) {
+            Future<?> sent = writer.submit(() -> {
+                var out = new BufferedOutputStream(socket.getOutputStream());
+                for (long i = 0; i < count; i++) {
+                    sleepUntil(start + i * interval);
+                    out.write(request);
+                    out.flush();
+                }
+                return null;
+            });
+            var in = new BufferedInputStream(socket.getInputStream());
+            for (long i = 0; i < count; i++) {
+                readResponse(in);
+                long scheduled = start + i * interval;
+                if (scheduled >= measureFrom) {
+                    latencies.recordValue(
+                            (System.nanoTime() - scheduled) / 1000);
+                }
+            }
+            sent.get();
+        }
+        return latencies;
+    }
+
+    private static Result run(Options options, int port) throws Exception {
+        var request = request(options);
+        var sockets = new ArrayList<Socket>();
+        for (int i = 0; i < options.connections(); i++) {
+            var s = new Socket("localhost", port);
+            s.setTcpNoDelay(true);
+            s.setSoTimeout(30_000);
+            sockets.add(s);
+        }
+        // each connection sends at rate / connections, offset from the
+        // others so that arrivals are spread evenly.
+        long interval = 1_000_000_000L * options.connections() / options.rate();
+        long warmup = options.warmup().toNanos();
+        long total = warmup + options.duration().toNanos();
+        long start = System.nanoTime() + 100_000_000;
+        long measureFrom = start + warmup;
+        var results = new ArrayList<Future<Histogram>>();
+        try (var clients = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int i = 0; i < sockets.size(); i++) {
+                var socket = sockets.get(i);
+                long offset = interval * i / sockets.size();
+                long count = (total - offset + interval - 1) / interval;
+                results.add(clients.submit(() -> drive(socket, request,
+                        start + offset, interval, count, measureFrom)));
+            }
+        }
+        long end = System.nanoTime();
+        var latencies = new Histogram(3);
+        for (var r : results) {
+            latencies.add(r.get());
+        }
+        for (var s : sockets) {
+            s.close();
+        }
+        double seconds = (end - measureFrom) / 1e9;
+        return new Result(latencies, latencies.getTotalCount(), seconds);
+    }
+
+    private static void report(Options options, Result result) {
+        var h = result.latencies();
+        System.out.printf("%s: %d connections, %d B payload, target %d req/s%n",
+                options.route(), options.connections(), options.payload(),
+                options.rate());
+        System.out.printf("  throughput  %.0f req/s (%d requests)%n",
+                result.throughput(), result.completed());
+        System.out.printf("  latency us  mean %.0f", h.getMean());
+        for (var p : new double[]{50, 90, 99, 99.9, 99.99}) {
+            var label = p == Math.rint(p)
+                    ? String.valueOf((long) p)
+                    : String.valueOf(p);
+            System.out.printf("  p%s %d", label, h.getValueAtPercentile(p));
+        }
+        System.out.printf("  max %d%n", h.getMaxValue());
+    }
+
+    private static Properties baseline(Options options, Result result) {
+        var p = new Properties();
+        p.setProperty("route", options.route());
+        p.setProperty("rate", String.valueOf(options.rate()));
+        p.setProperty("connections", String.valueOf(options.connections()));
+        p.setProperty("payload", String.valueOf(options.payload()));
+        p.setProperty("throughput", "%.1f".formatted(result.throughput()));
+        p.setProperty("p99", String.valueOf(result.p99()));
+        return p;
+    }
+
+    // returns the ways in which |result| is worse than the baseline.
+    private static List<String> regressions(Options options, Result result,
+            Properties baseline) {
+        var failures = new ArrayList<String>();
+        for (var key : List.of("route", "rate", "connections", "payload")) {
+            var expected = baseline.getProperty(key);
+            var actual = baseline(options, result).getProperty(key);
+            if (!actual.equals(expected)) {
+                failures.add("baseline was recorded with %s=%s, not %s"
+                        .formatted(key, expected, actual));
+            }
+        }
+        double slack = options.threshold() / 100;
+        double throughput = Double.parseDouble(
+                baseline.getProperty("throughput"));
+        if (result.throughput() < throughput * (1 - slack)) {
+            failures.add("throughput %.0f req/s is below baseline %.0f"
+                    .formatted(result.throughput(), throughput));
+        }
+        long p99 = Long.parseLong(baseline.getProperty("p99"));
+        if (result.p99() > p99 * (1 + slack)) {
+            failures.add("p99 %d us is above baseline %d us"
+                    .formatted(result.p99(), p99));
+        }
+        return failures;
+    }
+
+    public static void main(String[] args) throws Exception {
+        var options = Options.parse(args);
+        int port = options.port();
+        if (port == 0) {
+            if (options.directory() == null) {
+                options = options.withDirectory(
+                        Files.createTempDirectory(null));
+            }
+            port = freePort();
+            var server = new Server(port, Router.make(options.directory()),
+                    ServerOptions.builder()
+                            .engine(options.engine())
+                            .maxRequestsPerConnection(Integer.MAX_VALUE)
+                            .build());
+            var t = new Thread(() -> {
+                try {
+                    server.run();
+                } catch (IOException e) {
+                    e.printStackTrace(System.err);
+                }
+            });
+            t.setDaemon(true);
+            t.start();
+            Thread.sleep(500);
+        } else if (options.route().equals("files")
+                && options.directory() == null) {
+            throw new IllegalArgumentException(
+                    "--directory is needed for the files route with --port");
+        }
+
+        var result = run(options, port);
+        report(options, result);
+
+        if (options.saveBaseline() != null) {
+            try (Writer w = Files.newBufferedWriter(options.saveBaseline())) {
+                baseline(options, result).store(w, "LoadGenerator baseline");
+            }
+        }
+        if (options.baseline() != null) {
+            var baseline = new Properties();
+            try (Reader r = Files.newBufferedReader(options.baseline())) {
+                baseline.load(r);
+            }
+            var failures = regressions(options, result, baseline);
+            for (var failure : failures) {
+                System.out.println("REGRESSION: " + failure);
+            }
+            if (!failures.isEmpty()) {
+                System.exit(1);
+            }
+            System.out.printf("no regression against %s (threshold %.0f%%)%n",
+                    options.baseline(), options.threshold());
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package dev.dhc.http;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+public class AcceptorsTest {
+
+    private static final int CLIENTS = 64;
+
+    @Test
+    public void testShardsShareThePort() throws Exception {
+        int port;
+        try (var probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        var metrics = new Metrics();
+        var options = ServerOptions.builder().acceptors(4).build();
+        var acceptors = new Acceptors(port, 0, options,
+                new Admission(options, metrics), metrics);
+        var accepted = new CountDownLatch(CLIENTS);
+        var thread = new Thread(() -> {
+            try {
+                acceptors.run(shard -> client -> {
+                    client.close();
+                    accepted.countDown();
+                });
+            } catch (IOException e) {
+                e.printStackTrace(System.err);
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+        // the sockets are bound before any accept loop starts.
+        var addr = new InetSocketAddress("localhost", port);
+        for (int i = 0; i < CLIENTS; i++) {
+            for (int attempt = 0;; attempt++) {
+                try (var ch = SocketChannel.open(addr)) {
+                    break;
+                } catch (IOException e) {
+                    if (attempt == 50) {
+                        throw e;
+                    }
+                    Thread.sleep(10);
+                }
+            }
+        }
+        assertTrue(accepted.await(5, TimeUnit.SECONDS));
+        long total = 0;
+        for (int i = 0; i < 4; i++) {
+            total += metrics.shard(i).acceptedCount();
+        }
+        assertEquals(CLIENTS, total);
+        assertTrue(metrics.render().contains(
+                "http_acceptor_connections_total{shard=\"3\"}"));
+    }
+
+    @Test
+    public void testFailedHandOffIsClosed() throws Exception {
+        int port;
+        try (var probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        var metrics = new Metrics();
+        // the second client is only admitted if the first one's permit is
+        // returned.
+        var options = ServerOptions.builder().maxConnections(1).build();
+        var acceptors = new Acceptors(port, 0, options,
+                new Admission(options, metrics), metrics);
+        var accepted = new CountDownLatch(2);
+        var thread = new Thread(() -> {
+            try {
+                acceptors.run(shard -> client -> {
+                    accepted.countDown();
+                    if (accepted.getCount() == 1) {
+                        throw new IOException("connection reset");
+                    }
+                });
+            } catch (IOException e) {
+                e.printStackTrace(System.err);
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+        var addr = new InetSocketAddress("localhost", port);
+        for (int attempt = 0;; attempt++) {
+            try (var first = SocketChannel.open(addr)) {
+                assertEquals(-1, first.read(ByteBuffer.allocate(1)));
+                break;
+            } catch (IOException e) {
+                if (attempt == 50) {
+                    throw e;
+                }
+                Thread.sleep(10);
+            }
+        }
+        try (var second = SocketChannel.open(addr)) {
+            assertTrue(accepted.await(5, TimeUnit.SECONDS));
+            assertEquals(2, metrics.shard(0).acceptedCount());
+        }
+    }
+
+    @Test
+    public void testDefaultsDontShareThePort() throws Exception {
+        int port;
+        try (var probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        var metrics = new Metrics();
+        var options = ServerOptions.defaults();
+        var acceptors = new Acceptors(port, 0, options,
+                new Admission(options, metrics), metrics);
+        var thread = new Thread(() -> {
+            try {
+                acceptors.run(shard -> client -> client.close());
+            } catch (IOException e) {
+                e.printStackTrace(System.err);
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+        var addr = new InetSocketAddress("localhost", port);
+        for (int attempt = 0;; attempt++) {
+            try (var ch = SocketChannel.open(addr)) {
+                break;
+            } catch (IOException e) {
+                if (attempt == 50) {
+                    throw e;
+                }
+                Thread.sleep(10);
+            }
+        }
+        // another server asking to share the port is turned away.
+        try (var other = ServerSocketChannel.open()) {
+            if (!other.supportedOptions()
+                    .contains(StandardSocketOptions.SO_REUSEPORT)) {
+                return;
+            }
+            other.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            assertThrows(IOException.class,
+                    () -> other.bind(new InetSocketAddress(port)));
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package dev.dhc.http;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class AccessLogTest {
+
+    private Path root;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        root = Files.createTempDirectory(null);
+    }
+
+    private static Request get(String path)
+            throws IOException, BadRequestException {
+        var head = "GET %s HTTP/1.1\r\n\r\n".formatted(path);
+        return Request.parseFrom(new ByteArrayInputStream(
+                head.getBytes(StandardCharsets.US_ASCII)));
+    }
+
+    private List<String> lines() throws IOException {
+        var lines = new ArrayList<String>();
+        try (var files = Files.list(root)) {
+            for (var file : files.sorted().toList()) {
+                lines.addAll(Files.readAllLines(file));
+            }
+        }
+        return lines;
+    }
+
+    @Test
+    public void testWritesRecords() throws IOException, BadRequestException {
+        var path = root.resolve("access.log");
+        var remote = AccessLog.remote(
+                new InetSocketAddress("127.0.0.1", 4321));
+        try (var log = new AccessLog(path, 0, new Metrics())) {
+            log.record(get("/echo/a\"b%ff"), StatusCode.OK, 3, 1_500_000,
+                    remote);
+            log.record(null, StatusCode.BadRequest, 0, 0, null);
+            log.record(get("/" + "x".repeat(1000)), StatusCode.OK,
+                    Body.UNKNOWN_LENGTH, 0, remote);
+        }
+        var lines = Files.readAllLines(path);
+        assertEquals(3, lines.size());
+        var first = lines.get(0);
+        assertTrue(first.startsWith("{\"time\":\""), first);
+        assertTrue(first.endsWith("\",\"remote\":\"127.0.0.1:4321\","
+                + "\"method\":\"GET\",\"path\":\"/echo/a\\\"b%ff\","
+                + "\"status\":200,\"bytes\":3,\"latency_us\":1500}"), first);
+        assertTrue(lines.get(1).endsWith("\"remote\":null,\"method\":null,"
+                + "\"path\":null,\"status\":400,\"bytes\":0,"
+                + "\"latency_us\":0}"), lines.get(1));
+        assertTrue(lines.get(2).contains(
+                "\"path\":\"/" + "x".repeat(AccessLog.PATH_BYTES - 1)
+                + "\",\"status\":200,\"bytes\":null"), lines.get(2));
+    }
+
+    @Test
+    public void testRotates() throws Exception {
+        var path = root.resolve("access.log");
+        try (var log = new AccessLog(path, 1000, new Metrics())) {
+            for (int i = 0; i < 100; i++) {
+                log.record(get("/" + i), StatusCode.OK, 0, 0, null);
+                if (i % 5 == 4) {
+                    // let the writer catch up, so that it rotates between
+                    // small batches.
+                    Thread.sleep(20);
+                }
+            }
+        }
+        assertTrue(Files.size(path) <= 1000);
+        assertTrue(Files.exists(root.resolve("access.log.4")));
+        assertFalse(Files.exists(root.resolve("access.log.5")));
+    }
+
+    @Test
+    public void testDropsWhenFull() throws Exception {
+        var metrics = new Metrics();
+        var path = root.resolve("access.log");
+        var threads = new ArrayList<Thread>();
+        try (var log = new AccessLog(path, 0, 4, metrics)) {
+            var req = get("/");
+            for (int t = 0; t < 4; t++) {
+                threads.add(Thread.ofPlatform().start(() -> {
+                    for (int i = 0; i < 10_000; i++) {
+                        log.record(req, StatusCode.OK, 0, 0, null);
+                    }
+                }));
+            }
+            for (var thread : threads) {
+                thread.join();
+            }
+        }
+        // every record was either written or counted.
+        assertEquals(40_000,
+                lines().size() + metrics.accessLogDrops());
+        assertTrue(metrics.accessLogDrops() > 0);
+    }
+}
@@ -0,0 +1,117 @@
+package dev.dhc.http;
+
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+public class AdmissionTest {
+
+    private static Request get() throws BadRequestException {
+        return Request.create(Method.GET, "/", Headers.EMPTY,
+                InputStream.nullInputStream());
+    }
+
+    @Test
+    public void testShedsWhenQueueDoesNotDrain() throws Exception {
+        var metrics = new Metrics();
+        var admission = new Admission(ServerOptions.builder()
+                .maxInFlightRequests(1)
+                .queueTarget(Duration.ofMillis(1))
+                .queueInterval(Duration.ofMillis(20))
+                .build(), metrics);
+        var started = new CountDownLatch(1);
+        var release = new CountDownLatch(1);
+        var handler = admission.guard(req -> {
+            if (req.getPath().equals("/slow")) {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+            return new Response(StatusCode.OK);
+        });
+        try (var executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            var slow = executor.submit(() -> handler.handle(Request.create(
+                    Method.GET, "/slow", Headers.EMPTY,
+                    InputStream.nullInputStream())));
+            started.await();
+            var resp = handler.handle(get());
+            assertEquals(StatusCode.ServiceUnavailable, resp.getStatus());
+            assertEquals("1", resp.getHeader("Retry-After"));
+            // a whole interval without a short wait means a standing queue.
+            handler.handle(get());
+            assertTrue(admission.overloaded());
+            assertEquals(2, metrics.shedRequests());
+            release.countDown();
+            assertEquals(StatusCode.OK, slow.get().getStatus());
+        }
+        assertEquals(StatusCode.OK, handler.handle(get()).getStatus());
+    }
+
+    @Test
+    public void testRefusesConnectionsOverTheLimit() throws Exception {
+        var metrics = new Metrics();
+        var admission = new Admission(
+                ServerOptions.builder().maxConnections(1).build(), metrics);
+        try (var server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress("localhost", 0));
+            var addr = server.getLocalAddress();
+            try (var a = SocketChannel.open(addr);
+                    var b = SocketChannel.open(addr)) {
+                var first = server.accept();
+                assertTrue(admission.accept(first));
+                assertFalse(admission.accept(server.accept()));
+                var refused = new String(b.socket().getInputStream()
+                        .readAllBytes(), StandardCharsets.US_ASCII);
+                assertTrue(refused.startsWith(
+                        "HTTP/1.1 503 Service Unavailable\r\n"), refused);
+                assertEquals(1, metrics.refusedConnections());
+                first.close();
+                admission.release();
+                try (var c = SocketChannel.open(addr)) {
+                    assertTrue(admission.accept(server.accept()));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testRefusesConnectionsOpenedTooOften() throws Exception {
+        var metrics = new Metrics();
+        var admission = new Admission(ServerOptions.builder()
+                .connectionRateLimit(new RateLimiter.Limit(1, 1))
+                .build(),
+                metrics);
+        try (var server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress("localhost", 0));
+            var addr = server.getLocalAddress();
+            try (var a = SocketChannel.open(addr);
+                    var b = SocketChannel.open(addr)) {
+                var first = server.accept();
+                assertTrue(admission.accept(first));
+                assertFalse(admission.accept(server.accept()));
+                var refused = new String(b.socket().getInputStream()
+                        .readAllBytes(), StandardCharsets.US_ASCII);
+                assertTrue(refused.startsWith(
+                        "HTTP/1.1 429 Too Many Requests\r\n"
+                        + "Retry-After: 1\r\n"), refused);
+                assertEquals(1, metrics.rateLimitedConnections());
+                assertEquals(0, metrics.refusedConnections());
+                first.close();
+                admission.release();
+            }
+        }
+    }
+}
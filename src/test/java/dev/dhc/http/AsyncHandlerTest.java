@@ -0,0 +1,105 @@
+package dev.dhc.http;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+public class AsyncHandlerTest {
+
+    private static Request get(String path) throws BadRequestException {
+        return Request.create(Method.GET, path, Headers.EMPTY,
+                InputStream.nullInputStream());
+    }
+
+    private static Request gzipped(String path)
+            throws IOException, BadRequestException {
+        var head = "GET %s HTTP/1.1\r\nAccept-Encoding: gzip\r\n\r\n"
+                .formatted(path);
+        return Request.parseFrom(new ByteArrayInputStream(
+                head.getBytes(StandardCharsets.US_ASCII)));
+    }
+
+    @Test
+    public void testAsyncRouteThroughWrappers()
+            throws IOException, BadRequestException {
+        var pending = new CompletableFuture<Response>();
+        var router = new TreeRouter();
+        router.addAsyncRoute(Set.of(Method.GET), "/later", req -> pending);
+        router.addRoute(Set.of(Method.GET), "/now",
+                new SimpleHandler(req -> "now"));
+        var handler = new CompressionHandler(router);
+        var text = "later ".repeat(1000);
+
+        var stage = handler.handleAsync(gzipped("/later"))
+                .toCompletableFuture();
+        assertFalse(stage.isDone());
+        pending.complete(new Response(StatusCode.OK,
+                new Body.StringBody(text)));
+        var resp = stage.join();
+        assertEquals("gzip", resp.getHeader("Content-Encoding"));
+        var body = new ByteArrayOutputStream();
+        resp.getBody().write(body);
+        var gz = new GZIPInputStream(
+                new ByteArrayInputStream(body.toByteArray()));
+        assertEquals(text, new String(gz.readAllBytes(),
+                StandardCharsets.US_ASCII));
+
+        // synchronous routes are already complete, and async ones can still
+        // be called synchronously.
+        var now = handler.handleAsync(get("/now")).toCompletableFuture();
+        assertTrue(now.isDone());
+        assertEquals("now", now.join().getBody().asString());
+        assertEquals(text, router.handle(get("/later")).getBody().asString());
+    }
+
+    @Test
+    public void testCancellationReachesTheHandler()
+            throws BadRequestException {
+        var metrics = new Metrics();
+        var pending = new CompletableFuture<Response>();
+        var router = new TreeRouter(metrics);
+        router.addAsyncRoute(Set.of(Method.GET), "/slow", req -> pending);
+        var handler = new CompressionHandler(router);
+
+        var stage = handler.handleAsync(get("/slow")).toCompletableFuture();
+        stage.cancel(true);
+        assertTrue(pending.isCancelled());
+        assertEquals(1, metrics.route("/slow")
+                .histogram(StatusCode.ServiceUnavailable).count());
+    }
+
+    @Test
+    public void testAdmissionHoldsPermitUntilComplete()
+            throws BadRequestException, IOException {
+        var metrics = new Metrics();
+        var admission = new Admission(ServerOptions.builder()
+                .maxInFlightRequests(1)
+                .queueTarget(Duration.ofMillis(1))
+                .queueInterval(Duration.ofMillis(20))
+                .build(), metrics);
+        var pending = new CompletableFuture<Response>();
+        var router = new TreeRouter();
+        router.addAsyncRoute(Set.of(Method.GET), "/slow", req -> pending);
+        router.addRoute(Set.of(Method.GET), "/fast",
+                new SimpleHandler(req -> "fast"));
+        var handler = admission.guard(router);
+
+        var slow = handler.handleAsync(get("/slow")).toCompletableFuture();
+        assertEquals(StatusCode.ServiceUnavailable,
+                handler.handle(get("/fast")).getStatus());
+        pending.complete(new Response(StatusCode.OK));
+        assertEquals(StatusCode.OK, slow.join().getStatus());
+        assertEquals(StatusCode.OK, handler.handle(get("/fast")).getStatus());
+    }
+}
@@ -0,0 +1,66 @@
+package dev.dhc.http;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+public class BufferPoolTest {
+
+    @Test
+    public void testReusesBuffersBySizeClass() {
+        var pool = new BufferPool(true, 1 << 20);
+        var a = pool.acquire(100);
+        var buf = a.buffer();
+        assertTrue(buf.isDirect());
+        assertEquals(BufferPool.CLASSES[0], buf.capacity());
+        buf.put((byte) 1);
+        a.close();
+        assertEquals(0, pool.leasedBytes());
+        assertEquals(BufferPool.CLASSES[0], pool.freeBytes());
+
+        var b = pool.acquire(BufferPool.CLASSES[0]);
+        assertSame(buf, b.buffer());
+        assertEquals(0, b.buffer().position());
+        var c = pool.acquire(BufferPool.CLASSES[0] + 1);
+        assertEquals(BufferPool.CLASSES[1], c.buffer().capacity());
+        assertEquals(BufferPool.CLASSES[0] + BufferPool.CLASSES[1],
+                pool.leasedBytes());
+        b.close();
+        c.close();
+        assertEquals(0, pool.unpooled());
+    }
+
+    @Test
+    public void testCapacityIsAHardLimit() {
+        int size = BufferPool.CLASSES[2];
+        var pool = new BufferPool(false, 2L * size);
+        var a = pool.acquire(size);
+        var b = pool.acquire(size);
+        // the pool is all leased, and this one is too big for any class.
+        var c = pool.acquire(size);
+        var d = pool.acquire(4 * size);
+        assertEquals(2, pool.unpooled());
+        assertEquals(4 * size, d.buffer().capacity());
+        for (var lease : new BufferPool.Buffer[]{a, b, c, d}) {
+            lease.close();
+        }
+        assertEquals(0, pool.leasedBytes());
+        assertEquals(2L * size, pool.freeBytes());
+        assertThrows(IllegalStateException.class, a::close);
+    }
+
+    @Test
+    public void testReportsLeaks() {
+        var pool = new BufferPool(false, 1 << 20, true);
+        var kept = pool.acquire(10);
+        pool.acquire(10).close();
+        var leaks = pool.leaks();
+        assertEquals(1, leaks.size());
+        var site = leaks.get(0).getCause().getStackTrace()[1];
+        assertEquals("testReportsLeaks", site.getMethodName());
+        kept.close();
+        assertTrue(pool.leaks().isEmpty());
+    }
+}
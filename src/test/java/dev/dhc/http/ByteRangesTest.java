@@ -0,0 +1,45 @@
+package dev.dhc.http;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import org.junit.jupiter.api.Test;
+
+public class ByteRangesTest {
+
+    private static ByteRanges.Range range(long start, long length) {
+        return new ByteRanges.Range(start, length);
+    }
+
+    @Test
+    public void testParsesRanges() {
+        assertEquals(List.of(range(0, 10)), ByteRanges.parse("bytes=0-9", 100));
+        assertEquals(List.of(range(90, 10)), ByteRanges.parse("bytes=90-", 100));
+        assertEquals(List.of(range(80, 20)), ByteRanges.parse("bytes=-20", 100));
+        assertEquals(List.of(range(0, 100)), ByteRanges.parse("bytes=-200", 100));
+        assertEquals(List.of(range(50, 50)),
+                ByteRanges.parse("bytes=50-99999999999999999999", 100));
+        assertEquals(List.of(range(0, 1), range(5, 2)),
+                ByteRanges.parse("Bytes=0-0, 5-6", 100));
+    }
+
+    @Test
+    public void testUnsatisfiableRanges() {
+        assertEquals(List.of(), ByteRanges.parse("bytes=100-", 100));
+        assertEquals(List.of(), ByteRanges.parse("bytes=-0", 100));
+        assertEquals(List.of(range(0, 1)),
+                ByteRanges.parse("bytes=200-300, 0-0", 100));
+    }
+
+    @Test
+    public void testIgnoresInvalidRanges() {
+        assertNull(ByteRanges.parse(null, 100));
+        assertNull(ByteRanges.parse("items=0-1", 100));
+        assertNull(ByteRanges.parse("bytes=", 100));
+        assertNull(ByteRanges.parse("bytes=5-1", 100));
+        assertNull(ByteRanges.parse("bytes=a-b", 100));
+        assertNull(ByteRanges.parse("bytes=1", 100));
+        assertNull(ByteRanges.parse("bytes=" + "0-0,".repeat(17), 100));
+    }
+}
@@ -0,0 +1,64 @@
+package dev.dhc.http;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import org.junit.jupiter.api.Test;
+
+public class ChunkedInputStreamTest {
+
+    private static final String BODY = "5\r\nhello\r\n"
+            + "6;name=value\r\n world\r\n"
+            + "0\r\n"
+            + "Expires: never\r\n"
+            + "\r\n";
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    @Test
+    public void testDecodes() throws IOException {
+        var in = new ByteArrayInputStream(bytes(BODY + "GET / HTTP/1.1"));
+        var chunked = new ChunkedInputStream(in);
+        assertEquals("hello world", new String(chunked.readAllBytes(),
+                StandardCharsets.US_ASCII));
+        assertEquals("never", chunked.trailer("Expires"));
+        assertEquals("GET / HTTP/1.1", new String(in.readAllBytes(),
+                StandardCharsets.US_ASCII));
+    }
+
+    @Test
+    public void testRejectsMalformedBodies() throws IOException {
+        for (var s : new String[]{
+            "x\r\nhello\r\n0\r\n\r\n",
+            "5\r\nhelloXX0\r\n\r\n",
+            "5\r\nhel",
+            "0\r\nno-colon\r\n\r\n",
+        }) {
+            var chunked = new ChunkedInputStream(
+                    new ByteArrayInputStream(bytes(s)));
+            assertThrows(ChunkedInputStream.MalformedChunkException.class,
+                    chunked::readAllBytes);
+        }
+        var truncated = new ChunkedInputStream(
+                new ByteArrayInputStream(bytes("5\r\nhel")));
+        assertFalse(truncated.drain());
+    }
+
+    @Test
+    public void testScansForEndOfBody() throws IOException {
+        var buf = bytes("HEAD" + BODY + "next");
+        int end = buf.length - 4;
+        assertEquals(end - 4, ChunkedInputStream.scan(buf, 4, buf.length));
+        for (int i = 4; i < end; i++) {
+            assertEquals(-1, ChunkedInputStream.scan(buf, 4, i));
+        }
+        assertThrows(ChunkedInputStream.MalformedChunkException.class,
+                () -> ChunkedInputStream.scan(bytes("zz\r\n"), 0, 4));
+    }
+}
@@ -0,0 +1,153 @@
+package dev.dhc.http;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class CompressionHandlerTest {
+
+    private static final String TEXT = "hello, compression! ".repeat(100);
+
+    private Path root;
+    private CompressionHandler handler;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        root = Files.createTempDirectory(null);
+        var files = new FileSystemHandler(root);
+        handler = new CompressionHandler(
+                req -> req.getParam("filename") != null
+                ? files.handle(req)
+                : new Response(StatusCode.OK,
+                        new Body.StringBody(req.getPath().substring(1))),
+                CompressionHandler.Options.defaults()
+                        .withContentTypes(List.of("text/*",
+                                "application/octet-stream")));
+    }
+
+    private Response call(String path, String acceptEncoding, String filename)
+            throws IOException, BadRequestException {
+        var head = "GET %s HTTP/1.1\r\n%s\r\n".formatted(path,
+                acceptEncoding == null ? ""
+                : "Accept-Encoding: " + acceptEncoding + "\r\n");
+        var req = Request.parseFrom(new ByteArrayInputStream(
+                head.getBytes(StandardCharsets.US_ASCII)));
+        if (filename != null) {
+            req = req.withParams(Map.of("filename", filename));
+        }
+        return handler.handle(req);
+    }
+
+    private static byte[] bytes(Body body) throws IOException {
+        var out = new ByteArrayOutputStream();
+        body.write(out);
+        return out.toByteArray();
+    }
+
+    private static String decode(InputStream in) throws IOException {
+        try (in) {
+            return new String(in.readAllBytes(), StandardCharsets.US_ASCII);
+        }
+    }
+
+    @Test
+    public void testNegotiate() {
+        assertNull(CompressionHandler.negotiate(null));
+        assertNull(CompressionHandler.negotiate("identity"));
+        assertNull(CompressionHandler.negotiate("gzip;q=0, deflate;q=0"));
+        assertEquals(CompressionHandler.Encoding.GZIP,
+                CompressionHandler.negotiate("deflate, gzip"));
+        assertEquals(CompressionHandler.Encoding.DEFLATE,
+                CompressionHandler.negotiate("gzip;q=0.5, deflate"));
+        assertEquals(CompressionHandler.Encoding.GZIP,
+                CompressionHandler.negotiate("br, *;q=0.1"));
+        assertEquals(CompressionHandler.Encoding.DEFLATE,
+                CompressionHandler.negotiate("GZIP;q=0, *"));
+    }
+
+    @Test
+    public void testCompressesLargeText()
+            throws IOException, BadRequestException {
+        var resp = call("/" + TEXT.replace(' ', '-'), "gzip", null);
+        assertEquals("gzip", resp.getHeader("Content-Encoding"));
+        assertEquals("Accept-Encoding", resp.getHeader("Vary"));
+        var body = bytes(resp.getBody());
+        assertTrue(body.length < TEXT.length() / 10);
+        assertEquals(TEXT.replace(' ', '-'), decode(
+                new GZIPInputStream(new ByteArrayInputStream(body))));
+
+        resp = call("/" + TEXT.replace(' ', '-'), "deflate", null);
+        assertEquals("deflate", resp.getHeader("Content-Encoding"));
+        assertEquals(TEXT.replace(' ', '-'), decode(new InflaterInputStream(
+                new ByteArrayInputStream(bytes(resp.getBody())))));
+    }
+
+    @Test
+    public void testLeavesSmallOrUnacceptedBodies()
+            throws IOException, BadRequestException {
+        var resp = call("/short", "gzip", null);
+        assertNull(resp.getHeader("Content-Encoding"));
+        assertEquals("short", resp.getBody().asString());
+        resp = call("/" + "x".repeat(2000), null, null);
+        assertNull(resp.getHeader("Content-Encoding"));
+        assertEquals("Accept-Encoding", resp.getHeader("Vary"));
+        assertEquals(2000, resp.getBody().contentLength());
+    }
+
+    @Test
+    public void testCachesCompressedFiles()
+            throws IOException, BadRequestException {
+        var path = root.resolve("a.txt");
+        Files.writeString(path, TEXT);
+        var first = call("/files/a.txt", "gzip", "a.txt");
+        var second = call("/files/a.txt", "gzip", "a.txt");
+        assertEquals("gzip", second.getHeader("Content-Encoding"));
+        var a = (Body.BytesBody) first.getBody();
+        var b = (Body.BytesBody) second.getBody();
+        assertTrue(a.bytes() == b.bytes());
+        assertEquals(TEXT, decode(
+                new GZIPInputStream(new ByteArrayInputStream(b.bytes()))));
+
+        // a newer file is compressed again.
+        Files.writeString(path, TEXT.toUpperCase());
+        Files.setLastModifiedTime(path,
+                FileTime.fromMillis(System.currentTimeMillis() + 10_000));
+        var third = (Body.BytesBody) call("/files/a.txt", "gzip", "a.txt")
+                .getBody();
+        assertEquals(TEXT.toUpperCase(), decode(
+                new GZIPInputStream(new ByteArrayInputStream(third.bytes()))));
+    }
+
+    @Test
+    public void testServesPrecompressedSibling()
+            throws IOException, BadRequestException {
+        var path = root.resolve("b.bin");
+        Files.writeString(path, "not really compressed");
+        Files.writeString(root.resolve("b.bin.gz"), "precompressed");
+        var resp = call("/files/b.bin", "gzip", "b.bin");
+        assertEquals("gzip", resp.getHeader("Content-Encoding"));
+        assertEquals("precompressed", resp.getBody().asString());
+
+        // a stale sibling is ignored.
+        Files.setLastModifiedTime(path,
+                FileTime.fromMillis(System.currentTimeMillis() + 10_000));
+        resp = call("/files/b.bin", "gzip", "b.bin");
+        assertNull(resp.getHeader("Content-Encoding"));
+        assertEquals("not really compressed", resp.getBody().asString());
+    }
+}
@@ -0,0 +1,178 @@
+package dev.dhc.http;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static dev.dhc.http.TestServer.readHead;
+import static dev.dhc.http.TestServer.readLine;
+import static dev.dhc.http.TestServer.send;
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+public class EventLoopEngineTest {
+
+    private static Socket connect(Handler handler, ServerOptions options)
+            throws IOException, InterruptedException {
+        return TestServer.connect(handler,
+                options.toBuilder()
+                        .engine(ServerOptions.Engine.EVENT_LOOP)
+                        .eventLoops(1)
+                        .build());
+    }
+
+    // answers with the length of the request's body.
+    private static Response count(Request req) {
+        try {
+            long n = req.getBody().transferTo(OutputStream.nullOutputStream());
+            return new Response(StatusCode.OK,
+                    new Body.StringBody(Long.toString(n)));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Test
+    public void testStreamsLargeRequestBody() throws Exception {
+        long total = 32 << 20;
+        var started = new CountDownLatch(1);
+        Handler handler = req -> {
+            started.countDown();
+            return count(req);
+        };
+        try (var socket = connect(handler, ServerOptions.defaults())) {
+            var in = socket.getInputStream();
+            send(socket, "POST / HTTP/1.1\r\nContent-Length: " + total
+                    + "\r\n\r\n");
+            // the handler starts before the body has arrived.
+            assertTrue(started.await(5, TimeUnit.SECONDS), "not started");
+            var chunk = new byte[1 << 16];
+            for (long sent = 0; sent < total; sent += chunk.length) {
+                socket.getOutputStream().write(chunk);
+            }
+            assertEquals("HTTP/1.1 200 OK", readHead(in));
+            assertEquals(Long.toString(total),
+                    new String(in.readNBytes(8), US_ASCII));
+        }
+    }
+
+    @Test
+    public void testStreamedBodyIsFollowedByPipelinedRequest()
+            throws Exception {
+        try (var socket = connect(EventLoopEngineTest::count,
+                ServerOptions.defaults())) {
+            var in = socket.getInputStream();
+            send(socket, "POST / HTTP/1.1\r\nTransfer-Encoding: chunked\r\n"
+                    + "\r\n186a0\r\n" + "x".repeat(100_000) + "\r\n0\r\n\r\n"
+                    + "GET / HTTP/1.1\r\nConnection: close\r\n\r\n");
+            assertEquals("HTTP/1.1 200 OK", readHead(in));
+            assertEquals("100000", new String(in.readNBytes(6), US_ASCII));
+            assertEquals("HTTP/1.1 200 OK", readHead(in));
+            assertEquals("0", new String(in.readNBytes(1), US_ASCII));
+            assertEquals(-1, in.read());
+        }
+    }
+
+    @Test
+    public void testUnreadBodyIsSkipped() throws Exception {
+        Handler handler = req -> new Response(StatusCode.OK,
+                new Body.StringBody("ok"));
+        try (var socket = connect(handler, ServerOptions.defaults())) {
+            var in = socket.getInputStream();
+            send(socket, "POST / HTTP/1.1\r\nContent-Length: 1048576\r\n\r\n");
+            socket.getOutputStream().write(new byte[1 << 20]);
+            send(socket, "GET / HTTP/1.1\r\nConnection: close\r\n\r\n");
+            assertEquals("HTTP/1.1 200 OK", readHead(in));
+            assertEquals("ok", new String(in.readNBytes(2), US_ASCII));
+            assertEquals("HTTP/1.1 200 OK", readHead(in));
+            assertEquals("ok", new String(in.readNBytes(2), US_ASCII));
+            assertEquals(-1, in.read());
+        }
+    }
+
+    @Test
+    public void testStreamsChunkedBody() throws Exception {
+        var release = new CountDownLatch(1);
+        Handler handler = req -> new Response(StatusCode.OK,
+                new Body.ChunkedBody(out -> {
+                    out.write("first".getBytes(US_ASCII));
+                    out.flush();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                    out.write("second".getBytes(US_ASCII));
+                }, "text/plain"));
+        try (var socket = connect(handler, ServerOptions.defaults())) {
+            var in = socket.getInputStream();
+            send(socket, "GET / HTTP/1.1\r\n\r\n");
+            // the flushed chunk arrives while the producer is still going.
+            assertEquals("HTTP/1.1 200 OK", readHead(in));
+            assertEquals("5", readLine(in));
+            assertEquals("first", readLine(in));
+            release.countDown();
+            assertEquals("6", readLine(in));
+            assertEquals("second", readLine(in));
+            assertEquals("0", readLine(in));
+            assertEquals("", readLine(in));
+            // the connection is still usable.
+            send(socket, "GET / HTTP/1.1\r\nConnection: close\r\n\r\n");
+            assertEquals("HTTP/1.1 200 OK", readHead(in));
+        }
+    }
+
+    @Test
+    public void testSlowClientHoldsUpProducer() throws Exception {
+        long total = 256 << 20;
+        var produced = new AtomicLong();
+        Handler handler = req -> new Response(StatusCode.OK,
+                new Body.StreamBody(new InputStream() {
+                    @Override
+                    public int read() {
+                        throw new UnsupportedOperationException();
+                    }
+
+                    @Override
+                    public int read(byte[] b, int off, int len) {
+                        long left = total - produced.get();
+                        if (left == 0) {
+                            return -1;
+                        }
+                        int n = (int) Math.min(len, left);
+                        produced.addAndGet(n);
+                        return n;
+                    }
+                }, "application/octet-stream", total));
+        try (var socket = connect(handler, ServerOptions.defaults())) {
+            var in = socket.getInputStream();
+            send(socket, "GET / HTTP/1.1\r\n\r\n");
+            assertEquals("HTTP/1.1 200 OK", readHead(in));
+            Thread.sleep(500);
+            // what's produced is bounded by the socket's buffers rather
+            // than the size of the body.
+            assertTrue(produced.get() < total / 4, "produced " + produced);
+            in.skipNBytes(total);
+            assertEquals(total, produced.get());
+        }
+    }
+
+    @Test
+    public void testFailedBodyClosesConnection() throws Exception {
+        Handler handler = req -> new Response(StatusCode.OK,
+                new Body.ChunkedBody(out -> {
+                    throw new IllegalStateException("broken producer");
+                }, "text/plain"));
+        try (var socket = connect(handler, ServerOptions.defaults())) {
+            send(socket, "GET / HTTP/1.1\r\n\r\n");
+            assertEquals(-1, socket.getInputStream().read());
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package dev.dhc.http;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class FileCacheTest {
+
+    private Path root;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        root = Files.createTempDirectory(null);
+    }
+
+    private Path file(String name, int size) throws IOException {
+        var path = root.resolve(name);
+        Files.writeString(path, String.valueOf(name.charAt(0)).repeat(size));
+        return path;
+    }
+
+    private static String string(FileCache.Contents contents) {
+        return StandardCharsets.US_ASCII.decode(contents.buffer()).toString();
+    }
+
+    @Test
+    public void testCountsHitsAndMisses() throws IOException {
+        var cache = new FileCache(1000, 100, Duration.ofMinutes(1));
+        var a = file("a", 10);
+        assertEquals("a".repeat(10), string(cache.get(a)));
+        assertEquals("a".repeat(10), string(cache.get(a)));
+        assertTrue(cache.get(a).buffer().isDirect());
+        assertNull(cache.get(file("big", 101)));
+        assertNull(cache.get(root.resolve("missing")));
+        assertEquals(2, cache.hits());
+        assertEquals(3, cache.misses());
+        assertEquals(10, cache.size());
+    }
+
+    @Test
+    public void testResistsScans() throws IOException {
+        var cache = new FileCache(100, 20, Duration.ofMinutes(1));
+        var hot = file("hot", 20);
+        cache.get(hot);
+        cache.get(hot);
+        // a scan over files that are each requested once only churns the
+        // probation segment.
+        for (int i = 0; i < 50; i++) {
+            cache.get(file("scan" + i, 20));
+        }
+        long hits = cache.hits();
+        cache.get(hot);
+        assertEquals(hits + 1, cache.hits());
+        assertTrue(cache.evictions() > 0);
+        assertTrue(cache.size() <= 100);
+    }
+
+    @Test
+    public void testGivesReferencedFilesASecondChance() throws IOException {
+        // room for four protected files and one in probation.
+        var cache = new FileCache(100, 20, Duration.ofMinutes(1));
+        var hot = new Path[5];
+        for (int i = 0; i < hot.length; i++) {
+            hot[i] = file("hot" + i, 20);
+            cache.get(hot[i]);
+            cache.get(hot[i]);
+            if (i == 3) {
+                cache.get(hot[0]);
+            }
+        }
+        // promoting the fifth demoted the oldest protected file that
+        // hadn't been requested since, which a scan then evicts.
+        cache.get(file("scan", 20));
+        long misses = cache.misses();
+        cache.get(hot[0]);
+        assertEquals(misses, cache.misses());
+        cache.get(hot[1]);
+        assertEquals(misses + 1, cache.misses());
+    }
+
+    @Test
+    public void testExportsCounters() throws IOException {
+        var cache = new FileCache(1000, 100, Duration.ofMinutes(1));
+        var metrics = new Metrics();
+        metrics.observe(cache);
+        var a = file("a", 10);
+        cache.get(a);
+        cache.get(a);
+        var text = metrics.render();
+        assertTrue(text.contains("\nhttp_file_cache_hits_total 1\n"), text);
+        assertTrue(text.contains("\nhttp_file_cache_misses_total 1\n"), text);
+        assertTrue(text.contains("\nhttp_file_cache_bytes 10\n"), text);
+    }
+
+    @Test
+    public void testRevalidatesAgainstMtime() throws IOException {
+        var cache = new FileCache(1000, 100, Duration.ZERO);
+        var a = file("a", 10);
+        cache.get(a);
+        Files.writeString(a, "changed");
+        Files.setLastModifiedTime(a,
+                FileTime.fromMillis(System.currentTimeMillis() + 10_000));
+        assertEquals("changed", string(cache.get(a)));
+        assertEquals(2, cache.misses());
+    }
+
+    @Test
+    public void testServesCachedFiles()
+            throws IOException, BadRequestException {
+        var cache = new FileCache(1000);
+        var handler = new FileSystemHandler(root, cache);
+        file("x", 10);
+        var req = Request.create(Method.GET, "/files/x", Headers.EMPTY,
+                InputStream.nullInputStream());
+        req = req.withParams(Map.of("filename", "x"));
+        var resp = handler.handle(req);
+        assertEquals(StatusCode.OK, resp.getStatus());
+        assertTrue(resp.getBody() instanceof Body.CachedFileBody);
+        assertEquals("x".repeat(10), resp.getBody().asString());
+        assertEquals(1, cache.misses());
+        handler.handle(req);
+        assertEquals(1, cache.hits());
+    }
+}
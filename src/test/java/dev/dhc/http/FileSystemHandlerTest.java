@@ -0,0 +1,212 @@
+package dev.dhc.http;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class FileSystemHandlerTest {
+
+    private static final String CONTENTS = "0123456789abcdefghij";
+
+    private Path root;
+    // uploads lease their buffers here, so that leaks fail the test.
+    private final BufferPool pool = new BufferPool(false, 1 << 20, true);
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        root = Files.createTempDirectory(null);
+        Files.writeString(root.resolve("f"), CONTENTS);
+    }
+
+    @AfterEach
+    public void checkLeaks() {
+        var leaks = pool.leaks();
+        if (!leaks.isEmpty()) {
+            throw leaks.get(0);
+        }
+    }
+
+    private static Response get(Handler handler, String... headers)
+            throws IOException, BadRequestException {
+        var head = new StringBuilder("GET /files/f HTTP/1.1\r\n");
+        for (int i = 0; i < headers.length; i += 2) {
+            head.append(headers[i]).append(": ").append(headers[i + 1])
+                    .append("\r\n");
+        }
+        head.append("\r\n");
+        var req = Request.parseFrom(new ByteArrayInputStream(
+                head.toString().getBytes(StandardCharsets.US_ASCII)));
+        return handler.handle(req.withParams(Map.of("filename", "f")));
+    }
+
+    private static String body(Response resp) throws IOException {
+        var out = new ByteArrayOutputStream();
+        resp.getBody().write(out);
+        assertEquals(resp.getBody().contentLength(), out.size());
+        return out.toString(StandardCharsets.US_ASCII);
+    }
+
+    // runs each test with and without a file cache.
+    private Handler[] handlers() {
+        return new Handler[]{
+            new FileSystemHandler(root),
+            new FileSystemHandler(root, new FileCache(1 << 20))};
+    }
+
+    @Test
+    public void testConditionalGet() throws IOException, BadRequestException {
+        for (var handler : handlers()) {
+            var resp = get(handler);
+            assertEquals(StatusCode.OK, resp.getStatus());
+            var etag = resp.getHeader("ETag");
+            var lastModified = resp.getHeader("Last-Modified");
+            assertNotNull(etag);
+            assertNotNull(lastModified);
+
+            resp = get(handler, "If-None-Match", "\"other\", W/" + etag);
+            assertEquals(StatusCode.NotModified, resp.getStatus());
+            assertEquals(etag, resp.getHeader("ETag"));
+            assertEquals(StatusCode.NotModified,
+                    get(handler, "If-Modified-Since", lastModified).getStatus());
+            assertEquals(StatusCode.OK, get(handler,
+                    "If-Modified-Since", "Mon, 01 Jan 2001 00:00:00 GMT")
+                    .getStatus());
+            // If-None-Match takes precedence.
+            assertEquals(StatusCode.OK, get(handler, "If-None-Match",
+                    "\"other\"", "If-Modified-Since", lastModified).getStatus());
+        }
+    }
+
+    @Test
+    public void testSingleRange() throws IOException, BadRequestException {
+        for (var handler : handlers()) {
+            var resp = get(handler, "Range", "bytes=5-9");
+            assertEquals(StatusCode.PartialContent, resp.getStatus());
+            assertEquals("bytes 5-9/20", resp.getHeader("Content-Range"));
+            assertEquals("56789", body(resp));
+            assertEquals("ghij", body(get(handler, "Range", "bytes=-4")));
+
+            resp = get(handler, "Range", "bytes=20-");
+            assertEquals(StatusCode.RangeNotSatisfiable, resp.getStatus());
+            assertEquals("bytes */20", resp.getHeader("Content-Range"));
+        }
+    }
+
+    @Test
+    public void testIfRange() throws IOException, BadRequestException {
+        for (var handler : handlers()) {
+            var resp = get(handler);
+            var etag = resp.getHeader("ETag");
+            body(resp);
+            assertEquals(StatusCode.PartialContent, get(handler,
+                    "Range", "bytes=0-0", "If-Range", etag).getStatus());
+            assertEquals(StatusCode.PartialContent, get(handler,
+                    "Range", "bytes=0-0",
+                    "If-Range", resp.getHeader("Last-Modified")).getStatus());
+            resp = get(handler, "Range", "bytes=0-0", "If-Range", "\"stale\"");
+            assertEquals(StatusCode.OK, resp.getStatus());
+            assertEquals(CONTENTS, body(resp));
+        }
+    }
+
+    @Test
+    public void testMultipleRanges() throws IOException, BadRequestException {
+        for (var handler : handlers()) {
+            var resp = get(handler, "Range", "bytes=0-1, 18-");
+            assertEquals(StatusCode.PartialContent, resp.getStatus());
+            var type = resp.getBody().getContentType().get();
+            assertTrue(type.startsWith("multipart/byteranges; boundary="));
+            var boundary = type.substring(type.indexOf('=') + 1);
+            assertEquals("\r\n--" + boundary + "\r\n"
+                    + "Content-Type: application/octet-stream\r\n"
+                    + "Content-Range: bytes 0-1/20\r\n"
+                    + "\r\n"
+                    + "01"
+                    + "\r\n--" + boundary + "\r\n"
+                    + "Content-Type: application/octet-stream\r\n"
+                    + "Content-Range: bytes 18-19/20\r\n"
+                    + "\r\n"
+                    + "ij"
+                    + "\r\n--" + boundary + "--\r\n", body(resp));
+        }
+    }
+
+    private static Response post(Handler handler, String name, String length,
+            byte[] body) throws IOException, BadRequestException {
+        var head = "POST /files/%s HTTP/1.1\r\nContent-Length: %s\r\n\r\n"
+                .formatted(name, length).getBytes(StandardCharsets.US_ASCII);
+        var in = new ByteArrayOutputStream();
+        in.write(head);
+        in.write(body);
+        var req = Request.parseFrom(new ByteArrayInputStream(in.toByteArray()));
+        return handler.handle(req.withParams(Map.of("filename", name)));
+    }
+
+    private List<String> listing() throws IOException {
+        try (var files = Files.list(root)) {
+            return files.map(p -> p.getFileName().toString()).sorted().toList();
+        }
+    }
+
+    @Test
+    public void testUpload() throws IOException, BadRequestException {
+        // more than one read's worth, synced all the way.
+        var body = new byte[700_000];
+        new Random(1).nextBytes(body);
+        var handler = new FileSystemHandler(
+                root, null, FileSystemHandler.Durability.FULL, pool);
+        var resp = post(handler, "f", String.valueOf(body.length), body);
+        assertEquals(StatusCode.Created, resp.getStatus());
+        assertArrayEquals(body, Files.readAllBytes(root.resolve("f")));
+        assertEquals(List.of("f"), listing());
+    }
+
+    @Test
+    public void testTruncatedUploadLeavesFileAlone()
+            throws IOException, BadRequestException {
+        for (var length : List.of("100", "3000000000")) {
+            var handler = new FileSystemHandler(
+                    root, null, FileSystemHandler.Durability.NONE, pool);
+            var resp = post(handler, "f", length,
+                    "short".getBytes(StandardCharsets.US_ASCII));
+            assertEquals(StatusCode.BadRequest, resp.getStatus());
+            assertEquals(CONTENTS, Files.readString(root.resolve("f")));
+            assertEquals(List.of("f"), listing());
+        }
+    }
+
+    @Test
+    public void testShrunkFileFailsToSend() throws IOException {
+        var path = root.resolve("f");
+        var out = new ByteArrayOutputStream();
+        // a file truncated after its length was sent fails like a broken
+        // connection would, whether it's streamed or transferred.
+        var body = new Body.FileBody(path, FileChannel.open(path),
+                "text/plain", CONTENTS.length() + 10);
+        var e = assertThrows(IOException.class, () -> body.write(out));
+        assertEquals("file truncated while sending", e.getMessage());
+        try (var ch = FileChannel.open(path)) {
+            var sent = new Body.FileBody(path, ch, "text/plain",
+                    CONTENTS.length() + 10);
+            assertThrows(IOException.class, () -> sent.transferTo(
+                    Channels.newChannel(out), n -> {}));
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package dev.dhc.http;
+
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+public class HpackTest {
+
+    private static List<String> decode(Hpack.Decoder decoder, String hex)
+            throws Hpack.CompressionException {
+        var b = HexFormat.of().parseHex(hex.replace(" ", ""));
+        var fields = new ArrayList<String>();
+        decoder.decode(b, 0, b.length, fields);
+        return fields;
+    }
+
+    // the requests of RFC 7541 appendix C.3 and C.4, which are the same
+    // fields without and with Huffman coding.
+    @Test
+    public void testDecodesRequestExamples()
+            throws Hpack.CompressionException {
+        var blocks = List.of(
+                List.of("8286 8441 0f77 7777 2e65 7861 6d70 6c65 2e63 6f6d",
+                        "8286 84be 5808 6e6f 2d63 6163 6865",
+                        "8287 85bf 400a 6375 7374 6f6d 2d6b 6579 0c63 7573"
+                        + " 746f 6d2d 7661 6c75 65"),
+                List.of("8286 8441 8cf1 e3c2 e5f2 3a6b a0ab 90f4 ff",
+                        "8286 84be 5886 a8eb 1064 9cbf",
+                        "8287 85bf 4088 25a8 49e9 5ba9 7d7f 8925 a849 e95b"
+                        + " b8e8 b4bf"));
+        for (var hex : blocks) {
+            var decoder = new Hpack.Decoder();
+            assertEquals(List.of(":method", "GET", ":scheme", "http",
+                    ":path", "/", ":authority", "www.example.com"),
+                    decode(decoder, hex.get(0)));
+            assertEquals(57, decoder.table().size());
+            assertEquals(List.of(":method", "GET", ":scheme", "http",
+                    ":path", "/", ":authority", "www.example.com",
+                    "cache-control", "no-cache"),
+                    decode(decoder, hex.get(1)));
+            assertEquals(110, decoder.table().size());
+            assertEquals(List.of(":method", "GET", ":scheme", "https",
+                    ":path", "/index.html", ":authority", "www.example.com",
+                    "custom-key", "custom-value"),
+                    decode(decoder, hex.get(2)));
+            assertEquals(164, decoder.table().size());
+            assertEquals("custom-key", decoder.table().name(0));
+            assertEquals(":authority", decoder.table().name(2));
+        }
+    }
+
+    @Test
+    public void testRoundTripsThroughBothTables()
+            throws Hpack.CompressionException {
+        var encoder = new Hpack.Encoder();
+        var decoder = new Hpack.Decoder();
+        for (int i = 0; i < 200; i++) {
+            if (i == 50) {
+                encoder.setMaxTableSize(100);
+            } else if (i == 51) {
+                encoder.setMaxTableSize(4096);
+            }
+            var fields = List.of(
+                    ":status", i % 3 == 0 ? "200" : "429",
+                    "content-type", "text/plain",
+                    "content-length", String.valueOf(i),
+                    "x-request", "request-" + i % 40,
+                    "x-bytes", "ÿ\u0000\u007f~");
+            encoder.begin();
+            for (int j = 0; j < fields.size(); j += 2) {
+                encoder.add(fields.get(j), fields.get(j + 1));
+            }
+            var out = new ArrayList<String>();
+            decoder.decode(encoder.bytes(), 0, encoder.length(), out);
+            assertEquals(fields, out);
+            // both sides evict the same entries.
+            assertEquals(encoder.table().count(), decoder.table().count());
+            assertEquals(encoder.table().size(), decoder.table().size());
+            assertTrue(decoder.table().size() <= 4096);
+        }
+        // repeated fields are sent as a single index.
+        encoder.begin();
+        encoder.add("x-request", "request-39");
+        assertEquals(1, encoder.length());
+    }
+
+    @Test
+    public void testRejectsMalformedBlocks() {
+        var cases = List.of(
+                // an index past the end of both tables.
+                "be",
+                // a string longer than the block.
+                "4005 6162",
+                // a size update over the limit.
+                "3fe2 1f",
+                // a size update after a field.
+                "8220",
+                // Huffman padding that isn't all ones.
+                "4081 18",
+                // Huffman padding of 8 bits or more.
+                "4082 1fff");
+        for (var hex : cases) {
+            assertThrows(Hpack.CompressionException.class,
+                    () -> decode(new Hpack.Decoder(), hex), hex);
+        }
+    }
+}
@@ -0,0 +1,502 @@
+package dev.dhc.http;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+public class Http2ConnectionTest {
+
+    private record Frame(int type, int flags, int stream, byte[] payload) {
+    }
+
+    // a client that speaks raw frames, to a connection served on a virtual
+    // thread by serve(), or to a server it has upgraded.
+    private static final class Client implements AutoCloseable {
+
+        private final Socket socket;
+        // what serves the connection, which is closed after it.
+        private final AutoCloseable server;
+        private final OutputStream out;
+        private final DataInputStream in;
+        private final Hpack.Encoder encoder = new Hpack.Encoder();
+        private final Hpack.Decoder decoder = new Hpack.Decoder();
+
+        Client(Socket socket, AutoCloseable server) throws IOException {
+            this.socket = socket;
+            this.server = server;
+            out = socket.getOutputStream();
+            in = new DataInputStream(socket.getInputStream());
+        }
+
+        static Client serve(Handler handler) throws IOException {
+            return serve(handler, ServerOptions.defaults());
+        }
+
+        static Client serve(Handler handler, ServerOptions options)
+                throws IOException {
+            var listener = ServerSocketChannel.open();
+            listener.bind(new InetSocketAddress("localhost", 0));
+            var socket = new Socket("localhost",
+                    ((InetSocketAddress) listener.getLocalAddress()).getPort());
+            var accepted = listener.accept();
+            var executor = Executors.newVirtualThreadPerTaskExecutor();
+            executor.submit(() -> {
+                try (accepted;
+                        var r = new ChannelInputStream(
+                                accepted, BufferPool.HEAP, n -> {});
+                        var w = new ChannelOutputStream(
+                                accepted, BufferPool.HEAP, n -> {})) {
+                    new Http2Connection(accepted, r, w, handler, options,
+                            new Metrics(), new TimerWheel(), executor, null)
+                            .serve(null);
+                }
+                return null;
+            });
+            var client = new Client(socket, () -> {
+                executor.close();
+                listener.close();
+            });
+            client.out.write(Http2Connection.PREFACE);
+            return client;
+        }
+
+        void write(int type, int flags, int stream, byte[] payload)
+                throws IOException {
+            var header = new byte[Http2Frames.HEADER_LENGTH];
+            Http2Frames.header(header, payload.length, type, flags, stream);
+            out.write(header);
+            out.write(payload);
+        }
+
+        void settings(int... idsAndValues) throws IOException {
+            var payload = new byte[3 * idsAndValues.length];
+            for (int i = 0; i < idsAndValues.length; i += 2) {
+                payload[3 * i + 1] = (byte) idsAndValues[i];
+                Http2Frames.writeInt(payload, 3 * i + 2, idsAndValues[i + 1]);
+            }
+            write(Http2Frames.SETTINGS, 0, 0, payload);
+        }
+
+        // encodes a header block of name and value pairs.
+        byte[] block(String... fields) {
+            encoder.begin();
+            for (int i = 0; i < fields.length; i += 2) {
+                encoder.add(fields[i], fields[i + 1]);
+            }
+            return Arrays.copyOf(encoder.bytes(), encoder.length());
+        }
+
+        byte[] requestBlock(String method, String path, String... fields) {
+            var all = new ArrayList<>(List.of(":method", method,
+                    ":scheme", "http", ":path", path,
+                    ":authority", "localhost"));
+            all.addAll(List.of(fields));
+            return block(all.toArray(String[]::new));
+        }
+
+        void request(int stream, String method, String path, boolean end,
+                String... fields) throws IOException {
+            int flags = Http2Frames.END_HEADERS
+                    | (end ? Http2Frames.END_STREAM : 0);
+            write(Http2Frames.HEADERS, flags, stream,
+                    requestBlock(method, path, fields));
+        }
+
+        void reset(int stream, int code) throws IOException {
+            var payload = new byte[4];
+            Http2Frames.writeInt(payload, 0, code);
+            write(Http2Frames.RST_STREAM, 0, stream, payload);
+        }
+
+        void windowUpdate(int stream, int increment) throws IOException {
+            var payload = new byte[4];
+            Http2Frames.writeInt(payload, 0, increment);
+            write(Http2Frames.WINDOW_UPDATE, 0, stream, payload);
+        }
+
+        Frame next() throws IOException {
+            int length = in.readUnsignedByte() << 16 | in.readUnsignedShort();
+            int type = in.readUnsignedByte();
+            int flags = in.readUnsignedByte();
+            int stream = in.readInt();
+            return new Frame(type, flags, stream, in.readNBytes(length));
+        }
+
+        // reads the next frame that isn't about the whole connection.
+        Frame read() throws IOException {
+            while (true) {
+                var f = next();
+                if (f.stream() != 0) {
+                    return f;
+                }
+            }
+        }
+
+        // reads up to the next frame of |type| on stream 0.
+        Frame readConnection(int type) throws IOException {
+            while (true) {
+                var f = next();
+                if (f.stream() == 0 && f.type() == type) {
+                    return f;
+                }
+            }
+        }
+
+        List<String> fields(Frame headers) throws Hpack.CompressionException {
+            assertEquals(Http2Frames.HEADERS, headers.type());
+            var fields = new ArrayList<String>();
+            decoder.decode(headers.payload(), 0, headers.payload().length,
+                    fields);
+            return fields;
+        }
+
+        @Override
+        public void close() throws Exception {
+            socket.close();
+            server.close();
+        }
+    }
+
+    // answers with the request's body, or its path if it has none.
+    private static Response echo(Request req) {
+        try {
+            var body = req.getBody().readAllBytes();
+            if (body.length == 0) {
+                body = req.getPath().getBytes(US_ASCII);
+            }
+            return new Response(StatusCode.OK,
+                    new Body.BytesBody(body, "text/plain"));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static int errorCode(Frame reset) {
+        assertEquals(Http2Frames.RST_STREAM, reset.type());
+        return Http2Frames.readInt(reset.payload(), 0);
+    }
+
+    @Test
+    public void testMultiplexesStreams() throws Exception {
+        var fastDone = new CountDownLatch(1);
+        Handler handler = req -> {
+            try {
+                switch (req.getPath()) {
+                    case "/slow" ->
+                        fastDone.await();
+                    case "/upload" -> {
+                        return new Response(StatusCode.Created,
+                                new Body.BytesBody(
+                                        req.getBody().readAllBytes(),
+                                        "text/plain"));
+                    }
+                    default -> {
+                    }
+                }
+            } catch (InterruptedException | IOException e) {
+                throw new RuntimeException(e);
+            }
+            return new Response(StatusCode.OK,
+                    new Body.StringBody(req.getPath().substring(1)));
+        };
+        try (var client = Client.serve(handler)) {
+            client.settings();
+            client.request(1, "GET", "/slow", true);
+            client.request(3, "GET", "/fast", true);
+            // the slow stream doesn't hold up the fast one.
+            var headers = client.read();
+            assertEquals(3, headers.stream());
+            assertEquals(List.of(":status", "200", "content-length", "4",
+                    "content-type", "text/plain"), client.fields(headers));
+            var data = client.read();
+            assertEquals(Http2Frames.DATA, data.type());
+            assertEquals(Http2Frames.END_STREAM, data.flags());
+            assertEquals("fast", new String(data.payload(), US_ASCII));
+            fastDone.countDown();
+            assertEquals(1, client.read().stream());
+            assertEquals("slow", new String(client.read().payload(),
+                    US_ASCII));
+
+            client.request(5, "POST", "/upload", false);
+            client.write(Http2Frames.DATA, 0, 5, "up".getBytes(US_ASCII));
+            client.write(Http2Frames.DATA, Http2Frames.END_STREAM, 5,
+                    "load".getBytes(US_ASCII));
+            headers = client.read();
+            assertEquals(List.of(":status", "201", "content-length", "6",
+                    "content-type", "text/plain"), client.fields(headers));
+            assertEquals("upload", new String(client.read().payload(),
+                    US_ASCII));
+        }
+    }
+
+    @Test
+    public void testWaitsForTheClientsWindow() throws Exception {
+        var body = new byte[100];
+        Arrays.fill(body, (byte) 'x');
+        // uploads are held without being read.
+        var hold = new CountDownLatch(1);
+        Handler handler = req -> {
+            try {
+                if (req.getMethod() == Method.POST) {
+                    hold.await();
+                }
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            return new Response(StatusCode.OK,
+                    new Body.BytesBody(body, "text/plain"));
+        };
+        try (var client = Client.serve(handler)) {
+            client.settings(Http2Frames.INITIAL_WINDOW_SIZE, 30);
+            client.request(1, "GET", "/", true);
+            client.fields(client.read());
+            var first = client.read();
+            assertEquals(30, first.payload().length);
+            assertEquals(0, first.flags());
+            client.windowUpdate(1, 100);
+            var rest = client.read();
+            assertEquals(70, rest.payload().length);
+            assertTrue((rest.flags() & Http2Frames.END_STREAM) != 0);
+
+            // a client that sends more of a body than the stream's window
+            // allows, while the handler isn't reading it, is reset.
+            client.request(3, "POST", "/", false);
+            for (int i = 0; i < 4; i++) {
+                client.write(Http2Frames.DATA, 0, 3, new byte[16_383]);
+            }
+            client.write(Http2Frames.DATA, 0, 3, new byte[4]);
+            var reset = client.read();
+            assertEquals(Http2Frames.RST_STREAM, reset.type());
+            assertEquals(3, reset.stream());
+            assertArrayEquals(
+                    new byte[]{0, 0, 0, Http2Frames.FLOW_CONTROL_ERROR},
+                    reset.payload());
+            hold.countDown();
+        }
+    }
+
+    @Test
+    public void testUpgradesFromHttp1() throws Exception {
+        for (var engine : ServerOptions.Engine.values()) {
+            var options = ServerOptions.builder().engine(engine)
+                    .eventLoops(1).build();
+            var socket = TestServer.connect(Http2ConnectionTest::echo,
+                    options);
+            try (var client = new Client(socket, () -> {})) {
+                TestServer.send(socket, "GET /upgraded HTTP/1.1\r\n"
+                        + "Host: localhost\r\n"
+                        + "Connection: Upgrade, HTTP2-Settings\r\n"
+                        + "Upgrade: h2c\r\nHTTP2-Settings: AAMAAABk\r\n\r\n");
+                assertEquals("HTTP/1.1 101 Switching Protocols",
+                        TestServer.readHead(client.in), engine.name());
+                client.out.write(Http2Connection.PREFACE);
+                client.settings();
+                // the request that asked to switch is answered on stream 1.
+                var headers = client.read();
+                assertEquals(1, headers.stream());
+                assertEquals(List.of(":status", "200", "content-length", "9",
+                        "content-type", "text/plain"), client.fields(headers));
+                assertEquals("/upgraded", new String(client.read().payload(),
+                        US_ASCII));
+            }
+        }
+    }
+
+    @Test
+    public void testReassemblesContinuedHeaderBlocks() throws Exception {
+        try (var client = Client.serve(Http2ConnectionTest::echo)) {
+            client.settings();
+            var block = client.requestBlock("GET", "/continued");
+            int half = block.length / 2;
+            client.write(Http2Frames.HEADERS, Http2Frames.END_STREAM, 1,
+                    Arrays.copyOfRange(block, 0, half));
+            client.write(Http2Frames.CONTINUATION, Http2Frames.END_HEADERS, 1,
+                    Arrays.copyOfRange(block, half, block.length));
+            assertEquals("200", client.fields(client.read()).get(1));
+            assertEquals("/continued", new String(client.read().payload(),
+                    US_ASCII));
+
+            // a block can't be skipped, so one larger than the server allows
+            // ends the connection.
+            client.write(Http2Frames.HEADERS, 0, 3, new byte[16_384]);
+            for (int i = 0; i < 4; i++) {
+                client.write(Http2Frames.CONTINUATION, 0, 3, new byte[16_384]);
+            }
+            var goAway = client.readConnection(Http2Frames.GOAWAY);
+            assertEquals(Http2Frames.ENHANCE_YOUR_CALM,
+                    Http2Frames.readInt(goAway.payload(), 4));
+        }
+    }
+
+    @Test
+    public void testResetCancelsTheHandler() throws Exception {
+        var started = new CountDownLatch(1);
+        var pending = new CompletableFuture<Response>();
+        var handler = new Handler() {
+            @Override
+            public Response handle(Request req) {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public CompletionStage<Response> handleAsync(Request req) {
+                started.countDown();
+                return pending;
+            }
+        };
+        try (var client = Client.serve(handler)) {
+            client.settings();
+            client.request(1, "GET", "/", true);
+            assertTrue(started.await(5, TimeUnit.SECONDS), "not started");
+            client.reset(1, Http2Frames.CANCEL);
+            assertThrows(CancellationException.class,
+                    () -> pending.get(5, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    public void testResetStreamsCountUntilTheirHandlersReturn()
+            throws Exception {
+        var release = new CountDownLatch(1);
+        Handler handler = req -> {
+            if (req.getPath().equals("/slow")) {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+            return new Response(StatusCode.OK);
+        };
+        var options = ServerOptions.builder().maxConcurrentStreams(1).build();
+        try (var client = Client.serve(handler, options)) {
+            client.settings();
+            client.request(1, "GET", "/slow", true);
+            client.reset(1, Http2Frames.CANCEL);
+            // the reset stream's handler is still running, so resetting it
+            // didn't make room for another.
+            client.request(3, "GET", "/", true);
+            var refused = client.read();
+            assertEquals(3, refused.stream());
+            assertEquals(Http2Frames.REFUSED_STREAM, errorCode(refused));
+            release.countDown();
+            // once it returns there's room again.
+            for (int id = 5;; id += 2) {
+                client.request(id, "GET", "/", true);
+                var f = client.read();
+                if (f.type() == Http2Frames.HEADERS) {
+                    assertEquals("200", client.fields(f).get(1));
+                    break;
+                }
+                assertEquals(Http2Frames.REFUSED_STREAM, errorCode(f));
+                assertTrue(id < 200, "still refused");
+                Thread.sleep(10);
+            }
+        }
+    }
+
+    @Test
+    public void testTrailersEndTheBody() throws Exception {
+        try (var client = Client.serve(Http2ConnectionTest::echo)) {
+            client.settings();
+            client.request(1, "POST", "/", false);
+            client.write(Http2Frames.DATA, 0, 1, "body".getBytes(US_ASCII));
+            client.write(Http2Frames.HEADERS,
+                    Http2Frames.END_HEADERS | Http2Frames.END_STREAM, 1,
+                    client.block("x-checksum", "1234"));
+            assertEquals("200", client.fields(client.read()).get(1));
+            assertEquals("body", new String(client.read().payload(),
+                    US_ASCII));
+        }
+    }
+
+    @Test
+    public void testResetsBodyThatDoesntMatchItsLength() throws Exception {
+        try (var client = Client.serve(Http2ConnectionTest::echo)) {
+            client.settings();
+            // too short.
+            client.request(1, "POST", "/", false, "content-length", "5");
+            client.write(Http2Frames.DATA, Http2Frames.END_STREAM, 1,
+                    "abc".getBytes(US_ASCII));
+            var reset = client.read();
+            assertEquals(1, reset.stream());
+            assertEquals(Http2Frames.PROTOCOL_ERROR, errorCode(reset));
+            // too long.
+            client.request(3, "POST", "/", false, "content-length", "2");
+            client.write(Http2Frames.DATA, Http2Frames.END_STREAM, 3,
+                    "abc".getBytes(US_ASCII));
+            reset = client.read();
+            assertEquals(3, reset.stream());
+            assertEquals(Http2Frames.PROTOCOL_ERROR, errorCode(reset));
+        }
+    }
+
+    @Test
+    public void testInitialWindowSizeResizesOpenStreams() throws Exception {
+        var body = new byte[100];
+        Handler handler = req -> new Response(StatusCode.OK,
+                new Body.BytesBody(body, "application/octet-stream"));
+        try (var client = Client.serve(handler)) {
+            client.settings(Http2Frames.INITIAL_WINDOW_SIZE, 10);
+            client.request(1, "GET", "/", true);
+            client.fields(client.read());
+            assertEquals(10, client.read().payload().length);
+            // the stream's window grows by the difference.
+            client.settings(Http2Frames.INITIAL_WINDOW_SIZE, 40);
+            assertEquals(30, client.read().payload().length);
+        }
+    }
+
+    @Test
+    public void testReopensTheConnectionWindow() throws Exception {
+        var hold = new CountDownLatch(1);
+        Handler handler = req -> {
+            try {
+                hold.await();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            return new Response(StatusCode.OK);
+        };
+        try (var client = Client.serve(handler)) {
+            client.settings();
+            // the server opens the connection's window past the default at
+            // the start.
+            var initial = client.readConnection(Http2Frames.WINDOW_UPDATE);
+            assertEquals((1 << 20) - 65_535,
+                    Http2Frames.readInt(initial.payload(), 0));
+            // each stream stays within its own window, while together they
+            // use up more than half of the connection's, which is reopened
+            // by however much has arrived.
+            for (int id = 1; id <= 17; id += 2) {
+                client.request(id, "POST", "/", false);
+                for (int i = 0; i < 4; i++) {
+                    client.write(Http2Frames.DATA, 0, id, new byte[16_383]);
+                }
+            }
+            var update = client.readConnection(Http2Frames.WINDOW_UPDATE);
+            assertEquals(33 * 16_383, Http2Frames.readInt(update.payload(), 0));
+            hold.countDown();
+        }
+    }
+}
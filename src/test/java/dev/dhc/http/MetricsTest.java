@@ -0,0 +1,83 @@
+package dev.dhc.http;
+
+import java.io.InputStream;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+public class MetricsTest {
+
+    private static Request get(String path) throws BadRequestException {
+        return Request.create(Method.GET, path, Headers.EMPTY,
+                InputStream.nullInputStream());
+    }
+
+    @Test
+    public void testHistogramBuckets() {
+        var h = new Metrics.Histogram();
+        h.record(50_000);
+        h.record(100_000);
+        h.record(3_000_000);
+        h.record(60_000_000_000L);
+        assertEquals(4, h.count());
+        var metrics = new Metrics();
+        var route = metrics.route("/x");
+        route.record(StatusCode.OK, 50_000);
+        route.record(StatusCode.OK, 3_000_000);
+        var text = metrics.render();
+        var prefix = "http_request_duration_seconds_bucket{route=\"/x\","
+                + "status=\"200\",";
+        assertTrue(text.contains(prefix + "le=\"1.0E-4\"} 1\n"), text);
+        assertTrue(text.contains(prefix + "le=\"0.005\"} 2\n"), text);
+        assertTrue(text.contains(prefix + "le=\"+Inf\"} 2\n"), text);
+        assertTrue(text.contains("http_request_duration_seconds_count{"
+                + "route=\"/x\",status=\"200\"} 2\n"), text);
+    }
+
+    @Test
+    public void testRecordsRoutesAndStatuses() throws BadRequestException {
+        var metrics = new Metrics();
+        var router = new TreeRouter(metrics);
+        router.addRoute(Set.of(Method.GET), "/echo/{text}",
+                new SimpleHandler(req -> req.getParam("text")));
+        router.addRoute(Set.of(Method.GET), "/boom", req -> {
+            throw new IllegalStateException("boom");
+        });
+        router.handle(get("/echo/a"));
+        router.handle(get("/echo/b"));
+        router.handle(get("/nowhere"));
+        assertThrows(IllegalStateException.class,
+                () -> router.handle(get("/boom")));
+        assertEquals(2, metrics.route("/echo/{text}")
+                .histogram(StatusCode.OK).count());
+        assertEquals(1, metrics.route(TreeRouter.UNMATCHED)
+                .histogram(StatusCode.NotFound).count());
+        assertEquals(1, metrics.route("/boom")
+                .histogram(StatusCode.InternalServerError).count());
+    }
+
+    @Test
+    public void testRendersCounters() throws Exception {
+        var metrics = new Metrics();
+        metrics.connectionOpened();
+        metrics.connectionOpened();
+        metrics.connectionClosed();
+        metrics.received(100);
+        metrics.sent(250);
+        metrics.parseError();
+        metrics.route("/a\"b").record(StatusCode.OK, 1);
+        var resp = metrics.handler().handle(get("/metrics"));
+        assertEquals(Metrics.CONTENT_TYPE,
+                resp.getBody().getContentType().orElseThrow());
+        var text = resp.getBody().asString();
+        assertTrue(text.contains("\nhttp_connections_active 1\n"), text);
+        assertTrue(text.contains("\nhttp_connections_accepted_total 2\n"));
+        assertTrue(text.contains("\nhttp_received_bytes_total 100\n"));
+        assertTrue(text.contains("\nhttp_sent_bytes_total 250\n"));
+        assertTrue(text.contains("\nhttp_parse_errors_total 1\n"));
+        assertTrue(text.contains("route=\"/a\\\"b\""), text);
+    }
+}
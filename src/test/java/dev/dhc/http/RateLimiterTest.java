@@ -0,0 +1,86 @@
+package dev.dhc.http;
+
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+public class RateLimiterTest {
+
+    private static Request get(SocketAddress remote)
+            throws BadRequestException {
+        return Request.create(Method.GET, "/", Headers.EMPTY,
+                InputStream.nullInputStream(), remote);
+    }
+
+    private static SocketAddress client(String host, int port) {
+        return new InetSocketAddress(host, port);
+    }
+
+    @Test
+    public void testLimitsEachClient() throws Exception {
+        var metrics = new Metrics();
+        var calls = new AtomicInteger();
+        var handler = new RateLimiter(metrics).wrap(req -> {
+            calls.incrementAndGet();
+            return new Response(StatusCode.OK);
+        }, new RateLimiter.Limit(0.5, 2));
+
+        var a = client("10.0.0.1", 1000);
+        assertEquals(StatusCode.OK, handler.handle(get(a)).getStatus());
+        // clients are told apart by address, not by connection.
+        assertEquals(StatusCode.OK, handler.handle(
+                get(client("10.0.0.1", 2000))).getStatus());
+        var resp = handler.handle(get(a));
+        assertEquals(StatusCode.TooManyRequests, resp.getStatus());
+        assertEquals("2", resp.getHeader("Retry-After"));
+        var async = handler.handleAsync(get(a)).toCompletableFuture().join();
+        assertEquals(StatusCode.TooManyRequests, async.getStatus());
+        assertEquals(2, calls.get());
+        assertEquals(2, metrics.rateLimitedRequests());
+
+        // other clients, and requests from unknown addresses, are allowed.
+        assertEquals(StatusCode.OK, handler.handle(
+                get(client("10.0.0.2", 1000))).getStatus());
+        assertEquals(StatusCode.OK, handler.handle(get(null)).getStatus());
+    }
+
+    @Test
+    public void testRefills() throws Exception {
+        var handler = new RateLimiter(null).wrap(
+                req -> new Response(StatusCode.OK),
+                new RateLimiter.Limit(20, 2));
+        var a = client("10.0.0.1", 1000);
+        handler.handle(get(a));
+        handler.handle(get(a));
+        var resp = handler.handle(get(a));
+        assertEquals(StatusCode.TooManyRequests, resp.getStatus());
+        assertEquals("1", resp.getHeader("Retry-After"));
+        Thread.sleep(60);
+        assertEquals(StatusCode.OK, handler.handle(get(a)).getStatus());
+    }
+
+    @Test
+    public void testEvictsIdleClients() throws Exception {
+        var buckets = new TokenBuckets(new RateLimiter.Limit(10, 1),
+                1_000_000);
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(0, buckets.take(i));
+        }
+        assertTrue(buckets.take(0) > 0);
+        assertEquals(1000, buckets.size());
+        Thread.sleep(150);
+        // taking a token sweeps its stripe, so touching every stripe once
+        // leaves only the buckets that were just taken from.
+        for (int i = 0; i < 1000; i++) {
+            buckets.take(-1 - i);
+        }
+        assertTrue(buckets.size() <= 1000);
+        // an evicted client starts again with a full bucket.
+        assertEquals(0, buckets.take(0));
+    }
+}
@@ -0,0 +1,151 @@
+package dev.dhc.http;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+public class RequestParserTest {
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static Request parse(String s)
+            throws IOException, BadRequestException {
+        return new RequestParser().parse(new ByteArrayInputStream(bytes(s)));
+    }
+
+    @Test
+    public void testParsesHead() throws IOException, BadRequestException {
+        var req = parse("POST /files/a HTTP/1.1\r\n"
+                + "Host: localhost\r\n"
+                + "X-Padded: \t value \t\r\n"
+                + "X-Empty:\r\n"
+                + "Content-Length: 2\r\n"
+                + "\r\n"
+                + "hi");
+        assertEquals(Method.POST, req.getMethod());
+        assertEquals("/files/a", req.getPath());
+        assertEquals("localhost", req.getHeader("Host"));
+        assertEquals("value", req.getHeader("X-Padded"));
+        assertEquals("", req.getHeader("X-Empty"));
+        assertNull(req.getHeader("Missing"));
+        assertEquals("hi", new String(req.getBody().readAllBytes(),
+                StandardCharsets.US_ASCII));
+    }
+
+    @Test
+    public void testAcceptsNonAsciiBytes()
+            throws IOException, BadRequestException {
+        var utf8 = "café".getBytes(StandardCharsets.UTF_8);
+        var head = new ByteArrayOutputStream();
+        head.writeBytes(bytes("GET /echo/"));
+        head.writeBytes(utf8);
+        head.writeBytes(bytes(" HTTP/1.1\r\nUser-Agent: "));
+        head.writeBytes(utf8);
+        head.writeBytes(bytes("\r\n\r\n"));
+        var req = new RequestParser().parse(
+                new ByteArrayInputStream(head.toByteArray()));
+        // the bytes are kept as they are, one char each.
+        var raw = new String(utf8, StandardCharsets.ISO_8859_1);
+        assertEquals("/echo/" + raw, req.getPath());
+        assertEquals(raw, req.getHeader("User-Agent"));
+    }
+
+    @Test
+    public void testFeedsIncrementally() throws BadRequestException {
+        var head = bytes("GET /echo/abc HTTP/1.1\r\nUser-Agent: x\r\n\r\n");
+        var parser = new RequestParser();
+        for (int i = 0; i < head.length - 1; i++) {
+            assertEquals(1, parser.feed(head, i, 1));
+            assertFalse(parser.isComplete());
+        }
+        assertEquals(1, parser.feed(head, head.length - 1, 1));
+        assertTrue(parser.isComplete());
+        var req = parser.finish(InputStream.nullInputStream());
+        assertEquals("/echo/abc", req.getPath());
+        assertEquals("x", req.getHeader("User-Agent"));
+    }
+
+    @Test
+    public void testStopsAtEndOfHead() throws BadRequestException {
+        var data = bytes("GET / HTTP/1.1\r\n\r\nGET /next HTTP/1.1\r\n\r\n");
+        var parser = new RequestParser();
+        assertEquals(18, parser.feed(data, 0, data.length));
+        assertEquals("/", parser.finish(InputStream.nullInputStream())
+                .getPath());
+        assertEquals(data.length - 18, parser.feed(data, 18, data.length - 18));
+        assertEquals("/next", parser.finish(InputStream.nullInputStream())
+                .getPath());
+    }
+
+    @Test
+    public void testRejectsMalformedHeads() {
+        for (var s : new String[]{
+            "PUT / HTTP/1.1\r\n\r\n",
+            "GET / HTTP/1.0\r\n\r\n",
+            "GET  HTTP/1.1\r\n\r\n",
+            "GET / HTTP/1.1\n\n",
+            "GET / HTTP/1.1\r\nNo-Colon\r\n\r\n",
+            "GET / HTTP/1.1\r\n Folded: x\r\n\r\n",
+            "GET / HTTP/1.1\r\nContent-Length: -1\r\n\r\n",
+            "GET / HTTP/1.1\r\nContent-Length: 1\r\n"
+                    + "content-length: 2\r\n\r\n",
+            "GET / HTTP/1.1\r\nTransfer-Encoding: chunked\r\n"
+                    + "Transfer-Encoding: chunked\r\n\r\n",
+            "GET / HTTP/1.1\r\n",
+        }) {
+            assertThrows(BadRequestException.class, () -> parse(s));
+        }
+    }
+
+    @Test
+    public void testEnforcesLimits() {
+        var parser = new RequestParser(16, 32);
+        var longLine = bytes("GET /" + "a".repeat(16) + " HTTP/1.1\r\n\r\n");
+        assertThrows(BadRequestException.class,
+                () -> parser.feed(longLine, 0, longLine.length));
+
+        parser.reset();
+        var bigHeaders = bytes("GET / HTTP/1.1\r\nX: " + "b".repeat(32)
+                + "\r\n\r\n");
+        assertThrows(BadRequestException.class,
+                () -> parser.feed(bigHeaders, 0, bigHeaders.length));
+    }
+
+    @Test
+    public void testHeadersIgnoreCaseAndRepeat()
+            throws IOException, BadRequestException {
+        var req = parse("GET / HTTP/1.1\r\n"
+                + "user-agent: curl\r\n"
+                + "Accept: text/html\r\n"
+                + "ACCEPT: text/plain\r\n"
+                + "connection: Upgrade, Close\r\n"
+                + "Content-Length: 0\r\n"
+                + "content-length: 0\r\n"
+                + "\r\n");
+        assertEquals("curl", req.getHeader("User-Agent"));
+        assertEquals("curl", req.getHeader(Headers.USER_AGENT));
+        assertEquals("text/plain", req.getHeader("accept"));
+        assertEquals(List.of("text/html", "text/plain"),
+                req.getHeaders("Accept"));
+        assertEquals(List.of(), req.getHeaders("Missing"));
+        assertFalse(req.keepAlive());
+        assertTrue(req.headers().hasToken(Headers.CONNECTION, "upgrade"));
+        assertFalse(req.headers().hasToken(Headers.CONNECTION, "keep"));
+        // well-known names come back as the same String every time.
+        assertSame(Headers.USER_AGENT.toString(), req.headers().name(0));
+        assertEquals("ACCEPT", req.headers().name(2));
+    }
+}
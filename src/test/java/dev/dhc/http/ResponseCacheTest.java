@@ -0,0 +1,142 @@
+package dev.dhc.http;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+public class ResponseCacheTest {
+
+    private static Request request(String method, String path,
+            String agent) throws IOException, BadRequestException {
+        var head = "%s %s HTTP/1.1\r\nUser-Agent: %s\r\n\r\n"
+                .formatted(method, path, agent);
+        return Request.parseFrom(new ByteArrayInputStream(
+                head.getBytes(StandardCharsets.US_ASCII)));
+    }
+
+    private static String encode(Response resp, boolean keepAlive)
+            throws IOException {
+        var out = new ByteArrayOutputStream();
+        new ResponseEncoder().write(resp, keepAlive, out);
+        return out.toString(StandardCharsets.US_ASCII);
+    }
+
+    @Test
+    public void testHitsReuseEncodedResponse()
+            throws IOException, BadRequestException {
+        var calls = new AtomicInteger();
+        var cache = new ResponseCache(1 << 20);
+        var handler = cache.wrap(new SimpleHandler(req -> {
+            calls.incrementAndGet();
+            return req.getHeader("User-Agent");
+        }), "User-Agent");
+
+        var first = handler.handle(request("GET", "/ua", "curl"));
+        var second = handler.handle(request("GET", "/ua", "curl"));
+        assertSame(first, second);
+        assertEquals(1, calls.get());
+        assertEquals("HTTP/1.1 200 OK\r\n"
+                + "Content-Length: 4\r\n"
+                + "Content-Type: text/plain\r\n"
+                + "\r\n"
+                + "curl", encode(second, true));
+        assertEquals("HTTP/1.1 200 OK\r\n"
+                + "Content-Length: 4\r\n"
+                + "Content-Type: text/plain\r\n"
+                + "Connection: close\r\n"
+                + "\r\n"
+                + "curl", encode(second, false));
+
+        // the selected header fields are part of the key, and rewriting a
+        // cached response encodes it afresh.
+        var other = handler.handle(request("GET", "/ua", "wget"));
+        assertEquals(2, calls.get());
+        assertTrue(encode(other.withHeader("X-A", "b"), true)
+                .contains("X-A: b\r\n\r\nwget"));
+        assertEquals(1, cache.hits());
+        assertEquals(2, cache.misses());
+
+        // other methods and other statuses are passed through.
+        handler.handle(request("POST", "/ua", "curl"));
+        var missing = cache.wrap(req -> Response.notFound());
+        assertNotSame(missing.handle(request("GET", "/x", "curl")),
+                missing.handle(request("GET", "/x", "curl")));
+        assertEquals(3, calls.get());
+    }
+
+    @Test
+    public void testExpiresAndEvicts()
+            throws IOException, BadRequestException, InterruptedException {
+        var calls = new AtomicInteger();
+        var cache = new ResponseCache(1 << 20, 1 << 10,
+                Duration.ofMillis(50));
+        var handler = cache.wrap(new SimpleHandler(req -> {
+            calls.incrementAndGet();
+            return req.getParam("n");
+        }));
+        var req = request("GET", "/a", "curl").withParams(
+                Map.of("n", "a"));
+        handler.handle(req);
+        handler.handle(req);
+        assertEquals(1, calls.get());
+        Thread.sleep(100);
+        handler.handle(req);
+        assertEquals(2, calls.get());
+
+        // bodies over maxEntryBytes aren't kept, and the budget is held.
+        var big = cache.wrap(new SimpleHandler(r -> "x".repeat(2000)));
+        assertNotSame(big.handle(request("GET", "/big", "curl")),
+                big.handle(request("GET", "/big", "curl")));
+        var small = new ResponseCache(4 << 10);
+        var echo = small.wrap(new SimpleHandler(r -> "y".repeat(100)));
+        for (int i = 0; i < 100; i++) {
+            echo.handle(request("GET", "/" + i, "curl"));
+        }
+        assertTrue(small.size() <= 4 << 10);
+        assertTrue(small.evictions() > 0);
+    }
+
+    @Test
+    public void testLoadsMissingEntryOnce() throws Exception {
+        var calls = new AtomicInteger();
+        var release = new CountDownLatch(1);
+        var cache = new ResponseCache(1 << 20);
+        var handler = cache.wrap(new SimpleHandler(req -> {
+            calls.incrementAndGet();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            return "slow";
+        }));
+        var results = new ArrayList<Future<Response>>();
+        try (var executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int i = 0; i < 32; i++) {
+                results.add(executor.submit(
+                        () -> handler.handle(request("GET", "/s", "curl"))));
+            }
+            Thread.sleep(100);
+            release.countDown();
+            var first = results.get(0).get();
+            for (var result : results) {
+                assertSame(first, result.get());
+            }
+        }
+        assertEquals(1, calls.get());
+    }
+}
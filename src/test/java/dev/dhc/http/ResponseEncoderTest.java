@@ -0,0 +1,83 @@
+package dev.dhc.http;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import org.junit.jupiter.api.Test;
+
+public class ResponseEncoderTest {
+
+    private static String encode(Response resp, boolean keepAlive)
+            throws IOException {
+        var out = new ByteArrayOutputStream();
+        new ResponseEncoder().write(resp, keepAlive, out);
+        return out.toString(StandardCharsets.US_ASCII);
+    }
+
+    @Test
+    public void testEncodesResponse() throws IOException {
+        var resp = new Response(StatusCode.OK, new Body.StringBody("hello"))
+                .withHeader("X-Request-Id", "42");
+        assertEquals("HTTP/1.1 200 OK\r\n"
+                + "Content-Length: 5\r\n"
+                + "Content-Type: text/plain\r\n"
+                + "X-Request-Id: 42\r\n"
+                + "\r\n"
+                + "hello", encode(resp, true));
+    }
+
+    @Test
+    public void testEncodesConnectionClose() throws IOException {
+        assertEquals("HTTP/1.1 404 Not Found\r\n"
+                + "Content-Length: 0\r\n"
+                + "Connection: close\r\n"
+                + "\r\n", encode(Response.notFound(), false));
+    }
+
+    @Test
+    public void testReusesBuffer() throws IOException {
+        var enc = new ResponseEncoder();
+        var out = new ByteArrayOutputStream();
+        enc.write(new Response(StatusCode.OK,
+                new Body.StringBody("x".repeat(1000)))
+                .withHeader("X-Long", "y".repeat(1000)), true, out);
+        out.reset();
+        enc.write(new Response(StatusCode.Created), true, out);
+        assertEquals("HTTP/1.1 201 Created\r\nContent-Length: 0\r\n\r\n",
+                out.toString(StandardCharsets.US_ASCII));
+    }
+
+    @Test
+    public void testEncodesChunkedBody() throws IOException {
+        var body = new Body.ChunkedBody(
+                out -> {
+                    out.write("hello world".getBytes(StandardCharsets.US_ASCII));
+                    out.flush();
+                    out.write('!');
+                },
+                "text/plain",
+                4);
+        assertEquals("HTTP/1.1 200 OK\r\n"
+                + "Transfer-Encoding: chunked\r\n"
+                + "Content-Type: text/plain\r\n"
+                + "\r\n"
+                + "4\r\nhell\r\n"
+                + "4\r\no wo\r\n"
+                + "3\r\nrld\r\n"
+                + "1\r\n!\r\n"
+                + "0\r\n\r\n", encode(new Response(StatusCode.OK, body), true));
+        assertEquals("hello world!", body.asString());
+    }
+
+    @Test
+    public void testRejectsHeaderInjection() {
+        var resp = new Response(StatusCode.OK);
+        assertThrows(IllegalArgumentException.class,
+                () -> resp.withHeader("X-Bad", "a\r\nSet-Cookie: b"));
+        assertThrows(IllegalArgumentException.class,
+                () -> resp.withHeader("X-Bad\n", "a"));
+    }
+}
@@ -0,0 +1,90 @@
+package dev.dhc.http;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.Duration;
+
+import static dev.dhc.http.TestServer.connect;
+import static dev.dhc.http.TestServer.readHead;
+import static dev.dhc.http.TestServer.send;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import org.junit.jupiter.api.Test;
+
+public class ServerTest {
+
+    private static final ServerOptions.Engine[] ENGINES
+            = ServerOptions.Engine.values();
+
+    // reads the whole body, then takes longer than the body deadline.
+    private static Response slowUpload(Request req) {
+        try {
+            var body = req.getBody().readAllBytes();
+            Thread.sleep(300);
+            return new Response(StatusCode.Created,
+                    new Body.BytesBody(body, "text/plain"));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static ServerOptions options(ServerOptions.Engine engine) {
+        return ServerOptions.builder().engine(engine).eventLoops(1)
+                .bodyTimeout(Duration.ofMillis(100)).minBodyRate(0).build();
+    }
+
+    @Test
+    public void testBodyDeadlineEndsWithTheBody() throws Exception {
+        for (var engine : ENGINES) {
+            try (var socket = connect(ServerTest::slowUpload,
+                    options(engine))) {
+                send(socket, "POST / HTTP/1.1\r\nContent-Length: 5\r\n\r\n"
+                        + "hello");
+                assertEquals("HTTP/1.1 201 Created",
+                        readHead(socket.getInputStream()), engine.name());
+            }
+        }
+    }
+
+    @Test
+    public void testStalledBodyTimesOut() throws Exception {
+        for (var engine : ENGINES) {
+            try (var socket = connect(ServerTest::slowUpload,
+                    options(engine))) {
+                send(socket, "POST / HTTP/1.1\r\nContent-Length: 10\r\n\r\n"
+                        + "hello");
+                assertEquals("HTTP/1.1 408 Request Timeout",
+                        readHead(socket.getInputStream()), engine.name());
+            }
+        }
+    }
+
+    // bodies too large for the event loop to buffer reach the handler while
+    // they're still arriving.
+    @Test
+    public void testBodyDeadlineEndsWithAStreamedBody() throws Exception {
+        for (var engine : ENGINES) {
+            try (var socket = connect(ServerTest::slowUpload,
+                    options(engine))) {
+                send(socket, "POST / HTTP/1.1\r\nContent-Length: 100000\r\n"
+                        + "\r\n" + "x".repeat(100_000));
+                assertEquals("HTTP/1.1 201 Created",
+                        readHead(socket.getInputStream()), engine.name());
+            }
+        }
+    }
+
+    @Test
+    public void testStalledStreamedBodyTimesOut() throws Exception {
+        for (var engine : ENGINES) {
+            try (var socket = connect(ServerTest::slowUpload,
+                    options(engine))) {
+                send(socket, "POST / HTTP/1.1\r\nContent-Length: 100000\r\n"
+                        + "\r\nhello");
+                assertEquals("HTTP/1.1 408 Request Timeout",
+                        readHead(socket.getInputStream()), engine.name());
+            }
+        }
+    }
+}
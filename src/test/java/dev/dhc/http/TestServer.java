@@ -0,0 +1,66 @@
+package dev.dhc.http;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ConnectException;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+
+// Runs servers on free ports for tests that talk to them over sockets.
+final class TestServer {
+
+    private TestServer() {
+    }
+
+    // starts a server on a daemon thread, and connects to it once it's
+    // listening.
+    static Socket connect(Handler handler, ServerOptions options)
+            throws IOException, InterruptedException {
+        int port;
+        try (var s = new ServerSocket(0)) {
+            port = s.getLocalPort();
+        }
+        var server = new Server(port, handler, options);
+        Thread.ofPlatform().daemon().start(() -> {
+            try {
+                server.run();
+            } catch (IOException e) {
+                e.printStackTrace(System.err);
+            }
+        });
+        for (int i = 0;; i++) {
+            try {
+                return new Socket("localhost", port);
+            } catch (ConnectException e) {
+                if (i == 100) {
+                    throw e;
+                }
+                Thread.sleep(20);
+            }
+        }
+    }
+
+    static void send(Socket socket, String s) throws IOException {
+        socket.getOutputStream().write(s.getBytes(US_ASCII));
+    }
+
+    static String readLine(InputStream in) throws IOException {
+        var b = new StringBuilder();
+        for (int c; (c = in.read()) >= 0 && c != '\n';) {
+            if (c != '\r') {
+                b.append((char) c);
+            }
+        }
+        return b.toString();
+    }
+
+    // reads a response head, returning its status line.
+    static String readHead(InputStream in) throws IOException {
+        var status = readLine(in);
+        while (!readLine(in).isEmpty()) {
+        }
+        return status;
+    }
+}
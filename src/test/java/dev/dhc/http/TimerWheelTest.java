@@ -0,0 +1,73 @@
+package dev.dhc.http;
+
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+public class TimerWheelTest {
+
+    private final TimerWheel wheel = new TimerWheel(Duration.ofMillis(5), 8);
+
+    @Test
+    public void testFiresOnce() throws InterruptedException {
+        var fired = new CountDownLatch(1);
+        var count = new AtomicInteger();
+        var timer = wheel.timer(() -> {
+            count.incrementAndGet();
+            fired.countDown();
+        });
+        long start = System.nanoTime();
+        // longer than a turn of the wheel.
+        timer.reset(TimeUnit.MILLISECONDS.toNanos(60));
+        assertTrue(fired.await(1, TimeUnit.SECONDS));
+        assertTrue(System.nanoTime() - start >= 60_000_000);
+        Thread.sleep(50);
+        assertEquals(1, count.get());
+    }
+
+    @Test
+    public void testResetPostponesAndCancelStops() throws InterruptedException {
+        var count = new AtomicInteger();
+        var timer = wheel.timer(count::incrementAndGet);
+        for (int i = 0; i < 10; i++) {
+            timer.reset(TimeUnit.MILLISECONDS.toNanos(30));
+            Thread.sleep(10);
+        }
+        assertEquals(0, count.get());
+        timer.cancel();
+        Thread.sleep(60);
+        assertEquals(0, count.get());
+        timer.reset(0);
+        Thread.sleep(60);
+        assertEquals(1, count.get());
+    }
+
+    @Test
+    public void testBodyDeadlineFollowsMinimumRate()
+            throws InterruptedException {
+        var metrics = new Metrics();
+        var expired = new CountDownLatch(1);
+        var options = ServerOptions.builder()
+                .bodyTimeout(Duration.ofMillis(20))
+                .minBodyRate(1000)
+                .build();
+        var timer = new ConnectionTimer(wheel, options, metrics,
+                phase -> expired.countDown());
+        timer.body();
+        // each byte earns another millisecond.
+        for (int i = 0; i < 8; i++) {
+            Thread.sleep(10);
+            timer.received(10);
+        }
+        assertNull(timer.expired());
+        assertTrue(expired.await(1, TimeUnit.SECONDS));
+        assertEquals(ConnectionTimer.Phase.BODY, timer.expired());
+        assertEquals(1, metrics.timeouts(ConnectionTimer.Phase.BODY));
+    }
+}
@@ -0,0 +1,119 @@
+package dev.dhc.http;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class TreeRouterTest {
+
+    private TreeRouter router;
+
+    private static Handler respond(String name) {
+        return new SimpleHandler(req -> name + " " + req.getParam("a") + " "
+                + req.getParam("b"));
+    }
+
+    @BeforeEach
+    public void setUp() {
+        router = new TreeRouter();
+        router.addRoute(Set.of(Method.GET), "/", respond("root"));
+        router.addRoute(Set.of(Method.GET), "/echo", respond("echo"));
+        router.addRoute(Set.of(Method.GET), "/echo/{a}", respond("echo-a"));
+        router.addRoute(Set.of(Method.GET), "/echo/all", respond("echo-all"));
+        router.addRoute(Set.of(Method.GET), "/eat/{a}/{b}", respond("eat"));
+        router.addRoute(Set.of(Method.POST), "/eat/{a}/now", respond("now"));
+        router.addRoute(Set.of(Method.GET), Pattern.compile("/re/(?<a>\\d+)"),
+                Set.of("a"), respond("regex"));
+    }
+
+    private Response call(Method method, String path)
+            throws IOException, BadRequestException {
+        var head = "%s %s HTTP/1.1\r\n\r\n".formatted(method, path);
+        return router.handle(Request.parseFrom(new ByteArrayInputStream(
+                head.getBytes(StandardCharsets.US_ASCII))));
+    }
+
+    private String body(Method method, String path)
+            throws IOException, BadRequestException {
+        var resp = call(method, path);
+        assertEquals(StatusCode.OK, resp.getStatus());
+        return resp.getBody().asString();
+    }
+
+    @Test
+    public void testMatchesLiteralsAndParams()
+            throws IOException, BadRequestException {
+        assertEquals("root null null", body(Method.GET, "/"));
+        assertEquals("echo null null", body(Method.GET, "/echo"));
+        assertEquals("echo-a abc null", body(Method.GET, "/echo/abc"));
+        assertEquals("echo-all null null", body(Method.GET, "/echo/all"));
+        assertEquals("echo-a al null", body(Method.GET, "/echo/al"));
+        assertEquals("eat x y", body(Method.GET, "/eat/x/y"));
+        assertEquals("now x null", body(Method.POST, "/eat/x/now"));
+    }
+
+    @Test
+    public void testFallsBackToRegex() throws IOException, BadRequestException {
+        assertEquals("regex 42 null", body(Method.GET, "/re/42"));
+        assertEquals(StatusCode.NotFound,
+                call(Method.GET, "/re/abc").getStatus());
+    }
+
+    @Test
+    public void testNotFound() throws IOException, BadRequestException {
+        for (var path : new String[]{"/nope", "/echo/", "/echo/a/b", "/eat/x"}) {
+            assertEquals(StatusCode.NotFound, call(Method.GET, path).getStatus());
+        }
+    }
+
+    @Test
+    public void testMethodNotAllowed() throws IOException, BadRequestException {
+        var resp = call(Method.POST, "/echo/abc");
+        assertEquals(StatusCode.MethodNotAllowed, resp.getStatus());
+        assertEquals("GET", resp.getHeader("Allow"));
+        resp = call(Method.GET, "/eat/x/now");
+        assertEquals(StatusCode.OK, resp.getStatus());
+        assertEquals("eat x now", resp.getBody().asString());
+    }
+
+    @Test
+    public void testMethodNotAllowedWithFallback()
+            throws IOException, BadRequestException {
+        router.addRoute(Set.of(Method.POST),
+                Pattern.compile("/echo/(?<a>\\d+)"), Set.of("a"),
+                respond("regex-post"));
+        assertEquals("regex-post 42 null", body(Method.POST, "/echo/42"));
+        var resp = call(Method.POST, "/echo/abc");
+        assertEquals(StatusCode.MethodNotAllowed, resp.getStatus());
+        assertEquals("GET", resp.getHeader("Allow"));
+        assertEquals(StatusCode.NotFound,
+                call(Method.POST, "/nope/42").getStatus());
+    }
+
+    @Test
+    public void testMethodNotAllowedWithoutFallback()
+            throws IOException, BadRequestException {
+        router = new TreeRouter();
+        router.addRoute(Set.of(Method.GET), "/echo/{a}", respond("echo-a"));
+        var resp = call(Method.POST, "/echo/abc");
+        assertEquals(StatusCode.MethodNotAllowed, resp.getStatus());
+        assertEquals("GET", resp.getHeader("Allow"));
+        assertEquals(StatusCode.NotFound,
+                call(Method.POST, "/nope").getStatus());
+    }
+
+    @Test
+    public void testRejectsBadTemplates() {
+        assertThrows(IllegalArgumentException.class, () -> router.addRoute(
+                Set.of(Method.GET), "/x{a}", respond("bad")));
+        assertThrows(IllegalArgumentException.class, () -> router.addRoute(
+                Set.of(Method.GET), "/echo/{other}", respond("bad")));
+    }
+}